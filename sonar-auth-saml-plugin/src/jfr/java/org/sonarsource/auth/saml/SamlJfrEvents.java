@@ -0,0 +1,183 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Implementation of {@link SamlEvents} relying on JFR, only loaded when JFR is available.
+ */
+final class SamlJfrEvents implements SamlEvents.Factory {
+
+  private static final String NAME_PREFIX = "org.sonarsource.auth.saml.";
+
+  private final Map<SamlEvents.Type, EventType> eventTypes = new EnumMap<>(SamlEvents.Type.class);
+  private final Map<SamlEvents.Type, Supplier<JfrEvent>> constructors = new EnumMap<>(SamlEvents.Type.class);
+
+  SamlJfrEvents() {
+    register(SamlEvents.Type.INIT, InitEvent.class, InitEvent::new);
+    register(SamlEvents.Type.CALLBACK, CallbackEvent.class, CallbackEvent::new);
+    register(SamlEvents.Type.ARTIFACT_RESOLUTION, ArtifactResolutionEvent.class, ArtifactResolutionEvent::new);
+    register(SamlEvents.Type.PREVALIDATION, PrevalidationEvent.class, PrevalidationEvent::new);
+    register(SamlEvents.Type.RESPONSE_PARSING, ResponseParsingEvent.class, ResponseParsingEvent::new);
+    register(SamlEvents.Type.RESPONSE_VALIDATION, ResponseValidationEvent.class, ResponseValidationEvent::new);
+    register(SamlEvents.Type.SIGNATURE_VERIFICATION, SignatureVerificationEvent.class, SignatureVerificationEvent::new);
+    register(SamlEvents.Type.ATTRIBUTE_MAPPING, AttributeMappingEvent.class, AttributeMappingEvent::new);
+    register(SamlEvents.Type.AUTHENTICATE, AuthenticateEvent.class, AuthenticateEvent::new);
+  }
+
+  private void register(SamlEvents.Type type, Class<? extends JfrEvent> eventClass, Supplier<JfrEvent> constructor) {
+    eventTypes.put(type, EventType.getEventType(eventClass));
+    constructors.put(type, constructor);
+  }
+
+  @Override
+  public SamlEvent begin(SamlEvents.Type type) {
+    if (!eventTypes.get(type).isEnabled()) {
+      return SamlEvents.NONE;
+    }
+    JfrEvent event = constructors.get(type).get();
+    event.begin();
+    return event;
+  }
+
+  @Category({"SonarQube", "SAML"})
+  @StackTrace(false)
+  private abstract static class JfrEvent extends Event implements SamlEvent {
+    @Label("Outcome")
+    String outcome;
+
+    @Override
+    public void end(String outcome) {
+      this.outcome = outcome;
+      commit();
+    }
+  }
+
+  @Name(NAME_PREFIX + "Init")
+  @Label("SAML Init")
+  @Description("Redirection of the user to the identity provider")
+  private static final class InitEvent extends JfrEvent {
+    @Label("Issuer")
+    String issuer;
+
+    @Override
+    public void setIssuer(String issuer) {
+      this.issuer = issuer;
+    }
+  }
+
+  @Name(NAME_PREFIX + "Callback")
+  @Label("SAML Callback")
+  @Description("Processing of the response of the identity provider, up to the authentication of the user")
+  private static final class CallbackEvent extends JfrEvent {
+    @Label("Issuer")
+    String issuer;
+
+    @Label("Binding")
+    String binding;
+
+    @Label("Response Size")
+    @DataAmount
+    int responseSize;
+
+    @Label("Group Count")
+    int groupCount;
+
+    @Override
+    public void setIssuer(String issuer) {
+      this.issuer = issuer;
+    }
+
+    @Override
+    public void setBinding(String binding) {
+      this.binding = binding;
+    }
+
+    @Override
+    public void setResponseSize(int bytes) {
+      this.responseSize = bytes;
+    }
+
+    @Override
+    public void setGroupCount(int count) {
+      this.groupCount = count;
+    }
+  }
+
+  @Name(NAME_PREFIX + "ArtifactResolution")
+  @Label("SAML Artifact Resolution")
+  @Description("Resolution of an artifact through the back channel of the identity provider")
+  private static final class ArtifactResolutionEvent extends JfrEvent {
+  }
+
+  @Name(NAME_PREFIX + "Prevalidation")
+  @Label("SAML Prevalidation")
+  @Description("Decoding and streaming parsing of the response, with the checks done before the onelogin validation")
+  private static final class PrevalidationEvent extends JfrEvent {
+  }
+
+  @Name(NAME_PREFIX + "ResponseParsing")
+  @Label("SAML Response Parsing")
+  @Description("Decoding of the response into a DOM, including the decryption of the assertion")
+  private static final class ResponseParsingEvent extends JfrEvent {
+  }
+
+  @Name(NAME_PREFIX + "ResponseValidation")
+  @Label("SAML Response Validation")
+  @Description("Validation of the response by onelogin : XML schema, XML signature and conditions")
+  private static final class ResponseValidationEvent extends JfrEvent {
+  }
+
+  @Name(NAME_PREFIX + "SignatureVerification")
+  @Label("SAML Signature Verification")
+  @Description("Verification of the detached signature of a response received with the HTTP-Redirect binding")
+  private static final class SignatureVerificationEvent extends JfrEvent {
+  }
+
+  @Name(NAME_PREFIX + "AttributeMapping")
+  @Label("SAML Attribute Mapping")
+  @Description("Mapping of the attributes of the response to the login, name, email and groups of the user")
+  private static final class AttributeMappingEvent extends JfrEvent {
+    @Label("Group Count")
+    int groupCount;
+
+    @Override
+    public void setGroupCount(int count) {
+      this.groupCount = count;
+    }
+  }
+
+  @Name(NAME_PREFIX + "Authenticate")
+  @Label("SAML Authenticate")
+  @Description("Authentication of the user by SonarQube, including the synchronization of its groups")
+  private static final class AuthenticateEvent extends JfrEvent {
+  }
+}
@@ -27,7 +27,25 @@ public class AuthSamlPlugin implements Plugin {
   public void define(Context context) {
     context.addExtensions(
       SamlIdentityProvider.class,
-      SamlSettings.class);
+      SamlSettings.class,
+      SamlRateLimiter.class,
+      SamlConcurrencyLimiter.class,
+      SamlRequestTracker.class,
+      SamlValidationPipeline.class,
+      SamlLoginFailures.class,
+      SamlReplayStore.class,
+      SamlDiagnosticsWs.class,
+      SamlSignatureVerifier.class,
+      SamlCredentials.class,
+      SamlRequestSigner.class,
+      SamlGroupSyncCache.class,
+      SamlIdpDiscovery.class,
+      SamlArtifactResolver.class,
+      SamlSessionRegistry.class,
+      SamlAuditLog.class,
+      SamlSessionFilter.class,
+      SamlLogoutFilter.class,
+      SamlWarmUp.class);
     context.addExtensions(SamlSettings.definitions());
   }
 
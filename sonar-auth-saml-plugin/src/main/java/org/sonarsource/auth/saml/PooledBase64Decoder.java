@@ -0,0 +1,124 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+/**
+ * Decodes a Base64 value directly from its characters into a buffer owned by the current thread, without any intermediate
+ * String nor byte array. Line breaks and spaces are ignored, as the value may have been wrapped by the identity provider.
+ * Otherwise decoding is strict : padding may be omitted, but nothing else than padding may follow it, and the unused bits
+ * of the last character must be zero.
+ * <p>
+ * The returned stream reads the buffer of the current thread : it must be consumed before the next call done by this thread.
+ * Buffers are softly referenced, so that the ones of idle threads can be reclaimed.
+ */
+final class PooledBase64Decoder {
+
+  static final int MAX_POOLED_CAPACITY = 256 * 1024;
+
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+  private static final int INVALID = -1;
+  private static final int IGNORED = -2;
+  private static final int[] DECODING_TABLE = createDecodingTable();
+  private static final ThreadLocal<SoftReference<byte[]>> BUFFERS = new ThreadLocal<>();
+
+  private PooledBase64Decoder() {
+    // Only static methods
+  }
+
+  /**
+   * @throws IllegalArgumentException if the value is not valid Base64
+   */
+  static InputStream decode(CharSequence encoded) {
+    byte[] buffer = getBuffer(encoded.length() / 4 * 3 + 3);
+    int length = decode(encoded, buffer);
+    return new ByteArrayInputStream(buffer, 0, length);
+  }
+
+  private static byte[] getBuffer(int capacity) {
+    SoftReference<byte[]> reference = BUFFERS.get();
+    byte[] buffer = reference == null ? null : reference.get();
+    if (buffer != null && buffer.length >= capacity) {
+      return buffer;
+    }
+    buffer = new byte[Math.max(capacity, INITIAL_CAPACITY)];
+    if (buffer.length <= MAX_POOLED_CAPACITY) {
+      BUFFERS.set(new SoftReference<>(buffer));
+    }
+    return buffer;
+  }
+
+  private static int decode(CharSequence encoded, byte[] buffer) {
+    int length = 0;
+    int bits = 0;
+    int bitCount = 0;
+    int characters = 0;
+    int padding = 0;
+    for (int i = 0; i < encoded.length(); i++) {
+      char c = encoded.charAt(i);
+      int value = c < DECODING_TABLE.length ? DECODING_TABLE[c] : INVALID;
+      if (value == IGNORED) {
+        continue;
+      }
+      if (c == '=') {
+        padding++;
+        continue;
+      }
+      if (value == INVALID || padding > 0) {
+        throw new IllegalArgumentException("Illegal base64 character at index " + i);
+      }
+      characters++;
+      bits = (bits << 6) | value;
+      bitCount += 6;
+      if (bitCount >= 8) {
+        bitCount -= 8;
+        buffer[length] = (byte) (bits >> bitCount);
+        length++;
+        bits &= (1 << bitCount) - 1;
+      }
+    }
+    int lastQuantum = characters % 4;
+    if (lastQuantum == 1 || (padding > 0 && lastQuantum + padding != 4)) {
+      throw new IllegalArgumentException("Invalid base64 padding");
+    }
+    if (bits != 0) {
+      throw new IllegalArgumentException("Invalid base64 trailing bits");
+    }
+    return length;
+  }
+
+  private static int[] createDecodingTable() {
+    int[] table = new int[128];
+    Arrays.fill(table, INVALID);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      table[alphabet.charAt(i)] = i;
+    }
+    table['\r'] = IGNORED;
+    table['\n'] = IGNORED;
+    table['\t'] = IGNORED;
+    table[' '] = IGNORED;
+    return table;
+  }
+}
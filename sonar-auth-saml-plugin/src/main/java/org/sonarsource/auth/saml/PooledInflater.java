@@ -0,0 +1,114 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates the messages of the HTTP-Redirect binding with an {@link Inflater} and a buffer owned by the current thread,
+ * instead of allocating a new native inflater for each message.
+ * <p>
+ * The returned stream reads the buffer of the current thread : it must be consumed before the next call done by this thread.
+ * Buffers are softly referenced, so that the ones of idle threads can be reclaimed, and the ones grown for exceptionally large
+ * messages are not kept, like in {@link PooledBase64Decoder}.
+ */
+final class PooledInflater {
+
+  static final int MAX_INFLATED_SIZE = 1024 * 1024;
+  static final int MAX_POOLED_CAPACITY = 256 * 1024;
+
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+  // With the "nowrap" option, the inflater may need an extra byte after the end of the compressed data
+  private static final byte[] PADDING = new byte[1];
+  private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+  private static final ThreadLocal<SoftReference<byte[]>> BUFFERS = new ThreadLocal<>();
+
+  private PooledInflater() {
+    // Only static methods
+  }
+
+  /**
+   * @throws IllegalArgumentException if the data is not valid, or is inflated to more than {@link #MAX_INFLATED_SIZE}
+   */
+  static InputStream inflate(byte[] deflated) {
+    Inflater inflater = INFLATERS.get();
+    inflater.reset();
+    inflater.setInput(deflated);
+    byte[] buffer = getBuffer();
+    int length = 0;
+    boolean padded = false;
+    try {
+      while (!inflater.finished()) {
+        if (length == buffer.length) {
+          buffer = grow(buffer);
+        }
+        int inflated = inflater.inflate(buffer, length, buffer.length - length);
+        if (inflated == 0 && inflater.needsInput()) {
+          if (padded) {
+            throw new IllegalArgumentException("Deflated data is truncated");
+          }
+          inflater.setInput(PADDING);
+          padded = true;
+        } else if (inflated == 0 && inflater.needsDictionary()) {
+          throw new IllegalArgumentException("Deflated data requires a dictionary");
+        }
+        length += inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Deflated data is invalid", e);
+    }
+    return new ByteArrayInputStream(buffer, 0, length);
+  }
+
+  /**
+   * @return the capacity of the buffer pooled for the current thread, 0 if there's none
+   */
+  static int getPooledCapacity() {
+    SoftReference<byte[]> reference = BUFFERS.get();
+    byte[] buffer = reference == null ? null : reference.get();
+    return buffer == null ? 0 : buffer.length;
+  }
+
+  private static byte[] getBuffer() {
+    SoftReference<byte[]> reference = BUFFERS.get();
+    byte[] buffer = reference == null ? null : reference.get();
+    if (buffer == null) {
+      buffer = new byte[INITIAL_CAPACITY];
+      BUFFERS.set(new SoftReference<>(buffer));
+    }
+    return buffer;
+  }
+
+  private static byte[] grow(byte[] buffer) {
+    if (buffer.length >= MAX_INFLATED_SIZE) {
+      throw new IllegalArgumentException("Inflated data is larger than " + MAX_INFLATED_SIZE + " bytes");
+    }
+    byte[] grown = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_INFLATED_SIZE));
+    if (grown.length <= MAX_POOLED_CAPACITY) {
+      BUFFERS.set(new SoftReference<>(grown));
+    }
+    return grown;
+  }
+}
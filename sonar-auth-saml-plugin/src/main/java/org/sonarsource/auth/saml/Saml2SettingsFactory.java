@@ -0,0 +1,70 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.settings.SettingsBuilder;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Converts the plugin settings to the onelogin settings.
+ */
+final class Saml2SettingsFactory {
+
+  private static final String ANY_URL = "http://anyurl";
+
+  private Saml2SettingsFactory() {
+    // Only static methods
+  }
+
+  static Saml2Settings create(SamlSettings samlSettings, SamlCredentials credentials, SamlIdp idp, @Nullable String callbackUrl) {
+    Map<String, Object> samlData = new HashMap<>();
+    samlData.put("onelogin.saml2.strict", true);
+
+    samlData.put("onelogin.saml2.idp.entityid", idp.getProviderId());
+    samlData.put("onelogin.saml2.idp.single_sign_on_service.url", idp.getLoginUrl());
+    if (idp.getProviderId().equals(samlSettings.getProviderId())) {
+      // Single logout is only supported with the default identity provider
+      samlSettings.getLogoutUrl().ifPresent(logoutUrl -> samlData.put("onelogin.saml2.idp.single_logout_service.url", logoutUrl));
+    }
+    // Parsed once, instead of for each request. When missing, onelogin reports the certificate as invalid.
+    X509Certificate idpCertificate = credentials.getIdpCertificate(idp);
+    if (idpCertificate != null) {
+      samlData.put("onelogin.saml2.idp.x509cert", idpCertificate);
+    }
+
+    samlData.put("onelogin.saml2.sp.entityid", samlSettings.getApplicationId());
+    // Used by onelogin to decrypt the encrypted assertions
+    PrivateKey privateKey = credentials.getServiceProviderPrivateKey();
+    if (privateKey != null) {
+      samlData.put("onelogin.saml2.sp.privatekey", privateKey);
+    }
+    // During callback, the callback URL is by definition not needed, but the Saml2Settings does never allow this setting to be empty...
+    samlData.put("onelogin.saml2.sp.assertion_consumer_service.url", callbackUrl != null ? callbackUrl : ANY_URL);
+    SettingsBuilder builder = new SettingsBuilder();
+    return builder
+      .fromValues(samlData)
+      .build();
+  }
+}
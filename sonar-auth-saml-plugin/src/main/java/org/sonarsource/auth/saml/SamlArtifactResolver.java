@@ -0,0 +1,364 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.utils.System2;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.unmodifiableMap;
+import static org.sonarsource.auth.saml.SamlResponseHeader.ASSERTION_NS;
+import static org.sonarsource.auth.saml.SamlResponseHeader.PROTOCOL_NS;
+import static org.sonarsource.auth.saml.SamlValidationPipeline.SAML_RESPONSE_PARAMETER;
+
+/**
+ * Resolves the artifacts received with the HTTP-Artifact binding, by sending a SOAP ArtifactResolve to the artifact
+ * resolution service of the identity provider. The SAML response then doesn't go through the browser.
+ * <p>
+ * Connections are kept alive by the keep-alive cache of {@link HttpURLConnection}, which is why the responses are
+ * always read up to the end and the connections are never disconnected.
+ * <p>
+ * The ArtifactResponse isn't signed by all identity providers, the artifact resolution service must then be reached with
+ * https so that the SAML response can't be tampered with on the way. Plain http is only accepted on the loopback address.
+ */
+@ServerSide
+public class SamlArtifactResolver {
+
+  static final String ARTIFACT_PARAMETER = "SAMLart";
+
+  private static final String HTTPS = "https";
+  private static final String SOAP_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+  private static final String SUCCESS_STATUS = "urn:oasis:names:tc:SAML:2.0:status:Success";
+  // Type code 0x0004 (2 bytes), endpoint index (2 bytes), source ID (20 bytes) and message handle (20 bytes)
+  private static final int ARTIFACT_LENGTH = 44;
+  private static final int SOURCE_ID_OFFSET = 4;
+  private static final int SOURCE_ID_LENGTH = 20;
+
+  // JAXP factories and their products are not thread-safe, they're kept per thread to be created once
+  private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDERS = ThreadLocal.withInitial(SamlArtifactResolver::newDocumentBuilder);
+  private static final ThreadLocal<Transformer> TRANSFORMERS = ThreadLocal.withInitial(SamlArtifactResolver::newTransformer);
+
+  private final SamlSettings samlSettings;
+  private final System2 system2;
+  private final SamlLatencyHistogram resolutionLatencies = new SamlLatencyHistogram();
+
+  public SamlArtifactResolver(SamlSettings samlSettings, System2 system2) {
+    this.samlSettings = samlSettings;
+    this.system2 = system2;
+  }
+
+  @CheckForNull
+  static String getArtifact(HttpServletRequest request) {
+    String[] values = request.getParameterMap().get(ARTIFACT_PARAMETER);
+    return values == null || values.length == 0 ? null : values[0];
+  }
+
+  /**
+   * @return the request, with the SAML response resolved from the artifact instead of the artifact
+   * @throws UnauthorizedException if the artifact is invalid or can't be resolved
+   * @throws IllegalStateException if the artifact resolution service can't be reached, or doesn't use https
+   */
+  HttpServletRequest resolve(HttpServletRequest request, String artifact) {
+    String resolutionUrl = samlSettings.getArtifactResolutionUrl()
+      .orElseThrow(() -> new UnauthorizedException("SAML artifact received while no artifact resolution service is defined"));
+    checkSecure(resolutionUrl);
+    checkSourceId(artifact);
+    String id = SamlRequestIds.newId();
+    SamlEvent event = SamlEvents.begin(SamlEvents.Type.ARTIFACT_RESOLUTION);
+    String outcome = SamlEvents.FAILED;
+    long start = System.nanoTime();
+    try {
+      byte[] soapResponse;
+      try {
+        soapResponse = post(resolutionUrl, buildArtifactResolve(id, resolutionUrl, artifact));
+      } finally {
+        resolutionLatencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+      HttpServletRequest resolved = new ResolvedRequest(request, extractResponse(soapResponse, id));
+      outcome = SamlEvents.SUCCESS;
+      return resolved;
+    } catch (UnauthorizedException e) {
+      outcome = SamlEvents.REJECTED;
+      throw e;
+    } finally {
+      event.end(outcome);
+    }
+  }
+
+  SamlLatencyHistogram getResolutionLatencies() {
+    return resolutionLatencies;
+  }
+
+  private static void checkSecure(String resolutionUrl) {
+    URL url;
+    try {
+      url = new URL(resolutionUrl);
+    } catch (MalformedURLException e) {
+      throw new IllegalStateException("Invalid artifact resolution URL " + resolutionUrl, e);
+    }
+    if (!HTTPS.equalsIgnoreCase(url.getProtocol()) && !isLoopback(url.getHost())) {
+      throw new IllegalStateException("The artifact resolution URL must use https, was " + resolutionUrl);
+    }
+  }
+
+  private static boolean isLoopback(String host) {
+    try {
+      return InetAddress.getByName(host).isLoopbackAddress();
+    } catch (UnknownHostException e) {
+      return false;
+    }
+  }
+
+  private void checkSourceId(String artifact) {
+    byte[] decoded;
+    try {
+      decoded = Base64.getDecoder().decode(artifact);
+    } catch (IllegalArgumentException e) {
+      throw new UnauthorizedException("Invalid SAML artifact");
+    }
+    if (decoded.length != ARTIFACT_LENGTH || decoded[0] != 0 || decoded[1] != 4) {
+      throw new UnauthorizedException("Invalid SAML artifact");
+    }
+    String providerId = samlSettings.getProviderId();
+    byte[] sourceId = Arrays.copyOfRange(decoded, SOURCE_ID_OFFSET, SOURCE_ID_OFFSET + SOURCE_ID_LENGTH);
+    if (!MessageDigest.isEqual(sourceId, sha1(providerId))) {
+      throw new UnauthorizedException("The SAML artifact was not issued by " + providerId);
+    }
+  }
+
+  private byte[] buildArtifactResolve(String id, String resolutionUrl, String artifact) {
+    return new StringBuilder(1024)
+      .append("<soap:Envelope xmlns:soap=\"").append(SOAP_NS).append("\"><soap:Body>")
+      .append("<samlp:ArtifactResolve xmlns:samlp=\"").append(PROTOCOL_NS).append("\" xmlns:saml=\"").append(ASSERTION_NS).append("\"")
+      .append(" ID=\"").append(id)
+      .append("\" Version=\"2.0\" IssueInstant=\"").append(Instant.ofEpochMilli(system2.now()).truncatedTo(ChronoUnit.SECONDS))
+      .append("\" Destination=\"").append(escape(resolutionUrl)).append("\">")
+      .append("<saml:Issuer>").append(escape(samlSettings.getApplicationId())).append("</saml:Issuer>")
+      // The artifact has already been checked to be Base64
+      .append("<samlp:Artifact>").append(artifact).append("</samlp:Artifact>")
+      .append("</samlp:ArtifactResolve></soap:Body></soap:Envelope>")
+      .toString()
+      .getBytes(UTF_8);
+  }
+
+  private byte[] post(String url, byte[] body) {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+      connection.setConnectTimeout(samlSettings.getArtifactResolutionConnectTimeout());
+      connection.setReadTimeout(samlSettings.getArtifactResolutionReadTimeout());
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setUseCaches(false);
+      connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+      connection.setRequestProperty("SOAPAction", "http://www.oasis-open.org/committees/security");
+      connection.setFixedLengthStreamingMode(body.length);
+      try (OutputStream output = connection.getOutputStream()) {
+        output.write(body);
+      }
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        // Reading the error up to the end lets the connection be reused
+        readFully(connection.getErrorStream());
+        throw new IllegalStateException("Fail to resolve SAML artifact, artifact resolution service returned HTTP " + status);
+      }
+      return readFully(connection.getInputStream());
+    } catch (IOException e) {
+      throw new IllegalStateException("Fail to resolve SAML artifact at " + url, e);
+    }
+  }
+
+  private String extractResponse(byte[] soapResponse, String id) {
+    DocumentBuilder documentBuilder = DOCUMENT_BUILDERS.get();
+    Document document;
+    try {
+      document = documentBuilder.parse(new ByteArrayInputStream(soapResponse));
+    } catch (SAXException | IOException e) {
+      throw new IllegalStateException("Fail to read the ArtifactResponse", e);
+    } finally {
+      documentBuilder.reset();
+    }
+    Element artifactResponse = (Element) document.getElementsByTagNameNS(PROTOCOL_NS, "ArtifactResponse").item(0);
+    if (artifactResponse == null) {
+      throw new IllegalStateException("Artifact resolution service did not return an ArtifactResponse");
+    }
+    if (!id.equals(artifactResponse.getAttribute("InResponseTo"))) {
+      throw new UnauthorizedException("The ArtifactResponse does not match the ArtifactResolve " + id);
+    }
+    Element status = findChild(artifactResponse, PROTOCOL_NS, "Status");
+    Element statusCode = status == null ? null : findChild(status, PROTOCOL_NS, "StatusCode");
+    String statusValue = statusCode == null ? null : statusCode.getAttribute("Value");
+    if (!SUCCESS_STATUS.equals(statusValue)) {
+      throw new UnauthorizedException("The status code of the ArtifactResponse was not Success, was " + statusValue);
+    }
+    Element response = findChild(artifactResponse, PROTOCOL_NS, "Response");
+    if (response == null) {
+      // The identity provider returns an empty ArtifactResponse for unknown, expired or already resolved artifacts
+      throw new UnauthorizedException("The SAML artifact could not be resolved");
+    }
+    return Base64.getEncoder().encodeToString(serialize(response));
+  }
+
+  @CheckForNull
+  private static Element findChild(Element parent, String namespace, String localName) {
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child.getNodeType() == Node.ELEMENT_NODE && namespace.equals(child.getNamespaceURI()) && localName.equals(child.getLocalName())) {
+        return (Element) child;
+      }
+    }
+    return null;
+  }
+
+  private static byte[] serialize(Element element) {
+    try {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      TRANSFORMERS.get().transform(new DOMSource(element), new StreamResult(output));
+      return output.toByteArray();
+    } catch (TransformerException e) {
+      throw new IllegalStateException("Fail to serialize the SAML response", e);
+    }
+  }
+
+  private static byte[] readFully(@CheckForNull InputStream input) throws IOException {
+    if (input == null) {
+      return new byte[0];
+    }
+    try (InputStream closed = input) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = closed.read(buffer)) != -1) {
+        output.write(buffer, 0, read);
+      }
+      return output.toByteArray();
+    }
+  }
+
+  private static byte[] sha1(String value) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(value.getBytes(UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String escape(String value) {
+    return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+  }
+
+  private static DocumentBuilder newDocumentBuilder() {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    factory.setExpandEntityReferences(false);
+    factory.setXIncludeAware(false);
+    try {
+      factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      return factory.newDocumentBuilder();
+    } catch (ParserConfigurationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Transformer newTransformer() {
+    try {
+      Transformer transformer = TransformerFactory.newInstance().newTransformer();
+      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      return transformer;
+    } catch (TransformerException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Request on which the artifact is replaced by the SAML response, as if it had been sent with the HTTP-POST binding.
+   */
+  private static class ResolvedRequest extends HttpServletRequestWrapper {
+    private final Map<String, String[]> parameters;
+
+    private ResolvedRequest(HttpServletRequest request, String encodedResponse) {
+      super(request);
+      Map<String, String[]> resolvedParameters = new HashMap<>(request.getParameterMap());
+      resolvedParameters.remove(ARTIFACT_PARAMETER);
+      resolvedParameters.put(SAML_RESPONSE_PARAMETER, new String[] {encodedResponse});
+      this.parameters = unmodifiableMap(resolvedParameters);
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+      return parameters;
+    }
+
+    @Override
+    public String getParameter(String name) {
+      String[] values = parameters.get(name);
+      return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+      String[] values = parameters.get(name);
+      return values == null ? null : values.clone();
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+      return Collections.enumeration(parameters.keySet());
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Chain of transformations applied to an attribute value, compiled once from rules such as "trim", "stripDomain" or
+ * "regex:(.*)@example.com". The patterns are compiled once, when the rules are compiled.
+ */
+final class SamlAttributeRules implements UnaryOperator<String> {
+
+  static final SamlAttributeRules NONE = new SamlAttributeRules(emptyList());
+
+  private static final String REGEX_PREFIX = "regex:";
+
+  private final List<UnaryOperator<String>> operations;
+
+  private SamlAttributeRules(List<UnaryOperator<String>> operations) {
+    this.operations = operations;
+  }
+
+  /**
+   * @throws IllegalArgumentException if a rule is not valid
+   */
+  static SamlAttributeRules compile(String... rules) {
+    if (rules.length == 0) {
+      return NONE;
+    }
+    List<UnaryOperator<String>> operations = new ArrayList<>(rules.length);
+    for (String rule : rules) {
+      operations.add(compileRule(rule.trim()));
+    }
+    return new SamlAttributeRules(unmodifiableList(operations));
+  }
+
+  @Override
+  public String apply(String value) {
+    String result = value;
+    for (UnaryOperator<String> operation : operations) {
+      result = operation.apply(result);
+    }
+    return result;
+  }
+
+  private static UnaryOperator<String> compileRule(String rule) {
+    switch (rule) {
+      case "lowercase":
+        return value -> value.toLowerCase(Locale.ENGLISH);
+      case "uppercase":
+        return value -> value.toUpperCase(Locale.ENGLISH);
+      case "trim":
+        return String::trim;
+      case "stripDomain":
+        return SamlAttributeRules::stripDomain;
+      default:
+        if (rule.startsWith(REGEX_PREFIX)) {
+          return compileRegex(rule);
+        }
+        throw new IllegalArgumentException("Invalid attribute transformation rule: " + rule);
+    }
+  }
+
+  private static String stripDomain(String value) {
+    int index = value.indexOf('@');
+    return index < 0 ? value : value.substring(0, index);
+  }
+
+  /**
+   * Keeps the first group when the whole value matches, otherwise keeps the value unchanged.
+   */
+  private static UnaryOperator<String> compileRegex(String rule) {
+    Pattern pattern = Pattern.compile(rule.substring(REGEX_PREFIX.length()));
+    if (pattern.matcher("").groupCount() == 0) {
+      throw new IllegalArgumentException("Regular expression must define a group: " + rule);
+    }
+    return value -> {
+      Matcher matcher = pattern.matcher(value);
+      return matcher.matches() && matcher.group(1) != null ? matcher.group(1) : value;
+    };
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.DateUtils;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.api.utils.text.JsonWriter;
+
+/**
+ * Audit trail of SAML authentications, appended to the file defined in the settings, one JSON object per line.
+ * <p>
+ * Authentications are only queued during the login, in a bounded queue, and written by batches by a background thread,
+ * so that the login never waits for the file system. When the queue is full, the new entries are dropped and counted,
+ * instead of blocking the login. The file is rotated when it exceeds the size defined in the settings.
+ * <p>
+ * The background thread is only started by the first authentication recorded while audit is enabled, so that nothing
+ * runs when audit is disabled.
+ */
+@ServerSide
+public class SamlAuditLog implements Startable {
+
+  static final int DEFAULT_CAPACITY = 10_000;
+
+  private static final Logger LOGGER = Loggers.get(SamlAuditLog.class);
+  private static final int MAX_BATCH_SIZE = 500;
+  private static final long POLL_TIMEOUT_MS = 1_000;
+
+  private final SamlSettings samlSettings;
+  private final System2 system2;
+  private final BlockingQueue<Entry> queue;
+  private final LongAdder dropped = new LongAdder();
+  private long reportedDropped;
+  // Guarded by this
+  private boolean started;
+  // The background writer runs as long as it's the current one. It's never interrupted, which would close the file
+  // channel being written and lose the batch.
+  private volatile Thread writer;
+
+  public SamlAuditLog(SamlSettings samlSettings, System2 system2) {
+    this(samlSettings, system2, DEFAULT_CAPACITY);
+  }
+
+  SamlAuditLog(SamlSettings samlSettings, System2 system2, int capacity) {
+    this.samlSettings = samlSettings;
+    this.system2 = system2;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+  }
+
+  @Override
+  public synchronized void start() {
+    started = true;
+  }
+
+  @Override
+  public void stop() {
+    Thread current;
+    synchronized (this) {
+      started = false;
+      current = writer;
+      writer = null;
+    }
+    if (current != null) {
+      // The writer completes its current batch, and stops at the latest at the end of its poll timeout
+      try {
+        current.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Queues an authentication, without waiting for it to be written. Nothing is done when audit is disabled.
+   *
+   * @param groups the groups granted to the user, or null if groups are not mapped
+   */
+  void record(String outcome, @Nullable String login, @Nullable String issuer, @Nullable Collection<String> groups, @Nullable String reason) {
+    if (!samlSettings.getAuditFile().isPresent()) {
+      return;
+    }
+    if (!queue.offer(new Entry(system2.now(), outcome, login, issuer, groups, reason))) {
+      dropped.increment();
+    }
+    if (writer == null) {
+      startWriter();
+    }
+  }
+
+  boolean isWriterRunning() {
+    return writer != null;
+  }
+
+  private synchronized void startWriter() {
+    if (!started || writer != null) {
+      return;
+    }
+    Thread thread = new Thread(this::writeInBackground, "SAML audit writer");
+    thread.setDaemon(true);
+    writer = thread;
+    thread.start();
+  }
+
+  long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /**
+   * Writes the queued entries, synchronously.
+   */
+  synchronized void flush() {
+    List<Entry> batch = new ArrayList<>();
+    while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  private void writeInBackground() {
+    List<Entry> batch = new ArrayList<>();
+    while (writer == Thread.currentThread()) {
+      try {
+        Entry first = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (first != null) {
+          batch.add(first);
+          queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+          synchronized (this) {
+            write(batch);
+          }
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        // Not interrupted by stop(), the remaining entries are written by the final flush
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void write(List<Entry> batch) {
+    reportDropped();
+    Optional<Path> auditFile = samlSettings.getAuditFile();
+    if (!auditFile.isPresent()) {
+      // Audit has been disabled since the entries have been queued
+      return;
+    }
+    Path file = auditFile.get();
+    try {
+      rotateIfNeeded(file);
+      StringWriter lines = new StringWriter();
+      for (Entry entry : batch) {
+        entry.write(lines);
+      }
+      Files.write(file, lines.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      dropped.add(batch.size());
+      LOGGER.error("Fail to write SAML audit to " + file, e);
+    }
+  }
+
+  private void reportDropped() {
+    long current = dropped.sum();
+    if (current > reportedDropped) {
+      LOGGER.warn("{} SAML audit entries have been dropped", current - reportedDropped);
+      reportedDropped = current;
+    }
+  }
+
+  private void rotateIfNeeded(Path file) throws IOException {
+    if (!Files.exists(file) || Files.size(file) < samlSettings.getAuditMaxFileSize()) {
+      return;
+    }
+    int maxFiles = samlSettings.getAuditMaxFiles();
+    Files.deleteIfExists(rotated(file, maxFiles));
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      Path source = rotated(file, i);
+      if (Files.exists(source)) {
+        Files.move(source, rotated(file, i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    if (maxFiles > 0) {
+      Files.move(file, rotated(file, 1), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file);
+    }
+  }
+
+  static Path rotated(Path file, int index) {
+    return Paths.get(file.toString() + "." + index);
+  }
+
+  private static class Entry {
+    private final long timestamp;
+    private final String outcome;
+    private final String login;
+    private final String issuer;
+    private final Collection<String> groups;
+    private final String reason;
+
+    private Entry(long timestamp, String outcome, @Nullable String login, @Nullable String issuer, @Nullable Collection<String> groups,
+      @Nullable String reason) {
+      this.timestamp = timestamp;
+      this.outcome = outcome;
+      this.login = login;
+      this.issuer = issuer;
+      this.groups = groups;
+      this.reason = reason;
+    }
+
+    private void write(Writer output) throws IOException {
+      StringWriter line = new StringWriter();
+      JsonWriter json = JsonWriter.of(line);
+      json.beginObject()
+        .prop("date", DateUtils.formatDateTime(timestamp))
+        .prop("outcome", outcome)
+        .prop("login", login)
+        .prop("issuer", issuer);
+      if (groups != null) {
+        json.name("groups").beginArray().values(groups).endArray();
+      }
+      json.prop("reason", reason)
+        .endObject()
+        .close();
+      output.write(line.toString());
+      output.write('\n');
+    }
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import com.onelogin.saml2.Auth;
+import com.onelogin.saml2.authn.SamlResponse;
+import com.onelogin.saml2.exception.SettingsException;
+import com.onelogin.saml2.servlet.ServletUtils;
+import com.onelogin.saml2.settings.Saml2Settings;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.joda.time.Instant;
+import org.sonar.api.server.authentication.OAuth2IdentityProvider.CallbackContext;
+import org.sonar.api.server.authentication.OAuth2IdentityProvider.InitContext;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import static java.util.Collections.emptySet;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Part of the authentication relying on onelogin. It's only loaded once SAML is used, so that the onelogin and XML
+ * security classes are not loaded by the servers on which SAML is disabled.
+ */
+final class SamlAuthenticator {
+
+  private static final Logger LOGGER = Loggers.get(SamlAuthenticator.class);
+
+  private static final String STATE_REQUEST_PARAMETER = "RelayState";
+
+  // The mapping settings are compared with the ones of the compiled mapping at most once per interval, not at each login
+  static final long MAPPING_CHECK_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+  private final SamlSettings samlSettings;
+  private final SamlRequestTracker requestTracker;
+  private final SamlValidationPipeline validationPipeline;
+  private final SamlCredentials credentials;
+  private final SamlRequestSigner requestSigner;
+  private final SamlGroupSyncCache groupSyncCache;
+  private final SamlSessionRegistry sessionRegistry;
+  private final System2 system2;
+  private volatile SamlUserMapping userMapping;
+  private volatile long nextMappingCheck;
+
+  SamlAuthenticator(SamlSettings samlSettings, SamlRequestTracker requestTracker, SamlValidationPipeline validationPipeline,
+    SamlCredentials credentials, SamlRequestSigner requestSigner, SamlGroupSyncCache groupSyncCache, SamlSessionRegistry sessionRegistry,
+    System2 system2) {
+    this.samlSettings = samlSettings;
+    this.requestTracker = requestTracker;
+    this.validationPipeline = validationPipeline;
+    this.credentials = credentials;
+    this.requestSigner = requestSigner;
+    this.groupSyncCache = groupSyncCache;
+    this.sessionRegistry = sessionRegistry;
+    this.system2 = system2;
+  }
+
+  void initLogin(InitContext context, SamlIdp idp) {
+    try {
+      Saml2Settings saml2Settings = Saml2SettingsFactory.create(samlSettings, credentials, idp, context.getCallbackUrl());
+      // Only used to validate the settings, as the request is not built by onelogin
+      newAuth(saml2Settings, context.getRequest(), context.getResponse());
+      SamlAuthnRequest authnRequest = new SamlAuthnRequest(saml2Settings, SamlRequestIds.newId(), System.currentTimeMillis());
+      String ssoUrl = saml2Settings.getIdpSingleSignOnServiceUrl().toString();
+      String relayState = context.generateCsrfState();
+      if (samlSettings.signAuthnRequests()) {
+        context.getResponse().sendRedirect(requestSigner.buildSignedRedirectUrl(ssoUrl, authnRequest.getEncoded(), relayState));
+      } else {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("SAMLRequest", authnRequest.getEncoded());
+        if (relayState != null) {
+          parameters.put(STATE_REQUEST_PARAMETER, relayState);
+        }
+        ServletUtils.sendRedirect(context.getResponse(), ssoUrl, parameters);
+      }
+      LOGGER.trace("AuthnRequest sent to {} : {}", ssoUrl, authnRequest.getXml());
+      // Also tracked when unsolicited responses are accepted, so that the response is verified with the identity provider of the request
+      requestTracker.add(authnRequest.getId(), idp.getProviderId());
+    } catch (IOException e) {
+      throw new IllegalStateException("Fail to intialize SAML authentication plugin", e);
+    }
+  }
+
+  Authentication authenticate(CallbackContext context, HttpServletRequest processedRequest, SamlValidationPipeline.ValidatedResponse validated,
+    SamlEvent callbackEvent) {
+    SamlIdp idp = validated.getIdp();
+    Saml2Settings saml2Settings = Saml2SettingsFactory.create(samlSettings, credentials, idp, null);
+    // Only validates the settings, the response is processed stage by stage below
+    newAuth(saml2Settings, processedRequest, context.getResponse());
+    SamlResponse samlResponse = parseResponse(saml2Settings, processedRequest);
+    boolean valid = validateResponse(samlResponse);
+    context.verifyCsrfState(STATE_REQUEST_PARAMETER);
+    if (!valid) {
+      String errorReason = samlResponse.getError();
+      throw validationPipeline.rejectSignature(idp, processedRequest, errorReason != null && !errorReason.isEmpty() ? errorReason : "Unknown error reason");
+    }
+
+    String nameId;
+    Map<String, List<String>> attributes;
+    String sessionIndex;
+    String assertionId;
+    Long notOnOrAfter;
+    try {
+      nameId = samlResponse.getNameId();
+      attributes = samlResponse.getAttributes();
+      sessionIndex = samlResponse.getSessionIndex();
+      assertionId = samlResponse.getAssertionId();
+      notOnOrAfter = samlResponse.getAssertionNotOnOrAfter().stream().map(Instant::getMillis).max(Long::compare).orElse(null);
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to process response", e);
+    }
+    validationPipeline.consumeRequest(idp, processedRequest, validated.getRequestId());
+    validationPipeline.checkReplay(idp, processedRequest, assertionId, notOnOrAfter);
+    LOGGER.trace("Name ID : {}", nameId);
+    LOGGER.trace("Attributes received : {}", attributes);
+    Authentication authentication = buildUserIdentity(idp, processedRequest, attributes::get, nameId, callbackEvent);
+    registerSession(context, nameId, sessionIndex);
+    return authentication;
+  }
+
+  /**
+   * Authenticates with a response received with the HTTP-Redirect binding, already fully validated by
+   * {@link SamlValidationPipeline#validateRedirect(HttpServletRequest, SamlRedirectMessage)}.
+   */
+  Authentication authenticateRedirect(CallbackContext context, HttpServletRequest processedRequest, SamlValidationPipeline.ValidatedResponse validated,
+    SamlEvent callbackEvent) {
+    SamlResponseHeader response = requireNonNull(validated.getHeader());
+    context.verifyCsrfState(STATE_REQUEST_PARAMETER);
+    LOGGER.trace("Name ID : {}", response.getNameId());
+    Authentication authentication = buildUserIdentity(validated.getIdp(), processedRequest, response::getAttribute, response.getNameId(), callbackEvent);
+    registerSession(context, response.getNameId(), response.getSessionIndex());
+    return authentication;
+  }
+
+  /**
+   * Sessions are only tracked when single logout is enabled
+   */
+  private void registerSession(CallbackContext context, @Nullable String nameId, @Nullable String sessionIndex) {
+    if (nameId == null || !samlSettings.getLogoutUrl().isPresent()) {
+      return;
+    }
+    String handle = sessionRegistry.register(nameId, sessionIndex);
+    if (handle != null) {
+      int maxAge = (int) TimeUnit.MINUTES.toSeconds(samlSettings.getSessionTimeoutInMinutes());
+      SamlSessionCookies.add(context.getRequest(), context.getResponse(), handle, maxAge);
+    }
+  }
+
+  private Authentication buildUserIdentity(SamlIdp idp, HttpServletRequest processedRequest, Function<String, Collection<String>> attributes,
+    @Nullable String nameId, SamlEvent callbackEvent) {
+    SamlEvent event = SamlEvents.begin(SamlEvents.Type.ATTRIBUTE_MAPPING);
+    String outcome = SamlEvents.FAILED;
+    try {
+      SamlUserMapping mapping = userMapping();
+      // The transformations, such as stripDomain, may remove the domains sent by the identity provider
+      validationPipeline.checkUserDomains(idp, processedRequest, mapping.getRawLogin(attributes, nameId), mapping.getRawEmail(attributes));
+      Authentication authentication = buildUserIdentity(mapping, attributes, nameId);
+      Set<String> groups = authentication.getGroups();
+      int groupCount = groups == null ? 0 : groups.size();
+      event.setGroupCount(groupCount);
+      callbackEvent.setGroupCount(groupCount);
+      outcome = SamlEvents.SUCCESS;
+      return authentication;
+    } finally {
+      event.end(outcome);
+    }
+  }
+
+  private Authentication buildUserIdentity(SamlUserMapping mapping, Function<String, Collection<String>> attributes, @Nullable String nameId) {
+    String login = mapping.getLogin(attributes, nameId);
+    UserIdentity.Builder userIdentityBuilder = UserIdentity.builder()
+      .setLogin(login)
+      .setProviderLogin(login)
+      .setName(mapping.getName(attributes))
+      .setEmail(mapping.getEmail(attributes));
+    Set<String> groups = samlSettings.getGroupName().map(group -> getGroups(attributes, group)).orElse(null);
+    // When groups are not set, SonarQube keeps the groups of the user as they are
+    if (groups != null && !groupSyncCache.isUnchanged(login, groups)) {
+      userIdentityBuilder.setGroups(groups);
+    }
+    return new Authentication(userIdentityBuilder.build(), groups);
+  }
+
+  private SamlUserMapping userMapping() {
+    SamlUserMapping current = userMapping;
+    long now = system2.now();
+    if (current != null && now < nextMappingCheck) {
+      return current;
+    }
+    nextMappingCheck = now + MAPPING_CHECK_INTERVAL_MS;
+    if (current == null || !current.isCompiledFrom(samlSettings)) {
+      current = SamlUserMapping.compile(samlSettings);
+      userMapping = current;
+    }
+    return current;
+  }
+
+  private static Auth newAuth(Saml2Settings saml2Settings, HttpServletRequest request, HttpServletResponse response) {
+    try {
+      return new Auth(saml2Settings, request, response);
+    } catch (SettingsException e) {
+      throw new IllegalStateException("Fail to create Auth", e);
+    }
+  }
+
+  private static SamlResponse parseResponse(Saml2Settings saml2Settings, HttpServletRequest request) {
+    SamlEvent event = SamlEvents.begin(SamlEvents.Type.RESPONSE_PARSING);
+    String outcome = SamlEvents.FAILED;
+    try {
+      if (SamlValidationPipeline.getEncodedResponse(request) == null) {
+        throw new IllegalStateException("Fail to process response: SAML Response not found");
+      }
+      SamlResponse samlResponse = new SamlResponse(saml2Settings, ServletUtils.makeHttpRequest(request));
+      outcome = SamlEvents.SUCCESS;
+      return samlResponse;
+    } catch (IllegalStateException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to process response", e);
+    } finally {
+      event.end(outcome);
+    }
+  }
+
+  /**
+   * Schema validation and XML signature verification are done together by onelogin
+   */
+  private static boolean validateResponse(SamlResponse samlResponse) {
+    SamlEvent event = SamlEvents.begin(SamlEvents.Type.RESPONSE_VALIDATION);
+    boolean valid = false;
+    try {
+      valid = samlResponse.isValid();
+      return valid;
+    } finally {
+      event.end(valid ? SamlEvents.SUCCESS : SamlEvents.REJECTED);
+    }
+  }
+
+  private static Set<String> getGroups(Function<String, Collection<String>> attributes, String groupAttribute) {
+    Collection<String> attribute = attributes.apply(groupAttribute);
+    if (attribute == null || attribute.isEmpty()) {
+      return emptySet();
+    }
+    return new HashSet<>(attribute);
+  }
+
+  static final class Authentication {
+    private final UserIdentity userIdentity;
+    private final Set<String> groups;
+
+    private Authentication(UserIdentity userIdentity, @Nullable Set<String> groups) {
+      this.userIdentity = userIdentity;
+      this.groups = groups;
+    }
+
+    UserIdentity getUserIdentity() {
+      return userIdentity;
+    }
+
+    /**
+     * @return the groups granted by the identity provider, even when they are not set in the user identity because they
+     * have not changed since the last synchronization, null when groups are not mapped
+     */
+    @CheckForNull
+    Set<String> getGroups() {
+      return groups;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.util.Util;
+import java.io.IOException;
+
+/**
+ * Authentication request sent to the identity provider. It's built by the plugin instead of onelogin, which generates
+ * the ID with {@link java.util.UUID#randomUUID()}, so with a {@link java.security.SecureRandom} shared by all threads.
+ * The XML is the same as the one of onelogin for the settings of the plugin.
+ */
+final class SamlAuthnRequest {
+
+  private final String id;
+  private final String xml;
+
+  SamlAuthnRequest(Saml2Settings saml2Settings, String id, long issueInstant) {
+    this.id = id;
+    this.xml = new StringBuilder(512)
+      .append("<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\"")
+      .append(" ID=\"").append(id)
+      .append("\" Version=\"2.0\" IssueInstant=\"").append(Util.formatDateTime(issueInstant))
+      .append("\" Destination=\"").append(escape(saml2Settings.getIdpSingleSignOnServiceUrl().toString()))
+      .append("\" ProtocolBinding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" AssertionConsumerServiceURL=\"")
+      .append(escape(saml2Settings.getSpAssertionConsumerServiceUrl().toString())).append("\">")
+      .append("<saml:Issuer>").append(escape(saml2Settings.getSpEntityId())).append("</saml:Issuer>")
+      .append("<samlp:NameIDPolicy Format=\"").append(escape(saml2Settings.getSpNameIDFormat())).append("\" AllowCreate=\"true\" />")
+      .append("</samlp:AuthnRequest>")
+      .toString();
+  }
+
+  String getId() {
+    return id;
+  }
+
+  String getXml() {
+    return xml;
+  }
+
+  /**
+   * @return the deflated and base64 encoded request, as sent with the HTTP-Redirect binding
+   */
+  String getEncoded() throws IOException {
+    return Util.deflatedBase64encoded(xml);
+  }
+
+  private static String escape(String value) {
+    return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Reads SAML responses captured from the logs of a proxy, one by one, so that they are never all in memory. The input is
+ * either a directory containing one encoded response per file, or a file containing one response per line. A line is
+ * either the encoded response, or a JSON object with the encoded response in its "SAMLResponse" property and an optional
+ * "id" property. Responses copied from the body of a form are URL-decoded.
+ */
+final class SamlCapturedResponses {
+
+  private static final String RESPONSE_PROPERTY = SamlValidationPipeline.SAML_RESPONSE_PARAMETER;
+  private static final String ID_PROPERTY = "id";
+
+  private SamlCapturedResponses() {
+    // Only static methods
+  }
+
+  static void read(Path input, Consumer<Captured> consumer) throws IOException {
+    if (Files.isDirectory(input)) {
+      readDirectory(input, consumer);
+    } else {
+      readLines(input, consumer);
+    }
+  }
+
+  private static void readDirectory(Path directory, Consumer<Captured> consumer) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        if (Files.isRegularFile(file)) {
+          String id = file.getFileName().toString();
+          consumer.accept(captured(id, new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim()));
+        }
+      }
+    }
+  }
+
+  private static void readLines(Path file, Consumer<Captured> consumer) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      int lineNumber = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        String trimmed = line.trim();
+        if (!trimmed.isEmpty()) {
+          consumer.accept(parseLine("line " + lineNumber, trimmed));
+        }
+      }
+    }
+  }
+
+  static Captured parseLine(String defaultId, String line) {
+    if (!line.startsWith("{") && !line.startsWith("\"")) {
+      return captured(defaultId, line);
+    }
+    try {
+      JsonLine json = new JsonLine(line);
+      if (line.startsWith("\"")) {
+        return captured(defaultId, json.readString());
+      }
+      Map<String, String> properties = json.readStringProperties();
+      String id = properties.getOrDefault(ID_PROPERTY, defaultId);
+      String response = properties.get(RESPONSE_PROPERTY);
+      if (response == null) {
+        return new Captured(id, null, "No " + RESPONSE_PROPERTY + " property");
+      }
+      return captured(id, response);
+    } catch (IllegalArgumentException e) {
+      return new Captured(defaultId, null, e.getMessage());
+    }
+  }
+
+  private static Captured captured(String id, String response) {
+    if (response.indexOf('%') < 0) {
+      return new Captured(id, response, null);
+    }
+    try {
+      return new Captured(id, URLDecoder.decode(response, StandardCharsets.UTF_8.name()), null);
+    } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+      return new Captured(id, null, "Invalid URL encoding");
+    }
+  }
+
+  static class Captured {
+    private final String id;
+    private final String response;
+    private final String error;
+
+    private Captured(String id, @Nullable String response, @Nullable String error) {
+      this.id = id;
+      this.response = response;
+      this.error = error;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    /**
+     * @return the encoded response, or null if it can't be read
+     */
+    @CheckForNull
+    String getResponse() {
+      return response;
+    }
+
+    @CheckForNull
+    String getError() {
+      return error;
+    }
+  }
+
+  /**
+   * Reads the string properties of a flat JSON object, the other values being skipped
+   */
+  private static class JsonLine {
+    private final String line;
+    private int position;
+
+    private JsonLine(String line) {
+      this.line = line;
+    }
+
+    private Map<String, String> readStringProperties() {
+      Map<String, String> properties = new HashMap<>();
+      expect('{');
+      skipWhitespaces();
+      if (peek() == '}') {
+        return properties;
+      }
+      while (true) {
+        skipWhitespaces();
+        String name = readString();
+        skipWhitespaces();
+        expect(':');
+        skipWhitespaces();
+        if (peek() == '"') {
+          properties.put(name, readString());
+        } else {
+          skipValue();
+        }
+        skipWhitespaces();
+        if (peek() == '}') {
+          return properties;
+        }
+        expect(',');
+      }
+    }
+
+    private String readString() {
+      expect('"');
+      StringBuilder value = new StringBuilder();
+      char c;
+      while ((c = next()) != '"') {
+        if (c != '\\') {
+          value.append(c);
+          continue;
+        }
+        char escaped = next();
+        switch (escaped) {
+          case 'n':
+            value.append('\n');
+            break;
+          case 'r':
+            value.append('\r');
+            break;
+          case 't':
+            value.append('\t');
+            break;
+          case 'b':
+            value.append('\b');
+            break;
+          case 'f':
+            value.append('\f');
+            break;
+          case 'u':
+            value.append((char) Integer.parseInt(substring(4), 16));
+            break;
+          default:
+            value.append(escaped);
+        }
+      }
+      return value.toString();
+    }
+
+    /**
+     * Skips a number, a literal, an array or an object, up to the next separator of the enclosing object
+     */
+    private void skipValue() {
+      int depth = 0;
+      while (depth > 0 || (peek() != ',' && peek() != '}')) {
+        char c = peek();
+        if (c == '"') {
+          readString();
+          continue;
+        }
+        if (c == '{' || c == '[') {
+          depth++;
+        } else if (c == '}' || c == ']') {
+          depth--;
+        }
+        position++;
+      }
+    }
+
+    private String substring(int length) {
+      if (position + length > line.length()) {
+        throw invalid();
+      }
+      String value = line.substring(position, position + length);
+      position += length;
+      return value;
+    }
+
+    private void skipWhitespaces() {
+      while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+        position++;
+      }
+    }
+
+    private void expect(char expected) {
+      if (peek() != expected) {
+        throw invalid();
+      }
+      position++;
+    }
+
+    private char peek() {
+      if (position >= line.length()) {
+        throw invalid();
+      }
+      return line.charAt(position);
+    }
+
+    private char next() {
+      char c = peek();
+      position++;
+      return c;
+    }
+
+    private IllegalArgumentException invalid() {
+      return new IllegalArgumentException("Invalid JSON at column " + (position + 1));
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.sonar.api.server.ServerSide;
+
+/**
+ * Limits the number of SAML responses validated at the same time, so that the XML and RSA work done during logins
+ * does not starve the other web threads.
+ * <p>
+ * The limit adapts itself to the observed latency, as TCP Vegas does : a validation taking more than twice the latency
+ * measured without load decreases the limit multiplicatively, otherwise the limit is increased additively as long as
+ * it is used. When the limit is reached, a few requests can wait for a short time, the next ones are rejected at once.
+ * <p>
+ * Only the validations which reached the verification of the signature are sampled : responses rejected by the cheap
+ * checks would otherwise lower the latency without load, and make the limit back off down to 1.
+ */
+@ServerSide
+public class SamlConcurrencyLimiter {
+
+  private static final int MIN_LIMIT = 1;
+  private static final double BACKOFF_RATIO = 0.9;
+  private static final double LATENCY_TOLERANCE = 2.0;
+  // Number of validations after which the latency without load is measured again, in order to follow changes of the server load
+  private static final int PROBE_INTERVAL = 1_000;
+  private static final long DEFAULT_MAX_WAIT_MS = 500;
+
+  private final int maxLimit;
+  private final int maxQueueSize;
+  private final long maxWaitNanos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  private final LongAdder rejections = new LongAdder();
+
+  // Guarded by lock
+  private double limit;
+  private int inFlight;
+  private int waiting;
+  private long noLoadLatency = Long.MAX_VALUE;
+  private int samples;
+
+  public SamlConcurrencyLimiter() {
+    this(Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors(),
+      2 * Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_WAIT_MS);
+  }
+
+  SamlConcurrencyLimiter(int initialLimit, int maxLimit, int maxQueueSize, long maxWaitMs) {
+    this.limit = initialLimit;
+    this.maxLimit = maxLimit;
+    this.maxQueueSize = maxQueueSize;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+  }
+
+  /**
+   * Waits for a slot to validate a SAML response. When {@code true} is returned, {@link #release(long)} or
+   * {@link #release()} must be called once the validation is done.
+   *
+   * @return false if the limit is reached and the wait queue is full, or if no slot was released in time
+   */
+  boolean acquire() {
+    lock.lock();
+    try {
+      if (inFlight < (int) limit) {
+        inFlight++;
+        return true;
+      }
+      if (waiting >= maxQueueSize) {
+        rejections.increment();
+        return false;
+      }
+      return await();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean await() {
+    waiting++;
+    try {
+      long remaining = maxWaitNanos;
+      while (inFlight >= (int) limit) {
+        if (remaining <= 0L) {
+          rejections.increment();
+          return false;
+        }
+        remaining = available.awaitNanos(remaining);
+      }
+      inFlight++;
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      rejections.increment();
+      return false;
+    } finally {
+      waiting--;
+    }
+  }
+
+  /**
+   * Releases the slot of a validation which reached the verification of the signature, and samples its latency
+   */
+  void release(long latencyNanos) {
+    release(true, latencyNanos);
+  }
+
+  /**
+   * Releases the slot of a validation which stopped before the verification of the signature, without sampling its latency
+   */
+  void release() {
+    release(false, 0L);
+  }
+
+  private void release(boolean sampled, long latencyNanos) {
+    lock.lock();
+    try {
+      inFlight--;
+      int previousLimit = (int) limit;
+      if (sampled) {
+        updateLimit(latencyNanos);
+      }
+      if ((int) limit > previousLimit) {
+        available.signalAll();
+      } else {
+        available.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void updateLimit(long latencyNanos) {
+    samples++;
+    if (samples >= PROBE_INTERVAL) {
+      samples = 0;
+      noLoadLatency = latencyNanos;
+    } else {
+      noLoadLatency = Math.min(noLoadLatency, latencyNanos);
+    }
+    if (latencyNanos > noLoadLatency * LATENCY_TOLERANCE) {
+      limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+    } else if (2 * (inFlight + 1) >= limit) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getWaiting() {
+    lock.lock();
+    try {
+      return waiting;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long getRejectionCount() {
+    return rejections.sum();
+  }
+}
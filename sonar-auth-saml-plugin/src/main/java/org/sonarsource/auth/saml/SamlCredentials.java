@@ -0,0 +1,141 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Certificates and keys of the settings. Each of them is parsed once per value of its setting, instead of once per
+ * authentication.
+ */
+@ServerSide
+public class SamlCredentials {
+
+  private static final Logger LOGGER = Loggers.get(SamlCredentials.class);
+
+  private final SamlSettings samlSettings;
+  private volatile Parsed<X509Certificate> idpCertificate = new Parsed<>(null, null);
+  private volatile Parsed<PrivateKey> serviceProviderPrivateKey = new Parsed<>(null, null);
+  private final ConcurrentMap<String, Parsed<X509Certificate>> additionalIdpCertificates = new ConcurrentHashMap<>();
+
+  public SamlCredentials(SamlSettings samlSettings) {
+    this.samlSettings = samlSettings;
+  }
+
+  /**
+   * @return the certificate of the identity provider, or null if it can't be parsed
+   */
+  @CheckForNull
+  X509Certificate getIdpCertificate() {
+    String value = samlSettings.getCertificate();
+    Parsed<X509Certificate> current = idpCertificate;
+    if (!value.equals(current.value)) {
+      current = new Parsed<>(value, parse(value, SamlCredentials::parseCertificate, "the certificate of the identity provider"));
+      idpCertificate = current;
+    }
+    return current.parsed;
+  }
+
+  /**
+   * @return the certificate of the identity provider, or null if it can't be parsed
+   */
+  @CheckForNull
+  X509Certificate getIdpCertificate(SamlIdp idp) {
+    String value = idp.getCertificate();
+    if (value.equals(samlSettings.getCertificate())) {
+      return getIdpCertificate();
+    }
+    Parsed<X509Certificate> current = additionalIdpCertificates.get(idp.getProviderId());
+    if (current == null || !value.equals(current.value)) {
+      current = new Parsed<>(value, parse(value, SamlCredentials::parseCertificate, "the certificate of the identity provider " + idp.getProviderId()));
+      additionalIdpCertificates.put(idp.getProviderId(), current);
+    }
+    return current.parsed;
+  }
+
+  /**
+   * @return the private key used to decrypt assertions and sign requests, or null if it's not defined or can't be parsed
+   */
+  @CheckForNull
+  PrivateKey getServiceProviderPrivateKey() {
+    String value = samlSettings.getServiceProviderPrivateKey().orElse(null);
+    Parsed<PrivateKey> current = serviceProviderPrivateKey;
+    if (!Objects.equals(value, current.value)) {
+      current = new Parsed<>(value, value == null ? null : parse(value, SamlCredentials::parsePrivateKey, "the service provider private key"));
+      serviceProviderPrivateKey = current;
+    }
+    return current.parsed;
+  }
+
+  @CheckForNull
+  private static <T> T parse(String value, ParsingFunction<T> parser, String description) {
+    try {
+      return parser.parse(decodePem(value));
+    } catch (IllegalArgumentException | GeneralSecurityException e) {
+      LOGGER.error("Fail to parse " + description, e);
+      return null;
+    }
+  }
+
+  private static X509Certificate parseCertificate(byte[] encoded) throws GeneralSecurityException {
+    return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(encoded));
+  }
+
+  private static PrivateKey parsePrivateKey(byte[] encoded) throws GeneralSecurityException {
+    return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(encoded));
+  }
+
+  /**
+   * Accepts values with or without the PEM header and footer, on one or several lines.
+   */
+  private static byte[] decodePem(String value) {
+    return Base64.getDecoder().decode(value.replaceAll("-----(BEGIN|END) [A-Z ]+-----", "").replaceAll("\\s", ""));
+  }
+
+  @FunctionalInterface
+  private interface ParsingFunction<T> {
+    T parse(byte[] encoded) throws GeneralSecurityException;
+  }
+
+  private static class Parsed<T> {
+    private final String value;
+    private final T parsed;
+
+    private Parsed(@Nullable String value, @Nullable T parsed) {
+      this.value = value;
+      this.parsed = parsed;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.DateUtils;
+import org.sonar.api.utils.text.JsonWriter;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+
+/**
+ * Web service listing the last SAML login failures of the node, see {@link SamlLoginFailures}, and the metrics of the
+ * components protecting the SAML callback.
+ * <p>
+ * The plugin API doesn't give access to the session of the user : the web service reads the global permissions of the
+ * user from the web service of SonarQube returning the current user, called as the same user, and requires the
+ * 'admin' one.
+ */
+@ServerSide
+public class SamlDiagnosticsWs implements WebService {
+
+  static final String CONTROLLER = "api/authsaml";
+  static final String FAILURES_ACTION = "failures";
+  static final String METRICS_ACTION = "metrics";
+  static final String CURRENT_USER_PATH = "api/users/current";
+  static final String ADMIN_PERMISSION = "admin";
+
+  // Global permissions of the current user, as returned by api/users/current. Quotes within strings are escaped, so
+  // that a login or a name can't contain this pattern.
+  private static final Pattern GLOBAL_PERMISSIONS = Pattern.compile("\"permissions\"\\s*:\\s*\\{\\s*\"global\"\\s*:\\s*\\[([^\\]]*)\\]");
+
+  private static final int HTTP_OK = 200;
+  private static final int HTTP_FORBIDDEN = 403;
+
+  private final SamlLoginFailures loginFailures;
+  private final SamlConcurrencyLimiter concurrencyLimiter;
+  private final SamlRequestTracker requestTracker;
+  private final SamlArtifactResolver artifactResolver;
+
+  public SamlDiagnosticsWs(SamlLoginFailures loginFailures, SamlConcurrencyLimiter concurrencyLimiter, SamlRequestTracker requestTracker,
+    SamlArtifactResolver artifactResolver) {
+    this.loginFailures = loginFailures;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.requestTracker = requestTracker;
+    this.artifactResolver = artifactResolver;
+  }
+
+  @Override
+  public void define(Context context) {
+    NewController controller = context.createController(CONTROLLER)
+      .setDescription("Diagnostics of the SAML authentication");
+    controller.createAction(FAILURES_ACTION)
+      .setDescription("List the last SAML login failures of this node, the most recent first. Requires the 'Administer System' permission.")
+      .setSince("1.2")
+      .setInternal(true)
+      .setHandler(this::handleFailures);
+    controller.createAction(METRICS_ACTION)
+      .setDescription("Return the metrics of the SAML authentication on this node. Requires the 'Administer System' permission.")
+      .setSince("1.2")
+      .setInternal(true)
+      .setHandler(this::handleMetrics);
+    controller.done();
+  }
+
+  private void handleFailures(Request request, Response response) throws IOException {
+    if (!checkSystemAdministrator(request, response)) {
+      return;
+    }
+    try (JsonWriter json = response.newJsonWriter()) {
+      json.beginObject().name("failures").beginArray();
+      for (SamlLoginFailures.Failure failure : loginFailures.getFailures()) {
+        json.beginObject()
+          .prop("date", DateUtils.formatDateTime(failure.getTimestamp()))
+          .prop("stage", failure.getStage().name())
+          .prop("reason", failure.getReason())
+          .prop("issuer", failure.getIssuer())
+          .prop("responseHash", failure.getResponseHash())
+          .endObject();
+      }
+      json.endArray().endObject();
+    }
+  }
+
+  private void handleMetrics(Request request, Response response) throws IOException {
+    if (!checkSystemAdministrator(request, response)) {
+      return;
+    }
+    try (JsonWriter json = response.newJsonWriter()) {
+      json.beginObject()
+        .name("concurrency").beginObject()
+        .prop("limit", concurrencyLimiter.getLimit())
+        .prop("inFlight", concurrencyLimiter.getInFlight())
+        .prop("waiting", concurrencyLimiter.getWaiting())
+        .prop("rejections", concurrencyLimiter.getRejectionCount())
+        .endObject()
+        .name("requestTracker").beginObject()
+        .prop("pending", requestTracker.size())
+        .prop("hits", requestTracker.getHitCount())
+        .prop("misses", requestTracker.getMissCount())
+        .prop("hitRate", requestTracker.getHitRate())
+        .prop("overflows", requestTracker.getOverflowCount())
+        .endObject();
+      writeLatencies(json.name("artifactResolution"), artifactResolver.getResolutionLatencies());
+      json.endObject();
+    }
+  }
+
+  /**
+   * Percentiles are the upper bounds of their bucket, null when they're above all bounds
+   */
+  private static void writeLatencies(JsonWriter json, SamlLatencyHistogram latencies) {
+    json.beginObject()
+      .prop("count", latencies.getTotalCount())
+      .name("p50").valueObject(percentile(latencies, 50))
+      .name("p99").valueObject(percentile(latencies, 99))
+      .name("buckets").beginArray();
+    long[] upperBounds = SamlLatencyHistogram.getUpperBounds();
+    long[] counts = latencies.getCounts();
+    for (int i = 0; i < counts.length; i++) {
+      json.beginObject()
+        .name("le").valueObject(i < upperBounds.length ? upperBounds[i] : null)
+        .prop("count", counts[i])
+        .endObject();
+    }
+    json.endArray().endObject();
+  }
+
+  @CheckForNull
+  private static Long percentile(SamlLatencyHistogram latencies, double percentile) {
+    long value = latencies.getPercentile(percentile);
+    return value == Long.MAX_VALUE ? null : value;
+  }
+
+  /**
+   * @return false if the user is not a system administrator, the response being then already sent
+   */
+  private static boolean checkSystemAdministrator(Request request, Response response) throws IOException {
+    if (isSystemAdministrator(request.localConnector().call(new CurrentUserRequest()))) {
+      return true;
+    }
+    Response.Stream stream = response.stream().setStatus(HTTP_FORBIDDEN);
+    try (OutputStream output = stream.output()) {
+      output.write("{\"errors\":[{\"msg\":\"Insufficient privileges\"}]}".getBytes(StandardCharsets.UTF_8));
+    }
+    return false;
+  }
+
+  private static boolean isSystemAdministrator(LocalConnector.LocalResponse currentUser) {
+    if (currentUser.getStatus() != HTTP_OK) {
+      return false;
+    }
+    Matcher matcher = GLOBAL_PERMISSIONS.matcher(new String(currentUser.getBytes(), StandardCharsets.UTF_8));
+    if (!matcher.find()) {
+      return false;
+    }
+    for (String permission : matcher.group(1).split(",")) {
+      if (permission.trim().equals("\"" + ADMIN_PERMISSION + "\"")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static class CurrentUserRequest implements LocalConnector.LocalRequest {
+    @Override
+    public String getPath() {
+      return CURRENT_USER_PATH;
+    }
+
+    @Override
+    public String getMediaType() {
+      return "application/json";
+    }
+
+    @Override
+    public String getMethod() {
+      return "GET";
+    }
+
+    @Override
+    public boolean hasParam(String key) {
+      return false;
+    }
+
+    @CheckForNull
+    @Override
+    public String getParam(String key) {
+      return null;
+    }
+
+    @Override
+    public List<String> getMultiParam(String key) {
+      return emptyList();
+    }
+
+    @Override
+    public Optional<String> getHeader(String name) {
+      return Optional.empty();
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+      return emptyMap();
+    }
+  }
+}
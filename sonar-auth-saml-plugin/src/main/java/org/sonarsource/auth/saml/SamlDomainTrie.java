@@ -0,0 +1,112 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+
+/**
+ * Maps domains to values, with a trie of the domain labels in reverse order : "sub.example.com" is stored under "com",
+ * then "example", then "sub". A lookup walks one node per label of the domain, whatever the number of domains.
+ * <p>
+ * A pattern "*.example.com" matches all the sub-domains of example.com, but not example.com itself. An exact domain has
+ * precedence over a wildcard, and the deepest wildcard has precedence over the other ones.
+ * <p>
+ * Not thread-safe while being built, it can be shared once built.
+ */
+final class SamlDomainTrie<T> {
+
+  private static final String WILDCARD_PREFIX = "*.";
+
+  private final Node<T> root = new Node<>();
+  private int size;
+
+  /**
+   * @param pattern a lower case domain, optionally prefixed by "*."
+   * @return false if the pattern was already defined, in which case the existing value is kept
+   */
+  boolean put(String pattern, T value) {
+    boolean wildcard = pattern.startsWith(WILDCARD_PREFIX);
+    String domain = wildcard ? pattern.substring(WILDCARD_PREFIX.length()) : pattern;
+    Node<T> node = root;
+    int end = domain.length();
+    while (end > 0) {
+      int start = domain.lastIndexOf('.', end - 1) + 1;
+      node = node.getOrCreateChild(domain.substring(start, end));
+      end = start - 1;
+    }
+    if (wildcard ? node.wildcardValue != null : node.value != null) {
+      return false;
+    }
+    if (wildcard) {
+      node.wildcardValue = value;
+    } else {
+      node.value = value;
+    }
+    size++;
+    return true;
+  }
+
+  /**
+   * @param domain a lower case domain
+   */
+  @CheckForNull
+  T find(String domain) {
+    Node<T> node = root;
+    T wildcardMatch = null;
+    int end = domain.length();
+    while (end > 0) {
+      // There are labels left, so the domain is a sub-domain of the one of the current node
+      if (node.wildcardValue != null) {
+        wildcardMatch = node.wildcardValue;
+      }
+      int start = domain.lastIndexOf('.', end - 1) + 1;
+      node = node.getChild(domain.substring(start, end));
+      if (node == null) {
+        return wildcardMatch;
+      }
+      end = start - 1;
+    }
+    return node.value != null ? node.value : wildcardMatch;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private static class Node<T> {
+    private Map<String, Node<T>> children;
+    private T value;
+    private T wildcardValue;
+
+    @CheckForNull
+    private Node<T> getChild(String label) {
+      return children == null ? null : children.get(label);
+    }
+
+    private Node<T> getOrCreateChild(String label) {
+      if (children == null) {
+        children = new HashMap<>(4);
+      }
+      return children.computeIfAbsent(label, l -> new Node<>());
+    }
+  }
+}
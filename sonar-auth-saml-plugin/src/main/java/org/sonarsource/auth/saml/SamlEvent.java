@@ -0,0 +1,48 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+/**
+ * Event of a SAML login stage, begun by {@link SamlEvents#begin(SamlEvents.Type)}. Fields which don't apply to the type of
+ * the event are ignored.
+ */
+interface SamlEvent {
+
+  default void setIssuer(String issuer) {
+    // Not recorded by default
+  }
+
+  default void setBinding(String binding) {
+    // Not recorded by default
+  }
+
+  default void setResponseSize(int bytes) {
+    // Not recorded by default
+  }
+
+  default void setGroupCount(int count) {
+    // Not recorded by default
+  }
+
+  /**
+   * Ends the event, which is then committed if the recording requires it.
+   */
+  void end(String outcome);
+}
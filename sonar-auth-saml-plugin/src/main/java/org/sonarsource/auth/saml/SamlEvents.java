@@ -0,0 +1,84 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Java Flight Recorder events of SAML logins, so that a slow login can be correlated with GC and CPU activity.
+ * <p>
+ * The events are implemented by {@link #JFR_FACTORY}, which is compiled for Java 11 in its own source set as jdk.jfr is not
+ * part of the Java 8 API, and only loaded when JFR is available. When an event type is not enabled by the
+ * running recordings, {@link #begin(Type)} only checks a flag and returns {@link #NONE}, so that continuous recordings
+ * can be kept in production.
+ */
+final class SamlEvents {
+
+  enum Type {
+    INIT,
+    CALLBACK,
+    ARTIFACT_RESOLUTION,
+    PREVALIDATION,
+    RESPONSE_PARSING,
+    RESPONSE_VALIDATION,
+    SIGNATURE_VERIFICATION,
+    ATTRIBUTE_MAPPING,
+    AUTHENTICATE
+  }
+
+  static final String SUCCESS = "success";
+  static final String REJECTED = "rejected";
+  static final String THROTTLED = "throttled";
+  static final String FAILED = "failed";
+
+  static final SamlEvent NONE = outcome -> {
+    // Not recorded
+  };
+
+  // Not referenced from this source set, see the jfr source set in build.gradle
+  private static final String JFR_FACTORY = "org.sonarsource.auth.saml.SamlJfrEvents";
+
+  private static final Factory FACTORY = createFactory();
+
+  private SamlEvents() {
+    // Only static methods
+  }
+
+  static SamlEvent begin(Type type) {
+    return FACTORY.begin(type);
+  }
+
+  private static Factory createFactory() {
+    try {
+      ClassLoader classLoader = SamlEvents.class.getClassLoader();
+      Class.forName("jdk.jfr.Event", false, classLoader);
+      // Fails with UnsupportedClassVersionError on the Java 8 runtimes providing JFR
+      return (Factory) Class.forName(JFR_FACTORY, true, classLoader).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      Loggers.get(SamlEvents.class).debug("Java Flight Recorder is not available, SAML events are not recorded");
+      return type -> NONE;
+    }
+  }
+
+  @FunctionalInterface
+  interface Factory {
+    SamlEvent begin(Type type);
+  }
+}
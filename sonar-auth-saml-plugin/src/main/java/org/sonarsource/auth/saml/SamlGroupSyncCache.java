@@ -0,0 +1,145 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Digests of the groups last synchronized for each login, used to not let SonarQube synchronize the groups of a user
+ * again when they have not changed since the last login. Groups are synchronized anyway once the re-synchronization
+ * interval has elapsed, so that changes done in SonarQube are eventually overridden.
+ * <p>
+ * The cache is bounded, the least recently used logins are evicted first.
+ */
+@ServerSide
+public class SamlGroupSyncCache {
+
+  static final int DEFAULT_MAX_SIZE = 10_000;
+
+  private final SamlSettings samlSettings;
+  private final System2 system2;
+  private final Map<String, GroupsEntry> entries;
+  private final LongAdder skippedSyncs = new LongAdder();
+
+  public SamlGroupSyncCache(SamlSettings samlSettings, System2 system2) {
+    this(samlSettings, system2, DEFAULT_MAX_SIZE);
+  }
+
+  SamlGroupSyncCache(SamlSettings samlSettings, System2 system2, int maxSize) {
+    this.samlSettings = samlSettings;
+    this.system2 = system2;
+    this.entries = new LinkedHashMap<String, GroupsEntry>(16, 0.75F, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, GroupsEntry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @return true if the same groups have been synchronized for this login during the re-synchronization interval
+   */
+  boolean isUnchanged(String login, Set<String> groups) {
+    long intervalMs = getResyncIntervalMs();
+    if (intervalMs <= 0) {
+      return false;
+    }
+    byte[] digest = digest(groups);
+    GroupsEntry entry;
+    synchronized (entries) {
+      entry = entries.get(login);
+    }
+    boolean unchanged = entry != null && system2.now() - entry.syncedAt < intervalMs && Arrays.equals(entry.digest, digest);
+    if (unchanged) {
+      skippedSyncs.increment();
+    }
+    return unchanged;
+  }
+
+  /**
+   * To be called once the groups have been synchronized by SonarQube.
+   */
+  void synced(String login, Set<String> groups) {
+    if (getResyncIntervalMs() <= 0) {
+      return;
+    }
+    GroupsEntry entry = new GroupsEntry(digest(groups), system2.now());
+    synchronized (entries) {
+      entries.put(login, entry);
+    }
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  long getSkippedSyncCount() {
+    return skippedSyncs.sum();
+  }
+
+  private long getResyncIntervalMs() {
+    return TimeUnit.MINUTES.toMillis(samlSettings.getGroupResyncInterval());
+  }
+
+  /**
+   * Does not depend on the order of the groups. Each name is prefixed by its length, so that names containing the
+   * separator can't produce the digest of other groups.
+   */
+  private static byte[] digest(Set<String> groups) {
+    List<String> sortedGroups = new ArrayList<>(groups);
+    sortedGroups.sort(null);
+    try {
+      MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+      for (String group : sortedGroups) {
+        messageDigest.update(Integer.toString(group.length()).getBytes(UTF_8));
+        messageDigest.update((byte) ':');
+        messageDigest.update(group.getBytes(UTF_8));
+      }
+      return messageDigest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static class GroupsEntry {
+    private final byte[] digest;
+    private final long syncedAt;
+
+    private GroupsEntry(byte[] digest, long syncedAt) {
+      this.digest = digest;
+      this.syncedAt = syncedAt;
+    }
+  }
+}
@@ -19,20 +19,9 @@
  */
 package org.sonarsource.auth.saml;
 
-import com.onelogin.saml2.Auth;
-import com.onelogin.saml2.exception.SettingsException;
-import com.onelogin.saml2.settings.Saml2Settings;
-import com.onelogin.saml2.settings.SettingsBuilder;
 import java.io.IOException;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.regex.Pattern;
-import javax.annotation.CheckForNull;
-import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
@@ -41,27 +30,57 @@ import org.sonar.api.server.authentication.Display;
 import org.sonar.api.server.authentication.OAuth2IdentityProvider;
 import org.sonar.api.server.authentication.UnauthorizedException;
 import org.sonar.api.server.authentication.UserIdentity;
-import org.sonar.api.utils.log.Logger;
-import org.sonar.api.utils.log.Loggers;
-
-import static java.util.Collections.emptySet;
-import static java.util.Objects.requireNonNull;
+import org.sonar.api.utils.System2;
 
 @ServerSide
 public class SamlIdentityProvider implements OAuth2IdentityProvider {
 
   private static final Pattern HTTPS_PATTERN = Pattern.compile("https?://");
   private static final String KEY = "saml";
+  // Email of the user, used to select the identity provider
+  private static final String LOGIN_HINT_PARAMETER = "login_hint";
 
-  private static final Logger LOGGER = Loggers.get(SamlIdentityProvider.class);
+  private static final String POST_BINDING = "post";
+  private static final String REDIRECT_BINDING = "redirect";
+  private static final String ARTIFACT_BINDING = "artifact";
 
-  private static final String ANY_URL = "http://anyurl";
-  private static final String STATE_REQUEST_PARAMETER = "RelayState";
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int SERVICE_UNAVAILABLE = 503;
 
   private final SamlSettings samlSettings;
+  private final SamlRateLimiter rateLimiter;
+  private final SamlConcurrencyLimiter concurrencyLimiter;
+  private final SamlRequestTracker requestTracker;
+  private final SamlValidationPipeline validationPipeline;
+  private final SamlCredentials credentials;
+  private final SamlRequestSigner requestSigner;
+  private final SamlGroupSyncCache groupSyncCache;
+  private final SamlIdpDiscovery idpDiscovery;
+  private final SamlArtifactResolver artifactResolver;
+  private final SamlSessionRegistry sessionRegistry;
+  private final SamlAuditLog auditLog;
+  private final SamlWarmUp warmUp;
+  private final System2 system2;
+  private SamlAuthenticator authenticator;
 
-  public SamlIdentityProvider(SamlSettings samlSettings) {
+  public SamlIdentityProvider(SamlSettings samlSettings, SamlRateLimiter rateLimiter, SamlConcurrencyLimiter concurrencyLimiter,
+    SamlRequestTracker requestTracker, SamlValidationPipeline validationPipeline, SamlCredentials credentials, SamlRequestSigner requestSigner,
+    SamlGroupSyncCache groupSyncCache, SamlIdpDiscovery idpDiscovery, SamlArtifactResolver artifactResolver,
+    SamlSessionRegistry sessionRegistry, SamlAuditLog auditLog, SamlWarmUp warmUp, System2 system2) {
     this.samlSettings = samlSettings;
+    this.rateLimiter = rateLimiter;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.requestTracker = requestTracker;
+    this.validationPipeline = validationPipeline;
+    this.credentials = credentials;
+    this.requestSigner = requestSigner;
+    this.groupSyncCache = groupSyncCache;
+    this.idpDiscovery = idpDiscovery;
+    this.artifactResolver = artifactResolver;
+    this.sessionRegistry = sessionRegistry;
+    this.auditLog = auditLog;
+    this.warmUp = warmUp;
+    this.system2 = system2;
   }
 
   @Override
@@ -85,7 +104,12 @@ public class SamlIdentityProvider implements OAuth2IdentityProvider {
 
   @Override
   public boolean isEnabled() {
-    return samlSettings.isEnabled();
+    boolean enabled = samlSettings.isEnabled();
+    if (enabled) {
+      // SAML may have been enabled after startup, validation must still be warmed up before the first login
+      warmUp.warmUpInBackground();
+    }
+    return enabled;
   }
 
   @Override
@@ -95,16 +119,46 @@ public class SamlIdentityProvider implements OAuth2IdentityProvider {
 
   @Override
   public void init(InitContext context) {
+    SamlEvent event = SamlEvents.begin(SamlEvents.Type.INIT);
+    String outcome = SamlEvents.FAILED;
     try {
-      Auth auth = newAuth(initSettings(context.getCallbackUrl()), context.getRequest(), context.getResponse());
-      auth.login(context.generateCsrfState());
-    } catch (IOException | SettingsException e) {
-      throw new IllegalStateException("Fail to intialize SAML authentication plugin", e);
+      SamlIdp idp = idpDiscovery.findByEmail(context.getRequest().getParameter(LOGIN_HINT_PARAMETER));
+      event.setIssuer(idp.getProviderId());
+      authenticator().initLogin(context, idp);
+      outcome = SamlEvents.SUCCESS;
+    } finally {
+      event.end(outcome);
     }
   }
 
   @Override
   public void callback(CallbackContext context) {
+    SamlEvent event = SamlEvents.begin(SamlEvents.Type.CALLBACK);
+    AuditEntry audit = new AuditEntry();
+    String outcome = SamlEvents.FAILED;
+    try {
+      outcome = processCallback(context, event, audit);
+    } catch (UnauthorizedException e) {
+      outcome = SamlEvents.REJECTED;
+      audit.reason = e.getMessage();
+      throw e;
+    } catch (RuntimeException e) {
+      audit.reason = e.getMessage();
+      throw e;
+    } finally {
+      event.end(outcome);
+      auditLog.record(outcome, audit.login, audit.issuer, audit.groups, audit.reason);
+    }
+  }
+
+  /**
+   * @return the outcome of the callback, when the user has been authenticated or the request throttled
+   */
+  private String processCallback(CallbackContext context, SamlEvent event, AuditEntry audit) {
+    if (!rateLimiter.tryAcquire(context.getRequest())) {
+      rejectRequest(context.getResponse(), TOO_MANY_REQUESTS, rateLimiter.getRetryAfterSeconds(), "Too many SAML authentication requests");
+      return SamlEvents.THROTTLED;
+    }
     //
     // Workaround for onelogin/java-saml validation not taking into account running a reverse proxy configuration. This change
     // makes the validation take into account 'X-Forwarded-Proto' and 'Host' headers set by the reverse proxy
@@ -113,94 +167,94 @@ public class SamlIdentityProvider implements OAuth2IdentityProvider {
     // - https://github.com/onelogin/java-saml/issues/95
     //
     HttpServletRequest processedRequest = useProxyHeadersInRequest(context.getRequest());
-
-    Auth auth = newAuth(initSettings(null), processedRequest, context.getResponse());
-    processResponse(auth);
-    context.verifyCsrfState(STATE_REQUEST_PARAMETER);
-
-    LOGGER.trace("Name ID : {}", auth.getNameId());
-    checkAuthentication(auth);
-
-    LOGGER.trace("Attributes received : {}", auth.getAttributes());
-    String login = getNonNullFirstAttribute(auth, samlSettings.getUserLogin());
-    UserIdentity.Builder userIdentityBuilder = UserIdentity.builder()
-      .setLogin(login)
-      .setProviderLogin(login)
-      .setName(getNonNullFirstAttribute(auth, samlSettings.getUserName()));
-    samlSettings.getUserEmail().ifPresent(
-      email -> userIdentityBuilder.setEmail(getFirstAttribute(auth, email)));
-    samlSettings.getGroupName().ifPresent(
-      group -> userIdentityBuilder.setGroups(getGroups(auth, group)));
-    context.authenticate(userIdentityBuilder.build());
-    context.redirectToRequestedPage();
-  }
-
-  private static Auth newAuth(Saml2Settings saml2Settings, HttpServletRequest request, HttpServletResponse response) {
+    // The artifact is resolved before taking a slot : a slow artifact resolution service would otherwise hold the slots, and
+    // its latency would make the limit back off for all the logins
+    String artifact = SamlArtifactResolver.getArtifact(processedRequest);
+    if (artifact != null) {
+      event.setBinding(ARTIFACT_BINDING);
+      processedRequest = artifactResolver.resolve(processedRequest, artifact);
+    }
+    if (!concurrencyLimiter.acquire()) {
+      rejectRequest(context.getResponse(), SERVICE_UNAVAILABLE, 1, "Too many concurrent SAML authentications");
+      return SamlEvents.THROTTLED;
+    }
+    SamlAuthenticator.Authentication authentication;
+    long start = System.nanoTime();
+    boolean signatureVerified = false;
     try {
-      return new Auth(saml2Settings, request, response);
-    } catch (SettingsException e) {
-      throw new IllegalStateException("Fail to create Auth", e);
+      authentication = authenticate(context, processedRequest, artifact != null, event, audit);
+      signatureVerified = true;
+    } catch (SamlValidationPipeline.Rejection e) {
+      signatureVerified = e.isAfterSignatureVerification();
+      throw e;
+    } finally {
+      if (signatureVerified) {
+        concurrencyLimiter.release(System.nanoTime() - start);
+      } else {
+        concurrencyLimiter.release();
+      }
     }
-  }
-
-  private static void processResponse(Auth auth) {
+    UserIdentity userIdentity = authentication.getUserIdentity();
+    audit.login = userIdentity.getProviderLogin();
+    audit.groups = authentication.getGroups();
+    SamlEvent authenticateEvent = SamlEvents.begin(SamlEvents.Type.AUTHENTICATE);
+    String outcome = SamlEvents.FAILED;
     try {
-      auth.processResponse();
-    } catch (Exception e) {
-      throw new IllegalStateException("Fail to process response", e);
+      context.authenticate(userIdentity);
+      outcome = SamlEvents.SUCCESS;
+    } finally {
+      authenticateEvent.end(outcome);
     }
-  }
-
-  private static void checkAuthentication(Auth auth) {
-    List<String> errors = auth.getErrors();
-    if (auth.isAuthenticated() && errors.isEmpty()) {
-      return;
+    if (userIdentity.shouldSyncGroups()) {
+      groupSyncCache.synced(userIdentity.getProviderLogin(), userIdentity.getGroups());
     }
-    String errorReason = auth.getLastErrorReason();
-    throw new UnauthorizedException(errorReason != null && !errorReason.isEmpty() ? errorReason : "Unknown error reason");
-  }
-
-  private static String getNonNullFirstAttribute(Auth auth, String key) {
-    String attribute = getFirstAttribute(auth, key);
-    requireNonNull(attribute, String.format("%s is missing", key));
-    return attribute;
+    context.redirectToRequestedPage();
+    return SamlEvents.SUCCESS;
   }
 
-  @CheckForNull
-  private static String getFirstAttribute(Auth auth, String key) {
-    Collection<String> attribute = auth.getAttribute(key);
-    if (attribute == null || attribute.isEmpty()) {
-      return null;
+  private SamlAuthenticator.Authentication authenticate(CallbackContext context, HttpServletRequest processedRequest, boolean resolvedArtifact, SamlEvent event,
+    AuditEntry audit) {
+    String queryString = processedRequest.getQueryString();
+    SamlRedirectMessage redirectMessage = SamlRedirectMessage.parse(queryString);
+    if (redirectMessage != null) {
+      event.setBinding(REDIRECT_BINDING);
+      event.setResponseSize(queryString.length());
+      SamlValidationPipeline.ValidatedResponse validated = validationPipeline.validateRedirect(processedRequest, redirectMessage);
+      audit.issuer = validated.getIdp().getProviderId();
+      event.setIssuer(audit.issuer);
+      return authenticator().authenticateRedirect(context, processedRequest, validated, event);
+    }
+    if (!resolvedArtifact) {
+      event.setBinding(POST_BINDING);
+    }
+    String encodedResponse = SamlValidationPipeline.getEncodedResponse(processedRequest);
+    if (encodedResponse != null) {
+      event.setResponseSize(encodedResponse.length());
     }
-    return attribute.iterator().next();
+    SamlValidationPipeline.ValidatedResponse validated = validationPipeline.validate(processedRequest);
+    audit.issuer = validated.getIdp().getProviderId();
+    event.setIssuer(audit.issuer);
+    return authenticator().authenticate(context, processedRequest, validated, event);
   }
 
-  private static Set<String> getGroups(Auth auth, String groupAttribute) {
-    Collection<String> attribute = auth.getAttribute(groupAttribute);
-    if (attribute == null || attribute.isEmpty()) {
-      return emptySet();
+  private synchronized SamlAuthenticator authenticator() {
+    if (authenticator == null) {
+      authenticator = new SamlAuthenticator(samlSettings, requestTracker, validationPipeline, credentials, requestSigner, groupSyncCache,
+        sessionRegistry, system2);
     }
-    return new HashSet<>(attribute);
+    return authenticator;
   }
 
-  private Saml2Settings initSettings(@Nullable String callbackUrl) {
-    Map<String, Object> samlData = new HashMap<>();
-    samlData.put("onelogin.saml2.strict", true);
-
-    samlData.put("onelogin.saml2.idp.entityid", samlSettings.getProviderId());
-    samlData.put("onelogin.saml2.idp.single_sign_on_service.url", samlSettings.getLoginUrl());
-    samlData.put("onelogin.saml2.idp.x509cert", samlSettings.getCertificate());
-
-    samlData.put("onelogin.saml2.sp.entityid", samlSettings.getApplicationId());
-    // During callback, the callback URL is by definition not needed, but the Saml2Settings does never allow this setting to be empty...
-    samlData.put("onelogin.saml2.sp.assertion_consumer_service.url", callbackUrl != null ? callbackUrl : ANY_URL);
-    SettingsBuilder builder = new SettingsBuilder();
-    return builder
-      .fromValues(samlData)
-      .build();
+  private static void rejectRequest(HttpServletResponse response, int status, long retryAfterSeconds, String message) {
+    try {
+      response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+      response.sendError(status, message);
+    } catch (IOException e) {
+      throw new IllegalStateException("Fail to reject SAML authentication request", e);
+    }
   }
 
-  private static HttpServletRequest useProxyHeadersInRequest(HttpServletRequest request) {
+  static HttpServletRequest useProxyHeadersInRequest(HttpServletRequest request) {
     String forwardedScheme = request.getHeader("X-Forwarded-Proto");
     if (forwardedScheme != null) {
       request = new HttpServletRequestWrapper(request) {
@@ -219,4 +273,14 @@ public class SamlIdentityProvider implements OAuth2IdentityProvider {
 
     return request;
   }
+
+  /**
+   * What is known of the callback, recorded in the audit log once it's completed
+   */
+  private static class AuditEntry {
+    private String login;
+    private String issuer;
+    private Collection<String> groups;
+    private String reason;
+  }
 }
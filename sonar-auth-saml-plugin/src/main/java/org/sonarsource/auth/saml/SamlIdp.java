@@ -0,0 +1,82 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.Objects;
+
+/**
+ * Identity provider to which users are sent. The one of the main settings is the default one, additional ones are
+ * selected by the email domain of the user.
+ */
+final class SamlIdp {
+
+  private final String providerId;
+  private final String loginUrl;
+  private final String certificate;
+  private final String domains;
+
+  SamlIdp(String providerId, String loginUrl, String certificate, String domains) {
+    this.providerId = providerId;
+    this.loginUrl = loginUrl;
+    this.certificate = certificate;
+    this.domains = domains;
+  }
+
+  String getProviderId() {
+    return providerId;
+  }
+
+  String getLoginUrl() {
+    return loginUrl;
+  }
+
+  String getCertificate() {
+    return certificate;
+  }
+
+  /**
+   * @return the comma separated email domains, such as "example.com,*.example.org", as defined in the settings
+   */
+  String getDomains() {
+    return domains;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    SamlIdp that = (SamlIdp) o;
+    return providerId.equals(that.providerId) && loginUrl.equals(that.loginUrl) && certificate.equals(that.certificate) && domains.equals(that.domains);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(providerId, loginUrl, certificate, domains);
+  }
+
+  @Override
+  public String toString() {
+    return providerId;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Selects the identity provider of a user from the domain of their email, and the identity provider of a SAML response
+ * from its issuer.
+ * <p>
+ * The additional identity providers of the settings are indexed by a {@link SamlDomainTrie}. The settings are checked
+ * at most every {@link #CHECK_INTERVAL_MS}, and when they have changed, the index is rebuilt by a background thread
+ * while lookups keep using the previous one, then swapped.
+ */
+@ServerSide
+public class SamlIdpDiscovery implements Startable {
+
+  static final long CHECK_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final Logger LOGGER = Loggers.get(SamlIdpDiscovery.class);
+
+  private final SamlSettings samlSettings;
+  private final System2 system2;
+  private final Executor rebuildExecutor;
+  private final AtomicReference<Index> index = new AtomicReference<>();
+  private final AtomicBoolean rebuilding = new AtomicBoolean();
+  private volatile long nextCheck;
+  private ExecutorService executor;
+
+  public SamlIdpDiscovery(SamlSettings samlSettings, System2 system2) {
+    this.samlSettings = samlSettings;
+    this.system2 = system2;
+    this.rebuildExecutor = this::executeInBackground;
+  }
+
+  SamlIdpDiscovery(SamlSettings samlSettings, System2 system2, Executor rebuildExecutor) {
+    this.samlSettings = samlSettings;
+    this.system2 = system2;
+    this.rebuildExecutor = rebuildExecutor;
+  }
+
+  @Override
+  public void start() {
+    // Nothing to do, the index is built when first used
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the identity provider of the domain of the email, or the default one
+   */
+  SamlIdp findByEmail(@Nullable String email) {
+    if (email != null) {
+      String domain = email.substring(email.lastIndexOf('@') + 1).trim().toLowerCase(Locale.ENGLISH);
+      SamlIdp idp = index().domains.find(domain);
+      if (idp != null) {
+        return idp;
+      }
+    }
+    return samlSettings.getDefaultIdp();
+  }
+
+  /**
+   * @return the identity provider having this provider ID, or null if there's none
+   */
+  @CheckForNull
+  SamlIdp findByProviderId(String providerId) {
+    SamlIdp defaultIdp = samlSettings.getDefaultIdp();
+    if (defaultIdp.getProviderId().equals(providerId)) {
+      return defaultIdp;
+    }
+    return index().idpsByProviderId.get(providerId);
+  }
+
+  private Index index() {
+    Index current = index.get();
+    if (current == null) {
+      return buildFirstIndex();
+    }
+    long now = system2.now();
+    if (now >= nextCheck) {
+      nextCheck = now + CHECK_INTERVAL_MS;
+      List<SamlIdp> idps = samlSettings.getAdditionalIdps();
+      if (!idps.equals(current.source) && rebuilding.compareAndSet(false, true)) {
+        rebuildExecutor.execute(() -> {
+          try {
+            index.set(new Index(idps));
+          } finally {
+            rebuilding.set(false);
+          }
+        });
+      }
+    }
+    return current;
+  }
+
+  private synchronized Index buildFirstIndex() {
+    Index current = index.get();
+    if (current == null) {
+      current = new Index(samlSettings.getAdditionalIdps());
+      nextCheck = system2.now() + CHECK_INTERVAL_MS;
+      index.set(current);
+    }
+    return current;
+  }
+
+  private synchronized void executeInBackground(Runnable runnable) {
+    if (executor == null) {
+      executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SAML identity provider discovery");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    executor.execute(runnable);
+  }
+
+  private static class Index {
+    private final List<SamlIdp> source;
+    private final SamlDomainTrie<SamlIdp> domains = new SamlDomainTrie<>();
+    private final Map<String, SamlIdp> idpsByProviderId = new HashMap<>();
+
+    private Index(List<SamlIdp> source) {
+      this.source = source;
+      for (SamlIdp idp : source) {
+        idpsByProviderId.putIfAbsent(idp.getProviderId(), idp);
+        for (String domain : idp.getDomains().split(",")) {
+          String pattern = domain.trim().toLowerCase(Locale.ENGLISH);
+          if (!pattern.isEmpty() && !domains.put(pattern, idp)) {
+            LOGGER.warn("Email domain {} is defined for several identity providers, {} is ignored", pattern, idp.getProviderId());
+          }
+        }
+      }
+      LOGGER.debug("{} email domains indexed for {} identity providers", domains.size(), source.size());
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies counted in fixed buckets, so that recording is a single {@link LongAdder} increment.
+ * Percentiles are approximated by the upper bound of the bucket in which they fall.
+ */
+final class SamlLatencyHistogram {
+
+  private static final long[] UPPER_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000};
+
+  // The last bucket counts the latencies greater than the last bound
+  private final LongAdder[] counts = new LongAdder[UPPER_BOUNDS_MS.length + 1];
+
+  SamlLatencyHistogram() {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  void record(long latencyMs) {
+    int bucket = 0;
+    while (bucket < UPPER_BOUNDS_MS.length && latencyMs > UPPER_BOUNDS_MS[bucket]) {
+      bucket++;
+    }
+    counts[bucket].increment();
+  }
+
+  /**
+   * @return the upper bounds of the buckets, in milliseconds, except the last bucket which has no bound
+   */
+  static long[] getUpperBounds() {
+    return UPPER_BOUNDS_MS.clone();
+  }
+
+  /**
+   * @return the number of latencies of each bucket, the last one being the number of latencies above all bounds
+   */
+  long[] getCounts() {
+    long[] snapshot = new long[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      snapshot[i] = counts[i].sum();
+    }
+    return snapshot;
+  }
+
+  long getTotalCount() {
+    long total = 0;
+    for (LongAdder count : counts) {
+      total += count.sum();
+    }
+    return total;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the upper bound of the bucket of the percentile, {@link Long#MAX_VALUE} if it's above all bounds, or 0 when
+   * nothing has been recorded
+   */
+  long getPercentile(double percentile) {
+    long[] snapshot = getCounts();
+    long total = 0;
+    for (long count : snapshot) {
+      total += count;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long cumulated = 0;
+    for (int i = 0; i < UPPER_BOUNDS_MS.length; i++) {
+      cumulated += snapshot[i];
+      if (cumulated >= rank) {
+        return UPPER_BOUNDS_MS[i];
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+}
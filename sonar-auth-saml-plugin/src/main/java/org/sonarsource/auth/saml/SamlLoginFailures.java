@@ -0,0 +1,169 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.server.ServerSide;
+
+/**
+ * Last SAML login failures, so that a misconfiguration of the identity provider can be diagnosed without searching the
+ * logs of every node, see {@link SamlDiagnosticsWs}.
+ * <p>
+ * Failures are kept in a fixed-size ring buffer of preallocated slots, without lock : recording a failure neither
+ * allocates nor blocks, and reading the buffer never blocks writers. Each slot is guarded by a version, odd while the
+ * slot is being written, so that readers skip the slots modified while being read. A failure is dropped when its slot is
+ * being written by a writer which has lapped the whole buffer.
+ */
+@ServerSide
+public class SamlLoginFailures {
+
+  static final int DEFAULT_CAPACITY = 128;
+
+  // 64-bit FNV-1a
+  private static final long HASH_OFFSET = 0xcbf29ce484222325L;
+  private static final long HASH_PRIME = 0x100000001b3L;
+
+  private final Slot[] slots;
+  private final AtomicLong cursor = new AtomicLong();
+
+  public SamlLoginFailures() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  SamlLoginFailures(int capacity) {
+    slots = new Slot[capacity];
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+    }
+  }
+
+  /**
+   * @param response the response as received, only its hash is kept
+   */
+  void record(long timestamp, SamlValidationPipeline.Stage stage, @Nullable String reason, @Nullable String issuer, @Nullable String response) {
+    long sequence = cursor.getAndIncrement();
+    Slot slot = slots[(int) (sequence % slots.length)];
+    long version = slot.version.get();
+    if ((version & 1) != 0 || !slot.version.compareAndSet(version, version + 1)) {
+      return;
+    }
+    slot.sequence = sequence;
+    slot.timestamp = timestamp;
+    slot.stage = stage;
+    slot.reason = reason;
+    slot.issuer = issuer;
+    slot.responseHash = response == null ? 0 : hash(response);
+    slot.version.set(version + 2);
+  }
+
+  /**
+   * @return the failures still in the buffer, the most recent first
+   */
+  List<Failure> getFailures() {
+    long end = cursor.get();
+    long start = Math.max(0, end - slots.length);
+    List<Failure> failures = new ArrayList<>();
+    for (long sequence = end - 1; sequence >= start; sequence--) {
+      Failure failure = slots[(int) (sequence % slots.length)].read(sequence);
+      if (failure != null) {
+        failures.add(failure);
+      }
+    }
+    return failures;
+  }
+
+  static long hash(String value) {
+    long hash = HASH_OFFSET;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= HASH_PRIME;
+    }
+    return hash;
+  }
+
+  private static class Slot {
+    private final AtomicLong version = new AtomicLong();
+    private volatile long sequence = -1;
+    private volatile long timestamp;
+    private volatile SamlValidationPipeline.Stage stage;
+    private volatile String reason;
+    private volatile String issuer;
+    private volatile long responseHash;
+
+    @CheckForNull
+    private Failure read(long expectedSequence) {
+      long before = version.get();
+      if ((before & 1) != 0) {
+        return null;
+      }
+      Failure failure = new Failure(timestamp, stage, reason, issuer, responseHash);
+      if (sequence != expectedSequence || version.get() != before) {
+        return null;
+      }
+      return failure;
+    }
+  }
+
+  static class Failure {
+    private final long timestamp;
+    private final SamlValidationPipeline.Stage stage;
+    private final String reason;
+    private final String issuer;
+    private final long responseHash;
+
+    private Failure(long timestamp, SamlValidationPipeline.Stage stage, @Nullable String reason, @Nullable String issuer, long responseHash) {
+      this.timestamp = timestamp;
+      this.stage = stage;
+      this.reason = reason;
+      this.issuer = issuer;
+      this.responseHash = responseHash;
+    }
+
+    long getTimestamp() {
+      return timestamp;
+    }
+
+    SamlValidationPipeline.Stage getStage() {
+      return stage;
+    }
+
+    @CheckForNull
+    String getReason() {
+      return reason;
+    }
+
+    @CheckForNull
+    String getIssuer() {
+      return issuer;
+    }
+
+    /**
+     * @return the FNV-1a hash of the response, as 16 hexadecimal characters, or null if there was no response
+     */
+    @CheckForNull
+    String getResponseHash() {
+      return responseHash == 0 ? null : String.format("%016x", responseHash);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.web.ServletFilter;
+
+/**
+ * Single logout service of SonarQube : logs the user out of SonarQube and of the identity provider (SP-initiated), or
+ * processes the logout requests of the identity provider (IdP-initiated), with the HTTP-Redirect binding.
+ * <p>
+ * The SP-initiated logout is only accepted from SonarQube itself, otherwise any other site could log the user out by
+ * embedding the logout URL. The messages of the identity provider are cross-site by nature, the logout requests are
+ * then required to be signed.
+ */
+@ServerSide
+public class SamlLogoutFilter extends ServletFilter {
+
+  static final String LOGOUT_PATH = "/saml/logout";
+
+  private static final String SEC_FETCH_SITE_HEADER = "Sec-Fetch-Site";
+  private static final String ORIGIN_HEADER = "Origin";
+  private static final String REFERER_HEADER = "Referer";
+
+  private final SamlSettings samlSettings;
+  private final SamlCredentials credentials;
+  private final SamlRequestSigner requestSigner;
+  private final SamlSessionRegistry sessionRegistry;
+  private SamlLogoutHandler logoutHandler;
+
+  public SamlLogoutFilter(SamlSettings samlSettings, SamlCredentials credentials, SamlRequestSigner requestSigner, SamlSessionRegistry sessionRegistry) {
+    this.samlSettings = samlSettings;
+    this.credentials = credentials;
+    this.requestSigner = requestSigner;
+    this.sessionRegistry = sessionRegistry;
+  }
+
+  @Override
+  public UrlPattern doGetPattern() {
+    return UrlPattern.create(LOGOUT_PATH);
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) {
+    // Nothing to do
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+    if (!samlSettings.isEnabled() || !(request instanceof HttpServletRequest)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    HttpServletRequest processedRequest = SamlIdentityProvider.useProxyHeadersInRequest((HttpServletRequest) request);
+    // The handler is only loaded once single logout is used, its constants are inlined by the compiler
+    boolean samlMessage = processedRequest.getParameter(SamlLogoutHandler.SAML_REQUEST) != null
+      || processedRequest.getParameter(SamlLogoutHandler.SAML_RESPONSE) != null;
+    if (!samlMessage && !isSameOrigin(processedRequest)) {
+      ((HttpServletResponse) response).sendError(HttpServletResponse.SC_FORBIDDEN, "Logout is only accepted from SonarQube");
+      return;
+    }
+    logoutHandler().logout(processedRequest, (HttpServletResponse) response);
+  }
+
+  /**
+   * Relies on the Fetch Metadata sent by browsers, else on the Origin or Referer headers. Requests without any of them
+   * are rejected.
+   */
+  static boolean isSameOrigin(HttpServletRequest request) {
+    String fetchSite = request.getHeader(SEC_FETCH_SITE_HEADER);
+    if (fetchSite != null) {
+      // "none" when the user opened the URL directly, from the address bar or a bookmark
+      return "same-origin".equals(fetchSite) || "none".equals(fetchSite);
+    }
+    String origin = request.getHeader(ORIGIN_HEADER);
+    if (origin == null || "null".equals(origin)) {
+      origin = request.getHeader(REFERER_HEADER);
+    }
+    URL source = parseUrl(origin);
+    URL target = parseUrl(request.getRequestURL().toString());
+    return source != null && target != null
+      && source.getProtocol().equalsIgnoreCase(target.getProtocol())
+      && source.getHost().equalsIgnoreCase(target.getHost())
+      && getPort(source) == getPort(target);
+  }
+
+  @CheckForNull
+  private static URL parseUrl(@Nullable String url) {
+    if (url == null) {
+      return null;
+    }
+    try {
+      return new URL(url);
+    } catch (MalformedURLException e) {
+      return null;
+    }
+  }
+
+  private static int getPort(URL url) {
+    return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+  }
+
+  @Override
+  public void destroy() {
+    // Nothing to do
+  }
+
+  private synchronized SamlLogoutHandler logoutHandler() {
+    if (logoutHandler == null) {
+      logoutHandler = new SamlLogoutHandler(samlSettings, credentials, requestSigner, sessionRegistry);
+    }
+    return logoutHandler;
+  }
+}
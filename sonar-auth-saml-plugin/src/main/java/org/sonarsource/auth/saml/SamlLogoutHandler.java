@@ -0,0 +1,171 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import com.onelogin.saml2.http.HttpRequest;
+import com.onelogin.saml2.logout.LogoutRequest;
+import com.onelogin.saml2.logout.LogoutResponse;
+import com.onelogin.saml2.servlet.ServletUtils;
+import com.onelogin.saml2.settings.Saml2Settings;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarsource.auth.saml.SamlSessionRegistry.SamlSession;
+
+/**
+ * Part of the single logout relying on onelogin. Like {@link SamlAuthenticator}, it's only loaded once single logout is used.
+ */
+final class SamlLogoutHandler {
+
+  private static final Logger LOGGER = Loggers.get(SamlLogoutHandler.class);
+
+  static final String SAML_REQUEST = "SAMLRequest";
+  static final String SAML_RESPONSE = "SAMLResponse";
+  private static final String RELAY_STATE = "RelayState";
+
+  private final SamlSettings samlSettings;
+  private final SamlCredentials credentials;
+  private final SamlRequestSigner requestSigner;
+  private final SamlSessionRegistry sessionRegistry;
+
+  SamlLogoutHandler(SamlSettings samlSettings, SamlCredentials credentials, SamlRequestSigner requestSigner, SamlSessionRegistry sessionRegistry) {
+    this.samlSettings = samlSettings;
+    this.credentials = credentials;
+    this.requestSigner = requestSigner;
+    this.sessionRegistry = sessionRegistry;
+  }
+
+  void logout(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (request.getParameter(SAML_REQUEST) != null) {
+      processLogoutRequest(request, response);
+    } else if (request.getParameter(SAML_RESPONSE) != null) {
+      processLogoutResponse(request, response);
+    } else {
+      startLogout(request, response);
+    }
+  }
+
+  /**
+   * SP-initiated logout : the session is terminated, then the user is redirected to the identity provider.
+   */
+  private void startLogout(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String handle = SamlSessionCookies.getHandle(request);
+    SamlSession session = handle == null ? null : sessionRegistry.get(handle);
+    if (handle != null) {
+      sessionRegistry.remove(handle);
+    }
+    SamlSessionCookies.clear(request, response);
+    Optional<String> logoutUrl = samlSettings.getLogoutUrl();
+    if (session == null || !logoutUrl.isPresent()) {
+      response.sendRedirect(getHomeUrl(request));
+      return;
+    }
+    try {
+      LogoutRequest logoutRequest = new LogoutRequest(createSettings(), null, session.getNameId(), session.getSessionIndex());
+      redirect(response, logoutUrl.get(), SAML_REQUEST, logoutRequest.getEncodedLogoutRequest(), null);
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to create SAML logout request", e);
+    }
+  }
+
+  /**
+   * IdP-initiated logout : the targeted sessions are revoked, then the identity provider is answered.
+   */
+  private void processLogoutRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    Saml2Settings settings = createSettings();
+    // Anybody could otherwise terminate the sessions of any user
+    settings.setWantMessagesSigned(true);
+    HttpRequest httpRequest = ServletUtils.makeHttpRequest(request);
+    LogoutRequest logoutRequest;
+    String nameId;
+    List<String> sessionIndexes;
+    try {
+      logoutRequest = new LogoutRequest(settings, httpRequest);
+      if (!logoutRequest.isValid()) {
+        LOGGER.warn("SAML logout request rejected : {}", logoutRequest.getError());
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid SAML logout request");
+        return;
+      }
+      String xml = logoutRequest.getLogoutRequestXml();
+      nameId = LogoutRequest.getNameId(xml, credentials.getServiceProviderPrivateKey());
+      sessionIndexes = LogoutRequest.getSessionIndexes(xml);
+    } catch (Exception e) {
+      LOGGER.warn("SAML logout request rejected", e);
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid SAML logout request");
+      return;
+    }
+    int revoked = sessionRegistry.revoke(nameId, sessionIndexes);
+    LOGGER.debug("{} session(s) of {} revoked by the identity provider", revoked, nameId);
+
+    // The request is usually sent by the browser of the user, whose session can be terminated right now
+    String handle = SamlSessionCookies.getHandle(request);
+    if (handle != null && sessionRegistry.isRevoked(handle)) {
+      sessionRegistry.remove(handle);
+      SamlSessionCookies.clear(request, response);
+    }
+    Optional<String> logoutUrl = samlSettings.getLogoutUrl();
+    if (!logoutUrl.isPresent()) {
+      response.sendRedirect(getHomeUrl(request));
+      return;
+    }
+    LogoutResponse logoutResponse = new LogoutResponse(settings, httpRequest);
+    logoutResponse.build(logoutRequest.getId());
+    redirect(response, logoutUrl.get(), SAML_RESPONSE, logoutResponse.getEncodedLogoutResponse(), request.getParameter(RELAY_STATE));
+  }
+
+  /**
+   * End of the SP-initiated logout : the session has already been terminated, the user is sent back to SonarQube.
+   */
+  private void processLogoutResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    LogoutResponse logoutResponse = new LogoutResponse(createSettings(), ServletUtils.makeHttpRequest(request));
+    if (!logoutResponse.isValid()) {
+      LOGGER.warn("SAML logout response rejected : {}", logoutResponse.getError());
+    }
+    response.sendRedirect(getHomeUrl(request));
+  }
+
+  private void redirect(HttpServletResponse response, String url, String parameter, String encodedMessage, @Nullable String relayState) throws IOException {
+    if (samlSettings.signAuthnRequests()) {
+      response.sendRedirect(requestSigner.buildSignedRedirectUrl(url, parameter, encodedMessage, relayState));
+      return;
+    }
+    Map<String, String> parameters = new LinkedHashMap<>();
+    parameters.put(parameter, encodedMessage);
+    if (relayState != null) {
+      parameters.put(RELAY_STATE, relayState);
+    }
+    ServletUtils.sendRedirect(response, url, parameters);
+  }
+
+  private Saml2Settings createSettings() {
+    return Saml2SettingsFactory.create(samlSettings, credentials, samlSettings.getDefaultIdp(), null);
+  }
+
+  private static String getHomeUrl(HttpServletRequest request) {
+    return request.getContextPath() + "/";
+  }
+}
@@ -0,0 +1,377 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import com.onelogin.saml2.authn.SamlResponse;
+import com.onelogin.saml2.http.HttpRequest;
+import com.onelogin.saml2.settings.Saml2Settings;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.joda.time.DateTimeUtils;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.text.JsonWriter;
+
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+
+/**
+ * Verifies captured SAML responses offline, with the settings of a SonarQube server, to find out which of them fail the
+ * validation done at login, and why. Responses go through the {@link SamlValidationPipeline}, the onelogin validation
+ * and the mapping of the login, in parallel on a fork-join pool. The input is streamed, see {@link SamlCapturedResponses}.
+ * <p>
+ * A verdict is printed as a JSON line for each response, in the order of the input, followed by the aggregated timings.
+ * With {@code --repeat}, the input is verified several times and only the last round prints verdicts, so that the first
+ * rounds are a warm-up when it's used as a benchmark.
+ * <p>
+ * Usage, with the plugin jar and the sonar-plugin-api jar in the classpath :
+ * {@code java org.sonarsource.auth.saml.SamlOfflineVerifier [options] <settings.properties> <directory|file>}
+ */
+final class SamlOfflineVerifier {
+
+  static final String ATTRIBUTE_MAPPING = "ATTRIBUTE_MAPPING";
+  static final String INPUT = "INPUT";
+  static final String ERROR = "ERROR";
+
+  private static final String USAGE = "Usage: SamlOfflineVerifier [--threads <count>] [--callback-url <url>] [--at <date>] [--repeat <count>] [--quiet]"
+    + " <settings.properties> <directory|file>";
+  private static final String CALLBACK_PATH = "/oauth2/callback/saml";
+  // Responses submitted to the pool and not output yet, per thread of the pool
+  private static final int PENDING_PER_THREAD = 4;
+
+  private final SamlSettings samlSettings;
+  private final SamlCredentials credentials;
+  private final SamlValidationPipeline validationPipeline;
+  private final SamlUserMapping userMapping;
+  private final String callbackUrl;
+  private final int parallelism;
+
+  SamlOfflineVerifier(SamlSettings samlSettings, String callbackUrl, int parallelism, System2 system2) {
+    this.samlSettings = samlSettings;
+    this.credentials = new SamlCredentials(samlSettings);
+    this.validationPipeline = new SamlValidationPipeline(samlSettings, new SamlRequestTracker(system2), new SamlIdpDiscovery(samlSettings, system2),
+      credentials, new SamlSignatureVerifier(samlSettings), new SamlLoginFailures(), new SamlReplayStore(samlSettings, system2), system2);
+    this.userMapping = SamlUserMapping.compile(samlSettings);
+    this.callbackUrl = callbackUrl;
+    this.parallelism = parallelism;
+  }
+
+  public static void main(String[] args) {
+    System.exit(run(args, System.out, System.err));
+  }
+
+  /**
+   * @return the exit code : 0 if all responses are valid, 1 if some are rejected, 2 if the verification can't be done
+   */
+  static int run(String[] args, PrintStream out, PrintStream err) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    String callbackUrl = null;
+    Long at = null;
+    int repeat = 1;
+    boolean quiet = false;
+    List<String> paths = new ArrayList<>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--threads":
+            threads = Integer.parseInt(value(args, ++i));
+            break;
+          case "--callback-url":
+            callbackUrl = value(args, ++i);
+            break;
+          case "--at":
+            at = OffsetDateTime.parse(value(args, ++i)).toInstant().toEpochMilli();
+            break;
+          case "--repeat":
+            repeat = Integer.parseInt(value(args, ++i));
+            break;
+          case "--quiet":
+            quiet = true;
+            break;
+          default:
+            paths.add(args[i]);
+        }
+      }
+    } catch (IllegalArgumentException | DateTimeParseException e) {
+      err.println(e.getMessage());
+      paths.clear();
+    }
+    if (paths.size() != 2 || threads < 1 || repeat < 1) {
+      err.println(USAGE);
+      return 2;
+    }
+    try {
+      Properties properties = loadProperties(Paths.get(paths.get(0)));
+      if (callbackUrl == null) {
+        callbackUrl = properties.getProperty("sonar.core.serverBaseURL", "http://localhost:9000") + CALLBACK_PATH;
+      }
+      SamlOfflineVerifier verifier = new SamlOfflineVerifier(newSettings(properties), callbackUrl, threads, newSystem2(at));
+      boolean printVerdicts = !quiet;
+      Summary summary = null;
+      for (int round = 1; round <= repeat; round++) {
+        boolean lastRound = round == repeat;
+        summary = verifier.verifyAll(Paths.get(paths.get(1)), verdict -> {
+          if (lastRound && printVerdicts) {
+            out.println(verdict.toJson());
+          }
+        });
+        err.println((repeat > 1 ? ("Round " + round + ": ") : "") + summary.format());
+      }
+      return summary.getRejectedCount() == 0 ? 0 : 1;
+    } catch (IOException | RuntimeException e) {
+      err.println("Fail to verify SAML responses: " + e.getMessage());
+      return 2;
+    } finally {
+      if (at != null) {
+        DateTimeUtils.setCurrentMillisSystem();
+      }
+    }
+  }
+
+  Summary verifyAll(Path input, Consumer<Verdict> output) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    Deque<ForkJoinTask<Verdict>> pending = new ArrayDeque<>();
+    Summary summary = new Summary(parallelism);
+    long start = System.nanoTime();
+    try {
+      SamlCapturedResponses.read(input, captured -> {
+        pending.add(pool.submit(() -> verify(captured)));
+        // Verdicts are output in the order of the input, so only the oldest pending response is waited for
+        if (pending.size() >= parallelism * PENDING_PER_THREAD) {
+          complete(pending.remove().join(), summary, output);
+        }
+      });
+      while (!pending.isEmpty()) {
+        complete(pending.remove().join(), summary, output);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    summary.elapsedNanos = System.nanoTime() - start;
+    return summary;
+  }
+
+  Verdict verify(SamlCapturedResponses.Captured captured) {
+    long start = System.nanoTime();
+    String encodedResponse = captured.getResponse();
+    if (encodedResponse == null) {
+      return new Verdict(captured.getId(), INPUT, captured.getError(), null, System.nanoTime() - start);
+    }
+    try {
+      SamlIdp idp = validationPipeline.validate(encodedResponse, callbackUrl).getIdp();
+      Saml2Settings saml2Settings = Saml2SettingsFactory.create(samlSettings, credentials, idp, callbackUrl);
+      SamlResponse samlResponse = new SamlResponse(saml2Settings,
+        new HttpRequest(callbackUrl, singletonMap(SamlValidationPipeline.SAML_RESPONSE_PARAMETER, singletonList(encodedResponse)), null));
+      if (!samlResponse.isValid()) {
+        String reason = samlResponse.getError();
+        return new Verdict(captured.getId(), SamlValidationPipeline.Stage.SIGNATURE.name(), reason != null && !reason.isEmpty() ? reason : "Unknown error reason",
+          null, System.nanoTime() - start);
+      }
+      Map<String, List<String>> attributes = samlResponse.getAttributes();
+      String rawLogin;
+      String login;
+      try {
+        rawLogin = userMapping.getRawLogin(attributes::get, samlResponse.getNameId());
+        login = userMapping.getLogin(attributes::get, samlResponse.getNameId());
+      } catch (NullPointerException | IllegalArgumentException e) {
+        return new Verdict(captured.getId(), ATTRIBUTE_MAPPING, e.getMessage(), null, System.nanoTime() - start);
+      }
+      validationPipeline.checkUserDomains(idp, encodedResponse, rawLogin, userMapping.getRawEmail(attributes::get));
+      return new Verdict(captured.getId(), null, null, login, System.nanoTime() - start);
+    } catch (SamlValidationPipeline.Rejection e) {
+      return new Verdict(captured.getId(), e.getStage().name(), e.getMessage(), null, System.nanoTime() - start);
+    } catch (Exception e) {
+      return new Verdict(captured.getId(), ERROR, e.getClass().getSimpleName() + ": " + e.getMessage(), null, System.nanoTime() - start);
+    }
+  }
+
+  private static void complete(Verdict verdict, Summary summary, Consumer<Verdict> output) {
+    summary.add(verdict);
+    output.accept(verdict);
+  }
+
+  private static String value(String[] args, int index) {
+    if (index >= args.length) {
+      throw new IllegalArgumentException("Missing value of " + args[index - 1]);
+    }
+    return args[index];
+  }
+
+  private static Properties loadProperties(Path file) throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    }
+    return properties;
+  }
+
+  static SamlSettings newSettings(Properties properties) {
+    MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+    settings.addProperties(properties);
+    // Responses don't answer requests sent by this process, and replays are not looked for across captures
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", false);
+    settings.setProperty("sonar.auth.saml.replayProtection", false);
+    return new SamlSettings(settings.asConfig());
+  }
+
+  /**
+   * @param at date at which responses are verified, instead of the current one, as captured responses expire quickly
+   */
+  private static System2 newSystem2(@Nullable Long at) {
+    if (at == null) {
+      return System2.INSTANCE;
+    }
+    // onelogin checks timestamps against the joda clock
+    DateTimeUtils.setCurrentMillisFixed(at);
+    return new System2() {
+      @Override
+      public long now() {
+        return at;
+      }
+    };
+  }
+
+  static class Verdict {
+    private final String id;
+    private final String stage;
+    private final String reason;
+    private final String login;
+    private final long elapsedNanos;
+
+    private Verdict(String id, @Nullable String stage, @Nullable String reason, @Nullable String login, long elapsedNanos) {
+      this.id = id;
+      this.stage = stage;
+      this.reason = reason;
+      this.login = login;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    boolean isValid() {
+      return stage == null;
+    }
+
+    /**
+     * @return the stage at which the response has been rejected, or null if it's valid
+     */
+    @CheckForNull
+    String getStage() {
+      return stage;
+    }
+
+    @CheckForNull
+    String getReason() {
+      return reason;
+    }
+
+    @CheckForNull
+    String getLogin() {
+      return login;
+    }
+
+    String toJson() {
+      StringWriter line = new StringWriter();
+      JsonWriter.of(line)
+        .beginObject()
+        .prop("id", id)
+        .prop("verdict", isValid() ? "VALID" : "REJECTED")
+        .prop("stage", stage)
+        .prop("reason", reason)
+        .prop("login", login)
+        .prop("timeMs", elapsedNanos / 1_000_000d)
+        .endObject()
+        .close();
+      return line.toString();
+    }
+  }
+
+  static class Summary {
+    private final int threads;
+    private final SamlLatencyHistogram latencies = new SamlLatencyHistogram();
+    private final Map<String, Long> rejectionsByStage = new TreeMap<>();
+    private long validCount;
+    private long elapsedNanos;
+
+    private Summary(int threads) {
+      this.threads = threads;
+    }
+
+    private void add(Verdict verdict) {
+      latencies.record(TimeUnit.NANOSECONDS.toMillis(verdict.elapsedNanos));
+      if (verdict.isValid()) {
+        validCount++;
+      } else {
+        rejectionsByStage.merge(verdict.stage, 1L, Long::sum);
+      }
+    }
+
+    long getValidCount() {
+      return validCount;
+    }
+
+    long getRejectedCount() {
+      return rejectionsByStage.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    Map<String, Long> getRejectionsByStage() {
+      return rejectionsByStage;
+    }
+
+    String format() {
+      long total = validCount + getRejectedCount();
+      double seconds = elapsedNanos / 1_000_000_000d;
+      StringBuilder result = new StringBuilder(String.format("%d responses verified in %d ms with %d threads (%.1f responses/s), %d valid",
+        total, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), threads, seconds > 0 ? (total / seconds) : 0d, validCount));
+      rejectionsByStage.forEach((stage, count) -> result.append(", ").append(count).append(" rejected at ").append(stage));
+      result.append(String.format("%nLatency: p50 <= %s, p90 <= %s, p99 <= %s",
+        formatBound(latencies.getPercentile(50)), formatBound(latencies.getPercentile(90)), formatBound(latencies.getPercentile(99))));
+      return result.toString();
+    }
+
+    private static String formatBound(long bound) {
+      return bound == Long.MAX_VALUE ? "more than 10 s" : (bound + " ms");
+    }
+  }
+}
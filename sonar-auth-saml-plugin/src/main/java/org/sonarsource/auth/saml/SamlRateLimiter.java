@@ -0,0 +1,146 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.http.HttpServletRequest;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+/**
+ * Per client token bucket, applied on the SAML callback before the response is even decoded.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the theoretical arrival time of the next request (GCRA), so that
+ * acquiring a token is a single compare-and-set. A bucket whose arrival time is in the past is full, and is therefore
+ * equivalent to a missing bucket : such idle buckets are evicted when the map reaches {@link #MAX_BUCKETS}. When all
+ * buckets are still in use, the clients without bucket share a single overflow bucket, so that filling the map does not
+ * disable the limit.
+ */
+@ServerSide
+public class SamlRateLimiter {
+
+  static final int MAX_BUCKETS = 10_000;
+
+  private static final long MICROS_PER_MINUTE = TimeUnit.MINUTES.toMicros(1);
+  private static final String UNKNOWN_CLIENT = "unknown";
+
+  private final SamlSettings samlSettings;
+  private final System2 system2;
+  private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+  private final AtomicLong overflowBucket = new AtomicLong();
+  private final AtomicBoolean evicting = new AtomicBoolean(false);
+  private final LongAdder rejections = new LongAdder();
+
+  public SamlRateLimiter(SamlSettings samlSettings, System2 system2) {
+    this.samlSettings = samlSettings;
+    this.system2 = system2;
+  }
+
+  /**
+   * @return false if the client of the request has exceeded its rate limit
+   */
+  boolean tryAcquire(HttpServletRequest request) {
+    int requestsPerMinute = samlSettings.getCallbackRateLimit();
+    if (requestsPerMinute <= 0) {
+      return true;
+    }
+    long interval = MICROS_PER_MINUTE / requestsPerMinute;
+    long capacity = interval * Math.max(1, samlSettings.getCallbackRateLimitBurst());
+    long now = TimeUnit.MILLISECONDS.toMicros(system2.now());
+
+    AtomicLong bucket = getBucket(getClientIp(request, samlSettings.getTrustedProxyCount()), now);
+    while (true) {
+      long arrival = bucket.get();
+      long nextArrival = Math.max(arrival, now) + interval;
+      if (nextArrival - now > capacity) {
+        rejections.increment();
+        return false;
+      }
+      if (bucket.compareAndSet(arrival, nextArrival)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Number of seconds a rejected client should wait before retrying
+   */
+  long getRetryAfterSeconds() {
+    int requestsPerMinute = Math.max(1, samlSettings.getCallbackRateLimit());
+    return Math.max(1, TimeUnit.MINUTES.toSeconds(1) / requestsPerMinute);
+  }
+
+  long getRejectionCount() {
+    return rejections.sum();
+  }
+
+  int getBucketCount() {
+    return buckets.size();
+  }
+
+  private AtomicLong getBucket(String clientIp, long now) {
+    AtomicLong bucket = buckets.get(clientIp);
+    if (bucket != null) {
+      return bucket;
+    }
+    if (buckets.size() >= MAX_BUCKETS) {
+      evictIdleBuckets(now);
+      if (buckets.size() >= MAX_BUCKETS) {
+        return overflowBucket;
+      }
+    }
+    return buckets.computeIfAbsent(clientIp, ip -> new AtomicLong(now));
+  }
+
+  private void evictIdleBuckets(long now) {
+    if (evicting.compareAndSet(false, true)) {
+      try {
+        buckets.values().removeIf(bucket -> bucket.get() <= now);
+      } finally {
+        evicting.set(false);
+      }
+    }
+  }
+
+  /**
+   * Only the addresses appended to 'X-Forwarded-For' by the trusted reverse proxies are used, as the client can send
+   * any value in this header : with n proxies, the address of the client is the n-th one starting from the right.
+   *
+   * @param trustedProxies number of reverse proxies in front of the server, 0 to ignore the header
+   */
+  static String getClientIp(HttpServletRequest request, int trustedProxies) {
+    String forwardedFor = trustedProxies > 0 ? request.getHeader("X-Forwarded-For") : null;
+    if (forwardedFor != null) {
+      String[] addresses = forwardedFor.split(",");
+      // When there are less addresses than proxies, the first one has still been added by a trusted proxy
+      String clientIp = addresses[Math.max(0, addresses.length - trustedProxies)].trim();
+      if (!clientIp.isEmpty()) {
+        return clientIp;
+      }
+    }
+    String remoteAddr = request.getRemoteAddr();
+    return remoteAddr == null ? UNKNOWN_CLIENT : remoteAddr;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Base64;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * SAML response received with the HTTP-Redirect binding. The signature is detached : it's computed on the query string
+ * itself, so it's verified on the raw parameter values, as received, without any XML canonicalization.
+ */
+final class SamlRedirectMessage {
+
+  private static final String SAML_RESPONSE = "SAMLResponse";
+  private static final String RELAY_STATE = "RelayState";
+  private static final String SIG_ALG = "SigAlg";
+  private static final String SIGNATURE = "Signature";
+
+  private String rawResponse;
+  private String rawRelayState;
+  private String rawSigAlg;
+  private String rawSignature;
+
+  private SamlRedirectMessage() {
+    // Use #parse
+  }
+
+  /**
+   * @return null if the query string has no SAML response
+   */
+  @CheckForNull
+  static SamlRedirectMessage parse(@Nullable String queryString) {
+    if (queryString == null || !queryString.contains(SAML_RESPONSE + "=")) {
+      return null;
+    }
+    SamlRedirectMessage message = new SamlRedirectMessage();
+    int start = 0;
+    while (start < queryString.length()) {
+      int end = queryString.indexOf('&', start);
+      if (end < 0) {
+        end = queryString.length();
+      }
+      int separator = queryString.indexOf('=', start);
+      if (separator > start && separator < end) {
+        message.setRawValue(queryString.substring(start, separator), queryString.substring(separator + 1, end));
+      }
+      start = end + 1;
+    }
+    return message.rawResponse == null ? null : message;
+  }
+
+  private void setRawValue(String name, String value) {
+    // The first value wins, as duplicated parameters are not allowed by the binding
+    if (SAML_RESPONSE.equals(name) && rawResponse == null) {
+      rawResponse = value;
+    } else if (RELAY_STATE.equals(name) && rawRelayState == null) {
+      rawRelayState = value;
+    } else if (SIG_ALG.equals(name) && rawSigAlg == null) {
+      rawSigAlg = value;
+    } else if (SIGNATURE.equals(name) && rawSignature == null) {
+      rawSignature = value;
+    }
+  }
+
+  boolean isSigned() {
+    return rawSigAlg != null && rawSignature != null;
+  }
+
+  /**
+   * @return the bytes covered by the signature, as defined by the HTTP-Redirect binding
+   */
+  byte[] getSignedContent() {
+    StringBuilder content = new StringBuilder(rawResponse.length() + 128)
+      .append(SAML_RESPONSE).append('=').append(rawResponse);
+    if (rawRelayState != null) {
+      content.append('&').append(RELAY_STATE).append('=').append(rawRelayState);
+    }
+    content.append('&').append(SIG_ALG).append('=').append(rawSigAlg);
+    return content.toString().getBytes(US_ASCII);
+  }
+
+  @CheckForNull
+  String getSigAlg() {
+    return rawSigAlg == null ? null : urlDecode(rawSigAlg);
+  }
+
+  /**
+   * @throws IllegalArgumentException if the signature is not valid Base64
+   */
+  @CheckForNull
+  byte[] getSignature() {
+    return rawSignature == null ? null : Base64.getMimeDecoder().decode(urlDecode(rawSignature));
+  }
+
+  /**
+   * @return the XML of the response, read from the buffer of the current thread
+   * @throws IllegalArgumentException if the response is not valid
+   */
+  InputStream inflateResponse() {
+    return PooledInflater.inflate(Base64.getMimeDecoder().decode(urlDecode(rawResponse)));
+  }
+
+  private static String urlDecode(String value) {
+    try {
+      return URLDecoder.decode(value, UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Bloom filter in front of the {@link SamlReplayStore}, answering "not seen" for most new assertion IDs, so that only
+ * possible replays are looked up in the hash table.
+ * <p>
+ * The filter is blocked : the bits of a key are all in the same block of 512 bits, so a lookup reads a single cache line
+ * per generation. Its memory is fixed, sized for the number of entries of the store and the expected false-positive
+ * rate. It's made of two generations, rotated every time window : a key is found during at least one window after having
+ * been added. When a key expires later than that, the answers of the filter are not trusted until it expires.
+ * <p>
+ * The length of the window is read again when a rotation is due, so that a change of the max lifetime of the assertions
+ * is applied without restart. When the window is shortened, the answers are not trusted until the keys added with the
+ * previous window have expired.
+ */
+final class SamlReplayFilter {
+
+  private static final int BLOCK_BITS = 512;
+  private static final int BLOCK_LONGS = BLOCK_BITS / Long.SIZE;
+  private static final long SEED = 0x9e3779b97f4a7c15L;
+
+  private final LongSupplier windowSupplier;
+  private final int blockMask;
+  private final int hashCount;
+  private long windowMs;
+  private long[] current;
+  private long[] previous;
+  private long currentStart;
+  private long untrustedUntil;
+
+  /**
+   * @param windowMs max lifetime of the assertions, in milliseconds
+   */
+  SamlReplayFilter(int expectedKeys, double falsePositiveRate, long windowMs, long now) {
+    this(expectedKeys, falsePositiveRate, () -> windowMs, now);
+  }
+
+  /**
+   * @param windowSupplier max lifetime of the assertions, in milliseconds, called at creation and when a rotation is due
+   */
+  SamlReplayFilter(int expectedKeys, double falsePositiveRate, LongSupplier windowSupplier, long now) {
+    this.windowSupplier = windowSupplier;
+    this.windowMs = windowSupplier.getAsLong();
+    double ln2 = Math.log(2);
+    long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+    int minBlocks = (int) Math.max(1, (bits + BLOCK_BITS - 1) / BLOCK_BITS);
+    int blocks = Integer.highestOneBit(minBlocks) == minBlocks ? minBlocks : (Integer.highestOneBit(minBlocks) << 1);
+    this.blockMask = blocks - 1;
+    this.hashCount = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / ln2));
+    this.current = new long[blocks * BLOCK_LONGS];
+    this.previous = new long[blocks * BLOCK_LONGS];
+    this.currentStart = now;
+  }
+
+  /**
+   * @return false if the key has definitely not been added during the last time window
+   */
+  boolean mightContain(long key, long now) {
+    rotate(now);
+    if (now < untrustedUntil) {
+      return true;
+    }
+    long hash = SamlReplayStore.mix(key ^ SEED);
+    return contains(current, hash) || contains(previous, hash);
+  }
+
+  void add(long key, long expiresAt, long now) {
+    rotate(now);
+    long hash = SamlReplayStore.mix(key ^ SEED);
+    int block = blockOf(hash);
+    for (int i = 0; i < hashCount; i++) {
+      int bit = bitOf(hash, i);
+      current[block + (bit >>> 6)] |= 1L << bit;
+    }
+    if (expiresAt > now + windowMs) {
+      untrustedUntil = Math.max(untrustedUntil, expiresAt);
+    }
+  }
+
+  int getHashCount() {
+    return hashCount;
+  }
+
+  long getSizeInBytes() {
+    return 2L * current.length * Long.BYTES;
+  }
+
+  private boolean contains(long[] bits, long hash) {
+    int block = blockOf(hash);
+    for (int i = 0; i < hashCount; i++) {
+      int bit = bitOf(hash, i);
+      if ((bits[block + (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The block is selected by the high bits of the hash, and the bits in the block by double hashing on the low bits
+   */
+  private int blockOf(long hash) {
+    return ((int) (hash >>> 40) & blockMask) * BLOCK_LONGS;
+  }
+
+  private static int bitOf(long hash, int index) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 20) | 1;
+    return (h1 + index * h2) & (BLOCK_BITS - 1);
+  }
+
+  private void rotate(long now) {
+    if (now < currentStart + windowMs) {
+      return;
+    }
+    long newWindowMs = windowSupplier.getAsLong();
+    if (newWindowMs < windowMs) {
+      // Keys added with the previous window may be removed before they expire
+      untrustedUntil = Math.max(untrustedUntil, now + windowMs);
+    }
+    windowMs = newWindowMs;
+    if (now < currentStart + windowMs) {
+      return;
+    }
+    long[] oldest = previous;
+    Arrays.fill(oldest, 0L);
+    if (now < currentStart + 2 * windowMs) {
+      previous = current;
+    } else {
+      Arrays.fill(current, 0L);
+      previous = current;
+    }
+    current = oldest;
+    currentStart = now;
+  }
+}
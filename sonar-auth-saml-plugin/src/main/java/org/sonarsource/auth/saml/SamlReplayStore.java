@@ -0,0 +1,267 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * IDs of the assertions already used to log in on this node, kept until the assertions expire, so that a captured
+ * assertion can't be replayed, even after a restart of the node.
+ * <p>
+ * IDs are stored by their 64-bit hash in an open-addressing hash table, in a memory-mapped file : once the file is
+ * mapped, lookups and inserts are only memory accesses, the pages being written back by the operating system. Expired
+ * entries are reused by new ones. An entry is looked for in a bounded window of slots : when all of them are used by
+ * entries not expired yet, the new assertion is refused rather than evicting one of them, as the evicted assertion could
+ * then be replayed.
+ * <p>
+ * Most assertions have never been used : they are first looked up in a {@link SamlReplayFilter}, and only the possible
+ * replays are looked up in the table.
+ * <p>
+ * Recovery at startup maps the file, which is recreated when its header doesn't match the expected layout, and adds
+ * the entries not expired yet to the filter.
+ */
+@ServerSide
+public class SamlReplayStore implements Startable {
+
+  static final int DEFAULT_CAPACITY = 1 << 16;
+
+  private static final Logger LOGGER = Loggers.get(SamlReplayStore.class);
+
+  private static final int MAGIC = 0x53414d52;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int SLOT_SIZE = 16;
+  private static final int MAX_PROBES = 32;
+  private static final long EMPTY = 0L;
+
+  private final SamlSettings samlSettings;
+  private final System2 system2;
+  private final int capacity;
+  private final LongAdder saturations = new LongAdder();
+  private final LongAdder tableLookups = new LongAdder();
+  private MappedByteBuffer table;
+  private SamlReplayFilter filter;
+
+  public SamlReplayStore(SamlSettings samlSettings, System2 system2) {
+    this(samlSettings, system2, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity number of slots, a power of 2
+   */
+  SamlReplayStore(SamlSettings samlSettings, System2 system2, int capacity) {
+    this.samlSettings = samlSettings;
+    this.system2 = system2;
+    this.capacity = capacity;
+  }
+
+  @Override
+  public void start() {
+    if (samlSettings.isReplayProtectionEnabled()) {
+      open();
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (table != null) {
+      table.force();
+      table = null;
+      filter = null;
+    }
+  }
+
+  enum Usage {
+    FIRST_USE,
+    REPLAY,
+    // The assertion can't be recorded, all the slots where it could be stored are used by assertions not expired yet
+    STORE_FULL
+  }
+
+  /**
+   * Records the use of an assertion.
+   *
+   * @param expiresAt date in milliseconds after which the assertion is no longer accepted anyway
+   * @return {@link Usage#FIRST_USE} if the assertion has been recorded, or if replay protection is disabled
+   */
+  Usage markUsed(String assertionId, long expiresAt) {
+    if (!samlSettings.isReplayProtectionEnabled()) {
+      return Usage.FIRST_USE;
+    }
+    return markUsed(keyOf(assertionId), expiresAt, system2.now());
+  }
+
+  /**
+   * @return the number of assertions refused because the store was full
+   */
+  long getSaturationCount() {
+    return saturations.sum();
+  }
+
+  /**
+   * @return the number of assertions looked up in the table, because the filter reported them as possibly used
+   */
+  long getTableLookupCount() {
+    return tableLookups.sum();
+  }
+
+  private synchronized Usage markUsed(long key, long expiresAt, long now) {
+    MappedByteBuffer buffer = open();
+    if (filter.mightContain(key, now)) {
+      tableLookups.increment();
+      if (contains(buffer, key, now)) {
+        return Usage.REPLAY;
+      }
+    }
+    if (!insert(buffer, key, expiresAt, now)) {
+      saturations.increment();
+      LOGGER.warn("The SAML replay store {} is full, an assertion has been refused as it could not be recorded", samlSettings.getReplayStoreFile());
+      return Usage.STORE_FULL;
+    }
+    filter.add(key, expiresAt, now);
+    return Usage.FIRST_USE;
+  }
+
+  private boolean contains(MappedByteBuffer buffer, long key, long now) {
+    int start = firstSlot(key);
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int slot = (start + probe) & (capacity - 1);
+      long slotKey = buffer.getLong(offset(slot));
+      if (slotKey == EMPTY) {
+        // Slots are never emptied, and a key is inserted in the first available slot, so it can't be found further
+        return false;
+      }
+      if (slotKey == key && buffer.getLong(offset(slot) + 8) > now) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Inserts a key which is not in the table, in the first empty or expired slot
+   *
+   * @return false if no slot is available
+   */
+  private boolean insert(MappedByteBuffer buffer, long key, long expiresAt, long now) {
+    int start = firstSlot(key);
+    int target = -1;
+    for (int probe = 0; probe < MAX_PROBES && target < 0; probe++) {
+      int slot = (start + probe) & (capacity - 1);
+      if (buffer.getLong(offset(slot)) == EMPTY || buffer.getLong(offset(slot) + 8) <= now) {
+        target = slot;
+      }
+    }
+    if (target < 0) {
+      return false;
+    }
+    // The expiry is written first, so that a slot interrupted by a crash never gives the new key the expiry of the replaced entry
+    buffer.putLong(offset(target) + 8, expiresAt);
+    buffer.putLong(offset(target), key);
+    return true;
+  }
+
+  private synchronized MappedByteBuffer open() {
+    if (table == null) {
+      Path file = samlSettings.getReplayStoreFile();
+      try {
+        table = map(file);
+      } catch (IOException e) {
+        throw new IllegalStateException("Fail to open the SAML replay store " + file, e);
+      }
+      filter = loadFilter(table, system2.now());
+    }
+    return table;
+  }
+
+  private SamlReplayFilter loadFilter(MappedByteBuffer buffer, long now) {
+    SamlReplayFilter loaded = new SamlReplayFilter(capacity, samlSettings.getReplayFilterFalsePositiveRate(),
+      samlSettings::getMaxAssertionLifetimeMs, now);
+    for (int slot = 0; slot < capacity; slot++) {
+      long key = buffer.getLong(offset(slot));
+      long expiresAt = buffer.getLong(offset(slot) + 8);
+      if (key != EMPTY && expiresAt > now) {
+        loaded.add(key, expiresAt, now);
+      }
+    }
+    return loaded;
+  }
+
+  private MappedByteBuffer map(Path file) throws IOException {
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      boolean valid = channel.size() == size;
+      if (channel.size() > size) {
+        channel.truncate(size);
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      if (!valid || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != capacity) {
+        LOGGER.info("Initialize the SAML replay store {}", file);
+        for (long i = 0; i < size; i += 8) {
+          buffer.putLong((int) i, 0L);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, capacity);
+        buffer.force();
+      }
+      // The mapping stays valid once the channel is closed
+      return buffer;
+    }
+  }
+
+  private static int offset(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  private static long keyOf(String assertionId) {
+    long key = SamlLoginFailures.hash(assertionId);
+    return key == EMPTY ? 1L : key;
+  }
+
+  private int firstSlot(long key) {
+    return (int) mix(key) & (capacity - 1);
+  }
+
+  /**
+   * Finalizer of MurmurHash3, so that all bits of the hash are used to select slots
+   */
+  static long mix(long hash) {
+    long h = hash;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
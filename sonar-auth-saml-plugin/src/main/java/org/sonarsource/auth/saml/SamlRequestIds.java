@@ -0,0 +1,63 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Generates the IDs of the authentication requests. Each thread has its own random generator, seeded once from the
+ * shared {@link SecureRandom} of the JVM, so that generating an ID never waits for another thread or for entropy.
+ */
+final class SamlRequestIds {
+
+  private static final int RANDOM_BYTES = 16;
+  private static final SecureRandom SEED_SOURCE = new SecureRandom();
+  private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(SamlRequestIds::newRandom);
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+  private SamlRequestIds() {
+    // Only static methods
+  }
+
+  /**
+   * @return a random ID of 128 bits, which is a valid XML NCName as required for the ID attribute of SAML messages
+   */
+  static String newId() {
+    byte[] bytes = new byte[RANDOM_BYTES];
+    RANDOMS.get().nextBytes(bytes);
+    // The URL safe base64 alphabet only contains NCName characters, but an NCName can't start with a digit or a dash
+    return '_' + ENCODER.encodeToString(bytes);
+  }
+
+  private static SecureRandom newRandom() {
+    try {
+      SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+      // Seeding before the first use prevents the generator from seeding itself from the entropy source, which can block
+      byte[] seed = new byte[32];
+      SEED_SOURCE.nextBytes(seed);
+      random.setSeed(seed);
+      return random;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Fail to create random generator of request IDs", e);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import org.sonar.api.server.ServerSide;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Signs the authentication requests sent with the HTTP-Redirect binding. The signature is computed on the query string,
+ * as defined by the binding, with a {@link Signature} kept per thread and already initialized with the private key.
+ */
+@ServerSide
+public class SamlRequestSigner {
+
+  static final String SIGNATURE_ALGORITHM = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+  private static final String JCA_ALGORITHM = "SHA256withRSA";
+  private static final String ENCODED_SIGNATURE_ALGORITHM = urlEncode(SIGNATURE_ALGORITHM);
+
+  private final SamlSettings samlSettings;
+  private final SamlCredentials credentials;
+  private final ThreadLocal<KeyedSignature> signatures = new ThreadLocal<>();
+  private final LongAdder signatureCreations = new LongAdder();
+
+  public SamlRequestSigner(SamlSettings samlSettings, SamlCredentials credentials) {
+    this.samlSettings = samlSettings;
+    this.credentials = credentials;
+  }
+
+  /**
+   * @param encodedRequest the deflated and base64 encoded authentication request
+   * @return the URL to which the user must be redirected, with the SigAlg and Signature parameters
+   */
+  String buildSignedRedirectUrl(String ssoUrl, String encodedRequest, @Nullable String relayState) {
+    return buildSignedRedirectUrl(ssoUrl, "SAMLRequest", encodedRequest, relayState);
+  }
+
+  /**
+   * @param parameter SAMLRequest or SAMLResponse
+   * @param encodedMessage the deflated and base64 encoded message
+   * @return the URL to which the user must be redirected, with the SigAlg and Signature parameters
+   */
+  String buildSignedRedirectUrl(String url, String parameter, String encodedMessage, @Nullable String relayState) {
+    StringBuilder query = new StringBuilder(parameter).append('=').append(urlEncode(encodedMessage));
+    if (relayState != null) {
+      query.append("&RelayState=").append(urlEncode(relayState));
+    }
+    query.append("&SigAlg=").append(ENCODED_SIGNATURE_ALGORITHM);
+    byte[] signatureValue = sign(query.toString().getBytes(UTF_8));
+    return url + (url.contains("?") ? '&' : '?') + query + "&Signature=" + urlEncode(Base64.getEncoder().encodeToString(signatureValue));
+  }
+
+  long getSignatureCreationCount() {
+    return signatureCreations.sum();
+  }
+
+  private byte[] sign(byte[] content) {
+    PrivateKey privateKey = credentials.getServiceProviderPrivateKey();
+    if (privateKey == null) {
+      throw new IllegalStateException("The service provider private key is required to sign authentication requests");
+    }
+    try {
+      KeyedSignature signature = signatures.get();
+      if (signature == null || !signature.privateKey.equals(privateKey)) {
+        signature = new KeyedSignature(privateKey, newSignature(privateKey));
+        signatures.set(signature);
+      }
+      // After being signed, the signature is reset to the state it had after being initialized
+      signature.signature.update(content);
+      return signature.signature.sign();
+    } catch (GeneralSecurityException e) {
+      signatures.remove();
+      throw new IllegalStateException("Fail to sign authentication request", e);
+    }
+  }
+
+  private Signature newSignature(PrivateKey privateKey) throws GeneralSecurityException {
+    signatureCreations.increment();
+    Optional<String> provider = samlSettings.getSignatureProvider();
+    Signature signature = provider.isPresent() ? Signature.getInstance(JCA_ALGORITHM, provider.get()) : Signature.getInstance(JCA_ALGORITHM);
+    signature.initSign(privateKey);
+    return signature;
+  }
+
+  private static String urlEncode(String value) {
+    try {
+      return URLEncoder.encode(value, UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class KeyedSignature {
+    private final PrivateKey privateKey;
+    private final Signature signature;
+
+    private KeyedSignature(PrivateKey privateKey, Signature signature) {
+      this.privateKey = privateKey;
+      this.signature = signature;
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.CheckForNull;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+/**
+ * IDs of the AuthnRequests sent by this server which have not been answered yet, with the identity provider they were
+ * sent to. They are used to reject unsolicited or stale SAML responses by their InResponseTo attribute, and to verify the
+ * response with the identity provider chosen for the user rather than with the one claimed by the response.
+ * <p>
+ * IDs are stored in a {@link ConcurrentHashMap}, whose bins are locked independently, with the tick at which they expire.
+ * Expiration is done by a timing wheel : each slot holds the IDs expiring at a given tick, and is drained when the wheel
+ * reaches that tick. The number of outstanding IDs is bounded, new requests are not tracked when the bound is reached.
+ * <p>
+ * A response is first looked up with {@link #getProviderId(String)}, before its signature is verified, and the request is
+ * only consumed once the response is known to be issued by the identity provider : a forged response cannot cancel the
+ * login of a user.
+ */
+@ServerSide
+public class SamlRequestTracker {
+
+  static final long DEFAULT_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+  static final int DEFAULT_MAX_SIZE = 100_000;
+
+  private static final int WHEEL_SLOTS = 64;
+
+  private final System2 system2;
+  private final int maxSize;
+  private final long tickMs;
+  private final long ttlTicks;
+
+  private final ConcurrentMap<String, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final List<Queue<String>> wheel;
+  private final AtomicLong currentTick;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder overflows = new LongAdder();
+
+  public SamlRequestTracker(System2 system2) {
+    this(system2, DEFAULT_TTL_MS, DEFAULT_MAX_SIZE);
+  }
+
+  SamlRequestTracker(System2 system2, long ttlMs, int maxSize) {
+    this.system2 = system2;
+    this.maxSize = maxSize;
+    // The TTL must span less slots than the wheel has, so that a slot never holds IDs of two different ticks
+    this.tickMs = Math.max(1, ttlMs / (WHEEL_SLOTS - 1) + 1);
+    this.ttlTicks = Math.max(1, ttlMs / tickMs);
+    this.wheel = new ArrayList<>(WHEEL_SLOTS);
+    for (int i = 0; i < WHEEL_SLOTS; i++) {
+      wheel.add(new ConcurrentLinkedQueue<>());
+    }
+    this.currentTick = new AtomicLong(tick());
+  }
+
+  /**
+   * @param providerId the provider ID of the identity provider to which the request is sent
+   */
+  void add(String requestId, String providerId) {
+    long now = advance();
+    if (size.incrementAndGet() > maxSize) {
+      size.decrementAndGet();
+      overflows.increment();
+      return;
+    }
+    long expirationTick = now + ttlTicks;
+    if (pendingRequests.put(requestId, new PendingRequest(expirationTick, providerId)) != null) {
+      size.decrementAndGet();
+    }
+    wheel.get(slot(expirationTick)).add(requestId);
+  }
+
+  /**
+   * Looks up the request ID without removing it, hits and misses are counted here.
+   *
+   * @return the provider ID of the identity provider to which the request has been sent, or null if the request has not
+   * been sent by this server or has expired
+   */
+  @CheckForNull
+  String getProviderId(String requestId) {
+    long now = advance();
+    PendingRequest pendingRequest = pendingRequests.get(requestId);
+    if (pendingRequest == null || pendingRequest.expirationTick <= now) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return pendingRequest.providerId;
+  }
+
+  /**
+   * Removes the request ID, so that a second response to the same request is rejected.
+   *
+   * @return true if the request was still pending, false if it has expired or if another response has consumed it
+   */
+  boolean consume(String requestId) {
+    long now = advance();
+    PendingRequest pendingRequest = pendingRequests.remove(requestId);
+    if (pendingRequest == null) {
+      return false;
+    }
+    size.decrementAndGet();
+    return pendingRequest.expirationTick > now;
+  }
+
+  int size() {
+    return size.get();
+  }
+
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  long getMissCount() {
+    return misses.sum();
+  }
+
+  double getHitRate() {
+    long total = hits.sum() + misses.sum();
+    return total == 0 ? 0D : ((double) hits.sum() / total);
+  }
+
+  long getOverflowCount() {
+    return overflows.sum();
+  }
+
+  /**
+   * Moves the wheel up to the current tick, expiring the IDs of the slots passed over. Only one thread moves the wheel
+   * from a given tick, the other ones go on without waiting.
+   */
+  private long advance() {
+    long now = tick();
+    long tick = currentTick.get();
+    if (now - tick > WHEEL_SLOTS && currentTick.compareAndSet(tick, now - WHEEL_SLOTS)) {
+      // After a long idle period, going once over every slot is enough
+      tick = now - WHEEL_SLOTS;
+    }
+    while (tick < now && currentTick.compareAndSet(tick, tick + 1)) {
+      tick++;
+      expire(tick);
+    }
+    return now;
+  }
+
+  private void expire(long tick) {
+    Queue<String> slot = wheel.get(slot(tick));
+    List<String> notExpired = new ArrayList<>(0);
+    String requestId;
+    while ((requestId = slot.poll()) != null) {
+      PendingRequest pendingRequest = pendingRequests.get(requestId);
+      if (pendingRequest == null) {
+        continue;
+      }
+      if (pendingRequest.expirationTick > tick) {
+        // Added concurrently by a thread which was already ahead of the wheel
+        notExpired.add(requestId);
+      } else if (pendingRequests.remove(requestId, pendingRequest)) {
+        size.decrementAndGet();
+      }
+    }
+    slot.addAll(notExpired);
+  }
+
+  private long tick() {
+    return system2.now() / tickMs;
+  }
+
+  private static int slot(long tick) {
+    return (int) (tick % WHEEL_SLOTS);
+  }
+
+  private static class PendingRequest {
+    private final long expirationTick;
+    private final String providerId;
+
+    private PendingRequest(long expirationTick, String providerId) {
+      this.expirationTick = expirationTick;
+      this.providerId = providerId;
+    }
+  }
+}
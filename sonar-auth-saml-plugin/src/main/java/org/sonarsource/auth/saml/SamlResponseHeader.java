@@ -0,0 +1,265 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Values of a SAML response which can be checked without building a DOM nor doing any cryptographic work.
+ * They are extracted with a single streaming pass, which stops as soon as the assertion conditions have been read.
+ * <p>
+ * Responses received with the HTTP-Redirect binding are not validated by onelogin, so they are read up to the end with
+ * {@link #parseFully(InputStream)}, which also extracts the subject and the attributes of the assertion.
+ */
+final class SamlResponseHeader {
+
+  static final String PROTOCOL_NS = "urn:oasis:names:tc:SAML:2.0:protocol";
+  static final String ASSERTION_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+
+  private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+  private String destination;
+  private String inResponseTo;
+  private String responseIssuer;
+  private String statusCode;
+  private String assertionId;
+  private String assertionIssuer;
+  private String notBefore;
+  private String notOnOrAfter;
+  private final List<String> audiences = new ArrayList<>();
+  private boolean encryptedAssertion;
+  private int assertionCount;
+  private String nameId;
+  private String subjectRecipient;
+  private String subjectNotOnOrAfter;
+  private String sessionIndex;
+  private final Map<String, List<String>> attributes = new HashMap<>();
+  private String currentAttribute;
+  private final boolean full;
+
+  private SamlResponseHeader(boolean full) {
+    this.full = full;
+  }
+
+  static SamlResponseHeader parse(InputStream xml) throws XMLStreamException {
+    return parse(xml, false);
+  }
+
+  static SamlResponseHeader parseFully(InputStream xml) throws XMLStreamException {
+    return parse(xml, true);
+  }
+
+  private static SamlResponseHeader parse(InputStream xml, boolean full) throws XMLStreamException {
+    SamlResponseHeader header = new SamlResponseHeader(full);
+    XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(xml);
+    try {
+      header.read(reader);
+    } finally {
+      reader.close();
+    }
+    return header;
+  }
+
+  private void read(XMLStreamReader reader) throws XMLStreamException {
+    reader.nextTag();
+    if (!PROTOCOL_NS.equals(reader.getNamespaceURI()) || !"Response".equals(reader.getLocalName())) {
+      throw new XMLStreamException("Root element is not a SAML Response");
+    }
+    destination = reader.getAttributeValue(null, "Destination");
+    inResponseTo = reader.getAttributeValue(null, "InResponseTo");
+
+    int depth = 1;
+    boolean inAssertion = false;
+    boolean inStatus = false;
+    while (depth > 0 && reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+        if (!full && isElement(reader, ASSERTION_NS, "Conditions")) {
+          // Nothing left to read
+          return;
+        }
+        inStatus &= depth > 1;
+        inAssertion &= depth > 1;
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+        if (depth == 2) {
+          inStatus = isElement(reader, PROTOCOL_NS, "Status");
+          inAssertion = isElement(reader, ASSERTION_NS, "Assertion");
+          assertionCount += inAssertion ? 1 : 0;
+          if (inAssertion && assertionId == null) {
+            assertionId = reader.getAttributeValue(null, "ID");
+          }
+          encryptedAssertion |= isElement(reader, ASSERTION_NS, "EncryptedAssertion");
+          if (isElement(reader, ASSERTION_NS, "Issuer")) {
+            responseIssuer = readText(reader);
+            depth--;
+          }
+        } else if (inStatus && depth == 3 && statusCode == null && isElement(reader, PROTOCOL_NS, "StatusCode")) {
+          statusCode = reader.getAttributeValue(null, "Value");
+        } else if (inAssertion) {
+          depth = readAssertionChild(reader, depth);
+        }
+      }
+    }
+  }
+
+  private int readAssertionChild(XMLStreamReader reader, int depth) throws XMLStreamException {
+    if (depth == 3 && isElement(reader, ASSERTION_NS, "Issuer")) {
+      assertionIssuer = readText(reader);
+      return depth - 1;
+    }
+    if (depth == 3 && isElement(reader, ASSERTION_NS, "Conditions")) {
+      notBefore = reader.getAttributeValue(null, "NotBefore");
+      notOnOrAfter = reader.getAttributeValue(null, "NotOnOrAfter");
+    } else if (depth == 5 && isElement(reader, ASSERTION_NS, "Audience")) {
+      audiences.add(readText(reader));
+      return depth - 1;
+    } else if (depth == 4 && isElement(reader, ASSERTION_NS, "NameID")) {
+      nameId = readText(reader);
+      return depth - 1;
+    } else if (depth == 5 && isElement(reader, ASSERTION_NS, "SubjectConfirmationData")) {
+      subjectRecipient = reader.getAttributeValue(null, "Recipient");
+      subjectNotOnOrAfter = reader.getAttributeValue(null, "NotOnOrAfter");
+    } else if (depth == 3 && isElement(reader, ASSERTION_NS, "AuthnStatement")) {
+      sessionIndex = reader.getAttributeValue(null, "SessionIndex");
+    } else if (depth == 4 && isElement(reader, ASSERTION_NS, "Attribute")) {
+      currentAttribute = reader.getAttributeValue(null, "Name");
+    } else if (depth == 5 && currentAttribute != null && isElement(reader, ASSERTION_NS, "AttributeValue")) {
+      attributes.computeIfAbsent(currentAttribute, name -> new ArrayList<>()).add(readText(reader));
+      return depth - 1;
+    }
+    return depth;
+  }
+
+  private static boolean isElement(XMLStreamReader reader, String namespace, String localName) {
+    return localName.equals(reader.getLocalName()) && namespace.equals(reader.getNamespaceURI());
+  }
+
+  private static String readText(XMLStreamReader reader) throws XMLStreamException {
+    return reader.getElementText().trim();
+  }
+
+  @CheckForNull
+  String getDestination() {
+    return destination;
+  }
+
+  @CheckForNull
+  String getInResponseTo() {
+    return inResponseTo;
+  }
+
+  @CheckForNull
+  String getResponseIssuer() {
+    return responseIssuer;
+  }
+
+  @CheckForNull
+  String getStatusCode() {
+    return statusCode;
+  }
+
+  @CheckForNull
+  String getAssertionId() {
+    return assertionId;
+  }
+
+  @CheckForNull
+  String getAssertionIssuer() {
+    return assertionIssuer;
+  }
+
+  @CheckForNull
+  String getNotBefore() {
+    return notBefore;
+  }
+
+  @CheckForNull
+  String getNotOnOrAfter() {
+    return notOnOrAfter;
+  }
+
+  List<String> getAudiences() {
+    return unmodifiableList(audiences);
+  }
+
+  boolean hasEncryptedAssertion() {
+    return encryptedAssertion;
+  }
+
+  int getAssertionCount() {
+    return assertionCount;
+  }
+
+  @CheckForNull
+  String getNameId() {
+    return nameId;
+  }
+
+  @CheckForNull
+  String getSubjectRecipient() {
+    return subjectRecipient;
+  }
+
+  @CheckForNull
+  String getSubjectNotOnOrAfter() {
+    return subjectNotOnOrAfter;
+  }
+
+  /**
+   * Only available when the response is parsed fully.
+   */
+  @CheckForNull
+  String getSessionIndex() {
+    return sessionIndex;
+  }
+
+  /**
+   * Only available when the response is parsed fully.
+   *
+   * @return the values of the attribute, or an empty collection if it's not defined
+   */
+  Collection<String> getAttribute(String name) {
+    List<String> values = attributes.get(name);
+    return values == null ? emptyList() : unmodifiableList(values);
+  }
+
+  private static XMLInputFactory createXmlInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    return factory;
+  }
+}
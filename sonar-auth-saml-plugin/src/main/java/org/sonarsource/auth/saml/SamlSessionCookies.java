@@ -0,0 +1,80 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Cookie holding the handle of the session in the {@link SamlSessionRegistry}, next to the cookies of the SonarQube session.
+ * As SonarQube sessions are stateless, a session is terminated by removing its cookies.
+ */
+final class SamlSessionCookies {
+
+  static final String SESSION_COOKIE = "SAML-SESSION";
+
+  // Cookies of the SonarQube session
+  private static final String[] SONARQUBE_COOKIES = {"JWT-SESSION", "XSRF-TOKEN"};
+
+  private SamlSessionCookies() {
+    // Only static methods
+  }
+
+  static void add(HttpServletRequest request, HttpServletResponse response, String handle, int maxAgeInSeconds) {
+    response.addCookie(newCookie(request, SESSION_COOKIE, handle, maxAgeInSeconds));
+  }
+
+  @CheckForNull
+  static String getHandle(HttpServletRequest request) {
+    Cookie[] cookies = request.getCookies();
+    if (cookies == null) {
+      return null;
+    }
+    for (Cookie cookie : cookies) {
+      if (SESSION_COOKIE.equals(cookie.getName())) {
+        return cookie.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes the cookies of both the SAML and the SonarQube sessions, which logs the user out.
+   */
+  static void clear(HttpServletRequest request, HttpServletResponse response) {
+    response.addCookie(newCookie(request, SESSION_COOKIE, null, 0));
+    for (String name : SONARQUBE_COOKIES) {
+      response.addCookie(newCookie(request, name, null, 0));
+    }
+  }
+
+  private static Cookie newCookie(HttpServletRequest request, String name, @Nullable String value, int maxAgeInSeconds) {
+    Cookie cookie = new Cookie(name, value);
+    String contextPath = request.getContextPath();
+    cookie.setPath(contextPath == null || contextPath.isEmpty() ? "/" : contextPath);
+    cookie.setHttpOnly(true);
+    cookie.setSecure(request.isSecure() || "https".equalsIgnoreCase(request.getHeader("X-Forwarded-Proto")));
+    cookie.setMaxAge(maxAgeInSeconds);
+    return cookie;
+  }
+}
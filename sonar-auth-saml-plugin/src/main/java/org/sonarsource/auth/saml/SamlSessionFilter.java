@@ -0,0 +1,89 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.IOException;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.web.ServletFilter;
+
+/**
+ * Terminates the sessions revoked by a LogoutRequest of the identity provider, on their next request. Requests are not
+ * even looked at as long as no session is revoked.
+ */
+@ServerSide
+public class SamlSessionFilter extends ServletFilter {
+
+  private final SamlSessionRegistry sessionRegistry;
+
+  public SamlSessionFilter(SamlSessionRegistry sessionRegistry) {
+    this.sessionRegistry = sessionRegistry;
+  }
+
+  @Override
+  public UrlPattern doGetPattern() {
+    return UrlPattern.builder()
+      .includes("/*")
+      .excludes(UrlPattern.Builder.staticResourcePatterns())
+      .build();
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) {
+    // Nothing to do
+  }
+
+  @Override
+  public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain) throws IOException, ServletException {
+    if (sessionRegistry.hasRevokedSessions() && servletRequest instanceof HttpServletRequest) {
+      HttpServletRequest request = (HttpServletRequest) servletRequest;
+      String handle = SamlSessionCookies.getHandle(request);
+      if (handle != null && sessionRegistry.isRevoked(handle)) {
+        terminate(request, (HttpServletResponse) servletResponse, handle);
+        return;
+      }
+    }
+    chain.doFilter(servletRequest, servletResponse);
+  }
+
+  private void terminate(HttpServletRequest request, HttpServletResponse response, String handle) throws IOException {
+    sessionRegistry.remove(handle);
+    SamlSessionCookies.clear(request, response);
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    if ("GET".equals(request.getMethod()) && !path.startsWith("/api/")) {
+      // The page is loaded again, without the session
+      String query = request.getQueryString();
+      response.sendRedirect(request.getRequestURI() + (query == null ? "" : ("?" + query)));
+    } else {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    // Nothing to do
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+/**
+ * Sessions opened with SAML, indexed by the NameID and the SessionIndex of their assertion, so that the sessions targeted
+ * by a LogoutRequest of the identity provider are found with constant time lookups.
+ * <p>
+ * A session is identified by a handle, stored in a cookie by {@link SamlSessionCookies}. Revoking sessions only flags
+ * them in a single pass, whatever their number : each of them is then terminated by {@link SamlSessionFilter} on its next
+ * request. Sessions expire with the SonarQube sessions, and their number is bounded, new sessions are not tracked when
+ * the bound is reached.
+ */
+@ServerSide
+public class SamlSessionRegistry {
+
+  static final int DEFAULT_MAX_SIZE = 100_000;
+
+  private static final long PURGE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+  private final SamlSettings samlSettings;
+  private final System2 system2;
+  private final int maxSize;
+
+  private final ConcurrentMap<String, SamlSession> sessions = new ConcurrentHashMap<>();
+  // Sets of handles are only accessed within the atomic operations of their map
+  private final ConcurrentMap<String, Set<String>> handlesByNameId = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Set<String>> handlesBySessionIndex = new ConcurrentHashMap<>();
+  private final AtomicInteger revokedSessions = new AtomicInteger();
+  private final AtomicLong nextPurge = new AtomicLong();
+  private final LongAdder overflows = new LongAdder();
+
+  public SamlSessionRegistry(SamlSettings samlSettings, System2 system2) {
+    this(samlSettings, system2, DEFAULT_MAX_SIZE);
+  }
+
+  SamlSessionRegistry(SamlSettings samlSettings, System2 system2, int maxSize) {
+    this.samlSettings = samlSettings;
+    this.system2 = system2;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return the handle of the new session, or null if the registry is full
+   */
+  @CheckForNull
+  String register(String nameId, @Nullable String sessionIndex) {
+    long now = system2.now();
+    purgeExpiredSessions(now);
+    if (sessions.size() >= maxSize) {
+      overflows.increment();
+      return null;
+    }
+    String handle = SamlRequestIds.newId();
+    SamlSession session = new SamlSession(handle, nameId, sessionIndex, now + TimeUnit.MINUTES.toMillis(samlSettings.getSessionTimeoutInMinutes()));
+    // Added under the lock of the NameID, so that a concurrent revocation of the NameID can't miss it
+    handlesByNameId.compute(nameId, (key, handles) -> {
+      Set<String> result = handles == null ? new HashSet<>() : handles;
+      result.add(handle);
+      sessions.put(handle, session);
+      return result;
+    });
+    if (sessionIndex != null) {
+      index(handlesBySessionIndex, sessionIndex, handle);
+    }
+    return handle;
+  }
+
+  @CheckForNull
+  SamlSession get(String handle) {
+    SamlSession session = sessions.get(handle);
+    return session == null || session.expiresAt <= system2.now() ? null : session;
+  }
+
+  /**
+   * Revokes the sessions of the NameID which have one of the session indexes, or all of them if no session index is given.
+   *
+   * @return the number of revoked sessions
+   */
+  int revoke(String nameId, Collection<String> sessionIndexes) {
+    List<SamlSession> targets = new ArrayList<>();
+    if (sessionIndexes.isEmpty()) {
+      handlesByNameId.computeIfPresent(nameId, (key, handles) -> {
+        handles.forEach(handle -> addSession(handle, targets));
+        return handles;
+      });
+    } else {
+      for (String sessionIndex : sessionIndexes) {
+        handlesBySessionIndex.computeIfPresent(sessionIndex, (key, handles) -> {
+          handles.forEach(handle -> addSession(handle, targets));
+          return handles;
+        });
+      }
+      targets.removeIf(session -> !session.nameId.equals(nameId));
+    }
+    int revoked = 0;
+    for (SamlSession session : targets) {
+      if (session.revoke()) {
+        revokedSessions.incrementAndGet();
+        revoked++;
+      }
+    }
+    return revoked;
+  }
+
+  boolean hasRevokedSessions() {
+    return revokedSessions.get() > 0;
+  }
+
+  boolean isRevoked(String handle) {
+    SamlSession session = sessions.get(handle);
+    return session != null && session.revoked;
+  }
+
+  void remove(String handle) {
+    SamlSession session = sessions.remove(handle);
+    if (session == null) {
+      return;
+    }
+    unindex(handlesByNameId, session.nameId, handle);
+    if (session.sessionIndex != null) {
+      unindex(handlesBySessionIndex, session.sessionIndex, handle);
+    }
+    if (session.markRemoved()) {
+      revokedSessions.decrementAndGet();
+    }
+  }
+
+  int size() {
+    return sessions.size();
+  }
+
+  long getOverflowCount() {
+    return overflows.sum();
+  }
+
+  private void addSession(String handle, List<SamlSession> targets) {
+    SamlSession session = sessions.get(handle);
+    if (session != null) {
+      targets.add(session);
+    }
+  }
+
+  /**
+   * Expired sessions are removed at most once per {@link #PURGE_INTERVAL_MS}, or as soon as the registry is full.
+   */
+  private void purgeExpiredSessions(long now) {
+    long next = nextPurge.get();
+    if ((now < next && sessions.size() < maxSize) || !nextPurge.compareAndSet(next, now + PURGE_INTERVAL_MS)) {
+      return;
+    }
+    for (SamlSession session : sessions.values()) {
+      if (session.expiresAt <= now) {
+        remove(session.handle);
+      }
+    }
+  }
+
+  private static void index(ConcurrentMap<String, Set<String>> index, String key, String handle) {
+    index.compute(key, (k, handles) -> {
+      Set<String> result = handles == null ? new HashSet<>() : handles;
+      result.add(handle);
+      return result;
+    });
+  }
+
+  private static void unindex(ConcurrentMap<String, Set<String>> index, String key, String handle) {
+    index.computeIfPresent(key, (k, handles) -> {
+      handles.remove(handle);
+      return handles.isEmpty() ? null : handles;
+    });
+  }
+
+  static final class SamlSession {
+    private final String handle;
+    private final String nameId;
+    private final String sessionIndex;
+    private final long expiresAt;
+    private volatile boolean revoked;
+    private boolean removed;
+
+    private SamlSession(String handle, String nameId, @Nullable String sessionIndex, long expiresAt) {
+      this.handle = handle;
+      this.nameId = nameId;
+      this.sessionIndex = sessionIndex;
+      this.expiresAt = expiresAt;
+    }
+
+    String getNameId() {
+      return nameId;
+    }
+
+    @CheckForNull
+    String getSessionIndex() {
+      return sessionIndex;
+    }
+
+    /**
+     * @return false if the session was already revoked or removed
+     */
+    private synchronized boolean revoke() {
+      if (revoked || removed) {
+        return false;
+      }
+      revoked = true;
+      return true;
+    }
+
+    /**
+     * @return true if the session was revoked
+     */
+    private synchronized boolean markRemoved() {
+      removed = true;
+      return revoked;
+    }
+  }
+}
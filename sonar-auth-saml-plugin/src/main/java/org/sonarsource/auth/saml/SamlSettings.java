@@ -19,15 +19,24 @@
  */
 package org.sonarsource.auth.saml;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import org.sonar.api.config.Configuration;
 import org.sonar.api.config.PropertyDefinition;
+import org.sonar.api.config.PropertyFieldDefinition;
 import org.sonar.api.server.ServerSide;
 
 import static java.lang.String.valueOf;
 import static org.sonar.api.PropertyType.BOOLEAN;
+import static org.sonar.api.PropertyType.FLOAT;
+import static org.sonar.api.PropertyType.INTEGER;
+import static org.sonar.api.PropertyType.PROPERTY_SET;
+import static org.sonar.api.PropertyType.TEXT;
 
 @ServerSide
 public class SamlSettings {
@@ -44,6 +53,42 @@ public class SamlSettings {
   private static final String USER_NAME_ATTRIBUTE = "sonar.auth.saml.user.name";
   private static final String USER_EMAIL_ATTRIBUTE = "sonar.auth.saml.user.email";
   private static final String GROUP_NAME_ATTRIBUTE = "sonar.auth.saml.group.name";
+  private static final String USER_LOGIN_TRANSFORMATIONS = "sonar.auth.saml.user.login.transformations";
+  private static final String USER_LOGIN_NAME_ID_FALLBACK = "sonar.auth.saml.user.login.nameIdFallback";
+  private static final String USER_NAME_TRANSFORMATIONS = "sonar.auth.saml.user.name.transformations";
+  private static final String USER_EMAIL_TRANSFORMATIONS = "sonar.auth.saml.user.email.transformations";
+  private static final String ADDITIONAL_IDPS = "sonar.auth.saml.additionalIdps";
+  private static final String IDP_DOMAINS_FIELD = "domains";
+  private static final String IDP_PROVIDER_ID_FIELD = "providerId";
+  private static final String IDP_LOGIN_URL_FIELD = "loginUrl";
+  private static final String IDP_CERTIFICATE_FIELD = "certificate";
+
+  private static final String CALLBACK_RATE_LIMIT = "sonar.auth.saml.callback.rateLimit";
+  private static final String CALLBACK_RATE_LIMIT_BURST = "sonar.auth.saml.callback.rateLimitBurst";
+  private static final String TRUSTED_PROXY_COUNT = "sonar.auth.saml.callback.trustedProxyCount";
+  private static final String REJECT_UNSOLICITED_RESPONSES = "sonar.auth.saml.rejectUnsolicitedResponses";
+  private static final String SIGNATURE_PROVIDER = "sonar.auth.saml.signature.provider";
+  private static final String SP_PRIVATE_KEY = "sonar.auth.saml.sp.privateKey.secured";
+  private static final String SIGN_AUTHN_REQUESTS = "sonar.auth.saml.signAuthnRequests";
+  private static final String GROUP_RESYNC_INTERVAL = "sonar.auth.saml.group.resyncInterval";
+  private static final String ARTIFACT_RESOLUTION_URL = "sonar.auth.saml.artifactResolutionUrl";
+  private static final String ARTIFACT_RESOLUTION_CONNECT_TIMEOUT = "sonar.auth.saml.artifactResolution.connectTimeout";
+  private static final String ARTIFACT_RESOLUTION_READ_TIMEOUT = "sonar.auth.saml.artifactResolution.readTimeout";
+  private static final String LOGOUT_URL = "sonar.auth.saml.logoutUrl";
+  private static final String AUDIT_FILE = "sonar.auth.saml.audit.file";
+  private static final String AUDIT_MAX_FILE_SIZE = "sonar.auth.saml.audit.maxFileSizeInMb";
+  private static final String AUDIT_MAX_FILES = "sonar.auth.saml.audit.maxFiles";
+  private static final String REPLAY_PROTECTION = "sonar.auth.saml.replayProtection";
+  private static final String MAX_ASSERTION_LIFETIME = "sonar.auth.saml.replayProtection.maxAssertionLifetime";
+  private static final String REPLAY_FILTER_FALSE_POSITIVE_RATE = "sonar.auth.saml.replayProtection.falsePositiveRate";
+  // Defined by SonarQube
+  private static final String SESSION_TIMEOUT_IN_MINUTES = "sonar.web.sessionTimeoutInMinutes";
+  private static final int DEFAULT_SESSION_TIMEOUT_IN_MINUTES = 3 * 24 * 60;
+  private static final String PATH_LOGS = "sonar.path.logs";
+  private static final String PATH_DATA = "sonar.path.data";
+
+  private static final String TRANSFORMATIONS_DESCRIPTION = "Transformations applied in order to the user %s : 'lowercase', 'uppercase', 'trim', " +
+    "'stripDomain' to remove the part starting with '@', or 'regex:<expression>' to keep the first group of the expression when it matches the whole value.";
 
   private static final String CATEGORY = "saml";
   private static final String SUBCATEGORY = "authentication";
@@ -90,6 +135,128 @@ public class SamlSettings {
     return configuration.get(GROUP_NAME_ATTRIBUTE);
   }
 
+  SamlIdp getDefaultIdp() {
+    return new SamlIdp(getProviderId(), getLoginUrl(), getCertificate(), "");
+  }
+
+  /**
+   * @return the additional identity providers, ignoring the ones which are not completely defined
+   */
+  List<SamlIdp> getAdditionalIdps() {
+    String[] indexes = configuration.getStringArray(ADDITIONAL_IDPS);
+    List<SamlIdp> idps = new ArrayList<>(indexes.length);
+    for (String index : indexes) {
+      String prefix = ADDITIONAL_IDPS + "." + index + ".";
+      Optional<String> providerId = configuration.get(prefix + IDP_PROVIDER_ID_FIELD);
+      Optional<String> loginUrl = configuration.get(prefix + IDP_LOGIN_URL_FIELD);
+      Optional<String> certificate = configuration.get(prefix + IDP_CERTIFICATE_FIELD);
+      Optional<String> domains = configuration.get(prefix + IDP_DOMAINS_FIELD);
+      if (providerId.isPresent() && loginUrl.isPresent() && certificate.isPresent() && domains.isPresent()) {
+        idps.add(new SamlIdp(providerId.get(), loginUrl.get(), certificate.get(), domains.get()));
+      }
+    }
+    return idps;
+  }
+
+  String[] getUserLoginTransformations() {
+    return configuration.getStringArray(USER_LOGIN_TRANSFORMATIONS);
+  }
+
+  boolean useNameIdAsLoginFallback() {
+    return configuration.getBoolean(USER_LOGIN_NAME_ID_FALLBACK).orElse(false);
+  }
+
+  String[] getUserNameTransformations() {
+    return configuration.getStringArray(USER_NAME_TRANSFORMATIONS);
+  }
+
+  String[] getUserEmailTransformations() {
+    return configuration.getStringArray(USER_EMAIL_TRANSFORMATIONS);
+  }
+
+  int getCallbackRateLimit() {
+    return configuration.getInt(CALLBACK_RATE_LIMIT).orElse(0);
+  }
+
+  int getCallbackRateLimitBurst() {
+    return configuration.getInt(CALLBACK_RATE_LIMIT_BURST).orElse(10);
+  }
+
+  int getTrustedProxyCount() {
+    return configuration.getInt(TRUSTED_PROXY_COUNT).orElse(0);
+  }
+
+  boolean rejectUnsolicitedResponses() {
+    return configuration.getBoolean(REJECT_UNSOLICITED_RESPONSES).orElse(false);
+  }
+
+  Optional<String> getSignatureProvider() {
+    return configuration.get(SIGNATURE_PROVIDER);
+  }
+
+  Optional<String> getServiceProviderPrivateKey() {
+    return configuration.get(SP_PRIVATE_KEY);
+  }
+
+  boolean signAuthnRequests() {
+    return configuration.getBoolean(SIGN_AUTHN_REQUESTS).orElse(false);
+  }
+
+  int getGroupResyncInterval() {
+    return configuration.getInt(GROUP_RESYNC_INTERVAL).orElse(0);
+  }
+
+  Optional<String> getArtifactResolutionUrl() {
+    return configuration.get(ARTIFACT_RESOLUTION_URL);
+  }
+
+  int getArtifactResolutionConnectTimeout() {
+    return configuration.getInt(ARTIFACT_RESOLUTION_CONNECT_TIMEOUT).orElse(2_000);
+  }
+
+  int getArtifactResolutionReadTimeout() {
+    return configuration.getInt(ARTIFACT_RESOLUTION_READ_TIMEOUT).orElse(5_000);
+  }
+
+  Optional<String> getLogoutUrl() {
+    return configuration.get(LOGOUT_URL);
+  }
+
+  /**
+   * @return the audit file, relative paths being resolved against the logs directory
+   */
+  Optional<Path> getAuditFile() {
+    return configuration.get(AUDIT_FILE).map(file -> Paths.get(configuration.get(PATH_LOGS).orElse("logs")).resolve(file));
+  }
+
+  long getAuditMaxFileSize() {
+    return configuration.getInt(AUDIT_MAX_FILE_SIZE).orElse(10) * 1024L * 1024L;
+  }
+
+  int getAuditMaxFiles() {
+    return configuration.getInt(AUDIT_MAX_FILES).orElse(5);
+  }
+
+  boolean isReplayProtectionEnabled() {
+    return configuration.getBoolean(REPLAY_PROTECTION).orElse(false);
+  }
+
+  long getMaxAssertionLifetimeMs() {
+    return TimeUnit.MINUTES.toMillis(configuration.getInt(MAX_ASSERTION_LIFETIME).orElse(60));
+  }
+
+  double getReplayFilterFalsePositiveRate() {
+    return configuration.getDouble(REPLAY_FILTER_FALSE_POSITIVE_RATE).orElse(0.01);
+  }
+
+  Path getReplayStoreFile() {
+    return Paths.get(configuration.get(PATH_DATA).orElse("data"), "saml", "replay-store.dat");
+  }
+
+  int getSessionTimeoutInMinutes() {
+    return configuration.getInt(SESSION_TIMEOUT_IN_MINUTES).orElse(DEFAULT_SESSION_TIMEOUT_IN_MINUTES);
+  }
+
   boolean isEnabled() {
     return configuration.getBoolean(ENABLED).orElse(false) &&
       configuration.get(PROVIDER_ID).isPresent() &&
@@ -157,7 +324,7 @@ public class SamlSettings {
         .build(),
       PropertyDefinition.builder(USER_NAME_ATTRIBUTE)
         .name("SAML user name attribute")
-        .description("Attribute defining the user name in SAML.")
+        .description("Attribute defining the user name in SAML, or a template combining several attributes, for instance '{givenName} {surname}'.")
         .category(CATEGORY)
         .subCategory(SUBCATEGORY)
         .index(8)
@@ -176,6 +343,227 @@ public class SamlSettings {
         .category(CATEGORY)
         .subCategory(SUBCATEGORY)
         .index(10)
+        .build(),
+      PropertyDefinition.builder(CALLBACK_RATE_LIMIT)
+        .name("Callback rate limit")
+        .description("Maximum number of SAML responses accepted per minute from a same client IP address. " +
+          "Behind reverse proxies, see 'Trusted proxy count'. Set to 0 to disable the limit.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(INTEGER)
+        .defaultValue(valueOf(0))
+        .index(11)
+        .build(),
+      PropertyDefinition.builder(CALLBACK_RATE_LIMIT_BURST)
+        .name("Callback rate limit burst")
+        .description("Number of SAML responses a same client IP address can send at once before the callback rate limit applies.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(INTEGER)
+        .defaultValue(valueOf(10))
+        .index(12)
+        .build(),
+      PropertyDefinition.builder(REJECT_UNSOLICITED_RESPONSES)
+        .name("Reject unsolicited responses")
+        .description("Reject SAML responses which do not answer an authentication request sent by this server during the last 5 minutes. " +
+          "When SonarQube runs as a cluster, the authentication of a user must start and end on the same node.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(BOOLEAN)
+        .defaultValue(valueOf(false))
+        .index(13)
+        .build(),
+      PropertyDefinition.builder(SIGNATURE_PROVIDER)
+        .name("Signature provider")
+        .description("Name of the Java security provider used to verify signatures, for instance 'SunRsaSign'. " +
+          "When empty, the first provider supporting the signature algorithm is used.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .index(14)
+        .build(),
+      PropertyDefinition.builder(SP_PRIVATE_KEY)
+        .name("Service provider private key")
+        .description("PKCS#8 RSA private key of SonarQube, used to decrypt the assertions encrypted by the identity provider and to sign authentication requests.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(TEXT)
+        .index(15)
+        .build(),
+      PropertyDefinition.builder(SIGN_AUTHN_REQUESTS)
+        .name("Sign authentication requests")
+        .description("Sign the authentication requests sent to the identity provider with the service provider private key, using RSA-SHA256.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(BOOLEAN)
+        .defaultValue(valueOf(false))
+        .index(16)
+        .build(),
+      PropertyDefinition.builder(GROUP_RESYNC_INTERVAL)
+        .name("Group re-synchronization interval")
+        .description("Number of minutes during which the groups of a user are not synchronized again when they are the same as on the previous login. " +
+          "Set to 0 to synchronize the groups on every login.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(INTEGER)
+        .defaultValue(valueOf(0))
+        .index(17)
+        .build(),
+      PropertyDefinition.builder(USER_LOGIN_TRANSFORMATIONS)
+        .name("SAML user login transformations")
+        .description(String.format(TRANSFORMATIONS_DESCRIPTION, "login"))
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .multiValues(true)
+        .index(18)
+        .build(),
+      PropertyDefinition.builder(USER_LOGIN_NAME_ID_FALLBACK)
+        .name("Use NameID as login fallback")
+        .description("Use the NameID of the SAML assertion as login when the login attribute is missing.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(BOOLEAN)
+        .defaultValue(valueOf(false))
+        .index(19)
+        .build(),
+      PropertyDefinition.builder(USER_NAME_TRANSFORMATIONS)
+        .name("SAML user name transformations")
+        .description(String.format(TRANSFORMATIONS_DESCRIPTION, "name"))
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .multiValues(true)
+        .index(20)
+        .build(),
+      PropertyDefinition.builder(USER_EMAIL_TRANSFORMATIONS)
+        .name("SAML user email transformations")
+        .description(String.format(TRANSFORMATIONS_DESCRIPTION, "email"))
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .multiValues(true)
+        .index(21)
+        .build(),
+      PropertyDefinition.builder(ADDITIONAL_IDPS)
+        .name("Additional identity providers")
+        .description("Identity providers to which users are sent according to the domain of their email, given by the 'login_hint' parameter " +
+          "of the authentication URL. Domains are comma separated, '*.example.com' matching all the sub-domains of example.com. " +
+          "Users whose domain doesn't match any of them are sent to the identity provider defined above. " +
+          "An identity provider can only authenticate the logins and emails of its domains, and logins without domain can only be authenticated " +
+          "by the identity provider defined above.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(PROPERTY_SET)
+        .fields(
+          PropertyFieldDefinition.build(IDP_DOMAINS_FIELD).name("Email domains").build(),
+          PropertyFieldDefinition.build(IDP_PROVIDER_ID_FIELD).name("Provider ID").build(),
+          PropertyFieldDefinition.build(IDP_LOGIN_URL_FIELD).name("SAML login url").build(),
+          PropertyFieldDefinition.build(IDP_CERTIFICATE_FIELD).name("Provider certificate").type(TEXT).build())
+        .index(22)
+        .build(),
+      PropertyDefinition.builder(ARTIFACT_RESOLUTION_URL)
+        .name("SAML artifact resolution url")
+        .description("URL of the artifact resolution service (SOAP binding) of the identity provider, used to resolve the artifacts " +
+          "received with the HTTP-Artifact binding. It must use https, plain http is only accepted on the loopback address.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .index(23)
+        .build(),
+      PropertyDefinition.builder(ARTIFACT_RESOLUTION_CONNECT_TIMEOUT)
+        .name("SAML artifact resolution connect timeout")
+        .description("Timeout in milliseconds to connect to the artifact resolution service.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(INTEGER)
+        .defaultValue(valueOf(2_000))
+        .index(24)
+        .build(),
+      PropertyDefinition.builder(ARTIFACT_RESOLUTION_READ_TIMEOUT)
+        .name("SAML artifact resolution read timeout")
+        .description("Timeout in milliseconds to read the response of the artifact resolution service.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(INTEGER)
+        .defaultValue(valueOf(5_000))
+        .index(25)
+        .build(),
+      PropertyDefinition.builder(LOGOUT_URL)
+        .name("SAML single logout url")
+        .description("URL of the single logout service (HTTP-Redirect binding) of the identity provider. When defined, logging out from " +
+          "/saml/logout also logs out from the identity provider, and the logout requests of the identity provider received on /saml/logout " +
+          "terminate the SonarQube sessions of the user. The sessions are only terminated on the node which received the logout " +
+          "request, when the browser of the user next reaches it : on a cluster, the other nodes keep accepting them, and the SonarQube " +
+          "session token itself stays valid until it expires. The logout from /saml/logout is only accepted when started from SonarQube.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .index(26)
+        .build(),
+      PropertyDefinition.builder(AUDIT_FILE)
+        .name("SAML audit file")
+        .description("Path of the file to which SAML authentications are appended, one JSON object per line, with the login, the " +
+          "identity provider, the groups and the outcome. Relative paths are resolved against the logs directory of SonarQube. " +
+          "Authentications are not audited when empty.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .index(27)
+        .build(),
+      PropertyDefinition.builder(AUDIT_MAX_FILE_SIZE)
+        .name("SAML audit file max size")
+        .description("Size in megabytes beyond which the audit file is rotated.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(INTEGER)
+        .defaultValue(valueOf(10))
+        .index(28)
+        .build(),
+      PropertyDefinition.builder(AUDIT_MAX_FILES)
+        .name("SAML audit max rotated files")
+        .description("Number of rotated audit files kept, the oldest ones being deleted.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(INTEGER)
+        .defaultValue(valueOf(5))
+        .index(29)
+        .build(),
+      PropertyDefinition.builder(REPLAY_PROTECTION)
+        .name("Reject replayed assertions")
+        .description("Reject assertions which have already been used to log in on this node, until they expire. The IDs of the " +
+          "assertions are kept in a file of the data directory, so that they are still rejected after a restart. When the file is " +
+          "full of assertions not expired yet, new assertions are rejected rather than forgetting the used ones.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(BOOLEAN)
+        .defaultValue(valueOf(false))
+        .index(30)
+        .build(),
+      PropertyDefinition.builder(MAX_ASSERTION_LIFETIME)
+        .name("Max assertion lifetime")
+        .description("Max lifetime in minutes of the assertions issued by the identity providers. Used IDs are looked up in a filter " +
+          "renewed with this period, and assertions without expiry are considered as used until the end of this period. " +
+          "A change is applied without restart, at the next renewal of the filter.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(INTEGER)
+        .defaultValue(valueOf(60))
+        .index(31)
+        .build(),
+      PropertyDefinition.builder(REPLAY_FILTER_FALSE_POSITIVE_RATE)
+        .name("Replay filter false-positive rate")
+        .description("Rate of the new assertions reported as possibly used by the filter of used IDs, which are then looked up in the " +
+          "replay store. A lower rate requires more memory. Requires a restart.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(FLOAT)
+        .defaultValue(valueOf(0.01))
+        .index(32)
+        .build(),
+      PropertyDefinition.builder(TRUSTED_PROXY_COUNT)
+        .name("Trusted proxy count")
+        .description("Number of reverse proxies in front of SonarQube. The client IP address of the callback rate limit is then " +
+          "the one added by the outermost proxy to the 'X-Forwarded-For' header. When 0, the header is ignored and the address " +
+          "of the connection is used.")
+        .category(CATEGORY)
+        .subCategory(SUBCATEGORY)
+        .type(INTEGER)
+        .defaultValue(valueOf(0))
+        .index(33)
         .build());
   }
 }
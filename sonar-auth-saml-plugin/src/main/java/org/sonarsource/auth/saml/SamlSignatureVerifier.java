@@ -0,0 +1,169 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Verifies signatures with {@link Signature} instances kept per thread, already initialized for a given algorithm and
+ * public key, so that neither the lookup of the algorithm in the security providers nor the initialization with the key
+ * are done again for every signature.
+ * <p>
+ * Only used for the detached signatures of the messages received with the HTTP-Redirect binding, see
+ * {@link SamlValidationPipeline}, the signatures of the responses posted to the callback being verified by the SAML
+ * library. Cached signatures are bound to the public key and to the configured provider, so that a change of the IdP
+ * certificate or of the provider doesn't reuse them.
+ */
+@ServerSide
+public class SamlSignatureVerifier {
+
+  private static final Logger LOGGER = Loggers.get(SamlSignatureVerifier.class);
+
+  // Signatures kept by a thread, beyond which the cache is cleared, as only a few keys are expected
+  private static final int MAX_SIGNATURES_PER_THREAD = 16;
+
+  // SHA-1 based algorithms are deliberately not supported, their signatures can be forged
+  private static final Map<String, String> JCA_ALGORITHMS;
+
+  static {
+    Map<String, String> algorithms = new HashMap<>();
+    algorithms.put("http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", "SHA256withRSA");
+    algorithms.put("http://www.w3.org/2001/04/xmldsig-more#rsa-sha384", "SHA384withRSA");
+    algorithms.put("http://www.w3.org/2001/04/xmldsig-more#rsa-sha512", "SHA512withRSA");
+    algorithms.put("http://www.w3.org/2009/xmldsig11#dsa-sha256", "SHA256withDSA");
+    algorithms.put("http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256", "SHA256withECDSA");
+    algorithms.put("http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha384", "SHA384withECDSA");
+    algorithms.put("http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha512", "SHA512withECDSA");
+    JCA_ALGORITHMS = unmodifiableMap(algorithms);
+  }
+
+  private final SamlSettings samlSettings;
+  private final ThreadLocal<Map<SignatureKey, Signature>> signatures = ThreadLocal.withInitial(HashMap::new);
+  private final LongAdder signatureCreations = new LongAdder();
+
+  public SamlSignatureVerifier(SamlSettings samlSettings) {
+    this.samlSettings = samlSettings;
+  }
+
+  /**
+   * @param algorithmUri the XML signature algorithm, for instance http://www.w3.org/2001/04/xmldsig-more#rsa-sha256
+   * @return true if the signature is valid
+   * @throws IllegalArgumentException if the algorithm is not supported
+   */
+  boolean verify(String algorithmUri, PublicKey publicKey, byte[] content, byte[] signatureValue) {
+    String algorithm = JCA_ALGORITHMS.get(algorithmUri);
+    if (algorithm == null) {
+      throw new IllegalArgumentException("Unsupported signature algorithm: " + algorithmUri);
+    }
+    SamlEvent event = SamlEvents.begin(SamlEvents.Type.SIGNATURE_VERIFICATION);
+    String outcome = SamlEvents.FAILED;
+    try {
+      boolean valid = verifyWithCachedSignature(algorithm, publicKey, content, signatureValue);
+      outcome = valid ? SamlEvents.SUCCESS : SamlEvents.REJECTED;
+      return valid;
+    } finally {
+      event.end(outcome);
+    }
+  }
+
+  private boolean verifyWithCachedSignature(String algorithm, PublicKey publicKey, byte[] content, byte[] signatureValue) {
+    String provider = samlSettings.getSignatureProvider().orElse(null);
+    SignatureKey key = new SignatureKey(algorithm, provider, publicKey);
+    Map<SignatureKey, Signature> threadSignatures = signatures.get();
+    Signature signature = threadSignatures.remove(key);
+    try {
+      if (signature == null) {
+        signature = newSignature(algorithm, provider, publicKey);
+      }
+      signature.update(content);
+      boolean valid = signature.verify(signatureValue);
+      // After a verification, the signature is reset to the state it had after being initialized
+      if (threadSignatures.size() >= MAX_SIGNATURES_PER_THREAD) {
+        threadSignatures.clear();
+      }
+      threadSignatures.put(key, signature);
+      return valid;
+    } catch (InvalidKeyException | SignatureException e) {
+      LOGGER.debug("Fail to verify signature", e);
+      return false;
+    }
+  }
+
+  long getSignatureCreationCount() {
+    return signatureCreations.sum();
+  }
+
+  private Signature newSignature(String algorithm, @Nullable String provider, PublicKey publicKey) throws InvalidKeyException {
+    signatureCreations.increment();
+    try {
+      Signature signature = provider != null ? Signature.getInstance(algorithm, provider) : Signature.getInstance(algorithm);
+      signature.initVerify(publicKey);
+      return signature;
+    } catch (InvalidKeyException e) {
+      throw e;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Signature algorithm " + algorithm + " is not available" + (provider != null ? (" in provider " + provider) : ""), e);
+    }
+  }
+
+  private static class SignatureKey {
+    private final String algorithm;
+    @Nullable
+    private final String provider;
+    private final PublicKey publicKey;
+
+    private SignatureKey(String algorithm, @Nullable String provider, PublicKey publicKey) {
+      this.algorithm = algorithm;
+      this.provider = provider;
+      this.publicKey = publicKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      SignatureKey that = (SignatureKey) o;
+      return algorithm.equals(that.algorithm) && Objects.equals(provider, that.provider) && publicKey.equals(that.publicKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(algorithm, provider, publicKey);
+    }
+  }
+}
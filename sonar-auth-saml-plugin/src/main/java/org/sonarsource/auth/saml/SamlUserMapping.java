@@ -0,0 +1,173 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Computes the login, name and email of a user from the SAML attributes, as defined by the settings. It's compiled once
+ * per value of the settings, so that nothing is parsed or compiled during authentication.
+ */
+final class SamlUserMapping {
+
+  private final List<Object> source;
+  private final String loginAttribute;
+  private final boolean nameIdAsLoginFallback;
+  private final SamlAttributeRules loginRules;
+  private final String nameDefinition;
+  private final String[] nameTemplate;
+  private final SamlAttributeRules nameRules;
+  private final String emailAttribute;
+  private final SamlAttributeRules emailRules;
+
+  private SamlUserMapping(SamlSettings samlSettings, List<Object> source) {
+    this.source = source;
+    this.loginAttribute = samlSettings.getUserLogin();
+    this.nameIdAsLoginFallback = samlSettings.useNameIdAsLoginFallback();
+    this.loginRules = SamlAttributeRules.compile(samlSettings.getUserLoginTransformations());
+    this.nameDefinition = samlSettings.getUserName();
+    this.nameTemplate = parseTemplate(nameDefinition);
+    this.nameRules = SamlAttributeRules.compile(samlSettings.getUserNameTransformations());
+    this.emailAttribute = samlSettings.getUserEmail().orElse(null);
+    this.emailRules = SamlAttributeRules.compile(samlSettings.getUserEmailTransformations());
+  }
+
+  static SamlUserMapping compile(SamlSettings samlSettings) {
+    return new SamlUserMapping(samlSettings, sourceOf(samlSettings));
+  }
+
+  boolean isCompiledFrom(SamlSettings samlSettings) {
+    return source.equals(sourceOf(samlSettings));
+  }
+
+  private static List<Object> sourceOf(SamlSettings samlSettings) {
+    return Arrays.asList(samlSettings.getUserLogin(), samlSettings.useNameIdAsLoginFallback(), Arrays.asList(samlSettings.getUserLoginTransformations()),
+      samlSettings.getUserName(), Arrays.asList(samlSettings.getUserNameTransformations()),
+      samlSettings.getUserEmail().orElse(null), Arrays.asList(samlSettings.getUserEmailTransformations()));
+  }
+
+  String getLogin(Function<String, Collection<String>> attributes, @Nullable String nameId) {
+    return loginRules.apply(getRawLogin(attributes, nameId));
+  }
+
+  /**
+   * @return the login as sent by the identity provider, before the transformations
+   */
+  String getRawLogin(Function<String, Collection<String>> attributes, @Nullable String nameId) {
+    String login = getFirstValue(attributes, loginAttribute);
+    if (login == null && nameIdAsLoginFallback) {
+      login = nameId;
+    }
+    return requireNonNull(login, String.format("%s is missing", loginAttribute));
+  }
+
+  String getName(Function<String, Collection<String>> attributes) {
+    String name;
+    if (nameTemplate == null) {
+      name = getFirstValue(attributes, nameDefinition);
+    } else {
+      name = renderTemplate(attributes);
+    }
+    requireNonNull(name, String.format("%s is missing", nameDefinition));
+    return nameRules.apply(name);
+  }
+
+  @CheckForNull
+  String getEmail(Function<String, Collection<String>> attributes) {
+    String email = getRawEmail(attributes);
+    return email == null ? null : emailRules.apply(email);
+  }
+
+  /**
+   * @return the email as sent by the identity provider, before the transformations
+   */
+  @CheckForNull
+  String getRawEmail(Function<String, Collection<String>> attributes) {
+    return emailAttribute == null ? null : getFirstValue(attributes, emailAttribute);
+  }
+
+  /**
+   * @return null when none of the attributes of the template is defined
+   */
+  @CheckForNull
+  private String renderTemplate(Function<String, Collection<String>> attributes) {
+    StringBuilder result = new StringBuilder();
+    boolean anyAttribute = false;
+    // Even indexes are literals, odd indexes are attribute names
+    for (int i = 0; i < nameTemplate.length; i++) {
+      if (i % 2 == 0) {
+        result.append(nameTemplate[i]);
+      } else {
+        String value = getFirstValue(attributes, nameTemplate[i]);
+        if (value != null) {
+          result.append(value);
+          anyAttribute = true;
+        }
+      }
+    }
+    return anyAttribute ? result.toString().trim() : null;
+  }
+
+  @CheckForNull
+  private static String getFirstValue(Function<String, Collection<String>> attributes, String key) {
+    Collection<String> values = attributes.apply(key);
+    if (values == null || values.isEmpty()) {
+      return null;
+    }
+    return values.iterator().next();
+  }
+
+  /**
+   * Splits a definition such as "{givenName} {surname}" into literals and attribute names.
+   *
+   * @return null if the definition is a single attribute name
+   */
+  @CheckForNull
+  private static String[] parseTemplate(String definition) {
+    if (definition.indexOf('{') < 0) {
+      return null;
+    }
+    List<String> parts = new ArrayList<>();
+    int position = 0;
+    while (position < definition.length()) {
+      int start = definition.indexOf('{', position);
+      if (start < 0) {
+        break;
+      }
+      int end = definition.indexOf('}', start);
+      if (end < 0) {
+        throw new IllegalArgumentException("Invalid user name template: " + definition);
+      }
+      parts.add(definition.substring(position, start));
+      parts.add(definition.substring(start + 1, end));
+      position = end + 1;
+    }
+    parts.add(definition.substring(position));
+    return parts.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,559 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.security.cert.X509Certificate;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.stream.XMLStreamException;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Rejects invalid SAML responses before they reach the onelogin validation, which builds a DOM, canonicalizes it and
+ * verifies the XML signature. Checks are executed by increasing cost, and rejections are counted per {@link Stage}.
+ * <p>
+ * Responses received with the HTTP-Redirect binding carry a detached signature, which onelogin doesn't support : they
+ * are fully validated here, see {@link #validateRedirect(HttpServletRequest, SamlRedirectMessage)}.
+ */
+@ServerSide
+public class SamlValidationPipeline {
+
+  static final String SAML_RESPONSE_PARAMETER = "SAMLResponse";
+
+  private static final Logger LOGGER = Loggers.get(SamlValidationPipeline.class);
+
+  private static final String SUCCESS_STATUS = "urn:oasis:names:tc:SAML:2.0:status:Success";
+  // Same tolerance as the one used by onelogin when validating timestamps
+  private static final long ALLOWED_CLOCK_DRIFT_MS = TimeUnit.SECONDS.toMillis(180);
+
+  enum Stage {
+    MALFORMED,
+    IN_RESPONSE_TO,
+    DESTINATION,
+    ISSUER,
+    STATUS,
+    AUDIENCE,
+    VALIDITY_WINDOW,
+    SUBJECT_CONFIRMATION,
+    SIGNATURE,
+    REPLAY
+  }
+
+  private final SamlSettings samlSettings;
+  private final SamlRequestTracker requestTracker;
+  private final SamlIdpDiscovery idpDiscovery;
+  private final SamlCredentials credentials;
+  private final SamlSignatureVerifier signatureVerifier;
+  private final SamlLoginFailures loginFailures;
+  private final SamlReplayStore replayStore;
+  private final System2 system2;
+  private final Map<Stage, LongAdder> rejections = new EnumMap<>(Stage.class);
+
+  public SamlValidationPipeline(SamlSettings samlSettings, SamlRequestTracker requestTracker, SamlIdpDiscovery idpDiscovery,
+    SamlCredentials credentials, SamlSignatureVerifier signatureVerifier, SamlLoginFailures loginFailures, SamlReplayStore replayStore, System2 system2) {
+    this.samlSettings = samlSettings;
+    this.requestTracker = requestTracker;
+    this.idpDiscovery = idpDiscovery;
+    this.credentials = credentials;
+    this.signatureVerifier = signatureVerifier;
+    this.loginFailures = loginFailures;
+    this.replayStore = replayStore;
+    this.system2 = system2;
+    for (Stage stage : Stage.values()) {
+      rejections.put(stage, new LongAdder());
+    }
+  }
+
+  /**
+   * Executes the cheap checks on the SAML response of the request. Nothing is done when the request has no SAML response,
+   * the onelogin validation being in charge of reporting it.
+   *
+   * @return the identity provider which issued the response, or the default one when there's no response
+   * @throws UnauthorizedException if one of the checks fails
+   */
+  ValidatedResponse validate(HttpServletRequest request) {
+    String encodedResponse = getEncodedResponse(request);
+    if (encodedResponse == null) {
+      return new ValidatedResponse(samlSettings.getDefaultIdp(), null, null);
+    }
+    return validate(encodedResponse, request.getRequestURL().toString());
+  }
+
+  /**
+   * @param currentUrl URL at which the response has been received
+   * @throws Rejection if one of the checks fails
+   */
+  ValidatedResponse validate(String encodedResponse, String currentUrl) {
+    SamlEvent event = SamlEvents.begin(SamlEvents.Type.PREVALIDATION);
+    String outcome = SamlEvents.REJECTED;
+    SamlResponseHeader header = null;
+    try {
+      header = parse(encodedResponse);
+      SamlIdp requestedIdp = checkInResponseTo(header);
+      checkDestination(header, currentUrl);
+      SamlIdp idp = checkIssuer(header, requestedIdp);
+      checkStatus(header);
+      if (!header.hasEncryptedAssertion()) {
+        checkAudience(header);
+        checkValidityWindow(header);
+      }
+      outcome = SamlEvents.SUCCESS;
+      return new ValidatedResponse(idp, requestedIdp == null ? null : header.getInResponseTo(), header);
+    } catch (Rejection e) {
+      recordFailure(e, getIssuer(header), encodedResponse);
+      throw e;
+    } finally {
+      event.end(outcome);
+    }
+  }
+
+  /**
+   * Executes all the checks on a response received with the HTTP-Redirect binding, including the verification of its
+   * detached signature, which is computed on the raw query string, so without any XML canonicalization.
+   * <p>
+   * The signature is verified first, with the certificate of the default identity provider, so that nothing of an
+   * unauthenticated message is inflated or parsed, and so that the identity provider is never taken from the message.
+   * As the AuthnRequest answered by the response is only known once parsed, responses to requests sent to an additional
+   * identity provider are rejected : these identity providers must use the HTTP-POST binding.
+   *
+   * @return the identity provider which issued the response, and the response parsed up to the end
+   * @throws UnauthorizedException if one of the checks fails
+   */
+  ValidatedResponse validateRedirect(HttpServletRequest request, SamlRedirectMessage message) {
+    SamlEvent event = SamlEvents.begin(SamlEvents.Type.PREVALIDATION);
+    String outcome = SamlEvents.REJECTED;
+    SamlIdp idp = samlSettings.getDefaultIdp();
+    SamlResponseHeader response;
+    SamlIdp requestedIdp;
+    boolean signatureVerified = false;
+    try {
+      checkDetachedSignature(message, idp);
+      signatureVerified = true;
+      response = parseRedirect(message);
+      if (response.hasEncryptedAssertion() || response.getAssertionCount() != 1) {
+        throw reject(Stage.MALFORMED, "SAML Response received with the HTTP-Redirect binding must contain a single unencrypted Assertion");
+      }
+      String currentUrl = request.getRequestURL().toString();
+      requestedIdp = checkInResponseTo(response);
+      if (requestedIdp != null && !isSameIdp(requestedIdp, idp)) {
+        throw reject(Stage.ISSUER, "SAML Response received with the HTTP-Redirect binding is only accepted from the identity provider " + idp.getProviderId()
+          + ", the AuthnRequest " + response.getInResponseTo() + " has been sent to " + requestedIdp.getProviderId());
+      }
+      checkDestination(response, currentUrl);
+      checkIssuer(response, idp);
+      checkStatus(response);
+      checkAudience(response);
+      checkValidityWindow(response);
+      checkSubjectConfirmation(response, currentUrl);
+      outcome = SamlEvents.SUCCESS;
+    } catch (Rejection e) {
+      Rejection rejection = signatureVerified ? e.afterSignatureVerification() : e;
+      recordFailure(rejection, idp.getProviderId(), request.getQueryString());
+      throw rejection;
+    } finally {
+      event.end(outcome);
+    }
+    // The request is only consumed once the signature has been verified and the response checked
+    String requestId = requestedIdp == null ? null : response.getInResponseTo();
+    consumeRequest(idp, request, requestId);
+    checkReplay(idp, request, response.getAssertionId(),
+      latest(parseInstant(response.getNotOnOrAfter()), parseInstant(response.getSubjectNotOnOrAfter())));
+    return new ValidatedResponse(idp, requestId, response);
+  }
+
+  /**
+   * Stage of the onelogin validation, done after all cheap checks have succeeded.
+   */
+  UnauthorizedException rejectSignature(SamlIdp idp, HttpServletRequest request, String reason) {
+    Rejection rejection = reject(Stage.SIGNATURE, reason, true);
+    recordFailure(rejection, idp.getProviderId(), getEncodedResponse(request));
+    return rejection;
+  }
+
+  /**
+   * Consumes the AuthnRequest answered by the response, once its signature has been verified : a forged response must
+   * not prevent the identity provider from answering the request. A second response to the same request is rejected.
+   *
+   * @param requestId the ID of the AuthnRequest, if the response answers a request tracked by {@link SamlRequestTracker}
+   */
+  void consumeRequest(SamlIdp idp, HttpServletRequest request, @Nullable String requestId) {
+    if (requestId == null) {
+      return;
+    }
+    if (!requestTracker.consume(requestId)) {
+      Rejection rejection = reject(Stage.IN_RESPONSE_TO, "The AuthnRequest " + requestId + " has already been answered", true);
+      recordFailure(rejection, idp.getProviderId(), getReceivedResponse(request));
+      throw rejection;
+    }
+  }
+
+  /**
+   * Checks that the identity provider is allowed to authenticate the user : the domain of the login and of the email, when
+   * they have one, must be routed to this identity provider by the domains of the settings. Logins without domain can
+   * only be authenticated by the default identity provider, so that an additional one can't take over them.
+   * <p>
+   * The login and the email are the values sent by the identity provider, before the transformations of the settings.
+   */
+  void checkUserDomains(SamlIdp idp, HttpServletRequest request, String login, @Nullable String email) {
+    checkUserDomains(idp, getReceivedResponse(request), login, email);
+  }
+
+  /**
+   * @param receivedResponse the response as received, recorded with the failure
+   */
+  void checkUserDomains(SamlIdp idp, @Nullable String receivedResponse, String login, @Nullable String email) {
+    String reason = null;
+    if (login.indexOf('@') < 0) {
+      if (!isSameIdp(idp, samlSettings.getDefaultIdp())) {
+        reason = "The identity provider " + idp.getProviderId() + " is not allowed to authenticate the login " + login + ", which has no domain";
+      }
+    } else if (!isSameIdp(idp, idpDiscovery.findByEmail(login))) {
+      reason = "The identity provider " + idp.getProviderId() + " is not allowed to authenticate the login " + login;
+    }
+    if (reason == null && email != null && !isSameIdp(idp, idpDiscovery.findByEmail(email))) {
+      reason = "The identity provider " + idp.getProviderId() + " is not allowed to authenticate the email " + email;
+    }
+    if (reason != null) {
+      Rejection rejection = reject(Stage.ISSUER, reason, true);
+      recordFailure(rejection, idp.getProviderId(), receivedResponse);
+      throw rejection;
+    }
+  }
+
+  /**
+   * Stage done once the signature has been verified, so that only the assertions issued by the identity provider are
+   * recorded by the {@link SamlReplayStore}.
+   *
+   * @param notOnOrAfter date in milliseconds after which the assertion is no longer accepted, if defined
+   */
+  void checkReplay(SamlIdp idp, HttpServletRequest request, @Nullable String assertionId, @Nullable Long notOnOrAfter) {
+    if (!samlSettings.isReplayProtectionEnabled()) {
+      return;
+    }
+    String receivedResponse = getReceivedResponse(request);
+    if (assertionId == null) {
+      Rejection rejection = reject(Stage.REPLAY, "The Assertion has no ID");
+      recordFailure(rejection, idp.getProviderId(), receivedResponse);
+      throw rejection;
+    }
+    long expiresAt = notOnOrAfter == null ? (system2.now() + samlSettings.getMaxAssertionLifetimeMs()) : (notOnOrAfter + ALLOWED_CLOCK_DRIFT_MS);
+    SamlReplayStore.Usage usage = replayStore.markUsed(assertionId, expiresAt);
+    if (usage != SamlReplayStore.Usage.FIRST_USE) {
+      // Failing closed when the store is full, an assertion which is not recorded could be replayed
+      Rejection rejection = reject(Stage.REPLAY, usage == SamlReplayStore.Usage.REPLAY
+        ? ("The Assertion " + assertionId + " has already been used")
+        : ("The SAML replay store is full, the Assertion " + assertionId + " can't be recorded"));
+      recordFailure(rejection, idp.getProviderId(), receivedResponse);
+      throw rejection;
+    }
+  }
+
+  long getRejectionCount(Stage stage) {
+    return rejections.get(stage).sum();
+  }
+
+  @CheckForNull
+  static String getEncodedResponse(HttpServletRequest request) {
+    String[] values = request.getParameterMap().get(SAML_RESPONSE_PARAMETER);
+    return values == null || values.length == 0 ? null : values[0];
+  }
+
+  @CheckForNull
+  private static String getReceivedResponse(HttpServletRequest request) {
+    String encodedResponse = getEncodedResponse(request);
+    return encodedResponse != null ? encodedResponse : request.getQueryString();
+  }
+
+  private SamlResponseHeader parse(String encodedResponse) {
+    try {
+      return SamlResponseHeader.parse(PooledBase64Decoder.decode(encodedResponse));
+    } catch (IllegalArgumentException | XMLStreamException e) {
+      LOGGER.debug("Fail to read SAML response", e);
+      throw reject(Stage.MALFORMED, "SAML Response is not a valid XML document");
+    }
+  }
+
+  private SamlResponseHeader parseRedirect(SamlRedirectMessage message) {
+    try {
+      return SamlResponseHeader.parseFully(message.inflateResponse());
+    } catch (IllegalArgumentException | XMLStreamException e) {
+      LOGGER.debug("Fail to read SAML response", e);
+      throw reject(Stage.MALFORMED, "SAML Response is not a valid XML document");
+    }
+  }
+
+  /**
+   * @return the identity provider to which the AuthnRequest answered by the response has been sent, or null if the
+   * response doesn't answer a pending request, which is only accepted when unsolicited responses are
+   */
+  @CheckForNull
+  private SamlIdp checkInResponseTo(SamlResponseHeader header) {
+    String inResponseTo = header.getInResponseTo();
+    boolean rejectUnsolicited = samlSettings.rejectUnsolicitedResponses();
+    if (inResponseTo == null) {
+      if (rejectUnsolicited) {
+        throw reject(Stage.IN_RESPONSE_TO, "The Response is unsolicited");
+      }
+      return null;
+    }
+    // The request is only consumed once the signature is verified, see consumeRequest()
+    String providerId = requestTracker.getProviderId(inResponseTo);
+    if (providerId == null) {
+      if (rejectUnsolicited) {
+        throw reject(Stage.IN_RESPONSE_TO, "The InResponseTo of the Response: " + inResponseTo + ", does not match any pending AuthnRequest");
+      }
+      return null;
+    }
+    SamlIdp idp = idpDiscovery.findByProviderId(providerId);
+    if (idp == null) {
+      throw reject(Stage.ISSUER, "The identity provider " + providerId + " of the AuthnRequest " + inResponseTo + " is no longer configured");
+    }
+    return idp;
+  }
+
+  private void checkDestination(SamlResponseHeader header, String currentUrl) {
+    String destination = header.getDestination();
+    if (destination == null) {
+      return;
+    }
+    if (destination.isEmpty()) {
+      throw reject(Stage.DESTINATION, "The response has an empty Destination value");
+    }
+    if (!destination.equals(currentUrl)) {
+      throw reject(Stage.DESTINATION, "The response was received at " + currentUrl + " instead of " + destination);
+    }
+  }
+
+  /**
+   * The certificate used to verify the response is the one of the identity provider to which the AuthnRequest has been
+   * sent. Only unsolicited responses are attributed to an identity provider from their issuer.
+   *
+   * @param requestedIdp the identity provider to which the AuthnRequest answered by the response has been sent, if any
+   */
+  private SamlIdp checkIssuer(SamlResponseHeader header, @Nullable SamlIdp requestedIdp) {
+    SamlIdp idp = requestedIdp;
+    if (idp == null) {
+      String issuer = getIssuer(header);
+      idp = issuer == null ? null : idpDiscovery.findByProviderId(issuer);
+    }
+    if (idp == null) {
+      // The issuer is then reported as not matching the default identity provider
+      idp = samlSettings.getDefaultIdp();
+    }
+    checkIssuer(header.getResponseIssuer(), idp.getProviderId());
+    checkIssuer(header.getAssertionIssuer(), idp.getProviderId());
+    return idp;
+  }
+
+  private void checkIssuer(@Nullable String issuer, String providerId) {
+    if (issuer != null && !issuer.equals(providerId)) {
+      throw reject(Stage.ISSUER, "Invalid issuer in the Assertion/Response (expected '" + providerId + "', received '" + issuer + "')");
+    }
+  }
+
+  private void checkStatus(SamlResponseHeader header) {
+    String statusCode = header.getStatusCode();
+    if (!SUCCESS_STATUS.equals(statusCode)) {
+      throw reject(Stage.STATUS, "The status code of the Response was not Success, was " + statusCode);
+    }
+  }
+
+  private void checkAudience(SamlResponseHeader header) {
+    String applicationId = samlSettings.getApplicationId();
+    if (!header.getAudiences().isEmpty() && !header.getAudiences().contains(applicationId)) {
+      throw reject(Stage.AUDIENCE, applicationId + " is not a valid audience for this Response");
+    }
+  }
+
+  private void checkValidityWindow(SamlResponseHeader header) {
+    long now = system2.now();
+    Long notBefore = parseInstant(header.getNotBefore());
+    if (notBefore != null && notBefore > now + ALLOWED_CLOCK_DRIFT_MS) {
+      throw reject(Stage.VALIDITY_WINDOW, "Could not validate timestamp: not yet valid. Check system clock.");
+    }
+    Long notOnOrAfter = parseInstant(header.getNotOnOrAfter());
+    if (notOnOrAfter != null && notOnOrAfter + ALLOWED_CLOCK_DRIFT_MS <= now) {
+      throw reject(Stage.VALIDITY_WINDOW, "Could not validate timestamp: expired. Check system clock.");
+    }
+  }
+
+  private void checkSubjectConfirmation(SamlResponseHeader response, String currentUrl) {
+    String recipient = response.getSubjectRecipient();
+    if (recipient != null && !recipient.equals(currentUrl)) {
+      throw reject(Stage.SUBJECT_CONFIRMATION, "The Assertion was received at " + currentUrl + " instead of " + recipient);
+    }
+    Long notOnOrAfter = parseInstant(response.getSubjectNotOnOrAfter());
+    if (notOnOrAfter != null && notOnOrAfter + ALLOWED_CLOCK_DRIFT_MS <= system2.now()) {
+      throw reject(Stage.SUBJECT_CONFIRMATION, "The subject confirmation of the Assertion has expired");
+    }
+  }
+
+  private void checkDetachedSignature(SamlRedirectMessage message, SamlIdp idp) {
+    String sigAlg = message.getSigAlg();
+    if (!message.isSigned() || sigAlg == null) {
+      throw reject(Stage.SIGNATURE, "SAML Response received with the HTTP-Redirect binding is not signed");
+    }
+    X509Certificate certificate = credentials.getIdpCertificate(idp);
+    if (certificate == null) {
+      throw reject(Stage.SIGNATURE, "The certificate of the identity provider " + idp.getProviderId() + " is not valid");
+    }
+    boolean valid;
+    try {
+      valid = signatureVerifier.verify(sigAlg, certificate.getPublicKey(), message.getSignedContent(), message.getSignature());
+    } catch (IllegalArgumentException e) {
+      throw reject(Stage.SIGNATURE, e.getMessage());
+    }
+    if (!valid) {
+      throw reject(Stage.SIGNATURE, "Signature validation failed. SAML Response rejected", true);
+    }
+  }
+
+  @CheckForNull
+  private Long parseInstant(@Nullable String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      throw reject(Stage.MALFORMED, "Invalid date in the Assertion conditions: " + value);
+    }
+  }
+
+  private Rejection reject(Stage stage, String reason) {
+    // Replays are only looked for once the signature is valid
+    return reject(stage, reason, stage == Stage.REPLAY);
+  }
+
+  private Rejection reject(Stage stage, String reason, boolean afterSignatureVerification) {
+    rejections.get(stage).increment();
+    LOGGER.debug("SAML response rejected at stage {} : {}", stage, reason);
+    return new Rejection(stage, reason, afterSignatureVerification);
+  }
+
+  private void recordFailure(Rejection rejection, @Nullable String issuer, @Nullable String response) {
+    loginFailures.record(system2.now(), rejection.stage, rejection.getMessage(), issuer, response);
+  }
+
+  private static boolean isSameIdp(SamlIdp idp, SamlIdp other) {
+    return idp.getProviderId().equals(other.getProviderId());
+  }
+
+  @CheckForNull
+  private static Long latest(@Nullable Long first, @Nullable Long second) {
+    if (first == null || second == null) {
+      return first == null ? second : first;
+    }
+    return Math.max(first, second);
+  }
+
+  @CheckForNull
+  private static String getIssuer(@Nullable SamlResponseHeader header) {
+    if (header == null) {
+      return null;
+    }
+    return header.getResponseIssuer() != null ? header.getResponseIssuer() : header.getAssertionIssuer();
+  }
+
+  /**
+   * Outcome of the checks done by the pipeline on a response
+   */
+  static final class ValidatedResponse {
+    private final SamlIdp idp;
+    private final String requestId;
+    private final SamlResponseHeader header;
+
+    private ValidatedResponse(SamlIdp idp, @Nullable String requestId, @Nullable SamlResponseHeader header) {
+      this.idp = idp;
+      this.requestId = requestId;
+      this.header = header;
+    }
+
+    /**
+     * @return the identity provider which issued the response
+     */
+    SamlIdp getIdp() {
+      return idp;
+    }
+
+    /**
+     * @return the ID of the AuthnRequest answered by the response, if it has been sent by this server and is still pending
+     */
+    @CheckForNull
+    String getRequestId() {
+      return requestId;
+    }
+
+    /**
+     * @return the response, parsed up to the end when received with the HTTP-Redirect binding, null if there was no response
+     */
+    @CheckForNull
+    SamlResponseHeader getHeader() {
+      return header;
+    }
+  }
+
+  static class Rejection extends UnauthorizedException {
+    private static final long serialVersionUID = 1L;
+
+    private final Stage stage;
+    private final boolean afterSignatureVerification;
+
+    private Rejection(Stage stage, String reason, boolean afterSignatureVerification) {
+      super(reason);
+      this.stage = stage;
+      this.afterSignatureVerification = afterSignatureVerification;
+    }
+
+    Stage getStage() {
+      return stage;
+    }
+
+    /**
+     * @return true if the signature has been verified, whether it's valid or not, before the rejection
+     */
+    boolean isAfterSignatureVerification() {
+      return afterSignatureVerification;
+    }
+
+    /**
+     * @return the same rejection, done once the signature has been verified
+     */
+    Rejection afterSignatureVerification() {
+      if (afterSignatureVerification) {
+        return this;
+      }
+      Rejection rejection = new Rejection(stage, getMessage(), true);
+      rejection.setStackTrace(getStackTrace());
+      return rejection;
+    }
+  }
+}
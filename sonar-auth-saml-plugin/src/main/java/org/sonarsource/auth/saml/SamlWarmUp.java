@@ -0,0 +1,88 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+/**
+ * Triggers the {@link SamlWarmUpTask} in background, at startup when SAML is enabled, or the first time SAML is found
+ * enabled when the login page is displayed.
+ */
+@ServerSide
+public class SamlWarmUp implements Startable {
+
+  private final SamlSettings samlSettings;
+  private final SamlCredentials credentials;
+  private final System2 system2;
+  private final AtomicBoolean triggered = new AtomicBoolean();
+  private ExecutorService executor;
+
+  public SamlWarmUp(SamlSettings samlSettings, SamlCredentials credentials, System2 system2) {
+    this.samlSettings = samlSettings;
+    this.credentials = credentials;
+    this.system2 = system2;
+  }
+
+  @Override
+  public void start() {
+    if (samlSettings.isEnabled()) {
+      warmUpInBackground();
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Triggers the warm-up once, without waiting for it.
+   */
+  void warmUpInBackground() {
+    if (!triggered.compareAndSet(false, true)) {
+      return;
+    }
+    synchronized (this) {
+      executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SAML warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      });
+      executor.execute(this::warmUp);
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * @return true if the synthetic response went through every validation step up to the signature one
+   */
+  boolean warmUp() {
+    // Loaded only when executed, as it relies on onelogin and XML security
+    return new SamlWarmUpTask(samlSettings, credentials, system2).execute();
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import com.onelogin.saml2.authn.SamlResponse;
+import com.onelogin.saml2.http.HttpRequest;
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.util.Util;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transforms;
+import org.apache.xml.security.utils.Constants;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.apache.xml.security.algorithms.MessageDigestAlgorithm.ALGO_ID_DIGEST_SHA256;
+
+/**
+ * Runs a synthetic signed SAML response through the whole validation chain, so that the first user logging in does not
+ * pay for the initialization of the XML security library, of the JCA providers, of the XML parsers and schemas, nor
+ * for the interpretation of the validation code.
+ */
+final class SamlWarmUpTask {
+
+  private static final Logger LOGGER = Loggers.get(SamlWarmUpTask.class);
+
+  static final int ITERATIONS = 20;
+
+  private static final String CALLBACK_URL = "http://localhost/oauth2/callback/saml";
+  private static final String RESPONSE_ID = "_warm_up_response";
+  private static final String SIGNATURE_ERROR = "Signature validation failed";
+
+  private final SamlSettings samlSettings;
+  private final SamlCredentials credentials;
+  private final System2 system2;
+
+  SamlWarmUpTask(SamlSettings samlSettings, SamlCredentials credentials, System2 system2) {
+    this.samlSettings = samlSettings;
+    this.credentials = credentials;
+    this.system2 = system2;
+  }
+
+  /**
+   * @return true if the synthetic response went through every validation step up to the signature one
+   */
+  boolean execute() {
+    long start = system2.now();
+    try {
+      org.apache.xml.security.Init.init();
+      KeyPair keyPair = generateKeyPair();
+      Saml2Settings settings = Saml2SettingsFactory.create(samlSettings, credentials, samlSettings.getDefaultIdp(), CALLBACK_URL);
+      String error = null;
+      for (int i = 0; i < ITERATIONS; i++) {
+        String signedResponse = sign(newResponse(), keyPair);
+        verify(signedResponse, keyPair);
+        String encodedResponse = Util.base64encoder(signedResponse);
+        readHeader(encodedResponse);
+        SamlResponse samlResponse = new SamlResponse(settings,
+          new HttpRequest(CALLBACK_URL, singletonMap(SamlValidationPipeline.SAML_RESPONSE_PARAMETER, singletonList(encodedResponse)), null));
+        samlResponse.isValid();
+        error = samlResponse.getError();
+      }
+      LOGGER.debug("SAML authentication warmed up in {} ms", system2.now() - start);
+      // The response is not signed by the identity provider, so it must only be rejected by the last check, the signature one
+      if (error == null || !error.startsWith(SIGNATURE_ERROR)) {
+        LOGGER.debug("Synthetic SAML response has not reached the signature validation : {}", error);
+        return false;
+      }
+      return true;
+    } catch (Exception e) {
+      LOGGER.warn("Fail to warm up SAML authentication", e);
+      return false;
+    }
+  }
+
+  private static KeyPair generateKeyPair() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    return generator.generateKeyPair();
+  }
+
+  private String newResponse() {
+    Instant now = Instant.ofEpochMilli(system2.now()).truncatedTo(ChronoUnit.SECONDS);
+    Instant notOnOrAfter = now.plus(5, ChronoUnit.MINUTES);
+    String providerId = escape(samlSettings.getProviderId());
+    return "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+      + " ID=\"" + RESPONSE_ID + "\" Version=\"2.0\" IssueInstant=\"" + now + "\" Destination=\"" + CALLBACK_URL + "\">"
+      + "<saml:Issuer>" + providerId + "</saml:Issuer>"
+      + "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>"
+      + "<saml:Assertion ID=\"_warm_up_assertion\" Version=\"2.0\" IssueInstant=\"" + now + "\">"
+      + "<saml:Issuer>" + providerId + "</saml:Issuer>"
+      + "<saml:Subject><saml:NameID>warm-up</saml:NameID>"
+      + "<saml:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">"
+      + "<saml:SubjectConfirmationData NotOnOrAfter=\"" + notOnOrAfter + "\" Recipient=\"" + CALLBACK_URL + "\"/>"
+      + "</saml:SubjectConfirmation></saml:Subject>"
+      + "<saml:Conditions NotBefore=\"" + now + "\" NotOnOrAfter=\"" + notOnOrAfter + "\">"
+      + "<saml:AudienceRestriction><saml:Audience>" + escape(samlSettings.getApplicationId()) + "</saml:Audience></saml:AudienceRestriction>"
+      + "</saml:Conditions>"
+      + "<saml:AuthnStatement AuthnInstant=\"" + now + "\">"
+      + "<saml:AuthnContext><saml:AuthnContextClassRef>urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified</saml:AuthnContextClassRef></saml:AuthnContext>"
+      + "</saml:AuthnStatement>"
+      + "<saml:AttributeStatement><saml:Attribute Name=\"" + escape(samlSettings.getUserLogin()) + "\">"
+      + "<saml:AttributeValue>warm-up</saml:AttributeValue></saml:Attribute></saml:AttributeStatement>"
+      + "</saml:Assertion></samlp:Response>";
+  }
+
+  private static String escape(String value) {
+    return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+  }
+
+  private static String sign(String response, KeyPair keyPair) throws Exception {
+    Document document = Util.loadXML(response);
+    Element root = document.getDocumentElement();
+    root.setIdAttribute("ID", true);
+    XMLSignature signature = new XMLSignature(document, "", XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256, Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+    // The signature must be placed right after the Issuer of the Response
+    root.insertBefore(signature.getElement(), root.getFirstChild().getNextSibling());
+    Transforms transforms = new Transforms(document);
+    transforms.addTransform(Transforms.TRANSFORM_ENVELOPED_SIGNATURE);
+    transforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+    signature.addDocument("#" + RESPONSE_ID, transforms, ALGO_ID_DIGEST_SHA256);
+    signature.sign(keyPair.getPrivate());
+    return Util.convertDocumentToString(document);
+  }
+
+  private static void verify(String signedResponse, KeyPair keyPair) throws Exception {
+    Document document = Util.loadXML(signedResponse);
+    document.getDocumentElement().setIdAttribute("ID", true);
+    Element signatureElement = (Element) document.getElementsByTagNameNS(Constants.SignatureSpecNS, "Signature").item(0);
+    if (!new XMLSignature(signatureElement, "").checkSignatureValue(keyPair.getPublic())) {
+      throw new IllegalStateException("Synthetic SAML response signature is invalid");
+    }
+  }
+
+  private static void readHeader(String encodedResponse) throws Exception {
+    try (InputStream decoded = PooledBase64Decoder.decode(encodedResponse)) {
+      SamlResponseHeader.parse(decoded);
+    }
+  }
+}
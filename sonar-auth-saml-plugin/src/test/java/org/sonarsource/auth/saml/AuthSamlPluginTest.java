@@ -19,9 +19,26 @@
  */
 package org.sonarsource.auth.saml;
 
+import com.onelogin.saml2.Auth;
+import com.onelogin.saml2.settings.Saml2Settings;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.xml.security.signature.XMLSignature;
 import org.junit.Test;
 import org.sonar.api.Plugin;
 import org.sonar.api.SonarRuntime;
+import org.sonar.api.Startable;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.server.authentication.OAuth2IdentityProvider;
+import org.sonar.api.utils.System2;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -36,7 +53,152 @@ public class AuthSamlPluginTest {
   public void test_extensions() {
     underTest.define(context);
 
-    assertThat(context.getExtensions()).hasSize(12);
+    assertThat(context.getExtensions()).hasSize(53);
+  }
+
+  @Test
+  public void saml_engine_is_not_loaded_when_disabled() throws Exception {
+    MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+    settings.setProperty("sonar.auth.saml.enabled", false);
+    PluginClassLoader classLoader = new PluginClassLoader();
+
+    List<Object> components = startPlugin(classLoader, settings);
+    for (Object component : components) {
+      if (component instanceof OAuth2IdentityProvider) {
+        OAuth2IdentityProvider provider = (OAuth2IdentityProvider) component;
+        assertThat(provider.isEnabled()).isFalse();
+        assertThat(provider.getName()).isEqualTo("SAML");
+        assertThat(provider.getDisplay()).isNotNull();
+      }
+    }
+    stopPlugin(components);
+
+    assertThat(classLoader.loadedClasses).contains(AuthSamlPlugin.class.getName(), SamlIdentityProvider.class.getName());
+    assertThat(classLoader.loadedClasses).noneMatch(PluginClassLoader::isSamlEngine);
+  }
+
+  @Test
+  public void saml_engine_is_loaded_when_enabled() throws Exception {
+    MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+    settings.setProperty("sonar.auth.saml.enabled", true);
+    settings.setProperty("sonar.auth.saml.applicationId", "MyApp");
+    settings.setProperty("sonar.auth.saml.providerId", "http://localhost:8080/auth/realms/sonarqube");
+    settings.setProperty("sonar.auth.saml.loginUrl", "http://localhost:8080/auth/realms/sonarqube/protocol/saml");
+    settings.setProperty("sonar.auth.saml.certificate.secured", "invalid");
+    settings.setProperty("sonar.auth.saml.user.login", "login");
+    settings.setProperty("sonar.auth.saml.user.name", "name");
+    PluginClassLoader classLoader = new PluginClassLoader();
+
+    // The warm-up is started in background
+    List<Object> components = startPlugin(classLoader, settings);
+    long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+    while (classLoader.loadedClasses.stream().noneMatch(PluginClassLoader::isSamlEngine) && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    stopPlugin(components);
+
+    assertThat(classLoader.loadedClasses).anyMatch(PluginClassLoader::isSamlEngine);
+  }
+
+  /**
+   * Instantiates the extensions the same way the server does, by their public constructor.
+   */
+  private static List<Object> startPlugin(ClassLoader classLoader, MapSettings settings) throws Exception {
+    Plugin plugin = (Plugin) classLoader.loadClass(AuthSamlPlugin.class.getName()).getConstructor().newInstance();
+    MockContext pluginContext = new MockContext();
+    plugin.define(pluginContext);
+
+    List<Object> components = new ArrayList<>(Arrays.asList(settings.asConfig(), System2.INSTANCE));
+    List<Class<?>> pendingClasses = new ArrayList<>();
+    for (Object extension : pluginContext.getExtensions()) {
+      if (extension instanceof Class) {
+        pendingClasses.add((Class<?>) extension);
+      }
+    }
+    while (!pendingClasses.isEmpty()) {
+      int pendingCount = pendingClasses.size();
+      pendingClasses.removeIf(componentClass -> instantiate(componentClass, components));
+      assertThat(pendingClasses.size()).as("Unsatisfied dependencies").isLessThan(pendingCount);
+    }
+    for (Object component : components) {
+      if (component instanceof Startable) {
+        ((Startable) component).start();
+      }
+    }
+    return components;
+  }
+
+  private static boolean instantiate(Class<?> componentClass, List<Object> components) {
+    Constructor<?> constructor = componentClass.getConstructors()[0];
+    Object[] parameters = new Object[constructor.getParameterCount()];
+    for (int i = 0; i < parameters.length; i++) {
+      Class<?> parameterType = constructor.getParameterTypes()[i];
+      parameters[i] = components.stream().filter(parameterType::isInstance).findFirst().orElse(null);
+      if (parameters[i] == null) {
+        return false;
+      }
+    }
+    try {
+      components.add(constructor.newInstance(parameters));
+      return true;
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void stopPlugin(List<Object> components) {
+    for (Object component : components) {
+      if (component instanceof Startable) {
+        ((Startable) component).stop();
+      }
+    }
+  }
+
+  /**
+   * Loads the plugin, onelogin and XML security classes itself, in order to record which ones are loaded.
+   */
+  private static class PluginClassLoader extends URLClassLoader {
+    private final Set<String> loadedClasses = ConcurrentHashMap.newKeySet();
+
+    PluginClassLoader() {
+      super(new URL[] {
+        location(AuthSamlPlugin.class),
+        location(Auth.class),
+        location(Saml2Settings.class),
+        location(XMLSignature.class)
+      }, AuthSamlPluginTest.class.getClassLoader());
+    }
+
+    private static URL location(Class<?> clazz) {
+      return clazz.getProtectionDomain().getCodeSource().getLocation();
+    }
+
+    private static boolean isSamlEngine(String className) {
+      return className.startsWith("com.onelogin.") || className.startsWith("org.apache.xml.security.");
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if (!isSamlEngine(name) && !name.startsWith(AuthSamlPlugin.class.getPackage().getName() + ".")) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> loadedClass = findLoadedClass(name);
+        if (loadedClass == null) {
+          try {
+            loadedClass = findClass(name);
+            loadedClasses.add(name);
+          } catch (ClassNotFoundException e) {
+            // Test classes
+            return super.loadClass(name, resolve);
+          }
+        }
+        if (resolve) {
+          resolveClass(loadedClass);
+        }
+        return loadedClass;
+      }
+    }
   }
 
   private static class MockContext extends Plugin.Context {
@@ -0,0 +1,118 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Random;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PooledBase64DecoderTest {
+
+  private final Random random = new Random(42);
+
+  @Test
+  public void decode_values_of_any_padding() throws IOException {
+    for (int length = 0; length < 10; length++) {
+      byte[] value = randomBytes(length);
+
+      assertThat(decode(Base64.getEncoder().encodeToString(value))).isEqualTo(value);
+    }
+  }
+
+  @Test
+  public void decode_value_wrapped_on_several_lines() throws IOException {
+    byte[] value = randomBytes(1_000);
+
+    assertThat(decode(Base64.getMimeEncoder().encodeToString(value))).isEqualTo(value);
+    assertThat(decode(Base64.getEncoder().encodeToString(value).replaceAll("(.{64})", "$1\n "))).isEqualTo(value);
+  }
+
+  @Test
+  public void decode_value_larger_than_pooled_buffers() throws IOException {
+    byte[] value = randomBytes(PooledBase64Decoder.MAX_POOLED_CAPACITY + 1);
+
+    assertThat(decode(Base64.getEncoder().encodeToString(value))).isEqualTo(value);
+    // Next decoding still uses a pooled buffer
+    assertThat(decode("SGVsbG8=")).isEqualTo("Hello".getBytes());
+  }
+
+  @Test
+  public void fail_on_invalid_character() {
+    assertThatThrownBy(() -> PooledBase64Decoder.decode("SGVs!bG8="))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Illegal base64 character at index 4");
+    assertThatThrownBy(() -> PooledBase64Decoder.decode("SGVsébG8="))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void decode_value_without_padding() throws IOException {
+    assertThat(decode("SGVsbG8")).isEqualTo("Hello".getBytes());
+    assertThat(decode("SGVsbA")).isEqualTo("Hell".getBytes());
+  }
+
+  @Test
+  public void fail_on_data_after_padding() {
+    assertThatThrownBy(() -> PooledBase64Decoder.decode("SGVsbA==SGVs"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Illegal base64 character at index 8");
+  }
+
+  @Test
+  public void fail_on_invalid_padding() {
+    assertThatThrownBy(() -> PooledBase64Decoder.decode("SGVsbG8=="))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid base64 padding");
+    assertThatThrownBy(() -> PooledBase64Decoder.decode("SGVsb"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid base64 padding");
+    assertThatThrownBy(() -> PooledBase64Decoder.decode("SGVs="))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid base64 padding");
+  }
+
+  @Test
+  public void fail_on_non_zero_trailing_bits() {
+    assertThatThrownBy(() -> PooledBase64Decoder.decode("SGVsbB=="))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid base64 trailing bits");
+  }
+
+  private static byte[] decode(String encoded) throws IOException {
+    try (InputStream decoded = PooledBase64Decoder.decode(encoded)) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      IOUtils.copy(decoded, output);
+      return output.toByteArray();
+    }
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
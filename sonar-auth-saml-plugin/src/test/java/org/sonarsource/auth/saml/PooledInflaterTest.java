@@ -0,0 +1,113 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PooledInflaterTest {
+
+  private final Random random = new Random(42);
+
+  @Test
+  public void inflate_values_of_any_size() throws IOException {
+    for (int length : new int[] {0, 1, 100, 70_000, 300_000}) {
+      byte[] value = randomText(length);
+
+      assertThat(inflate(deflate(value))).isEqualTo(value);
+    }
+  }
+
+  @Test
+  public void buffer_grown_above_max_pooled_capacity_is_not_retained() throws IOException {
+    byte[] large = randomText(PooledInflater.MAX_POOLED_CAPACITY + 1);
+
+    assertThat(inflate(deflate(large))).isEqualTo(large);
+    assertThat(PooledInflater.getPooledCapacity()).isLessThanOrEqualTo(PooledInflater.MAX_POOLED_CAPACITY);
+    // Next inflation still uses a pooled buffer
+    assertThat(inflate(deflate("Hello".getBytes()))).isEqualTo("Hello".getBytes());
+    assertThat(PooledInflater.getPooledCapacity()).isLessThanOrEqualTo(PooledInflater.MAX_POOLED_CAPACITY);
+  }
+
+  @Test
+  public void inflater_is_reused_after_failure() throws IOException {
+    assertThatThrownBy(() -> PooledInflater.inflate(new byte[] {(byte) 0xFF, 1, 2, 3}))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Deflated data is invalid");
+
+    assertThat(inflate(deflate("Hello".getBytes()))).isEqualTo("Hello".getBytes());
+  }
+
+  @Test
+  public void fail_on_truncated_data() {
+    byte[] deflated = deflate(randomText(1_000));
+
+    assertThatThrownBy(() -> PooledInflater.inflate(Arrays.copyOf(deflated, deflated.length / 2)))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Deflated data is truncated");
+  }
+
+  @Test
+  public void fail_when_inflated_data_is_too_large() {
+    byte[] deflated = deflate(new byte[PooledInflater.MAX_INFLATED_SIZE + 1]);
+
+    assertThatThrownBy(() -> PooledInflater.inflate(deflated))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Inflated data is larger than 1048576 bytes");
+  }
+
+  static byte[] deflate(byte[] value) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(value);
+    deflater.finish();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    while (!deflater.finished()) {
+      output.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    return output.toByteArray();
+  }
+
+  private static byte[] inflate(byte[] deflated) throws IOException {
+    try (InputStream inflated = PooledInflater.inflate(deflated)) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      IOUtils.copy(inflated, output);
+      return output.toByteArray();
+    }
+  }
+
+  private byte[] randomText(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) ('a' + random.nextInt(26));
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.internal.google.common.collect.ImmutableMap;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SamlArtifactResolverTest {
+
+  private static final String PROVIDER_ID = "http://localhost:8080/auth/realms/sonarqube";
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlArtifactResolver underTest = new SamlArtifactResolver(new SamlSettings(settings.asConfig()), System2.INSTANCE);
+  private LocalIdp idp;
+
+  @Before
+  public void setUp() throws IOException {
+    idp = LocalIdp.start();
+    settings.setProperty("sonar.auth.saml.applicationId", "MyApp");
+    settings.setProperty("sonar.auth.saml.providerId", PROVIDER_ID);
+    settings.setProperty("sonar.auth.saml.artifactResolutionUrl", idp.getResolutionUrl());
+  }
+
+  @After
+  public void tearDown() {
+    idp.close();
+  }
+
+  @Test
+  public void resolve_artifact() {
+    String artifact = newArtifact(PROVIDER_ID);
+
+    HttpServletRequest resolved = underTest.resolve(newRequest(artifact), artifact);
+
+    assertThat(resolved.getParameterMap()).containsOnlyKeys("SAMLResponse", "RelayState");
+    assertThat(resolved.getParameter("RelayState")).isEqualTo("state");
+    String response = new String(Base64.getDecoder().decode(resolved.getParameter("SAMLResponse")), StandardCharsets.UTF_8);
+    assertThat(response).startsWith("<samlp:Response").contains(">johndoe<");
+    String artifactResolve = idp.getReceivedRequests().get(0);
+    assertThat(artifactResolve)
+      .contains("<samlp:Artifact>" + artifact + "</samlp:Artifact>")
+      .contains("<saml:Issuer>MyApp</saml:Issuer>")
+      .contains("Destination=\"" + idp.getResolutionUrl() + "\"");
+    assertThat(underTest.getResolutionLatencies().getTotalCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void connection_is_kept_alive_between_resolutions() {
+    for (int i = 0; i < 3; i++) {
+      String artifact = newArtifact(PROVIDER_ID);
+      underTest.resolve(newRequest(artifact), artifact);
+    }
+
+    assertThat(idp.getReceivedRequests()).hasSize(3);
+    assertThat(new HashSet<>(idp.getClientPorts())).hasSize(1);
+  }
+
+  @Test
+  public void reject_artifact_when_artifact_resolution_is_not_configured() {
+    settings.removeProperty("sonar.auth.saml.artifactResolutionUrl");
+    String artifact = newArtifact(PROVIDER_ID);
+
+    assertThatThrownBy(() -> underTest.resolve(newRequest(artifact), artifact))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("SAML artifact received while no artifact resolution service is defined");
+  }
+
+  @Test
+  public void fail_when_artifact_resolution_service_does_not_use_https() {
+    settings.setProperty("sonar.auth.saml.artifactResolutionUrl", "http://idp.example.com/artifact");
+    String artifact = newArtifact(PROVIDER_ID);
+
+    assertThatThrownBy(() -> underTest.resolve(newRequest(artifact), artifact))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("The artifact resolution URL must use https, was http://idp.example.com/artifact");
+    assertThat(underTest.getResolutionLatencies().getTotalCount()).isZero();
+  }
+
+  @Test
+  public void reject_invalid_artifact() {
+    assertThatThrownBy(() -> underTest.resolve(newRequest("!invalid!"), "!invalid!"))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("Invalid SAML artifact");
+    String tooShort = Base64.getEncoder().encodeToString(new byte[] {0, 4, 0, 0});
+    assertThatThrownBy(() -> underTest.resolve(newRequest(tooShort), tooShort))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("Invalid SAML artifact");
+    assertThat(idp.getReceivedRequests()).isEmpty();
+  }
+
+  @Test
+  public void reject_artifact_of_another_identity_provider() {
+    String artifact = newArtifact("http://other-idp");
+
+    assertThatThrownBy(() -> underTest.resolve(newRequest(artifact), artifact))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("The SAML artifact was not issued by " + PROVIDER_ID);
+    assertThat(idp.getReceivedRequests()).isEmpty();
+  }
+
+  @Test
+  public void reject_artifact_which_is_not_resolved() {
+    idp.setResponseBody(id -> LocalIdp.artifactResponse(id, "urn:oasis:names:tc:SAML:2.0:status:Success", ""));
+    String artifact = newArtifact(PROVIDER_ID);
+
+    assertThatThrownBy(() -> underTest.resolve(newRequest(artifact), artifact))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("The SAML artifact could not be resolved");
+  }
+
+  @Test
+  public void reject_artifact_response_with_failed_status() {
+    idp.setResponseBody(id -> LocalIdp.artifactResponse(id, "urn:oasis:names:tc:SAML:2.0:status:Requester", ""));
+    String artifact = newArtifact(PROVIDER_ID);
+
+    assertThatThrownBy(() -> underTest.resolve(newRequest(artifact), artifact))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("The status code of the ArtifactResponse was not Success, was urn:oasis:names:tc:SAML:2.0:status:Requester");
+  }
+
+  @Test
+  public void reject_artifact_response_to_another_request() {
+    idp.setResponseBody(id -> LocalIdp.artifactResponse("_other", "urn:oasis:names:tc:SAML:2.0:status:Success", LocalIdp.RESPONSE));
+    String artifact = newArtifact(PROVIDER_ID);
+
+    assertThatThrownBy(() -> underTest.resolve(newRequest(artifact), artifact))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessageStartingWith("The ArtifactResponse does not match the ArtifactResolve _");
+  }
+
+  @Test
+  public void fail_when_artifact_resolution_service_returns_an_error() {
+    idp.setStatus(500);
+    String artifact = newArtifact(PROVIDER_ID);
+
+    assertThatThrownBy(() -> underTest.resolve(newRequest(artifact), artifact))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Fail to resolve SAML artifact, artifact resolution service returned HTTP 500");
+  }
+
+  @Test
+  public void fail_on_read_timeout() {
+    settings.setProperty("sonar.auth.saml.artifactResolution.readTimeout", 100);
+    idp.setDelay(1_000);
+    String artifact = newArtifact(PROVIDER_ID);
+
+    assertThatThrownBy(() -> underTest.resolve(newRequest(artifact), artifact))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Fail to resolve SAML artifact at " + idp.getResolutionUrl());
+    assertThat(underTest.getResolutionLatencies().getTotalCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void get_artifact_of_request() {
+    assertThat(SamlArtifactResolver.getArtifact(newRequest("abc"))).isEqualTo("abc");
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameterMap()).thenReturn(ImmutableMap.of());
+    assertThat(SamlArtifactResolver.getArtifact(request)).isNull();
+  }
+
+  private static HttpServletRequest newRequest(String artifact) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameterMap()).thenReturn(ImmutableMap.of("SAMLart", new String[] {artifact}, "RelayState", new String[] {"state"}));
+    return request;
+  }
+
+  /**
+   * @return an artifact of type 0x0004 issued by the given entity ID
+   */
+  static String newArtifact(String entityId) {
+    byte[] artifact = new byte[44];
+    artifact[1] = 4;
+    try {
+      System.arraycopy(MessageDigest.getInstance("SHA-1").digest(entityId.getBytes(StandardCharsets.UTF_8)), 0, artifact, 4, 20);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] handle = new byte[20];
+    new Random().nextBytes(handle);
+    System.arraycopy(handle, 0, artifact, 24, 20);
+    return Base64.getEncoder().encodeToString(artifact);
+  }
+
+  /**
+   * Artifact resolution service of an identity provider, returning the full response of the integration tests for
+   * every artifact.
+   */
+  static class LocalIdp implements Closeable {
+
+    static final String RESPONSE = loadResponse();
+    private static final Pattern ID = Pattern.compile("ArtifactResolve [^>]*ID=\"([^\"]+)\"");
+
+    private final HttpServer server;
+    private final List<String> receivedRequests = new ArrayList<>();
+    private final List<Integer> clientPorts = new ArrayList<>();
+    private volatile UnaryOperator<String> responseBody = id -> artifactResponse(id, "urn:oasis:names:tc:SAML:2.0:status:Success", RESPONSE);
+    private volatile int status = 200;
+    private volatile long delay = 0;
+
+    private LocalIdp(HttpServer server) {
+      this.server = server;
+    }
+
+    static LocalIdp start() throws IOException {
+      LocalIdp idp = new LocalIdp(HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0));
+      idp.server.createContext("/artifact", exchange -> {
+        String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8.name());
+        synchronized (idp) {
+          idp.receivedRequests.add(body);
+          idp.clientPorts.add(exchange.getRemoteAddress().getPort());
+        }
+        idp.sleep();
+        Matcher matcher = ID.matcher(body);
+        byte[] response = idp.responseBody.apply(matcher.find() ? matcher.group(1) : "").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+        exchange.sendResponseHeaders(idp.status, response.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+          output.write(response);
+        }
+      });
+      idp.server.start();
+      return idp;
+    }
+
+    static String artifactResponse(String inResponseTo, String status, String response) {
+      return "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+        "<samlp:ArtifactResponse xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_artifact_response\" Version=\"2.0\" " +
+        "InResponseTo=\"" + inResponseTo + "\" IssueInstant=\"2020-06-05T23:02:30Z\">" +
+        "<samlp:Status><samlp:StatusCode Value=\"" + status + "\"/></samlp:Status>" +
+        response +
+        "</samlp:ArtifactResponse></soap:Body></soap:Envelope>";
+    }
+
+    String getResolutionUrl() {
+      return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/artifact";
+    }
+
+    synchronized List<String> getReceivedRequests() {
+      return new ArrayList<>(receivedRequests);
+    }
+
+    synchronized List<Integer> getClientPorts() {
+      return new ArrayList<>(clientPorts);
+    }
+
+    void setResponseBody(UnaryOperator<String> responseBody) {
+      this.responseBody = responseBody;
+    }
+
+    void setStatus(int status) {
+      this.status = status;
+    }
+
+    void setDelay(long delay) {
+      this.delay = delay;
+    }
+
+    private void sleep() {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void close() {
+      server.stop(0);
+    }
+
+    private static String loadResponse() {
+      try (InputStream encoded = SamlArtifactResolverTest.class.getResourceAsStream("IntegrationTest/encoded_full_response.txt")) {
+        String xml = new String(Base64.getMimeDecoder().decode(IOUtils.toString(encoded, StandardCharsets.UTF_8.name()).trim()), StandardCharsets.UTF_8);
+        // The response is embedded in the ArtifactResponse, so without its XML declaration
+        return xml.replaceFirst("^<\\?xml[^>]*\\?>", "");
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
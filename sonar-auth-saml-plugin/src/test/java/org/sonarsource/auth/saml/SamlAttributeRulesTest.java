@@ -0,0 +1,75 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SamlAttributeRulesTest {
+
+  @Test
+  public void apply_rules_in_order() {
+    assertThat(SamlAttributeRules.compile("trim", "stripDomain", "lowercase").apply(" John.Doe@Example.com ")).isEqualTo("john.doe");
+    assertThat(SamlAttributeRules.compile("lowercase", "regex:(.*)@example\\.com").apply("John@Example.com")).isEqualTo("john");
+    assertThat(SamlAttributeRules.compile("uppercase").apply("john")).isEqualTo("JOHN");
+  }
+
+  @Test
+  public void no_rules_keep_value() {
+    assertThat(SamlAttributeRules.compile()).isSameAs(SamlAttributeRules.NONE);
+    assertThat(SamlAttributeRules.NONE.apply("John")).isEqualTo("John");
+  }
+
+  @Test
+  public void strip_domain_keeps_value_without_domain() {
+    assertThat(SamlAttributeRules.compile("stripDomain").apply("john")).isEqualTo("john");
+  }
+
+  @Test
+  public void regex_keeps_value_when_not_matching() {
+    SamlAttributeRules underTest = SamlAttributeRules.compile("regex:(.*)@example\\.com");
+
+    assertThat(underTest.apply("john@other.com")).isEqualTo("john@other.com");
+  }
+
+  @Test
+  public void regex_keeps_value_when_group_is_not_matched() {
+    SamlAttributeRules underTest = SamlAttributeRules.compile("regex:(\\d+)?[a-z]+");
+
+    assertThat(underTest.apply("john")).isEqualTo("john");
+    assertThat(underTest.apply("42john")).isEqualTo("42");
+  }
+
+  @Test
+  public void fail_on_unknown_rule() {
+    assertThatThrownBy(() -> SamlAttributeRules.compile("trim", "unknown"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid attribute transformation rule: unknown");
+  }
+
+  @Test
+  public void fail_on_regex_without_group() {
+    assertThatThrownBy(() -> SamlAttributeRules.compile("regex:.*@example\\.com"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Regular expression must define a group: regex:.*@example\\.com");
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.DateUtils;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SamlAuditLogTest {
+
+  private static final long NOW = 1_591_398_150_000L;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final System2 system2 = mock(System2.class);
+  private final SamlAuditLog underTest = new SamlAuditLog(new SamlSettings(settings.asConfig()), system2, 3);
+  private File logsDir;
+
+  @Before
+  public void setUp() throws IOException {
+    logsDir = temp.newFolder();
+    settings.setProperty("sonar.path.logs", logsDir.getAbsolutePath());
+    when(system2.now()).thenReturn(NOW);
+  }
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+  }
+
+  @Test
+  public void append_authentications_to_file() throws IOException {
+    settings.setProperty("sonar.auth.saml.audit.file", "saml-audit.log");
+
+    underTest.record("success", "john", "http://idp", Arrays.asList("developers", "admins"), null);
+    underTest.record("rejected", null, "http://idp", null, "The Response is unsolicited");
+    underTest.flush();
+
+    String date = DateUtils.formatDateTime(NOW);
+    assertThat(readLines(logsDir.toPath().resolve("saml-audit.log"))).containsExactly(
+      "{\"date\":\"" + date + "\",\"outcome\":\"success\",\"login\":\"john\",\"issuer\":\"http://idp\",\"groups\":[\"developers\",\"admins\"]}",
+      "{\"date\":\"" + date + "\",\"outcome\":\"rejected\",\"issuer\":\"http://idp\",\"reason\":\"The Response is unsolicited\"}");
+  }
+
+  @Test
+  public void use_absolute_path() throws IOException {
+    Path file = temp.newFolder().toPath().resolve("audit.log");
+    settings.setProperty("sonar.auth.saml.audit.file", file.toString());
+
+    underTest.record("success", "john", "http://idp", null, null);
+    underTest.flush();
+
+    assertThat(readLines(file)).hasSize(1);
+  }
+
+  @Test
+  public void do_nothing_when_audit_is_disabled() {
+    underTest.record("success", "john", "http://idp", null, null);
+    underTest.flush();
+
+    assertThat(logsDir.list()).isEmpty();
+    assertThat(underTest.getDroppedCount()).isZero();
+  }
+
+  @Test
+  public void do_not_start_writer_until_an_authentication_is_audited() {
+    underTest.start();
+
+    underTest.record("success", "john", "http://idp", null, null);
+    assertThat(underTest.isWriterRunning()).isFalse();
+
+    settings.setProperty("sonar.auth.saml.audit.file", "saml-audit.log");
+    underTest.record("success", "john", "http://idp", null, null);
+    assertThat(underTest.isWriterRunning()).isTrue();
+
+    underTest.stop();
+    assertThat(underTest.isWriterRunning()).isFalse();
+  }
+
+  @Test
+  public void do_not_start_writer_when_not_started() {
+    settings.setProperty("sonar.auth.saml.audit.file", "saml-audit.log");
+
+    underTest.record("success", "john", "http://idp", null, null);
+
+    assertThat(underTest.isWriterRunning()).isFalse();
+  }
+
+  @Test
+  public void drop_entries_when_queue_is_full() throws IOException {
+    settings.setProperty("sonar.auth.saml.audit.file", "saml-audit.log");
+
+    for (int i = 0; i < 5; i++) {
+      underTest.record("success", "user" + i, "http://idp", null, null);
+    }
+    underTest.flush();
+
+    assertThat(underTest.getDroppedCount()).isEqualTo(2);
+    assertThat(readLines(logsDir.toPath().resolve("saml-audit.log"))).hasSize(3);
+  }
+
+  @Test
+  public void rotate_file_when_it_exceeds_max_size() throws IOException {
+    settings.setProperty("sonar.auth.saml.audit.file", "saml-audit.log");
+    settings.setProperty("sonar.auth.saml.audit.maxFileSizeInMb", 0);
+    settings.setProperty("sonar.auth.saml.audit.maxFiles", 2);
+    Path file = logsDir.toPath().resolve("saml-audit.log");
+
+    for (int i = 1; i <= 4; i++) {
+      underTest.record("success", "user" + i, "http://idp", null, null);
+      underTest.flush();
+    }
+
+    assertThat(readLines(file)).hasSize(1).allMatch(line -> line.contains("user4"));
+    assertThat(readLines(SamlAuditLog.rotated(file, 1))).hasSize(1).allMatch(line -> line.contains("user3"));
+    assertThat(readLines(SamlAuditLog.rotated(file, 2))).hasSize(1).allMatch(line -> line.contains("user2"));
+    assertThat(SamlAuditLog.rotated(file, 3)).doesNotExist();
+  }
+
+  @Test
+  public void write_in_background() throws Exception {
+    settings.setProperty("sonar.auth.saml.audit.file", "saml-audit.log");
+    Path file = logsDir.toPath().resolve("saml-audit.log");
+    underTest.start();
+
+    underTest.record("success", "john", "http://idp", null, null);
+
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!Files.exists(file) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    underTest.stop();
+    assertThat(readLines(file)).hasSize(1);
+  }
+
+  @Test
+  public void stop_does_not_drop_the_batch_being_written() throws Exception {
+    settings.setProperty("sonar.auth.saml.audit.file", "saml-audit.log");
+    SamlAuditLog auditLog = new SamlAuditLog(new SamlSettings(settings.asConfig()), system2, 5_000);
+    auditLog.start();
+
+    for (int i = 0; i < 5_000; i++) {
+      auditLog.record("success", "user" + i, "http://idp", null, null);
+    }
+    auditLog.stop();
+
+    assertThat(auditLog.getDroppedCount()).isZero();
+    assertThat(readLines(logsDir.toPath().resolve("saml-audit.log"))).hasSize(5_000);
+  }
+
+  private static List<String> readLines(Path file) throws IOException {
+    return Files.readAllLines(file, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.util.Util;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamlAuthnRequestTest {
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlSettings samlSettings = new SamlSettings(settings.asConfig());
+
+  @Test
+  public void build_request() throws Exception {
+    settings.setProperty("sonar.auth.saml.providerId", "http://localhost:8080/auth/realms/sonarqube");
+    settings.setProperty("sonar.auth.saml.loginUrl", "http://localhost:8080/auth/realms/sonarqube/protocol/saml?tenant=a&b");
+    settings.setProperty("sonar.auth.saml.applicationId", "MyApp");
+    settings.setProperty("sonar.auth.saml.certificate.secured", "invalid");
+    Saml2Settings saml2Settings = Saml2SettingsFactory.create(samlSettings, new SamlCredentials(samlSettings), samlSettings.getDefaultIdp(), "http://localhost:9000/oauth2/callback/saml");
+
+    SamlAuthnRequest underTest = new SamlAuthnRequest(saml2Settings, "_id", 1_600_000_000_000L);
+
+    assertThat(underTest.getId()).isEqualTo("_id");
+    assertThat(underTest.getXml()).isEqualTo("<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" " +
+      "xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_id\" Version=\"2.0\" IssueInstant=\"2020-09-13T12:26:40Z\" " +
+      "Destination=\"http://localhost:8080/auth/realms/sonarqube/protocol/saml?tenant=a&amp;b\" " +
+      "ProtocolBinding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" AssertionConsumerServiceURL=\"http://localhost:9000/oauth2/callback/saml\">" +
+      "<saml:Issuer>MyApp</saml:Issuer>" +
+      "<samlp:NameIDPolicy Format=\"urn:oasis:names:tc:SAML:1.1:nameid-format:unspecified\" AllowCreate=\"true\" />" +
+      "</samlp:AuthnRequest>");
+    assertThat(Util.base64decodedInflated(underTest.getEncoded())).isEqualTo(underTest.getXml());
+  }
+}
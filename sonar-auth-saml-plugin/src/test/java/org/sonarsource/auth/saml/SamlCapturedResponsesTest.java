@@ -0,0 +1,110 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class SamlCapturedResponsesTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void read_encoded_response() {
+    SamlCapturedResponses.Captured captured = SamlCapturedResponses.parseLine("line 1", "PHNhbWxwOlJlc3BvbnNlLz4=");
+
+    assertThat(captured.getId()).isEqualTo("line 1");
+    assertThat(captured.getResponse()).isEqualTo("PHNhbWxwOlJlc3BvbnNlLz4=");
+    assertThat(captured.getError()).isNull();
+  }
+
+  @Test
+  public void read_json_object() {
+    SamlCapturedResponses.Captured captured = SamlCapturedResponses.parseLine("line 1",
+      "{\"time\": 1591398150, \"headers\": {\"Host\": \"sonar\", \"Via\": [\"a\", \"b}\"]}, \"id\" : \"capture-1\", \"SAMLResponse\": \"PHNh\\/\\u0062WxwOl=\"}");
+
+    assertThat(captured.getId()).isEqualTo("capture-1");
+    assertThat(captured.getResponse()).isEqualTo("PHNh/bWxwOl=");
+  }
+
+  @Test
+  public void read_json_string() {
+    assertThat(SamlCapturedResponses.parseLine("line 1", "\"PHNhbWxw\\nOl==\"").getResponse()).isEqualTo("PHNhbWxw\nOl==");
+  }
+
+  @Test
+  public void url_decode_response_copied_from_form() {
+    assertThat(SamlCapturedResponses.parseLine("line 1", "PHNh%2BbWxw%3D").getResponse()).isEqualTo("PHNh+bWxw=");
+    assertThat(SamlCapturedResponses.parseLine("line 1", "PHNh%ZZ").getError()).isEqualTo("Invalid URL encoding");
+  }
+
+  @Test
+  public void report_lines_which_can_not_be_read() {
+    SamlCapturedResponses.Captured captured = SamlCapturedResponses.parseLine("line 3", "{\"SAMLResponse\": \"PHNh");
+    assertThat(captured.getId()).isEqualTo("line 3");
+    assertThat(captured.getResponse()).isNull();
+    assertThat(captured.getError()).isEqualTo("Invalid JSON at column 23");
+
+    assertThat(SamlCapturedResponses.parseLine("line 4", "{\"id\": \"capture-4\"}"))
+      .extracting(SamlCapturedResponses.Captured::getId, SamlCapturedResponses.Captured::getResponse, SamlCapturedResponses.Captured::getError)
+      .containsExactly("capture-4", null, "No SAMLResponse property");
+    assertThat(SamlCapturedResponses.parseLine("line 5", "{\"id\" 1}").getError()).isEqualTo("Invalid JSON at column 7");
+  }
+
+  @Test
+  public void read_lines_of_file() throws IOException {
+    File file = temp.newFile();
+    Files.write(file.toPath(), asList("PHNh", "", "{\"id\": \"capture-3\", \"SAMLResponse\": \"bWxw\"}", "{"), StandardCharsets.UTF_8);
+    List<SamlCapturedResponses.Captured> captured = new ArrayList<>();
+
+    SamlCapturedResponses.read(file.toPath(), captured::add);
+
+    assertThat(captured)
+      .extracting(SamlCapturedResponses.Captured::getId, SamlCapturedResponses.Captured::getResponse)
+      .containsExactly(tuple("line 1", "PHNh"), tuple("capture-3", "bWxw"), tuple("line 4", null));
+  }
+
+  @Test
+  public void read_files_of_directory() throws IOException {
+    File directory = temp.newFolder();
+    Files.write(new File(directory, "first.txt").toPath(), "PHNh\n".getBytes(StandardCharsets.UTF_8));
+    Files.write(new File(directory, "second.txt").toPath(), "bWxw".getBytes(StandardCharsets.UTF_8));
+    new File(directory, "nested").mkdir();
+    List<SamlCapturedResponses.Captured> captured = new ArrayList<>();
+
+    SamlCapturedResponses.read(directory.toPath(), captured::add);
+
+    assertThat(captured)
+      .extracting(SamlCapturedResponses.Captured::getId, SamlCapturedResponses.Captured::getResponse)
+      .containsOnly(tuple("first.txt", "PHNh"), tuple("second.txt", "bWxw"));
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamlConcurrencyLimiterTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void acquire_up_to_the_limit() {
+    SamlConcurrencyLimiter underTest = new SamlConcurrencyLimiter(2, 10, 0, 0);
+
+    assertThat(underTest.acquire()).isTrue();
+    assertThat(underTest.acquire()).isTrue();
+    assertThat(underTest.acquire()).isFalse();
+
+    assertThat(underTest.getInFlight()).isEqualTo(2);
+    assertThat(underTest.getRejectionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void reject_when_no_slot_is_released_in_time() {
+    SamlConcurrencyLimiter underTest = new SamlConcurrencyLimiter(1, 10, 5, 10);
+    underTest.acquire();
+
+    assertThat(underTest.acquire()).isFalse();
+    assertThat(underTest.getRejectionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void waiting_request_gets_released_slot() throws Exception {
+    SamlConcurrencyLimiter underTest = new SamlConcurrencyLimiter(1, 1, 5, 10_000);
+    underTest.acquire();
+
+    CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(underTest::acquire);
+    while (underTest.getWaiting() == 0) {
+      Thread.sleep(1);
+    }
+    underTest.release(MS);
+
+    assertThat(waiting.get(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(underTest.getInFlight()).isEqualTo(1);
+  }
+
+  @Test
+  public void releases_without_sample_do_not_change_latency_without_load() {
+    SamlConcurrencyLimiter underTest = new SamlConcurrencyLimiter(4, 10, 0, 0);
+    underTest.acquire();
+    underTest.release(10 * MS);
+
+    // Responses rejected by the cheap checks, before the signature verification
+    for (int i = 0; i < 100; i++) {
+      underTest.acquire();
+      underTest.release();
+    }
+    for (int i = 0; i < 10; i++) {
+      underTest.acquire();
+      underTest.release(10 * MS);
+    }
+
+    assertThat(underTest.getLimit()).isEqualTo(4);
+    assertThat(underTest.getInFlight()).isZero();
+  }
+
+  @Test
+  public void increase_limit_when_latency_is_stable_and_limit_is_used() {
+    SamlConcurrencyLimiter underTest = new SamlConcurrencyLimiter(2, 10, 0, 0);
+
+    for (int i = 0; i < 10; i++) {
+      underTest.acquire();
+      underTest.acquire();
+      underTest.release(MS);
+      underTest.release(MS);
+    }
+
+    assertThat(underTest.getLimit()).isGreaterThan(2);
+  }
+
+  @Test
+  public void do_not_increase_limit_above_max() {
+    SamlConcurrencyLimiter underTest = new SamlConcurrencyLimiter(2, 3, 0, 0);
+
+    for (int i = 0; i < 100; i++) {
+      underTest.acquire();
+      underTest.acquire();
+      underTest.release(MS);
+      underTest.release(MS);
+    }
+
+    assertThat(underTest.getLimit()).isEqualTo(3);
+  }
+
+  @Test
+  public void decrease_limit_when_latency_increases() {
+    SamlConcurrencyLimiter underTest = new SamlConcurrencyLimiter(10, 10, 0, 0);
+    underTest.acquire();
+    underTest.release(MS);
+
+    for (int i = 0; i < 5; i++) {
+      underTest.acquire();
+      underTest.release(10 * MS);
+    }
+
+    assertThat(underTest.getLimit()).isLessThan(10);
+  }
+
+  @Test
+  public void limit_never_goes_below_one() {
+    SamlConcurrencyLimiter underTest = new SamlConcurrencyLimiter(2, 10, 0, 0);
+    underTest.acquire();
+    underTest.release(MS);
+
+    for (int i = 0; i < 100; i++) {
+      underTest.acquire();
+      underTest.release(100 * MS);
+    }
+
+    assertThat(underTest.getLimit()).isEqualTo(1);
+    assertThat(underTest.acquire()).isTrue();
+  }
+}
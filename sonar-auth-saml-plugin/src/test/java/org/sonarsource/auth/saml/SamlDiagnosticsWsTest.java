@@ -0,0 +1,234 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.DateUtils;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.text.JsonWriter;
+import org.sonarsource.auth.saml.SamlValidationPipeline.Stage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SamlDiagnosticsWsTest {
+
+  private static final String ADMIN = "{\"isLoggedIn\":true,\"login\":\"admin\",\"permissions\":{\"global\":[\"admin\", \"profileadmin\"]}}";
+  private static final String NOT_ADMIN = "{\"isLoggedIn\":true,\"login\":\"john\",\"permissions\":{\"global\":[\"profileadmin\",\"scan\"]}}";
+
+  private final SamlLoginFailures loginFailures = new SamlLoginFailures();
+  private final LocalConnector localConnector = mock(LocalConnector.class);
+  private final LocalConnector.LocalResponse currentUserResponse = mock(LocalConnector.LocalResponse.class);
+  private final Request request = mock(Request.class);
+  private final Response response = mock(Response.class);
+  private final SamlConcurrencyLimiter concurrencyLimiter = new SamlConcurrencyLimiter(4, 8, 2, 0);
+  private final SamlRequestTracker requestTracker = new SamlRequestTracker(System2.INSTANCE);
+  private final SamlArtifactResolver artifactResolver = new SamlArtifactResolver(mock(SamlSettings.class), System2.INSTANCE);
+  private final SamlDiagnosticsWs underTest = new SamlDiagnosticsWs(loginFailures, concurrencyLimiter, requestTracker, artifactResolver);
+
+  @Test
+  public void define_failures_action() {
+    WebService.Action action = defineFailuresAction();
+
+    assertThat(action.isInternal()).isTrue();
+    assertThat(action.isPost()).isFalse();
+    assertThat(action.since()).isEqualTo("1.2");
+  }
+
+  @Test
+  public void list_failures_to_system_administrators() throws Exception {
+    loginFailures.record(1_591_398_150_000L, Stage.ISSUER, "Invalid issuer", "http://evil", "response");
+    mockCurrentUser(ADMIN);
+    StringWriter json = new StringWriter();
+    when(response.newJsonWriter()).thenReturn(JsonWriter.of(json));
+
+    defineFailuresAction().handler().handle(request, response);
+
+    assertThat(json.toString()).isEqualTo("{\"failures\":[{"
+      + "\"date\":\"" + DateUtils.formatDateTime(1_591_398_150_000L) + "\","
+      + "\"stage\":\"ISSUER\","
+      + "\"reason\":\"Invalid issuer\","
+      + "\"issuer\":\"http://evil\","
+      + "\"responseHash\":\"" + String.format("%016x", SamlLoginFailures.hash("response")) + "\"}]}");
+    ArgumentCaptor<LocalConnector.LocalRequest> currentUser = ArgumentCaptor.forClass(LocalConnector.LocalRequest.class);
+    verify(localConnector).call(currentUser.capture());
+    assertThat(currentUser.getValue().getPath()).isEqualTo("api/users/current");
+    assertThat(currentUser.getValue().getMethod()).isEqualTo("GET");
+  }
+
+  @Test
+  public void list_no_failures_when_there_are_none() throws Exception {
+    mockCurrentUser(ADMIN);
+    StringWriter json = new StringWriter();
+    when(response.newJsonWriter()).thenReturn(JsonWriter.of(json));
+
+    defineFailuresAction().handler().handle(request, response);
+
+    assertThat(json.toString()).isEqualTo("{\"failures\":[]}");
+  }
+
+  @Test
+  public void list_only_the_last_failures_when_buffer_has_wrapped() throws Exception {
+    SamlLoginFailures wrappedFailures = new SamlLoginFailures(3);
+    for (int i = 1; i <= 5; i++) {
+      wrappedFailures.record(i * 1_000L, Stage.ISSUER, "failure " + i, "http://idp", null);
+    }
+    SamlDiagnosticsWs diagnosticsWs = new SamlDiagnosticsWs(wrappedFailures, concurrencyLimiter, requestTracker, artifactResolver);
+    mockCurrentUser(ADMIN);
+    StringWriter json = new StringWriter();
+    when(response.newJsonWriter()).thenReturn(JsonWriter.of(json));
+
+    defineAction(diagnosticsWs, "failures").handler().handle(request, response);
+
+    assertThat(json.toString())
+      .contains("\"reason\":\"failure 5\"", "\"reason\":\"failure 4\"", "\"reason\":\"failure 3\"")
+      .doesNotContain("failure 2", "failure 1");
+    assertThat(json.toString().indexOf("failure 5")).isLessThan(json.toString().indexOf("failure 3"));
+  }
+
+  @Test
+  public void reject_users_who_are_not_system_administrators() throws Exception {
+    loginFailures.record(1_591_398_150_000L, Stage.ISSUER, "Invalid issuer", "http://evil", "response");
+    mockCurrentUser(NOT_ADMIN);
+    ByteArrayOutputStream output = mockForbiddenStream();
+
+    defineFailuresAction().handler().handle(request, response);
+
+    assertThat(new String(output.toByteArray(), StandardCharsets.UTF_8)).isEqualTo("{\"errors\":[{\"msg\":\"Insufficient privileges\"}]}");
+    verify(response, never()).newJsonWriter();
+  }
+
+  @Test
+  public void reject_anonymous_users() throws Exception {
+    loginFailures.record(1_591_398_150_000L, Stage.ISSUER, "Invalid issuer", "http://evil", "response");
+    mockCurrentUser("{\"isLoggedIn\":false,\"permissions\":{\"global\":[]}}");
+    mockForbiddenStream();
+
+    defineFailuresAction().handler().handle(request, response);
+
+    verify(response, never()).newJsonWriter();
+  }
+
+  @Test
+  public void reject_users_whose_name_looks_like_admin_permission() throws Exception {
+    mockCurrentUser("{\"isLoggedIn\":true,\"login\":\"john\",\"name\":\"\\\"permissions\\\":{\\\"global\\\":[\\\"admin\\\"]}\","
+      + "\"permissions\":{\"global\":[\"profileadmin\"]}}");
+    mockForbiddenStream();
+
+    defineFailuresAction().handler().handle(request, response);
+
+    verify(response, never()).newJsonWriter();
+  }
+
+  @Test
+  public void reject_users_when_current_user_is_not_available() throws Exception {
+    mockCurrentUser(500, ADMIN);
+    mockForbiddenStream();
+
+    defineFailuresAction().handler().handle(request, response);
+
+    verify(response, never()).newJsonWriter();
+  }
+
+  @Test
+  public void return_metrics_to_system_administrators() throws Exception {
+    concurrencyLimiter.acquire();
+    requestTracker.add("ID_1", "http://idp");
+    requestTracker.add("ID_2", "http://idp");
+    requestTracker.getProviderId("ID_1");
+    requestTracker.getProviderId("unknown");
+    artifactResolver.getResolutionLatencies().record(3);
+    artifactResolver.getResolutionLatencies().record(60_000);
+    mockCurrentUser(ADMIN);
+    StringWriter json = new StringWriter();
+    when(response.newJsonWriter()).thenReturn(JsonWriter.of(json));
+
+    WebService.Action action = defineAction("metrics");
+    action.handler().handle(request, response);
+
+    assertThat(action.isInternal()).isTrue();
+    assertThat(json.toString()).isEqualTo("{\"concurrency\":{\"limit\":4,\"inFlight\":1,\"waiting\":0,\"rejections\":0},"
+      + "\"requestTracker\":{\"pending\":2,\"hits\":1,\"misses\":1,\"hitRate\":0.5,\"overflows\":0},"
+      + "\"artifactResolution\":{\"count\":2,\"p50\":5,\"buckets\":[{\"le\":1,\"count\":0},{\"le\":2,\"count\":0},{\"le\":5,\"count\":1},"
+      + "{\"le\":10,\"count\":0},{\"le\":20,\"count\":0},{\"le\":50,\"count\":0},{\"le\":100,\"count\":0},{\"le\":200,\"count\":0},"
+      + "{\"le\":500,\"count\":0},{\"le\":1000,\"count\":0},{\"le\":2000,\"count\":0},{\"le\":5000,\"count\":0},{\"le\":10000,\"count\":0},"
+      + "{\"count\":1}]}}");
+  }
+
+  @Test
+  public void do_not_return_metrics_to_users_who_are_not_system_administrators() throws Exception {
+    mockCurrentUser(NOT_ADMIN);
+    mockForbiddenStream();
+
+    defineAction("metrics").handler().handle(request, response);
+
+    verify(response, never()).newJsonWriter();
+  }
+
+  private WebService.Action defineFailuresAction() {
+    return defineAction("failures");
+  }
+
+  private WebService.Action defineAction(String key) {
+    return defineAction(underTest, key);
+  }
+
+  private static WebService.Action defineAction(SamlDiagnosticsWs diagnosticsWs, String key) {
+    WebService.Context context = new WebService.Context();
+    diagnosticsWs.define(context);
+    return context.controller("api/authsaml").action(key);
+  }
+
+  private void mockCurrentUser(String json) {
+    mockCurrentUser(200, json);
+  }
+
+  private void mockCurrentUser(int status, String json) {
+    when(request.localConnector()).thenReturn(localConnector);
+    when(localConnector.call(any())).thenReturn(currentUserResponse);
+    when(currentUserResponse.getStatus()).thenReturn(status);
+    when(currentUserResponse.getBytes()).thenReturn(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return the output of the response, expected to be rejected with 403
+   */
+  private ByteArrayOutputStream mockForbiddenStream() throws IOException {
+    Response.Stream stream = mock(Response.Stream.class);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    when(response.stream()).thenReturn(stream);
+    when(stream.setStatus(403)).thenReturn(stream);
+    when(stream.output()).thenReturn(output);
+    return output;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamlDomainTrieTest {
+
+  private final SamlDomainTrie<String> underTest = new SamlDomainTrie<>();
+
+  @Test
+  public void find_exact_domain() {
+    underTest.put("example.com", "a");
+    underTest.put("other.example.com", "b");
+
+    assertThat(underTest.find("example.com")).isEqualTo("a");
+    assertThat(underTest.find("other.example.com")).isEqualTo("b");
+    assertThat(underTest.find("sub.example.com")).isNull();
+    assertThat(underTest.find("example.org")).isNull();
+    assertThat(underTest.find("com")).isNull();
+    assertThat(underTest.find("")).isNull();
+  }
+
+  @Test
+  public void wildcard_matches_sub_domains_only() {
+    underTest.put("*.example.com", "a");
+
+    assertThat(underTest.find("sub.example.com")).isEqualTo("a");
+    assertThat(underTest.find("deep.sub.example.com")).isEqualTo("a");
+    assertThat(underTest.find("example.com")).isNull();
+    assertThat(underTest.find("notexample.com")).isNull();
+  }
+
+  @Test
+  public void most_specific_pattern_wins() {
+    underTest.put("*.example.com", "wildcard");
+    underTest.put("example.com", "apex");
+    underTest.put("*.eu.example.com", "eu wildcard");
+    underTest.put("paris.eu.example.com", "paris");
+
+    assertThat(underTest.find("example.com")).isEqualTo("apex");
+    assertThat(underTest.find("us.example.com")).isEqualTo("wildcard");
+    assertThat(underTest.find("eu.example.com")).isEqualTo("wildcard");
+    assertThat(underTest.find("berlin.eu.example.com")).isEqualTo("eu wildcard");
+    assertThat(underTest.find("paris.eu.example.com")).isEqualTo("paris");
+    assertThat(underTest.find("office.paris.eu.example.com")).isEqualTo("eu wildcard");
+  }
+
+  @Test
+  public void keep_first_value_of_a_pattern() {
+    assertThat(underTest.put("example.com", "a")).isTrue();
+    assertThat(underTest.put("example.com", "b")).isFalse();
+    assertThat(underTest.put("*.example.com", "c")).isTrue();
+
+    assertThat(underTest.find("example.com")).isEqualTo("a");
+    assertThat(underTest.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void index_many_domains() {
+    for (int i = 0; i < 50_000; i++) {
+      underTest.put("customer" + i + ".example.com", "idp" + i);
+    }
+
+    assertThat(underTest.size()).isEqualTo(50_000);
+    assertThat(underTest.find("customer42.example.com")).isEqualTo("idp42");
+    assertThat(underTest.find("customer50000.example.com")).isNull();
+  }
+}
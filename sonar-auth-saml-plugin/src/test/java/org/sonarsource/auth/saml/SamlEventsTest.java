@@ -0,0 +1,111 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class SamlEventsTest {
+
+  private static final String PREFIX = "org.sonarsource.auth.saml.";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+
+  @Test
+  public void record_stages_of_callback() throws IOException {
+    SamlTestIdp.configure(settings);
+    SamlIdentityProvider underTest = SamlLoadDriver.newIdentityProvider(new SamlSettings(settings.asConfig()));
+    String encodedResponse = new SamlTestIdp(2, 3).newResponse("john", null, SamlLoadDriver.CALLBACK_URL);
+    SamlLoadDriver.CallbackContext context = new SamlLoadDriver.CallbackContext(encodedResponse);
+
+    Path file = temp.newFile("saml.jfr").toPath();
+    try (Recording recording = new Recording()) {
+      recording.start();
+      underTest.callback(context);
+      recording.stop();
+      recording.dump(file);
+    }
+
+    assertThat(context.getUserIdentity()).isNotNull();
+    Map<String, RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+      .filter(event -> event.getEventType().getName().startsWith(PREFIX))
+      .collect(Collectors.toMap(event -> event.getEventType().getName().substring(PREFIX.length()), Function.identity()));
+    assertThat(events).containsOnlyKeys("Callback", "Prevalidation", "ResponseParsing", "ResponseValidation", "AttributeMapping", "Authenticate");
+    assertThat(events.values()).extracting(event -> event.getString("outcome")).containsOnly(SamlEvents.SUCCESS);
+    RecordedEvent callback = events.get("Callback");
+    assertThat(callback.getString("issuer")).isEqualTo(SamlTestIdp.PROVIDER_ID);
+    assertThat(callback.getString("binding")).isEqualTo("post");
+    assertThat(callback.getInt("responseSize")).isEqualTo(encodedResponse.length());
+    assertThat(callback.getInt("groupCount")).isEqualTo(3);
+    assertThat(events.get("AttributeMapping").getInt("groupCount")).isEqualTo(3);
+    assertThat(callback.getDuration()).isGreaterThanOrEqualTo(events.get("ResponseValidation").getDuration());
+  }
+
+  @Test
+  public void record_rejected_callback() throws IOException {
+    SamlTestIdp.configure(settings);
+    SamlIdentityProvider underTest = SamlLoadDriver.newIdentityProvider(new SamlSettings(settings.asConfig()));
+    SamlLoadDriver.CallbackContext context = new SamlLoadDriver.CallbackContext(
+      new SamlTestIdp(2, 3).newResponse("john", null, "http://other/oauth2/callback/saml"));
+
+    Path file = temp.newFile("saml.jfr").toPath();
+    try (Recording recording = new Recording()) {
+      recording.start();
+      try {
+        underTest.callback(context);
+      } catch (RuntimeException e) {
+        // Expected, the destination doesn't match
+      }
+      recording.stop();
+      recording.dump(file);
+    }
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+      .filter(event -> event.getEventType().getName().startsWith(PREFIX))
+      .collect(Collectors.toList());
+    assertThat(events).extracting(event -> event.getEventType().getName().substring(PREFIX.length()), event -> event.getString("outcome"))
+      .containsExactlyInAnyOrder(tuple("Prevalidation", SamlEvents.REJECTED), tuple("Callback", SamlEvents.REJECTED));
+  }
+
+  @Test
+  public void do_not_create_events_when_not_recorded() {
+    for (SamlEvents.Type type : SamlEvents.Type.values()) {
+      assertThat(SamlEvents.begin(type)).isSameAs(SamlEvents.NONE);
+    }
+  }
+}
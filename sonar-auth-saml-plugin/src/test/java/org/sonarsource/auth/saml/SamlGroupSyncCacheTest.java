@@ -0,0 +1,109 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.internal.google.common.collect.ImmutableSet;
+import org.sonar.api.utils.System2;
+
+import static java.util.Collections.emptySet;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SamlGroupSyncCacheTest {
+
+  private long now = 1_600_000_000_000L;
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final System2 system2 = mockSystem2();
+  private final SamlGroupSyncCache underTest = new SamlGroupSyncCache(new SamlSettings(settings.asConfig()), system2, 3);
+
+  @Before
+  public void setUp() {
+    settings.setProperty("sonar.auth.saml.group.resyncInterval", 60);
+  }
+
+  @Test
+  public void groups_are_unchanged_when_same_groups_were_synced() {
+    underTest.synced("john", ImmutableSet.of("developer", "product-manager"));
+
+    assertThat(underTest.isUnchanged("john", ImmutableSet.of("product-manager", "developer"))).isTrue();
+    assertThat(underTest.getSkippedSyncCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void groups_are_changed_when_different_groups_were_synced() {
+    underTest.synced("john", ImmutableSet.of("developer"));
+
+    assertThat(underTest.isUnchanged("john", ImmutableSet.of("developer", "product-manager"))).isFalse();
+    assertThat(underTest.isUnchanged("john", emptySet())).isFalse();
+    assertThat(underTest.isUnchanged("jane", ImmutableSet.of("developer"))).isFalse();
+  }
+
+  @Test
+  public void digest_does_not_depend_on_separators_in_group_names() {
+    underTest.synced("john", ImmutableSet.of("a:b", "c"));
+
+    assertThat(underTest.isUnchanged("john", ImmutableSet.of("a", "b:c"))).isFalse();
+  }
+
+  @Test
+  public void groups_are_synced_again_after_interval() {
+    underTest.synced("john", ImmutableSet.of("developer"));
+
+    now += TimeUnit.MINUTES.toMillis(61);
+
+    assertThat(underTest.isUnchanged("john", ImmutableSet.of("developer"))).isFalse();
+  }
+
+  @Test
+  public void nothing_is_cached_when_disabled() {
+    settings.setProperty("sonar.auth.saml.group.resyncInterval", 0);
+
+    underTest.synced("john", ImmutableSet.of("developer"));
+
+    assertThat(underTest.size()).isZero();
+    assertThat(underTest.isUnchanged("john", ImmutableSet.of("developer"))).isFalse();
+  }
+
+  @Test
+  public void least_recently_used_logins_are_evicted() {
+    underTest.synced("login1", ImmutableSet.of("developer"));
+    underTest.synced("login2", ImmutableSet.of("developer"));
+    underTest.synced("login3", ImmutableSet.of("developer"));
+    underTest.isUnchanged("login1", ImmutableSet.of("developer"));
+
+    underTest.synced("login4", ImmutableSet.of("developer"));
+
+    assertThat(underTest.size()).isEqualTo(3);
+    assertThat(underTest.isUnchanged("login1", ImmutableSet.of("developer"))).isTrue();
+    assertThat(underTest.isUnchanged("login2", ImmutableSet.of("developer"))).isFalse();
+  }
+
+  private System2 mockSystem2() {
+    System2 system2 = mock(System2.class);
+    when(system2.now()).thenAnswer(invocation -> now);
+    return system2;
+  }
+}
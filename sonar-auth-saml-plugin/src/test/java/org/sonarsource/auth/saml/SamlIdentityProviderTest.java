@@ -22,7 +22,15 @@ package org.sonarsource.auth.saml;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.io.IOUtils;
@@ -30,18 +38,29 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.internal.MapSettings;
 import org.sonar.api.internal.google.common.collect.ImmutableMap;
+import org.sonar.api.internal.google.common.collect.ImmutableSet;
 import org.sonar.api.server.authentication.OAuth2IdentityProvider;
 import org.sonar.api.server.authentication.UnauthorizedException;
 import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.AssertionsForClassTypes.assertThatThrownBy;
-import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 public class SamlIdentityProviderTest {
@@ -50,9 +69,26 @@ public class SamlIdentityProviderTest {
 
   @Rule
   public ExpectedException expectedException = ExpectedException.none();
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
 
   private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
-  private final SamlIdentityProvider underTest = new SamlIdentityProvider(new SamlSettings(settings.asConfig()));
+  private final SamlSettings samlSettings = new SamlSettings(settings.asConfig());
+  private final SamlRequestTracker requestTracker = new SamlRequestTracker(System2.INSTANCE);
+  private final SamlIdpDiscovery idpDiscovery = new SamlIdpDiscovery(samlSettings, System2.INSTANCE, Runnable::run);
+  private final SamlCredentials credentials = new SamlCredentials(samlSettings);
+  private final SamlReplayStore replayStore = new SamlReplayStore(samlSettings, System2.INSTANCE);
+  private final SamlValidationPipeline validationPipeline = new SamlValidationPipeline(samlSettings, requestTracker, idpDiscovery, credentials,
+    new SamlSignatureVerifier(samlSettings), new SamlLoginFailures(), replayStore, System2.INSTANCE);
+  private final SamlRateLimiter rateLimiter = new SamlRateLimiter(samlSettings, System2.INSTANCE);
+  private final SamlConcurrencyLimiter concurrencyLimiter = new SamlConcurrencyLimiter();
+  private final SamlRequestSigner requestSigner = new SamlRequestSigner(samlSettings, credentials);
+  private final SamlGroupSyncCache groupSyncCache = new SamlGroupSyncCache(samlSettings, System2.INSTANCE);
+  private final SamlArtifactResolver artifactResolver = new SamlArtifactResolver(samlSettings, System2.INSTANCE);
+  private final SamlSessionRegistry sessionRegistry = new SamlSessionRegistry(samlSettings, System2.INSTANCE);
+  private final SamlAuditLog auditLog = mock(SamlAuditLog.class);
+  private final SamlWarmUp warmUp = mock(SamlWarmUp.class);
+  private final SamlIdentityProvider underTest = new SamlIdentityProvider(samlSettings, rateLimiter, concurrencyLimiter, requestTracker, validationPipeline, credentials, requestSigner, groupSyncCache, idpDiscovery, artifactResolver, sessionRegistry, auditLog, warmUp, System2.INSTANCE);
   private HttpServletResponse response;
   private HttpServletRequest request;
 
@@ -91,6 +127,17 @@ public class SamlIdentityProviderTest {
     assertThat(underTest.isEnabled()).isFalse();
   }
 
+  @Test
+  public void warm_up_validation_when_enabled() {
+    setSettings(false);
+    underTest.isEnabled();
+    verifyZeroInteractions(warmUp);
+
+    setSettings(true);
+    underTest.isEnabled();
+    verify(warmUp).warmUpInBackground();
+  }
+
   @Test
   public void init() throws IOException {
     setSettings(true);
@@ -98,10 +145,72 @@ public class SamlIdentityProviderTest {
 
     underTest.init(context);
 
-    verify(context.response).sendRedirect(anyString());
+    ArgumentCaptor<String> redirectUrl = ArgumentCaptor.forClass(String.class);
+    verify(context.response).sendRedirect(redirectUrl.capture());
+    assertThat(redirectUrl.getValue()).startsWith("http://localhost:8080/auth/realms/sonarqube/protocol/saml?SAMLRequest=");
+    assertThat(redirectUrl.getValue()).doesNotContain("Signature=");
     assertThat(context.generateCsrfState.get()).isTrue();
   }
 
+  @Test
+  public void init_tracks_authn_request_with_its_identity_provider() {
+    setSettings(true);
+
+    underTest.init(new DumbInitContext());
+
+    assertThat(requestTracker.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void init_with_signed_authn_request() throws Exception {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.signAuthnRequests", true);
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+    settings.setProperty("sonar.auth.saml.sp.privateKey.secured", loadResource("sp_private_key.pem"));
+    DumbInitContext context = new DumbInitContext();
+
+    underTest.init(context);
+
+    ArgumentCaptor<String> redirectUrl = ArgumentCaptor.forClass(String.class);
+    verify(context.response).sendRedirect(redirectUrl.capture());
+    assertThat(redirectUrl.getValue()).startsWith("http://localhost:8080/auth/realms/sonarqube/protocol/saml?SAMLRequest=");
+    assertThat(redirectUrl.getValue()).contains("&SigAlg=", "&Signature=");
+    RSAPrivateCrtKey privateKey = (RSAPrivateCrtKey) credentials.getServiceProviderPrivateKey();
+    PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(privateKey.getModulus(), privateKey.getPublicExponent()));
+    SamlRequestSignerTest.assertValidSignature(redirectUrl.getValue(), publicKey);
+    assertThat(context.generateCsrfState.get()).isTrue();
+    assertThat(requestTracker.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void fail_to_init_with_signed_authn_request_without_private_key() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.signAuthnRequests", true);
+
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("The service provider private key is required to sign authentication requests");
+
+    underTest.init(new DumbInitContext());
+  }
+
+  @Test
+  public void init_redirects_to_identity_provider_of_email_domain() throws IOException {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.additionalIdps", "1");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.domains", "*.example.com");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.providerId", "http://other-idp");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.loginUrl", "http://other-idp/protocol/saml");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.certificate", loadResource("idp_certificate.pem"));
+    DumbInitContext context = new DumbInitContext();
+    when(context.request.getParameter("login_hint")).thenReturn("john@eu.example.com");
+
+    underTest.init(context);
+
+    ArgumentCaptor<String> redirectUrl = ArgumentCaptor.forClass(String.class);
+    verify(context.response).sendRedirect(redirectUrl.capture());
+    assertThat(redirectUrl.getValue()).startsWith("http://other-idp/protocol/saml?SAMLRequest=");
+  }
+
   @Test
   public void fail_to_init_when_login_url_is_invalid() {
     setSettings(true);
@@ -124,6 +233,197 @@ public class SamlIdentityProviderTest {
     assertThat(callbackContext.redirectedToRequestedPage.get()).isTrue();
     assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("johndoe");
     assertThat(callbackContext.verifyState.get()).isTrue();
+    verify(auditLog).record(eq("success"), eq("johndoe"), eq("http://localhost:8080/auth/realms/sonarqube"), any(), isNull());
+  }
+
+  @Test
+  public void reject_replayed_assertion() throws IOException {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.replayProtection", true);
+    settings.setProperty("sonar.path.data", temp.newFolder().getAbsolutePath());
+
+    underTest.callback(new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL));
+
+    DumbCallbackContext replayContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+    assertThatThrownBy(() -> underTest.callback(replayContext))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("The Assertion ID_0183b780-3ac1-4ea0-b269-b15b2ec2d1c5 has already been used");
+    assertThat(validationPipeline.getRejectionCount(SamlValidationPipeline.Stage.REPLAY)).isEqualTo(1);
+    assertThat(replayContext.userIdentity).isNull();
+  }
+
+  @Test
+  public void callback_on_encrypted_assertion() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    settings.setProperty("sonar.auth.saml.sp.privateKey.secured", loadResource("sp_private_key.pem"));
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_encrypted_response.txt", SQ_CALLBACK_URL);
+
+    underTest.callback(callbackContext);
+
+    assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("johndoe");
+    assertThat(callbackContext.userIdentity.getName()).isEqualTo("John Doe");
+    assertThat(callbackContext.userIdentity.getEmail()).isEqualTo("johndoe@email.com");
+    assertThat(callbackContext.userIdentity.getGroups()).containsExactlyInAnyOrder("developer", "product-manager");
+  }
+
+  @Test
+  public void callback_on_response_sent_with_redirect_binding() throws GeneralSecurityException {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+    String xmlResponse = new String(Base64.getMimeDecoder().decode(loadResource("encoded_full_response.txt").trim()), StandardCharsets.UTF_8);
+    when(request.getQueryString()).thenReturn(SamlRedirectMessageTest.signedQueryString(xmlResponse, "state",
+      SamlRedirectMessageTest.loadPrivateKey(loadResource("idp_private_key.pem"))));
+
+    underTest.callback(callbackContext);
+
+    assertThat(callbackContext.verifyState.get()).isTrue();
+    assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("johndoe");
+    assertThat(callbackContext.userIdentity.getName()).isEqualTo("John Doe");
+    assertThat(callbackContext.userIdentity.getEmail()).isEqualTo("johndoe@email.com");
+    assertThat(callbackContext.userIdentity.getGroups()).containsExactlyInAnyOrder("developer", "product-manager");
+  }
+
+  @Test
+  public void callback_on_artifact_resolved_through_back_channel() throws IOException {
+    setSettings(true);
+    try (SamlArtifactResolverTest.LocalIdp idp = SamlArtifactResolverTest.LocalIdp.start()) {
+      settings.setProperty("sonar.auth.saml.artifactResolutionUrl", idp.getResolutionUrl());
+      DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+      String artifact = SamlArtifactResolverTest.newArtifact("http://localhost:8080/auth/realms/sonarqube");
+      when(request.getParameterMap()).thenReturn(ImmutableMap.of("SAMLart", new String[] {artifact}));
+
+      underTest.callback(callbackContext);
+
+      assertThat(idp.getReceivedRequests()).hasSize(1);
+      assertThat(callbackContext.verifyState.get()).isTrue();
+      assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("johndoe");
+      assertThat(callbackContext.userIdentity.getGroups()).containsExactlyInAnyOrder("developer", "product-manager");
+    }
+  }
+
+  @Test
+  public void slow_artifact_resolution_does_not_shrink_concurrency_limit() throws IOException {
+    setSettings(true);
+    SamlConcurrencyLimiter limiter = spy(new SamlConcurrencyLimiter(4, 8, 2, 0));
+    SamlIdentityProvider provider = new SamlIdentityProvider(samlSettings, rateLimiter, limiter, requestTracker, validationPipeline, credentials, requestSigner, groupSyncCache, idpDiscovery, artifactResolver, sessionRegistry, auditLog, warmUp, System2.INSTANCE);
+    provider.callback(new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL));
+    try (SamlArtifactResolverTest.LocalIdp idp = SamlArtifactResolverTest.LocalIdp.start()) {
+      idp.setDelay(1_000);
+      settings.setProperty("sonar.auth.saml.artifactResolutionUrl", idp.getResolutionUrl());
+      String artifact = SamlArtifactResolverTest.newArtifact("http://localhost:8080/auth/realms/sonarqube");
+      when(request.getParameterMap()).thenReturn(ImmutableMap.of("SAMLart", new String[] {artifact}));
+      DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+      provider.callback(callbackContext);
+
+      assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("johndoe");
+    }
+    ArgumentCaptor<Long> latencies = ArgumentCaptor.forClass(Long.class);
+    verify(limiter, times(2)).release(latencies.capture());
+    assertThat(latencies.getAllValues()).allMatch(latency -> latency < TimeUnit.MILLISECONDS.toNanos(1_000));
+    assertThat(limiter.getLimit()).isGreaterThanOrEqualTo(4);
+  }
+
+  @Test
+  public void fail_to_callback_on_encrypted_assertion_without_private_key() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_encrypted_response.txt", SQ_CALLBACK_URL);
+
+    expectedException.expect(IllegalStateException.class);
+    expectedException.expectMessage("Fail to process response");
+
+    underTest.callback(callbackContext);
+  }
+
+  @Test
+  public void reject_callback_with_429_when_client_exceeds_rate_limit() throws IOException {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.callback.rateLimit", 1);
+    settings.setProperty("sonar.auth.saml.callback.rateLimitBurst", 1);
+    when(request.getRemoteAddr()).thenReturn("10.0.0.1");
+    underTest.callback(new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL));
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    underTest.callback(callbackContext);
+
+    verify(response).setHeader("Retry-After", "60");
+    verify(response).sendError(429, "Too many SAML authentication requests");
+    assertThat(callbackContext.userIdentity).isNull();
+    assertThat(callbackContext.redirectedToRequestedPage.get()).isFalse();
+  }
+
+  @Test
+  public void reject_callback_with_503_when_concurrency_limit_is_reached() throws IOException {
+    setSettings(true);
+    SamlConcurrencyLimiter saturatedLimiter = new SamlConcurrencyLimiter(1, 1, 0, 0);
+    saturatedLimiter.acquire();
+    SamlIdentityProvider provider = new SamlIdentityProvider(samlSettings, rateLimiter, saturatedLimiter, requestTracker, validationPipeline, credentials, requestSigner, groupSyncCache, idpDiscovery, artifactResolver, sessionRegistry, auditLog, warmUp, System2.INSTANCE);
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    provider.callback(callbackContext);
+
+    verify(response).sendError(503, "Too many concurrent SAML authentications");
+    assertThat(callbackContext.userIdentity).isNull();
+    assertThat(saturatedLimiter.getRejectionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void concurrency_limiter_is_released_after_validation() {
+    setSettings(true);
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    underTest.callback(callbackContext);
+    assertThatThrownBy(() -> underTest.callback(new DumbCallbackContext(request, response, "encoded_response_without_login.txt", SQ_CALLBACK_URL)))
+      .isInstanceOf(NullPointerException.class);
+    settings.setProperty("sonar.auth.saml.applicationId", "OtherApp");
+    assertThatThrownBy(() -> underTest.callback(new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL)))
+      .isInstanceOf(UnauthorizedException.class);
+
+    assertThat(concurrencyLimiter.getInFlight()).isZero();
+  }
+
+  @Test
+  public void only_sample_latency_of_validations_reaching_signature_verification() {
+    setSettings(true);
+    SamlConcurrencyLimiter limiter = spy(new SamlConcurrencyLimiter());
+    SamlIdentityProvider provider = new SamlIdentityProvider(samlSettings, rateLimiter, limiter, requestTracker, validationPipeline, credentials, requestSigner, groupSyncCache, idpDiscovery, artifactResolver, sessionRegistry, auditLog, warmUp, System2.INSTANCE);
+
+    provider.callback(new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL));
+    verify(limiter).release(anyLong());
+
+    settings.setProperty("sonar.auth.saml.applicationId", "OtherApp");
+    assertThatThrownBy(() -> provider.callback(new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL)))
+      .isInstanceOf(UnauthorizedException.class);
+    verify(limiter).release();
+    verify(limiter, times(1)).release(anyLong());
+  }
+
+  @Test
+  public void callback_on_response_to_pending_authn_request() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+    requestTracker.add("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75", "http://localhost:8080/auth/realms/sonarqube");
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    underTest.callback(callbackContext);
+
+    assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("johndoe");
+    assertThat(requestTracker.size()).isZero();
+  }
+
+  @Test
+  public void fail_to_callback_on_response_to_unknown_authn_request() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    assertThatThrownBy(() -> underTest.callback(callbackContext))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("The InResponseTo of the Response: ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75, does not match any pending AuthnRequest");
+    assertThat(validationPipeline.getRejectionCount(SamlValidationPipeline.Stage.IN_RESPONSE_TO)).isEqualTo(1);
   }
 
   @Test
@@ -139,6 +439,19 @@ public class SamlIdentityProviderTest {
       .hasMessageContaining("The response was received at http://localhost/oauth2/callback/saml instead of https://localhost/oauth2/callback/saml");
   }
 
+  @Test
+  public void failed_callback_is_rejected_before_signature_validation_when_audience_is_invalid() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.applicationId", "OtherApp");
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    assertThatThrownBy(() -> underTest.callback(callbackContext))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("OtherApp is not a valid audience for this Response");
+    assertThat(validationPipeline.getRejectionCount(SamlValidationPipeline.Stage.AUDIENCE)).isEqualTo(1);
+    assertThat(validationPipeline.getRejectionCount(SamlValidationPipeline.Stage.SIGNATURE)).isZero();
+  }
+
   @Test
   public void successful_callback_when_behind_a_reverse_proxy_with_needed_header() {
     setSettings(true);
@@ -169,6 +482,63 @@ public class SamlIdentityProviderTest {
     assertThat(callbackContext.userIdentity.getGroups()).containsExactlyInAnyOrder("developer", "product-manager");
   }
 
+  @Test
+  public void callback_registers_saml_session_when_single_logout_is_enabled() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.logoutUrl", "http://localhost:8080/auth/realms/sonarqube/protocol/saml");
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    underTest.callback(callbackContext);
+
+    ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(response).addCookie(cookie.capture());
+    assertThat(cookie.getValue().getName()).isEqualTo("SAML-SESSION");
+    assertThat(cookie.getValue().getMaxAge()).isEqualTo(4320 * 60);
+    SamlSessionRegistry.SamlSession session = sessionRegistry.get(cookie.getValue().getValue());
+    assertThat(session.getNameId()).isEqualTo("johndoe");
+    assertThat(session.getSessionIndex()).isEqualTo("2376f9a3-3b2a-4e9a-ba9b-8479cebb4257::02815cd5-9ec9-4649-a9f0-d5fdb95551dc");
+  }
+
+  @Test
+  public void callback_does_not_register_saml_session_when_single_logout_is_disabled() {
+    setSettings(true);
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    underTest.callback(callbackContext);
+
+    assertThat(sessionRegistry.size()).isZero();
+  }
+
+  @Test
+  public void callback_does_not_sync_groups_again_when_unchanged() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.group.resyncInterval", 60);
+    groupSyncCache.synced("johndoe", ImmutableSet.of("product-manager", "developer"));
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    underTest.callback(callbackContext);
+
+    assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("johndoe");
+    assertThat(callbackContext.userIdentity.shouldSyncGroups()).isFalse();
+    assertThat(groupSyncCache.getSkippedSyncCount()).isEqualTo(1);
+    // The audit keeps the groups granted by the identity provider, even if SonarQube doesn't synchronize them again
+    verify(auditLog).record(eq("success"), eq("johndoe"), any(), eq(ImmutableSet.of("product-manager", "developer")), isNull());
+  }
+
+  @Test
+  public void callback_syncs_groups_when_changed() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.group.resyncInterval", 60);
+    groupSyncCache.synced("johndoe", ImmutableSet.of("developer"));
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    underTest.callback(callbackContext);
+
+    assertThat(callbackContext.userIdentity.shouldSyncGroups()).isTrue();
+    assertThat(callbackContext.userIdentity.getGroups()).containsExactlyInAnyOrder("developer", "product-manager");
+    assertThat(groupSyncCache.isUnchanged("johndoe", ImmutableSet.of("developer", "product-manager"))).isTrue();
+  }
+
   @Test
   public void callback_on_minimal_response() {
     setSettings(true);
@@ -195,6 +565,74 @@ public class SamlIdentityProviderTest {
     assertThat(callbackContext.userIdentity.getGroups()).isEmpty();
   }
 
+  @Test
+  public void callback_applies_user_attribute_transformations() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.user.login.transformations", "uppercase");
+    settings.setProperty("sonar.auth.saml.user.name", "{name} ({login})");
+    settings.setProperty("sonar.auth.saml.user.email.transformations", "regex:(.*)@email.com,trim");
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
+
+    underTest.callback(callbackContext);
+
+    assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("JOHNDOE");
+    assertThat(callbackContext.userIdentity.getProviderLogin()).isEqualTo("JOHNDOE");
+    assertThat(callbackContext.userIdentity.getName()).isEqualTo("John Doe (johndoe)");
+    assertThat(callbackContext.userIdentity.getEmail()).isEqualTo("johndoe");
+  }
+
+  @Test
+  public void callback_checks_domain_of_login_before_transformations() {
+    SamlTestIdp.configure(settings);
+    // The test identity provider is the additional one, for the domain of its logins
+    settings.setProperty("sonar.auth.saml.providerId", "http://default-idp");
+    settings.setProperty("sonar.auth.saml.additionalIdps", "1");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.domains", "example.com");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.providerId", SamlTestIdp.PROVIDER_ID);
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.loginUrl", SamlTestIdp.LOGIN_URL);
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.certificate", loadResource("idp_certificate.pem"));
+    settings.setProperty("sonar.auth.saml.user.email", "");
+    settings.setProperty("sonar.auth.saml.user.login.transformations", "stripDomain");
+    SamlLoadDriver.CallbackContext callbackContext = new SamlLoadDriver.CallbackContext(
+      new SamlTestIdp(0, 0).newResponse("john@example.com", null, SamlLoadDriver.CALLBACK_URL));
+
+    underTest.callback(callbackContext);
+
+    assertThat(callbackContext.getUserIdentity().getLogin()).isEqualTo("john");
+    SamlLoadDriver.CallbackContext otherDomain = new SamlLoadDriver.CallbackContext(
+      new SamlTestIdp(0, 0).newResponse("john@corp.com", null, SamlLoadDriver.CALLBACK_URL));
+    assertThatThrownBy(() -> underTest.callback(otherDomain))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("The identity provider " + SamlTestIdp.PROVIDER_ID + " is not allowed to authenticate the login john@corp.com");
+  }
+
+  @Test
+  public void callback_checks_mapping_settings_at_most_once_per_interval() {
+    SamlTestIdp.configure(settings);
+    System2 system2 = mock(System2.class);
+    when(system2.now()).thenReturn(1_000L);
+    SamlIdentityProvider provider = new SamlIdentityProvider(samlSettings, rateLimiter, concurrencyLimiter, requestTracker, validationPipeline, credentials, requestSigner, groupSyncCache, idpDiscovery, artifactResolver, sessionRegistry, auditLog, warmUp, system2);
+
+    assertThat(callbackWithTestIdp(provider, "John").getLogin()).isEqualTo("John");
+
+    settings.setProperty("sonar.auth.saml.user.login.transformations", "lowercase");
+    assertThat(callbackWithTestIdp(provider, "John").getLogin()).isEqualTo("John");
+
+    when(system2.now()).thenReturn(1_000L + SamlAuthenticator.MAPPING_CHECK_INTERVAL_MS);
+    assertThat(callbackWithTestIdp(provider, "John").getLogin()).isEqualTo("john");
+  }
+
+  @Test
+  public void callback_uses_name_id_when_login_is_missing() {
+    setSettings(true);
+    settings.setProperty("sonar.auth.saml.user.login.nameIdFallback", true);
+    DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_response_without_login.txt", SQ_CALLBACK_URL);
+
+    underTest.callback(callbackContext);
+
+    assertThat(callbackContext.userIdentity.getLogin()).isEqualTo("johndoe");
+  }
+
   @Test
   public void fail_to_callback_when_login_is_missing() {
     setSettings(true);
@@ -257,12 +695,18 @@ public class SamlIdentityProviderTest {
       "A1bKpOFhRBzcxaZ6B2hB4SqjTBzS9zdmJyyFs/WNJxHri3aorcdqG9oUakjJJqqX\n" +
       "E13skIMV2g==\n" +
       "-----END CERTIFICATE-----\n");
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+    requestTracker.add("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75", "http://localhost:8080/auth/realms/sonarqube");
     DumbCallbackContext callbackContext = new DumbCallbackContext(request, response, "encoded_full_response.txt", SQ_CALLBACK_URL);
 
-    expectedException.expect(UnauthorizedException.class);
-    expectedException.expectMessage("Signature validation failed. SAML Response rejected");
-
-    underTest.callback(callbackContext);
+    assertThatThrownBy(() -> underTest.callback(callbackContext))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessageContaining("Signature validation failed. SAML Response rejected");
+    assertThat(validationPipeline.getRejectionCount(SamlValidationPipeline.Stage.SIGNATURE)).isEqualTo(1);
+    verify(auditLog).record(eq("rejected"), isNull(), eq("http://localhost:8080/auth/realms/sonarqube"), isNull(),
+      contains("Signature validation failed"));
+    // A forged response does not consume the request, which can still be answered by the identity provider
+    assertThat(requestTracker.size()).isEqualTo(1);
   }
 
   private void setSettings(boolean enabled) {
@@ -282,7 +726,23 @@ public class SamlIdentityProviderTest {
     }
   }
 
+  private static UserIdentity callbackWithTestIdp(SamlIdentityProvider provider, String login) {
+    SamlLoadDriver.CallbackContext callbackContext = new SamlLoadDriver.CallbackContext(
+      new SamlTestIdp(0, 0).newResponse(login, null, SamlLoadDriver.CALLBACK_URL));
+    provider.callback(callbackContext);
+    return callbackContext.getUserIdentity();
+  }
+
+  private static String loadResource(String file) {
+    try (InputStream input = SamlIdentityProviderTest.class.getResourceAsStream("IntegrationTest/" + file)) {
+      return IOUtils.toString(input, StandardCharsets.UTF_8.name());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   private static class DumbInitContext implements OAuth2IdentityProvider.InitContext {
+    private final HttpServletRequest request = mock(HttpServletRequest.class);
     private final HttpServletResponse response = mock(HttpServletResponse.class);
     private final AtomicBoolean generateCsrfState = new AtomicBoolean(false);
 
@@ -304,7 +764,7 @@ public class SamlIdentityProviderTest {
 
     @Override
     public HttpServletRequest getRequest() {
-      return mock(HttpServletRequest.class);
+      return request;
     }
 
     @Override
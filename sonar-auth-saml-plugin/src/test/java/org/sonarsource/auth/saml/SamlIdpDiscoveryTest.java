@@ -0,0 +1,142 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SamlIdpDiscoveryTest {
+
+  private static final String DEFAULT_PROVIDER_ID = "http://localhost:8080/auth/realms/sonarqube";
+
+  private long now = 1_600_000_000_000L;
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlSettings samlSettings = new SamlSettings(settings.asConfig());
+  private final List<Runnable> rebuilds = new ArrayList<>();
+  private final SamlIdpDiscovery underTest = new SamlIdpDiscovery(samlSettings, mockSystem2(), rebuilds::add);
+
+  @Before
+  public void setUp() {
+    settings.setProperty("sonar.auth.saml.providerId", DEFAULT_PROVIDER_ID);
+    settings.setProperty("sonar.auth.saml.loginUrl", "http://localhost:8080/auth/realms/sonarqube/protocol/saml");
+    settings.setProperty("sonar.auth.saml.certificate.secured", "certificate");
+    settings.setProperty("sonar.auth.saml.additionalIdps", "1,2");
+    setIdp(1, "http://idp1", "example.com, *.example.com");
+    setIdp(2, "http://idp2", "Example.ORG");
+  }
+
+  @Test
+  public void find_identity_provider_by_email_domain() {
+    assertThat(underTest.findByEmail("john@example.com").getProviderId()).isEqualTo("http://idp1");
+    assertThat(underTest.findByEmail("john@eu.example.com").getProviderId()).isEqualTo("http://idp1");
+    assertThat(underTest.findByEmail("John@EXAMPLE.org").getProviderId()).isEqualTo("http://idp2");
+    assertThat(underTest.findByEmail("john@example.org").getLoginUrl()).isEqualTo("http://idp2/saml");
+  }
+
+  @Test
+  public void use_default_identity_provider_when_domain_is_unknown() {
+    assertThat(underTest.findByEmail("john@other.com").getProviderId()).isEqualTo(DEFAULT_PROVIDER_ID);
+    assertThat(underTest.findByEmail("john").getProviderId()).isEqualTo(DEFAULT_PROVIDER_ID);
+    assertThat(underTest.findByEmail(null).getProviderId()).isEqualTo(DEFAULT_PROVIDER_ID);
+  }
+
+  @Test
+  public void find_identity_provider_by_provider_id() {
+    assertThat(underTest.findByProviderId(DEFAULT_PROVIDER_ID)).isEqualTo(samlSettings.getDefaultIdp());
+    assertThat(underTest.findByProviderId("http://idp2").getDomains()).isEqualTo("Example.ORG");
+    assertThat(underTest.findByProviderId("http://unknown")).isNull();
+  }
+
+  @Test
+  public void ignore_incomplete_identity_providers() {
+    settings.removeProperty("sonar.auth.saml.additionalIdps.2.certificate");
+
+    assertThat(underTest.findByEmail("john@example.org").getProviderId()).isEqualTo(DEFAULT_PROVIDER_ID);
+    assertThat(underTest.findByProviderId("http://idp2")).isNull();
+  }
+
+  @Test
+  public void rebuild_index_in_background_when_settings_change() {
+    assertThat(underTest.findByEmail("john@example.org").getProviderId()).isEqualTo("http://idp2");
+    setIdp(2, "http://idp2", "example.net");
+
+    // Settings are not checked again before the interval
+    assertThat(underTest.findByEmail("john@example.org").getProviderId()).isEqualTo("http://idp2");
+    assertThat(rebuilds).isEmpty();
+
+    // The previous index is used until the new one is built
+    now += SamlIdpDiscovery.CHECK_INTERVAL_MS;
+    assertThat(underTest.findByEmail("john@example.org").getProviderId()).isEqualTo("http://idp2");
+    assertThat(rebuilds).hasSize(1);
+
+    rebuilds.get(0).run();
+    assertThat(underTest.findByEmail("john@example.org").getProviderId()).isEqualTo(DEFAULT_PROVIDER_ID);
+    assertThat(underTest.findByEmail("john@example.net").getProviderId()).isEqualTo("http://idp2");
+  }
+
+  @Test
+  public void do_not_rebuild_index_when_settings_are_unchanged() {
+    underTest.findByEmail("john@example.org");
+
+    now += SamlIdpDiscovery.CHECK_INTERVAL_MS;
+    underTest.findByEmail("john@example.org");
+
+    assertThat(rebuilds).isEmpty();
+  }
+
+  @Test
+  public void rebuild_index_with_background_thread() throws InterruptedException {
+    SamlIdpDiscovery discovery = new SamlIdpDiscovery(samlSettings, mockSystem2());
+    discovery.start();
+    assertThat(discovery.findByEmail("john@example.org").getProviderId()).isEqualTo("http://idp2");
+    setIdp(2, "http://idp2", "example.net");
+    now += SamlIdpDiscovery.CHECK_INTERVAL_MS;
+    discovery.findByEmail("john@example.net");
+
+    for (int i = 0; i < 100 && !discovery.findByEmail("john@example.net").getProviderId().equals("http://idp2"); i++) {
+      Thread.sleep(10);
+    }
+
+    assertThat(discovery.findByEmail("john@example.net").getProviderId()).isEqualTo("http://idp2");
+    discovery.stop();
+  }
+
+  private void setIdp(int index, String providerId, String domains) {
+    settings.setProperty("sonar.auth.saml.additionalIdps." + index + ".domains", domains);
+    settings.setProperty("sonar.auth.saml.additionalIdps." + index + ".providerId", providerId);
+    settings.setProperty("sonar.auth.saml.additionalIdps." + index + ".loginUrl", providerId + "/saml");
+    settings.setProperty("sonar.auth.saml.additionalIdps." + index + ".certificate", "certificate of " + providerId);
+  }
+
+  private System2 mockSystem2() {
+    System2 system2 = mock(System2.class);
+    when(system2.now()).thenAnswer(invocation -> now);
+    return system2;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamlLatencyHistogramTest {
+
+  private final SamlLatencyHistogram underTest = new SamlLatencyHistogram();
+
+  @Test
+  public void count_latencies_per_bucket() {
+    underTest.record(0);
+    underTest.record(1);
+    underTest.record(2);
+    underTest.record(150);
+    underTest.record(60_000);
+
+    long[] counts = underTest.getCounts();
+    assertThat(counts).hasSize(SamlLatencyHistogram.getUpperBounds().length + 1);
+    assertThat(counts[0]).isEqualTo(2);
+    assertThat(counts[1]).isEqualTo(1);
+    assertThat(counts[7]).isEqualTo(1);
+    assertThat(counts[counts.length - 1]).isEqualTo(1);
+    assertThat(underTest.getTotalCount()).isEqualTo(5);
+  }
+
+  @Test
+  public void percentiles_are_upper_bounds_of_buckets() {
+    for (int i = 0; i < 90; i++) {
+      underTest.record(3);
+    }
+    for (int i = 0; i < 9; i++) {
+      underTest.record(40);
+    }
+    underTest.record(20_000);
+
+    assertThat(underTest.getPercentile(50)).isEqualTo(5);
+    assertThat(underTest.getPercentile(90)).isEqualTo(5);
+    assertThat(underTest.getPercentile(99)).isEqualTo(50);
+    assertThat(underTest.getPercentile(100)).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void percentile_is_zero_when_nothing_is_recorded() {
+    assertThat(underTest.getPercentile(99)).isZero();
+  }
+}
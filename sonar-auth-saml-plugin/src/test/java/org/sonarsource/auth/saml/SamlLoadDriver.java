@@ -0,0 +1,438 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.CheckForNull;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.server.authentication.OAuth2IdentityProvider;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
+
+import static java.util.Collections.singletonMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Drives concurrent SAML logins against {@link SamlIdentityProvider}, with responses minted by a {@link SamlTestIdp}, and
+ * reports the throughput, the latency percentiles, the garbage collections and the allocations of each {@link Scenario}.
+ * <p>
+ * Each thread first sends its AuthnRequests and gets the matching responses from the identity provider, so that only
+ * the callbacks, which hold the validation of the responses, are measured concurrently. Run with {@code gradle loadTest},
+ * system properties {@code saml.load.*} overriding the defaults of {@link #main(String[])}.
+ */
+final class SamlLoadDriver {
+
+  static final String CALLBACK_URL = "http://localhost:9000/oauth2/callback/saml";
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private final int warmUpLogins;
+
+  SamlLoadDriver(int warmUpLogins) {
+    this.warmUpLogins = warmUpLogins;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int threads = Integer.getInteger("saml.load.threads", Runtime.getRuntime().availableProcessors());
+    int logins = Integer.getInteger("saml.load.logins", 500);
+    SamlLoadDriver driver = new SamlLoadDriver(Integer.getInteger("saml.load.warmUp", 500));
+    // Each scenario is defined by its number of additional attributes and its number of groups
+    for (String scenario : System.getProperty("saml.load.scenarios", "5:5,20:50,50:500").split(",")) {
+      String[] counts = scenario.trim().split(":");
+      Report report = driver.run(new Scenario(threads, logins, Integer.parseInt(counts[0]), Integer.parseInt(counts[1])));
+      System.out.println(report.format());
+      if (report.getFirstFailure() != null) {
+        report.getFirstFailure().printStackTrace(System.out);
+      }
+    }
+  }
+
+  Report run(Scenario scenario) throws InterruptedException {
+    MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+    SamlTestIdp.configure(settings);
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+    SamlIdentityProvider provider = newIdentityProvider(new SamlSettings(settings.asConfig()));
+    SamlTestIdp idp = new SamlTestIdp(scenario.attributeCount, scenario.groupCount);
+
+    if (warmUpLogins > 0) {
+      Worker warmUp = new Worker(provider, idp, "warm-up", warmUpLogins);
+      warmUp.prepare();
+      warmUp.login();
+    }
+
+    CyclicBarrier prepared = new CyclicBarrier(scenario.threads + 1);
+    List<Worker> workers = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < scenario.threads; i++) {
+      Worker worker = new Worker(provider, idp, "user-" + i, scenario.loginsPerThread);
+      workers.add(worker);
+      Thread thread = new Thread(() -> {
+        worker.prepare();
+        await(prepared);
+        worker.login();
+      }, "SAML load " + i);
+      threads.add(thread);
+      thread.start();
+    }
+    await(prepared);
+    long gcCount = getGcCount();
+    long gcTime = getGcTimeMs();
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long duration = System.nanoTime() - start;
+    return new Report(scenario, workers, duration, getGcCount() - gcCount, getGcTimeMs() - gcTime);
+  }
+
+  static SamlIdentityProvider newIdentityProvider(SamlSettings samlSettings) {
+    SamlRequestTracker requestTracker = new SamlRequestTracker(System2.INSTANCE);
+    SamlIdpDiscovery idpDiscovery = new SamlIdpDiscovery(samlSettings, System2.INSTANCE, Runnable::run);
+    SamlCredentials credentials = new SamlCredentials(samlSettings);
+    SamlValidationPipeline validationPipeline = new SamlValidationPipeline(samlSettings, requestTracker, idpDiscovery, credentials,
+      new SamlSignatureVerifier(samlSettings), new SamlLoginFailures(), new SamlReplayStore(samlSettings, System2.INSTANCE), System2.INSTANCE);
+    return new SamlIdentityProvider(samlSettings, new SamlRateLimiter(samlSettings, System2.INSTANCE), new SamlConcurrencyLimiter(), requestTracker,
+      validationPipeline, credentials, new SamlRequestSigner(samlSettings, credentials), new SamlGroupSyncCache(samlSettings, System2.INSTANCE),
+      idpDiscovery, new SamlArtifactResolver(samlSettings, System2.INSTANCE), new SamlSessionRegistry(samlSettings, System2.INSTANCE),
+      new SamlAuditLog(samlSettings, System2.INSTANCE), new SamlWarmUp(samlSettings, credentials, System2.INSTANCE),
+      System2.INSTANCE);
+  }
+
+  private static void await(CyclicBarrier barrier) {
+    try {
+      barrier.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (BrokenBarrierException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static long getGcCount() {
+    return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+  }
+
+  private static long getGcTimeMs() {
+    return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+  }
+
+  /**
+   * @return the bytes allocated so far by the current thread, or -1 if the JVM doesn't measure them
+   */
+  private static long getAllocatedBytes() {
+    if (THREADS instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  static final class Scenario {
+    private final int threads;
+    private final int loginsPerThread;
+    private final int attributeCount;
+    private final int groupCount;
+
+    Scenario(int threads, int loginsPerThread, int attributeCount, int groupCount) {
+      this.threads = threads;
+      this.loginsPerThread = loginsPerThread;
+      this.attributeCount = attributeCount;
+      this.groupCount = groupCount;
+    }
+
+    @Override
+    public String toString() {
+      return attributeCount + " attributes, " + groupCount + " groups";
+    }
+  }
+
+  private static final class Worker {
+    private final SamlIdentityProvider provider;
+    private final SamlTestIdp idp;
+    private final String user;
+    private final CallbackContext[] callbacks;
+    private final long[] initLatencies;
+    private final long[] callbackLatencies;
+    private int failures;
+    private int rejections;
+    private long allocatedBytes;
+    private RuntimeException firstFailure;
+
+    private Worker(SamlIdentityProvider provider, SamlTestIdp idp, String user, int logins) {
+      this.provider = provider;
+      this.idp = idp;
+      this.user = user;
+      this.callbacks = new CallbackContext[logins];
+      this.initLatencies = new long[logins];
+      this.callbackLatencies = new long[logins];
+    }
+
+    /**
+     * Sends the AuthnRequests and gets the responses of the identity provider.
+     */
+    private void prepare() {
+      for (int i = 0; i < callbacks.length; i++) {
+        InitContext initContext = new InitContext();
+        long start = System.nanoTime();
+        provider.init(initContext);
+        initLatencies[i] = System.nanoTime() - start;
+        String requestId = SamlTestIdp.getRequestId(initContext.redirection.get());
+        callbacks[i] = new CallbackContext(idp.newResponse(user + "-" + i, requestId, CALLBACK_URL));
+      }
+    }
+
+    private void login() {
+      long allocatedBefore = getAllocatedBytes();
+      for (int i = 0; i < callbacks.length; i++) {
+        CallbackContext callback = callbacks[i];
+        long start = System.nanoTime();
+        try {
+          provider.callback(callback);
+          if (callback.userIdentity == null) {
+            rejections++;
+          }
+        } catch (RuntimeException e) {
+          failures++;
+          if (firstFailure == null) {
+            firstFailure = e;
+          }
+        }
+        callbackLatencies[i] = System.nanoTime() - start;
+        // Released, so that the allocations of the scenario can be collected
+        callbacks[i] = null;
+      }
+      long allocatedAfter = getAllocatedBytes();
+      allocatedBytes = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore);
+    }
+  }
+
+  private static final class InitContext implements OAuth2IdentityProvider.InitContext {
+    private final HttpServletRequest request = mock(HttpServletRequest.class, withSettings().stubOnly());
+    private final HttpServletResponse response = mock(HttpServletResponse.class, withSettings().stubOnly());
+    private final AtomicReference<String> redirection = new AtomicReference<>();
+
+    private InitContext() {
+      try {
+        doAnswer(invocation -> {
+          redirection.set(invocation.getArgument(0));
+          return null;
+        }).when(response).sendRedirect(anyString());
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public String generateCsrfState() {
+      return "state";
+    }
+
+    @Override
+    public void redirectTo(String url) {
+      redirection.set(url);
+    }
+
+    @Override
+    public String getCallbackUrl() {
+      return CALLBACK_URL;
+    }
+
+    @Override
+    public HttpServletRequest getRequest() {
+      return request;
+    }
+
+    @Override
+    public HttpServletResponse getResponse() {
+      return response;
+    }
+  }
+
+  static final class CallbackContext implements OAuth2IdentityProvider.CallbackContext {
+    private final HttpServletRequest request = mock(HttpServletRequest.class, withSettings().stubOnly());
+    private final HttpServletResponse response = mock(HttpServletResponse.class, withSettings().stubOnly());
+    private UserIdentity userIdentity;
+
+    CallbackContext(String encodedResponse) {
+      when(request.getParameterMap()).thenReturn(singletonMap("SAMLResponse", new String[] {encodedResponse}));
+      when(request.getParameter("SAMLResponse")).thenReturn(encodedResponse);
+      when(request.getRequestURL()).thenAnswer(invocation -> new StringBuffer(CALLBACK_URL));
+      when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+    }
+
+    @CheckForNull
+    UserIdentity getUserIdentity() {
+      return userIdentity;
+    }
+
+    @Override
+    public void verifyCsrfState() {
+      // The state is not checked by the load driver
+    }
+
+    @Override
+    public void verifyCsrfState(String parameterName) {
+      // The state is not checked by the load driver
+    }
+
+    @Override
+    public void redirectToRequestedPage() {
+      // Nothing to do
+    }
+
+    @Override
+    public void authenticate(UserIdentity userIdentity) {
+      this.userIdentity = userIdentity;
+    }
+
+    @Override
+    public String getCallbackUrl() {
+      return CALLBACK_URL;
+    }
+
+    @Override
+    public HttpServletRequest getRequest() {
+      return request;
+    }
+
+    @Override
+    public HttpServletResponse getResponse() {
+      return response;
+    }
+  }
+
+  static final class Report {
+    private final Scenario scenario;
+    private final long[] initLatencies;
+    private final long[] callbackLatencies;
+    private final int failures;
+    private final int rejections;
+    private final long durationNanos;
+    private final long gcCount;
+    private final long gcTimeMs;
+    private final long allocatedBytes;
+    private final RuntimeException firstFailure;
+
+    private Report(Scenario scenario, List<Worker> workers, long durationNanos, long gcCount, long gcTimeMs) {
+      this.scenario = scenario;
+      this.initLatencies = workers.stream().flatMapToLong(worker -> Arrays.stream(worker.initLatencies)).sorted().toArray();
+      this.callbackLatencies = workers.stream().flatMapToLong(worker -> Arrays.stream(worker.callbackLatencies)).sorted().toArray();
+      this.failures = workers.stream().mapToInt(worker -> worker.failures).sum();
+      this.rejections = workers.stream().mapToInt(worker -> worker.rejections).sum();
+      this.durationNanos = durationNanos;
+      this.gcCount = gcCount;
+      this.gcTimeMs = gcTimeMs;
+      this.allocatedBytes = workers.stream().anyMatch(worker -> worker.allocatedBytes < 0) ? -1 : workers.stream().mapToLong(worker -> worker.allocatedBytes).sum();
+      this.firstFailure = workers.stream().map(worker -> worker.firstFailure).filter(e -> e != null).findFirst().orElse(null);
+    }
+
+    int getLogins() {
+      return callbackLatencies.length;
+    }
+
+    int getFailures() {
+      return failures;
+    }
+
+    int getRejections() {
+      return rejections;
+    }
+
+    @CheckForNull
+    RuntimeException getFirstFailure() {
+      return firstFailure;
+    }
+
+    /**
+     * @return the number of callbacks per second
+     */
+    double getThroughput() {
+      return callbackLatencies.length * 1_000_000_000.0 / durationNanos;
+    }
+
+    /**
+     * @return the latency of callbacks at the given percentile, in nanoseconds
+     */
+    long getCallbackPercentile(double percentile) {
+      return percentile(callbackLatencies, percentile);
+    }
+
+    long getInitPercentile(double percentile) {
+      return percentile(initLatencies, percentile);
+    }
+
+    long getGcCount() {
+      return gcCount;
+    }
+
+    long getGcTimeMs() {
+      return gcTimeMs;
+    }
+
+    /**
+     * @return the bytes allocated by a callback on average, or -1 if the JVM doesn't measure allocations
+     */
+    long getAllocatedBytesPerLogin() {
+      return allocatedBytes < 0 || callbackLatencies.length == 0 ? -1 : (allocatedBytes / callbackLatencies.length);
+    }
+
+    String format() {
+      return String.format(Locale.ENGLISH,
+        "%s : %d threads, %d logins, %d failures, %d rejections, %.1f logins/s%n" +
+          "  init     p50=%.2fms p99=%.2fms%n" +
+          "  callback p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms%n" +
+          "  gc %d collections, %d ms, %d KB allocated per login",
+        scenario, scenario.threads, getLogins(), failures, rejections, getThroughput(),
+        millis(getInitPercentile(50)), millis(getInitPercentile(99)),
+        millis(getCallbackPercentile(50)), millis(getCallbackPercentile(90)), millis(getCallbackPercentile(99)),
+        millis(getCallbackPercentile(99.9)), millis(getCallbackPercentile(100)),
+        gcCount, gcTimeMs, getAllocatedBytesPerLogin() / 1024);
+    }
+
+    private static long percentile(long[] sortedValues, double percentile) {
+      if (sortedValues.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(percentile / 100 * sortedValues.length) - 1;
+      return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+      return nanos / 1_000_000.0;
+    }
+  }
+}
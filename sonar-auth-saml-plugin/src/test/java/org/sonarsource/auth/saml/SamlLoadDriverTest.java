@@ -0,0 +1,62 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamlLoadDriverTest {
+
+  private final SamlLoadDriver underTest = new SamlLoadDriver(2);
+
+  @Test
+  public void run_concurrent_logins() throws InterruptedException {
+    SamlLoadDriver.Report report = underTest.run(new SamlLoadDriver.Scenario(3, 4, 10, 20));
+
+    assertThat(report.getFirstFailure()).isNull();
+    assertThat(report.getFailures()).isZero();
+    assertThat(report.getRejections()).isZero();
+    assertThat(report.getLogins()).isEqualTo(12);
+    assertThat(report.getThroughput()).isPositive();
+    assertThat(report.getCallbackPercentile(50)).isPositive().isLessThanOrEqualTo(report.getCallbackPercentile(99));
+    assertThat(report.getCallbackPercentile(99)).isLessThanOrEqualTo(report.getCallbackPercentile(100));
+    assertThat(report.getInitPercentile(99)).isPositive();
+    assertThat(report.getAllocatedBytesPerLogin()).isNotZero();
+    assertThat(report.format()).contains("10 attributes, 20 groups : 3 threads, 12 logins, 0 failures");
+  }
+
+  @Test
+  public void responses_of_identity_provider_carry_attributes_and_groups() {
+    SamlTestIdp idp = new SamlTestIdp(2, 3);
+
+    String response = new String(Base64.getDecoder().decode(idp.newResponse("john", "ID_1", SamlLoadDriver.CALLBACK_URL)),
+      StandardCharsets.UTF_8);
+
+    assertThat(response)
+      .contains("InResponseTo=\"ID_1\"")
+      .contains("<saml:NameID>john</saml:NameID>")
+      .contains("Name=\"attribute1\"")
+      .contains("<saml:AttributeValue>group2</saml:AttributeValue>")
+      .contains("<ds:SignatureValue>");
+  }
+}
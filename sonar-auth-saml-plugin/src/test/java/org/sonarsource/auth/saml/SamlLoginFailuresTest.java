@@ -0,0 +1,94 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.sonarsource.auth.saml.SamlLoginFailures.Failure;
+import org.sonarsource.auth.saml.SamlValidationPipeline.Stage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class SamlLoginFailuresTest {
+
+  private final SamlLoginFailures underTest = new SamlLoginFailures(3);
+
+  @Test
+  public void return_failures_most_recent_first() {
+    underTest.record(1_000L, Stage.ISSUER, "Invalid issuer", "http://evil", "response");
+    underTest.record(2_000L, Stage.SIGNATURE, "Signature validation failed", "http://idp", null);
+
+    assertThat(underTest.getFailures())
+      .extracting(Failure::getTimestamp, Failure::getStage, Failure::getReason, Failure::getIssuer, Failure::getResponseHash)
+      .containsExactly(
+        tuple(2_000L, Stage.SIGNATURE, "Signature validation failed", "http://idp", null),
+        tuple(1_000L, Stage.ISSUER, "Invalid issuer", "http://evil", String.format("%016x", SamlLoginFailures.hash("response"))));
+  }
+
+  @Test
+  public void keep_only_last_failures() {
+    for (int i = 1; i <= 5; i++) {
+      underTest.record(i, Stage.STATUS, "failure " + i, null, null);
+    }
+
+    assertThat(underTest.getFailures()).extracting(Failure::getReason).containsExactly("failure 5", "failure 4", "failure 3");
+  }
+
+  @Test
+  public void return_no_failures_when_empty() {
+    assertThat(underTest.getFailures()).isEmpty();
+  }
+
+  @Test
+  public void hash_responses_with_fnv1a() {
+    assertThat(SamlLoginFailures.hash("")).isEqualTo(0xcbf29ce484222325L);
+    assertThat(SamlLoginFailures.hash("a")).isEqualTo(0xaf63dc4c8601ec8cL);
+    assertThat(SamlLoginFailures.hash("foobar")).isEqualTo(0x85944171f73967e8L);
+  }
+
+  @Test
+  public void read_consistent_failures_while_recorded_concurrently() throws InterruptedException {
+    SamlLoginFailures failures = new SamlLoginFailures(8);
+    List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      String issuer = "idp" + t;
+      Thread writer = new Thread(() -> {
+        for (int i = 0; i < 20_000; i++) {
+          failures.record(i, Stage.ISSUER, issuer, issuer, issuer);
+        }
+      });
+      writers.add(writer);
+      writer.start();
+    }
+    while (writers.stream().anyMatch(Thread::isAlive)) {
+      for (Failure failure : failures.getFailures()) {
+        // Fields of a failure always come from the same write
+        assertThat(failure.getReason()).isEqualTo(failure.getIssuer());
+        assertThat(failure.getResponseHash()).isEqualTo(String.format("%016x", SamlLoginFailures.hash(failure.getIssuer())));
+      }
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertThat(failures.getFailures().size()).isBetween(1, 8);
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import javax.servlet.FilterChain;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static java.util.Collections.emptyList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SamlLogoutFilterTest {
+
+  private static final String LOGOUT_URL = "http://localhost:8080/auth/realms/sonarqube/protocol/saml";
+  private static final String CURRENT_URL = "http://localhost:9000/saml/logout";
+  private static final String LOGOUT_REQUEST = "<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" " +
+    "xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"ID_logout\" Version=\"2.0\" IssueInstant=\"2020-06-11T09:36:26Z\" " +
+    "Destination=\"" + CURRENT_URL + "\">" +
+    "<saml:Issuer>http://localhost:8080/auth/realms/sonarqube</saml:Issuer>" +
+    "<saml:NameID>johndoe</saml:NameID>" +
+    "<samlp:SessionIndex>index1</samlp:SessionIndex>" +
+    "</samlp:LogoutRequest>";
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlSettings samlSettings = new SamlSettings(settings.asConfig());
+  private final SamlCredentials credentials = new SamlCredentials(samlSettings);
+  private final SamlSessionRegistry sessionRegistry = new SamlSessionRegistry(samlSettings, System2.INSTANCE);
+  private final SamlLogoutFilter underTest = new SamlLogoutFilter(samlSettings, credentials, new SamlRequestSigner(samlSettings, credentials), sessionRegistry);
+
+  private final HttpServletRequest request = mock(HttpServletRequest.class);
+  private final HttpServletResponse response = mock(HttpServletResponse.class);
+  private final FilterChain chain = mock(FilterChain.class);
+  private final Map<String, String[]> parameters = new HashMap<>();
+
+  @Before
+  public void setUp() {
+    settings.setProperty("sonar.auth.saml.applicationId", "MyApp");
+    settings.setProperty("sonar.auth.saml.providerId", "http://localhost:8080/auth/realms/sonarqube");
+    settings.setProperty("sonar.auth.saml.loginUrl", LOGOUT_URL);
+    settings.setProperty("sonar.auth.saml.logoutUrl", LOGOUT_URL);
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    settings.setProperty("sonar.auth.saml.user.login", "login");
+    settings.setProperty("sonar.auth.saml.user.name", "name");
+    settings.setProperty("sonar.auth.saml.enabled", true);
+    when(request.getRequestURL()).thenAnswer(invocation -> new StringBuffer(CURRENT_URL));
+    when(request.getRequestURI()).thenReturn("/saml/logout");
+    when(request.getContextPath()).thenReturn("");
+    when(request.getHeader("Referer")).thenReturn("http://localhost:9000/projects");
+    when(request.getParameterMap()).thenReturn(parameters);
+    when(request.getParameter(anyString())).thenAnswer(invocation -> {
+      String[] values = parameters.get(invocation.<String>getArgument(0));
+      return values == null ? null : values[0];
+    });
+  }
+
+  @Test
+  public void do_nothing_when_saml_is_disabled() throws Exception {
+    settings.setProperty("sonar.auth.saml.enabled", false);
+
+    underTest.doFilter(request, response, chain);
+
+    verify(chain).doFilter(request, response);
+    verify(response, never()).sendRedirect(anyString());
+  }
+
+  @Test
+  public void sp_initiated_logout_terminates_session_and_redirects_to_identity_provider() throws Exception {
+    String handle = sessionRegistry.register("johndoe", "index1");
+    setSessionCookie(handle);
+
+    underTest.doFilter(request, response, chain);
+
+    String redirection = captureRedirection();
+    assertThat(redirection).startsWith(LOGOUT_URL + "?SAMLRequest=");
+    String logoutRequest = decodeMessage(redirection, "SAMLRequest");
+    assertThat(logoutRequest)
+      .contains("Destination=\"" + LOGOUT_URL + "\"")
+      .contains(">johndoe</saml:NameID>")
+      .contains(">index1</samlp:SessionIndex>");
+    assertThat(sessionRegistry.size()).isZero();
+    verifyCookiesCleared();
+    verify(chain, never()).doFilter(any(), any());
+  }
+
+  @Test
+  public void sp_initiated_logout_redirects_to_home_when_no_saml_session() throws Exception {
+    setSessionCookie("unknown");
+
+    underTest.doFilter(request, response, chain);
+
+    verify(response).sendRedirect("/");
+    verifyCookiesCleared();
+  }
+
+  @Test
+  public void sp_initiated_logout_redirects_to_home_when_single_logout_is_disabled() throws Exception {
+    settings.removeProperty("sonar.auth.saml.logoutUrl");
+    setSessionCookie(sessionRegistry.register("johndoe", "index1"));
+
+    underTest.doFilter(request, response, chain);
+
+    verify(response).sendRedirect("/");
+    assertThat(sessionRegistry.size()).isZero();
+  }
+
+  @Test
+  public void reject_cross_site_sp_initiated_logout() throws Exception {
+    String handle = sessionRegistry.register("johndoe", "index1");
+    setSessionCookie(handle);
+    when(request.getHeader("Sec-Fetch-Site")).thenReturn("cross-site");
+
+    underTest.doFilter(request, response, chain);
+
+    verifyLogoutRejected(handle);
+  }
+
+  @Test
+  public void reject_sp_initiated_logout_from_another_origin() throws Exception {
+    String handle = sessionRegistry.register("johndoe", "index1");
+    setSessionCookie(handle);
+    when(request.getHeader("Referer")).thenReturn("http://localhost:9001/projects");
+
+    underTest.doFilter(request, response, chain);
+
+    verifyLogoutRejected(handle);
+  }
+
+  @Test
+  public void reject_sp_initiated_logout_of_unknown_origin() throws Exception {
+    String handle = sessionRegistry.register("johndoe", "index1");
+    setSessionCookie(handle);
+    when(request.getHeader("Referer")).thenReturn(null);
+
+    underTest.doFilter(request, response, chain);
+
+    verifyLogoutRejected(handle);
+  }
+
+  @Test
+  public void check_origin_of_sp_initiated_logout() {
+    when(request.getHeader("Referer")).thenReturn(null);
+    assertThat(SamlLogoutFilter.isSameOrigin(request)).isFalse();
+
+    when(request.getHeader("Origin")).thenReturn("http://LOCALHOST:9000");
+    assertThat(SamlLogoutFilter.isSameOrigin(request)).isTrue();
+    when(request.getHeader("Origin")).thenReturn("https://localhost:9000");
+    assertThat(SamlLogoutFilter.isSameOrigin(request)).isFalse();
+    when(request.getHeader("Origin")).thenReturn("null");
+    assertThat(SamlLogoutFilter.isSameOrigin(request)).isFalse();
+
+    when(request.getRequestURL()).thenAnswer(invocation -> new StringBuffer("https://sonarqube.example.com/saml/logout"));
+    when(request.getHeader("Origin")).thenReturn("https://sonarqube.example.com:443");
+    assertThat(SamlLogoutFilter.isSameOrigin(request)).isTrue();
+
+    // Fetch Metadata takes precedence
+    when(request.getHeader("Sec-Fetch-Site")).thenReturn("same-site");
+    assertThat(SamlLogoutFilter.isSameOrigin(request)).isFalse();
+    when(request.getHeader("Sec-Fetch-Site")).thenReturn("none");
+    assertThat(SamlLogoutFilter.isSameOrigin(request)).isTrue();
+    when(request.getHeader("Sec-Fetch-Site")).thenReturn("same-origin");
+    assertThat(SamlLogoutFilter.isSameOrigin(request)).isTrue();
+  }
+
+  @Test
+  public void idp_initiated_logout_revokes_sessions_and_answers_identity_provider() throws Exception {
+    // Messages of the identity provider are always cross-site
+    when(request.getHeader("Sec-Fetch-Site")).thenReturn("cross-site");
+    String otherBrowser = sessionRegistry.register("johndoe", "index1");
+    String otherSession = sessionRegistry.register("johndoe", "index2");
+    setQueryString(SamlRedirectMessageTest.signedQueryString("SAMLRequest", LOGOUT_REQUEST, "state",
+      SamlRedirectMessageTest.loadPrivateKey(loadResource("idp_private_key.pem"))));
+
+    underTest.doFilter(request, response, chain);
+
+    assertThat(sessionRegistry.isRevoked(otherBrowser)).isTrue();
+    assertThat(sessionRegistry.isRevoked(otherSession)).isFalse();
+    String redirection = captureRedirection();
+    assertThat(redirection).startsWith(LOGOUT_URL + "?SAMLResponse=").contains("&RelayState=state");
+    assertThat(decodeMessage(redirection, "SAMLResponse"))
+      .contains("InResponseTo=\"ID_logout\"")
+      .contains("urn:oasis:names:tc:SAML:2.0:status:Success");
+  }
+
+  @Test
+  public void idp_initiated_logout_terminates_session_of_current_browser() throws Exception {
+    String handle = sessionRegistry.register("johndoe", "index1");
+    setSessionCookie(handle);
+    setQueryString(SamlRedirectMessageTest.signedQueryString("SAMLRequest", LOGOUT_REQUEST, null,
+      SamlRedirectMessageTest.loadPrivateKey(loadResource("idp_private_key.pem"))));
+
+    underTest.doFilter(request, response, chain);
+
+    assertThat(sessionRegistry.size()).isZero();
+    assertThat(sessionRegistry.hasRevokedSessions()).isFalse();
+    verifyCookiesCleared();
+  }
+
+  @Test
+  public void reject_idp_initiated_logout_when_not_signed() throws Exception {
+    String handle = sessionRegistry.register("johndoe", "index1");
+    String signedQuery = SamlRedirectMessageTest.signedQueryString("SAMLRequest", LOGOUT_REQUEST, null,
+      SamlRedirectMessageTest.loadPrivateKey(loadResource("idp_private_key.pem")));
+    setQueryString(signedQuery.substring(0, signedQuery.indexOf("&SigAlg=")));
+
+    underTest.doFilter(request, response, chain);
+
+    verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    assertThat(sessionRegistry.isRevoked(handle)).isFalse();
+    assertThat(sessionRegistry.revoke("johndoe", emptyList())).isEqualTo(1);
+  }
+
+  @Test
+  public void reject_idp_initiated_logout_signed_by_another_key() throws Exception {
+    String handle = sessionRegistry.register("johndoe", "index1");
+    setQueryString(SamlRedirectMessageTest.signedQueryString("SAMLRequest", LOGOUT_REQUEST, null,
+      SamlRedirectMessageTest.loadPrivateKey(loadResource("sp_private_key.pem"))));
+
+    underTest.doFilter(request, response, chain);
+
+    verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    assertThat(sessionRegistry.isRevoked(handle)).isFalse();
+  }
+
+  @Test
+  public void logout_response_redirects_to_home() throws Exception {
+    parameters.put("SAMLResponse", new String[] {"invalid"});
+
+    underTest.doFilter(request, response, chain);
+
+    verify(response).sendRedirect("/");
+  }
+
+  private void verifyLogoutRejected(String handle) throws IOException {
+    verify(response).sendError(HttpServletResponse.SC_FORBIDDEN, "Logout is only accepted from SonarQube");
+    verify(response, never()).addCookie(any());
+    verify(response, never()).sendRedirect(anyString());
+    assertThat(sessionRegistry.get(handle)).isNotNull();
+  }
+
+  private void setSessionCookie(String handle) {
+    when(request.getCookies()).thenReturn(new Cookie[] {new Cookie(SamlSessionCookies.SESSION_COOKIE, handle)});
+  }
+
+  private void setQueryString(String queryString) throws IOException {
+    when(request.getQueryString()).thenReturn(queryString);
+    for (String parameter : queryString.split("&")) {
+      int separator = parameter.indexOf('=');
+      parameters.put(parameter.substring(0, separator), new String[] {URLDecoder.decode(parameter.substring(separator + 1), "UTF-8")});
+    }
+  }
+
+  private String captureRedirection() throws IOException {
+    ArgumentCaptor<String> redirection = ArgumentCaptor.forClass(String.class);
+    verify(response).sendRedirect(redirection.capture());
+    return redirection.getValue();
+  }
+
+  private void verifyCookiesCleared() {
+    ArgumentCaptor<Cookie> cookies = ArgumentCaptor.forClass(Cookie.class);
+    verify(response, times(3)).addCookie(cookies.capture());
+    assertThat(cookies.getAllValues()).extracting(Cookie::getName).containsOnly(SamlSessionCookies.SESSION_COOKIE, "JWT-SESSION", "XSRF-TOKEN");
+    assertThat(cookies.getAllValues()).extracting(Cookie::getMaxAge).containsOnly(0);
+  }
+
+  private static String decodeMessage(String url, String parameter) throws Exception {
+    String value = url.substring(url.indexOf(parameter + "=") + parameter.length() + 1);
+    if (value.contains("&")) {
+      value = value.substring(0, value.indexOf('&'));
+    }
+    byte[] deflated = Base64.getDecoder().decode(URLDecoder.decode(value, "UTF-8"));
+    Inflater inflater = new Inflater(true);
+    inflater.setInput(deflated);
+    byte[] inflated = new byte[10_000];
+    int length = inflater.inflate(inflated);
+    inflater.end();
+    return new String(inflated, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private static String loadResource(String file) {
+    try (InputStream input = SamlLogoutFilterTest.class.getResourceAsStream("IntegrationTest/" + file)) {
+      return IOUtils.toString(input, StandardCharsets.UTF_8.name());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
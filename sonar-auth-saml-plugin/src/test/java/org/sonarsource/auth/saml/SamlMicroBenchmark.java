@@ -0,0 +1,270 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+
+/**
+ * Measures the throughput of the operations of the login path which keep state per thread or per setting value, against
+ * the straightforward implementation they replace, with a given number of threads running the operation concurrently.
+ * <p>
+ * Run with {@code gradle microBenchmark}, the system properties {@code saml.micro.threads} and {@code saml.micro.durationMs}
+ * overriding the maximum number of threads and the duration of each measurement, and {@code saml.micro.case} selecting
+ * the cases whose name contains the given value. Thread counts are doubled from 1 up to
+ * the maximum, so that the scaling of both implementations can be compared.
+ */
+final class SamlMicroBenchmark {
+
+  private static final String SSO_URL = "https://idp.example.com/saml/sso";
+  private static final String RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+
+  // Written by the measured threads, so that the results of the operations are used
+  private static volatile int blackhole;
+
+  private final long durationMs;
+
+  SamlMicroBenchmark(long durationMs) {
+    this.durationMs = durationMs;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = Integer.getInteger("saml.micro.threads", Runtime.getRuntime().availableProcessors());
+    SamlMicroBenchmark benchmark = new SamlMicroBenchmark(Long.getLong("saml.micro.durationMs", 3_000L));
+    String selectedCase = System.getProperty("saml.micro.case", "");
+    for (Case benchmarkCase : cases()) {
+      if (!benchmarkCase.name.contains(selectedCase)) {
+        continue;
+      }
+      for (int threads : threadCounts(maxThreads)) {
+        System.out.println(benchmark.measure(benchmarkCase, threads).format());
+      }
+    }
+  }
+
+  static List<Integer> threadCounts(int maxThreads) {
+    List<Integer> threadCounts = new ArrayList<>();
+    for (int threads = 1; threads < maxThreads; threads *= 2) {
+      threadCounts.add(threads);
+    }
+    threadCounts.add(maxThreads);
+    return threadCounts;
+  }
+
+  static List<Case> cases() throws GeneralSecurityException {
+    List<Case> cases = new ArrayList<>();
+    cases.add(signatureVerification());
+    cases.add(requestSigning());
+    cases.add(requestIdGeneration());
+    cases.add(attributeRules());
+    return cases;
+  }
+
+  /**
+   * Verification of a SHA256withRSA signature with a 2048 bits key, as done for responses received with the HTTP-Redirect
+   * binding, see {@link SamlSignatureVerifier}
+   */
+  static Case signatureVerification() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    KeyPair keyPair = generator.generateKeyPair();
+    byte[] content = newContent(1_024);
+    Signature signer = Signature.getInstance("SHA256withRSA");
+    signer.initSign(keyPair.getPrivate());
+    signer.update(content);
+    byte[] signatureValue = signer.sign();
+    SamlSignatureVerifier verifier = new SamlSignatureVerifier(newSettings());
+    return new Case("signature verification",
+      () -> {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(keyPair.getPublic());
+        signature.update(content);
+        return checkValid(signature.verify(signatureValue));
+      },
+      () -> checkValid(verifier.verify(RSA_SHA256, keyPair.getPublic(), content, signatureValue)));
+  }
+
+  /**
+   * Signature of the redirect URL of an AuthnRequest with a 2048 bits key, see {@link SamlRequestSigner}. Before the
+   * cache, the private key was parsed and a Signature initialized for every request.
+   */
+  static Case requestSigning() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+    settings.setProperty("sonar.auth.saml.sp.privateKey.secured", Base64.getEncoder().encodeToString(generator.generateKeyPair().getPrivate().getEncoded()));
+    SamlSettings samlSettings = new SamlSettings(settings.asConfig());
+    String encodedRequest = Base64.getEncoder().encodeToString(newContent(600));
+    SamlRequestSigner signer = new SamlRequestSigner(samlSettings, new SamlCredentials(samlSettings));
+    return new Case("request signing",
+      () -> new SamlRequestSigner(samlSettings, new SamlCredentials(samlSettings)).buildSignedRedirectUrl(SSO_URL, encodedRequest, "state"),
+      () -> signer.buildSignedRedirectUrl(SSO_URL, encodedRequest, "state"));
+  }
+
+  /**
+   * Generation of the ID of an AuthnRequest, see {@link SamlRequestIds}, against the ID onelogin generates with the
+   * SecureRandom shared by the JVM. This case tells whether the generation scales with the number of threads.
+   */
+  static Case requestIdGeneration() {
+    return new Case("request ID generation",
+      () -> "ONELOGIN_" + UUID.randomUUID(),
+      SamlRequestIds::newId);
+  }
+
+  /**
+   * Transformation of a login by a chain of 4 rules, see {@link SamlAttributeRules}, against the same rules parsed and
+   * their pattern compiled for every value.
+   */
+  static Case attributeRules() {
+    String[] rules = {"trim", "regex:(.*)@example\\.com", "stripDomain", "lowercase"};
+    SamlAttributeRules compiled = SamlAttributeRules.compile(rules);
+    return new Case("attribute rules",
+      () -> SamlAttributeRules.compile(rules).apply(" John.Doe@example.com "),
+      () -> compiled.apply(" John.Doe@example.com "));
+  }
+
+  Result measure(Case benchmarkCase, int threads) throws Exception {
+    // The first run of each operation warms it up
+    run(benchmarkCase.baseline, threads, durationMs / 2);
+    double baselineOps = run(benchmarkCase.baseline, threads, durationMs);
+    run(benchmarkCase.optimized, threads, durationMs / 2);
+    double optimizedOps = run(benchmarkCase.optimized, threads, durationMs);
+    return new Result(benchmarkCase.name, threads, baselineOps, optimizedOps);
+  }
+
+  /**
+   * @return the number of operations per second, all threads included
+   */
+  private static double run(Operation operation, int threads, long durationMs) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<Long>> counts = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        counts.add(executor.submit(loop(operation, start, durationMs)));
+      }
+      start.countDown();
+      long total = 0;
+      for (Future<Long> count : counts) {
+        total += count.get();
+      }
+      return total * 1_000.0 / durationMs;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Callable<Long> loop(Operation operation, CountDownLatch start, long durationMs) {
+    return () -> {
+      start.await();
+      long deadline = System.nanoTime() + durationMs * 1_000_000L;
+      long count = 0;
+      int sink = 0;
+      while (System.nanoTime() < deadline) {
+        sink ^= operation.run().hashCode();
+        count++;
+      }
+      blackhole = sink;
+      return count;
+    };
+  }
+
+  private static Object checkValid(boolean valid) {
+    if (!valid) {
+      throw new IllegalStateException("Signature is not valid");
+    }
+    return Boolean.TRUE;
+  }
+
+  private static byte[] newContent(int size) {
+    StringBuilder content = new StringBuilder(size);
+    while (content.length() < size) {
+      content.append("SAMLResponse=").append(content.length());
+    }
+    return content.substring(0, size).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static SamlSettings newSettings() {
+    return new SamlSettings(new MapSettings(new PropertyDefinitions(SamlSettings.definitions())).asConfig());
+  }
+
+  @FunctionalInterface
+  interface Operation {
+    Object run() throws Exception;
+  }
+
+  static final class Case {
+    private final String name;
+    private final Operation baseline;
+    private final Operation optimized;
+
+    Case(String name, Operation baseline, Operation optimized) {
+      this.name = name;
+      this.baseline = baseline;
+      this.optimized = optimized;
+    }
+
+    String getName() {
+      return name;
+    }
+  }
+
+  static final class Result {
+    private final String name;
+    private final int threads;
+    private final double baselineOps;
+    private final double optimizedOps;
+
+    private Result(String name, int threads, double baselineOps, double optimizedOps) {
+      this.name = name;
+      this.threads = threads;
+      this.baselineOps = baselineOps;
+      this.optimizedOps = optimizedOps;
+    }
+
+    double getBaselineOps() {
+      return baselineOps;
+    }
+
+    double getOptimizedOps() {
+      return optimizedOps;
+    }
+
+    String format() {
+      return String.format(Locale.ENGLISH, "%-32s %3d threads : %12.0f ops/s, %12.0f ops/s before (x%.2f)", name, threads, optimizedOps,
+        baselineOps, optimizedOps / baselineOps);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamlMicroBenchmarkTest {
+
+  private final SamlMicroBenchmark underTest = new SamlMicroBenchmark(50);
+
+  @Test
+  public void thread_counts_are_doubled_up_to_the_maximum() {
+    assertThat(SamlMicroBenchmark.threadCounts(1)).containsExactly(1);
+    assertThat(SamlMicroBenchmark.threadCounts(6)).containsExactly(1, 2, 4, 6);
+    assertThat(SamlMicroBenchmark.threadCounts(8)).containsExactly(1, 2, 4, 8);
+  }
+
+  @Test
+  public void measure_all_cases_with_concurrent_threads() throws Exception {
+    for (SamlMicroBenchmark.Case benchmarkCase : SamlMicroBenchmark.cases()) {
+      SamlMicroBenchmark.Result result = underTest.measure(benchmarkCase, 2);
+
+      assertThat(result.getBaselineOps()).isPositive();
+      assertThat(result.getOptimizedOps()).isPositive();
+      assertThat(result.format()).startsWith(benchmarkCase.getName()).contains("2 threads");
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamlOfflineVerifierTest {
+
+  private static final String CALLBACK_URL = "http://localhost:9000/oauth2/callback/saml";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlTestIdp idp = new SamlTestIdp(0, 0);
+
+  @Before
+  public void setUp() {
+    SamlTestIdp.configure(settings);
+  }
+
+  @Test
+  public void accept_valid_response() {
+    SamlOfflineVerifier.Verdict verdict = newVerifier(1).verify(SamlCapturedResponses.parseLine("line 1", idp.newResponse("john", null, CALLBACK_URL)));
+
+    assertThat(verdict.isValid()).isTrue();
+    assertThat(verdict.getStage()).isNull();
+    assertThat(verdict.getLogin()).isEqualTo("john");
+    assertThat(verdict.toJson()).startsWith("{\"id\":\"line 1\",\"verdict\":\"VALID\",\"login\":\"john\",\"timeMs\":");
+  }
+
+  @Test
+  public void report_stage_at_which_responses_are_rejected() {
+    SamlOfflineVerifier underTest = newVerifier(1);
+
+    assertThat(underTest.verify(captured("not a response")).getStage()).isEqualTo("MALFORMED");
+    assertThat(underTest.verify(captured(idp.newResponse("john", null, "http://other/oauth2/callback/saml"))).getStage()).isEqualTo("DESTINATION");
+    assertThat(underTest.verify(captured(tamper(idp.newResponse("john", null, CALLBACK_URL)))).getStage()).isEqualTo("SIGNATURE");
+    assertThat(underTest.verify(SamlCapturedResponses.parseLine("line 1", "{\"id\":")).getStage()).isEqualTo(SamlOfflineVerifier.INPUT);
+
+    settings.setProperty("sonar.auth.saml.user.login", "unknown");
+    SamlOfflineVerifier.Verdict verdict = newVerifier(1).verify(captured(idp.newResponse("john", null, CALLBACK_URL)));
+    assertThat(verdict.getStage()).isEqualTo(SamlOfflineVerifier.ATTRIBUTE_MAPPING);
+    assertThat(verdict.getReason()).isEqualTo("unknown is missing");
+  }
+
+  @Test
+  public void ignore_in_response_to_and_replays() {
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+    settings.setProperty("sonar.auth.saml.replayProtection", true);
+    Properties properties = new Properties();
+    properties.putAll(settings.getProperties());
+    SamlOfflineVerifier underTest = new SamlOfflineVerifier(SamlOfflineVerifier.newSettings(properties), CALLBACK_URL, 1, System2.INSTANCE);
+    String response = idp.newResponse("john", "_unknown_request", CALLBACK_URL);
+
+    assertThat(underTest.verify(captured(response)).isValid()).isTrue();
+    assertThat(underTest.verify(captured(response)).isValid()).isTrue();
+  }
+
+  @Test
+  public void output_verdicts_in_input_order() throws IOException {
+    Path input = temp.newFile("responses.jsonl").toPath();
+    try (Writer writer = Files.newBufferedWriter(input, StandardCharsets.UTF_8)) {
+      for (int i = 0; i < 40; i++) {
+        String response = i % 10 == 0 ? tamper(idp.newResponse("user" + i, null, CALLBACK_URL)) : idp.newResponse("user" + i, null, CALLBACK_URL);
+        writer.write("{\"id\":\"capture-" + i + "\",\"SAMLResponse\":\"" + response + "\"}\n");
+      }
+    }
+    List<SamlOfflineVerifier.Verdict> verdicts = new ArrayList<>();
+
+    SamlOfflineVerifier.Summary summary = newVerifier(4).verifyAll(input, verdicts::add);
+
+    assertThat(verdicts).hasSize(40);
+    for (int i = 0; i < 40; i++) {
+      assertThat(verdicts.get(i).getId()).isEqualTo("capture-" + i);
+      assertThat(verdicts.get(i).isValid()).isEqualTo(i % 10 != 0);
+    }
+    assertThat(summary.getValidCount()).isEqualTo(36);
+    assertThat(summary.getRejectedCount()).isEqualTo(4);
+    assertThat(summary.getRejectionsByStage()).containsOnlyKeys("SIGNATURE");
+    assertThat(summary.format()).startsWith("40 responses verified in ").contains("with 4 threads", "36 valid, 4 rejected at SIGNATURE", "Latency: p50 <= ");
+  }
+
+  @Test
+  public void run_from_command_line() throws IOException {
+    File directory = temp.newFolder();
+    Files.write(new File(directory, "valid.txt").toPath(), idp.newResponse("john", null, CALLBACK_URL).getBytes(StandardCharsets.UTF_8));
+    Files.write(new File(directory, "tampered.txt").toPath(), tamper(idp.newResponse("jane", null, CALLBACK_URL)).getBytes(StandardCharsets.UTF_8));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    int exitCode = SamlOfflineVerifier.run(new String[] {"--threads", "2", "--repeat", "2", writeSettings(), directory.getAbsolutePath()},
+      new PrintStream(out, true), new PrintStream(err, true));
+
+    assertThat(exitCode).isEqualTo(1);
+    assertThat(out.toString().split("\n"))
+      .hasSize(2)
+      .anyMatch(line -> line.startsWith("{\"id\":\"valid.txt\",\"verdict\":\"VALID\""))
+      .anyMatch(line -> line.startsWith("{\"id\":\"tampered.txt\",\"verdict\":\"REJECTED\",\"stage\":\"SIGNATURE\""));
+    assertThat(err.toString()).contains("Round 1: 2 responses verified", "Round 2: 2 responses verified", "1 valid, 1 rejected at SIGNATURE");
+  }
+
+  @Test
+  public void verify_responses_at_given_date() throws IOException {
+    Path input = temp.newFile().toPath();
+    Files.write(input, (idp.newResponse("john", null, CALLBACK_URL) + "\n").getBytes(StandardCharsets.UTF_8));
+    String later = Instant.now().plus(1, ChronoUnit.DAYS).toString();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    int exitCode = SamlOfflineVerifier.run(new String[] {"--at", later, writeSettings(), input.toString()}, new PrintStream(out, true),
+      new PrintStream(new ByteArrayOutputStream(), true));
+
+    assertThat(exitCode).isEqualTo(1);
+    assertThat(out.toString()).contains("\"stage\":\"VALIDITY_WINDOW\"");
+    assertThat(SamlOfflineVerifier.run(new String[] {"--quiet", writeSettings(), input.toString()}, new PrintStream(out, true),
+      new PrintStream(new ByteArrayOutputStream(), true))).isZero();
+  }
+
+  @Test
+  public void fail_on_invalid_arguments() throws IOException {
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    assertThat(SamlOfflineVerifier.run(new String[] {writeSettings()}, System.out, new PrintStream(err, true))).isEqualTo(2);
+    assertThat(SamlOfflineVerifier.run(new String[] {"--threads"}, System.out, new PrintStream(err, true))).isEqualTo(2);
+    assertThat(SamlOfflineVerifier.run(new String[] {"missing.properties", "responses"}, System.out, new PrintStream(err, true))).isEqualTo(2);
+
+    assertThat(err.toString()).contains("Usage: SamlOfflineVerifier", "Missing value of --threads", "Fail to verify SAML responses");
+  }
+
+  private SamlOfflineVerifier newVerifier(int threads) {
+    return new SamlOfflineVerifier(new SamlSettings(settings.asConfig()), CALLBACK_URL, threads, System2.INSTANCE);
+  }
+
+  private String writeSettings() throws IOException {
+    Properties properties = new Properties();
+    properties.putAll(settings.getProperties());
+    File file = temp.newFile();
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      properties.store(writer, null);
+    }
+    return file.getAbsolutePath();
+  }
+
+  private static SamlCapturedResponses.Captured captured(String response) {
+    return SamlCapturedResponses.parseLine("line 1", response);
+  }
+
+  /**
+   * Changes the NameID, which is covered by the signature of the response
+   */
+  private static String tamper(String encodedResponse) {
+    String xml = new String(Base64.getDecoder().decode(encodedResponse), StandardCharsets.UTF_8);
+    String tampered = xml.replaceFirst("(<saml:NameID[^>]*>)([^<]*)<", "$1admin<");
+    assertThat(tampered).isNotEqualTo(xml);
+    return Base64.getEncoder().encodeToString(tampered.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SamlRateLimiterTest {
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final System2 system2 = mock(System2.class);
+  private final SamlRateLimiter underTest = new SamlRateLimiter(new SamlSettings(settings.asConfig()), system2);
+
+  private long now = 1_000_000L;
+
+  @Before
+  public void setUp() {
+    when(system2.now()).thenAnswer(invocation -> now);
+  }
+
+  @Test
+  public void accept_all_requests_when_limit_is_disabled() {
+    HttpServletRequest request = newRequest("10.0.0.1");
+
+    for (int i = 0; i < 1_000; i++) {
+      assertThat(underTest.tryAcquire(request)).isTrue();
+    }
+    assertThat(underTest.getBucketCount()).isZero();
+  }
+
+  @Test
+  public void reject_requests_exceeding_burst() {
+    setLimit(60, 3);
+    HttpServletRequest request = newRequest("10.0.0.1");
+
+    assertThat(underTest.tryAcquire(request)).isTrue();
+    assertThat(underTest.tryAcquire(request)).isTrue();
+    assertThat(underTest.tryAcquire(request)).isTrue();
+    assertThat(underTest.tryAcquire(request)).isFalse();
+    assertThat(underTest.getRejectionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void tokens_are_refilled_over_time() {
+    setLimit(60, 1);
+    HttpServletRequest request = newRequest("10.0.0.1");
+
+    assertThat(underTest.tryAcquire(request)).isTrue();
+    assertThat(underTest.tryAcquire(request)).isFalse();
+
+    now += 500;
+    assertThat(underTest.tryAcquire(request)).isFalse();
+
+    now += 500;
+    assertThat(underTest.tryAcquire(request)).isTrue();
+  }
+
+  @Test
+  public void clients_have_their_own_bucket() {
+    setLimit(60, 1);
+
+    assertThat(underTest.tryAcquire(newRequest("10.0.0.1"))).isTrue();
+    assertThat(underTest.tryAcquire(newRequest("10.0.0.1"))).isFalse();
+    assertThat(underTest.tryAcquire(newRequest("10.0.0.2"))).isTrue();
+    assertThat(underTest.getBucketCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void evict_idle_buckets_when_map_is_full() {
+    setLimit(60, 1);
+    for (int i = 0; i < SamlRateLimiter.MAX_BUCKETS; i++) {
+      underTest.tryAcquire(newRequest("client-" + i));
+    }
+    assertThat(underTest.getBucketCount()).isEqualTo(SamlRateLimiter.MAX_BUCKETS);
+
+    // All buckets are full again
+    now += 1_000;
+    assertThat(underTest.tryAcquire(newRequest("new-client"))).isTrue();
+
+    assertThat(underTest.getBucketCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void untracked_clients_share_overflow_bucket_when_map_is_full_of_active_buckets() {
+    setLimit(60, 2);
+    for (int i = 0; i < SamlRateLimiter.MAX_BUCKETS; i++) {
+      underTest.tryAcquire(newRequest("client-" + i));
+    }
+
+    assertThat(underTest.tryAcquire(newRequest("new-client-1"))).isTrue();
+    assertThat(underTest.tryAcquire(newRequest("new-client-2"))).isTrue();
+    assertThat(underTest.tryAcquire(newRequest("new-client-3"))).isFalse();
+    assertThat(underTest.getBucketCount()).isEqualTo(SamlRateLimiter.MAX_BUCKETS);
+  }
+
+  @Test
+  public void return_retry_after() {
+    setLimit(6, 1);
+
+    assertThat(underTest.getRetryAfterSeconds()).isEqualTo(10);
+  }
+
+  @Test
+  public void use_address_added_by_trusted_proxies_to_forwarded_for_header() {
+    HttpServletRequest request = newRequest("10.0.0.1");
+    when(request.getHeader("X-Forwarded-For")).thenReturn("6.6.6.6, 192.168.1.1 , 10.0.0.2");
+
+    assertThat(SamlRateLimiter.getClientIp(request, 1)).isEqualTo("10.0.0.2");
+    assertThat(SamlRateLimiter.getClientIp(request, 2)).isEqualTo("192.168.1.1");
+    assertThat(SamlRateLimiter.getClientIp(request, 5)).isEqualTo("6.6.6.6");
+  }
+
+  @Test
+  public void ignore_forwarded_for_header_without_trusted_proxy() {
+    HttpServletRequest request = newRequest("10.0.0.1");
+    when(request.getHeader("X-Forwarded-For")).thenReturn("192.168.1.1");
+
+    assertThat(SamlRateLimiter.getClientIp(request, 0)).isEqualTo("10.0.0.1");
+  }
+
+  @Test
+  public void spoofed_forwarded_for_addresses_do_not_bypass_limit() {
+    setLimit(60, 1);
+    settings.setProperty("sonar.auth.saml.callback.trustedProxyCount", 1);
+
+    for (int i = 0; i < 10; i++) {
+      HttpServletRequest request = newRequest("10.0.0.1");
+      when(request.getHeader("X-Forwarded-For")).thenReturn("1.1.1." + i + ", 192.168.1.1");
+      assertThat(underTest.tryAcquire(request)).isEqualTo(i == 0);
+    }
+  }
+
+  @Test
+  public void use_remote_address_when_no_forwarded_for_header() {
+    assertThat(SamlRateLimiter.getClientIp(newRequest("10.0.0.1"), 1)).isEqualTo("10.0.0.1");
+    assertThat(SamlRateLimiter.getClientIp(mock(HttpServletRequest.class), 1)).isEqualTo("unknown");
+  }
+
+  private void setLimit(int requestsPerMinute, int burst) {
+    settings.setProperty("sonar.auth.saml.callback.rateLimit", requestsPerMinute);
+    settings.setProperty("sonar.auth.saml.callback.rateLimitBurst", burst);
+  }
+
+  private static HttpServletRequest newRequest(String remoteAddr) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRemoteAddr()).thenReturn(remoteAddr);
+    return request;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import javax.annotation.Nullable;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SamlRedirectMessageTest {
+
+  static final String RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+
+  @Test
+  public void return_null_when_query_string_has_no_saml_response() {
+    assertThat(SamlRedirectMessage.parse(null)).isNull();
+    assertThat(SamlRedirectMessage.parse("")).isNull();
+    assertThat(SamlRedirectMessage.parse("code=123&state=abc")).isNull();
+    assertThat(SamlRedirectMessage.parse("OtherSAMLResponse=abc")).isNull();
+  }
+
+  @Test
+  public void signed_content_is_built_from_raw_values() {
+    SamlRedirectMessage message = SamlRedirectMessage.parse("Signature=c2ln&foo=bar&SigAlg=http%3A%2F%2Falg&RelayState=a%2Bb&SAMLResponse=abc%3D%3D");
+
+    assertThat(message.isSigned()).isTrue();
+    assertThat(new String(message.getSignedContent(), StandardCharsets.US_ASCII))
+      .isEqualTo("SAMLResponse=abc%3D%3D&RelayState=a%2Bb&SigAlg=http%3A%2F%2Falg");
+    assertThat(message.getSigAlg()).isEqualTo("http://alg");
+    assertThat(message.getSignature()).isEqualTo("sig".getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  public void relay_state_is_optional() {
+    SamlRedirectMessage message = SamlRedirectMessage.parse("SAMLResponse=abc&SigAlg=alg&Signature=c2ln");
+
+    assertThat(new String(message.getSignedContent(), StandardCharsets.US_ASCII)).isEqualTo("SAMLResponse=abc&SigAlg=alg");
+  }
+
+  @Test
+  public void message_without_signature_is_not_signed() {
+    SamlRedirectMessage message = SamlRedirectMessage.parse("SAMLResponse=abc&SigAlg=alg");
+
+    assertThat(message.isSigned()).isFalse();
+    assertThat(message.getSignature()).isNull();
+  }
+
+  @Test
+  public void first_value_of_duplicated_parameter_is_used() {
+    SamlRedirectMessage message = SamlRedirectMessage.parse("SAMLResponse=abc&SAMLResponse=def&SigAlg=alg");
+
+    assertThat(new String(message.getSignedContent(), StandardCharsets.US_ASCII)).isEqualTo("SAMLResponse=abc&SigAlg=alg");
+  }
+
+  @Test
+  public void inflate_response() throws IOException {
+    String queryString = "SAMLResponse=" + encode("<samlp:Response/>");
+
+    try (InputStream response = SamlRedirectMessage.parse(queryString).inflateResponse()) {
+      assertThat(IOUtils.toString(response, StandardCharsets.UTF_8.name())).isEqualTo("<samlp:Response/>");
+    }
+  }
+
+  @Test
+  public void fail_to_inflate_response_which_is_not_deflated() {
+    String queryString = "SAMLResponse=" + urlEncode(Base64.getEncoder().encodeToString("<samlp:Response/>".getBytes(StandardCharsets.UTF_8)));
+
+    assertThatThrownBy(() -> SamlRedirectMessage.parse(queryString).inflateResponse())
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  /**
+   * @return the query string of a response sent with the HTTP-Redirect binding, signed with RSA-SHA256
+   */
+  static String signedQueryString(String xmlResponse, @Nullable String relayState, PrivateKey privateKey) throws GeneralSecurityException {
+    return signedQueryString("SAMLResponse", xmlResponse, relayState, privateKey);
+  }
+
+  static String signedQueryString(String parameter, String xmlMessage, @Nullable String relayState, PrivateKey privateKey) throws GeneralSecurityException {
+    return sign(parameter + "=" + encode(xmlMessage) + (relayState == null ? "" : ("&RelayState=" + urlEncode(relayState))), privateKey);
+  }
+
+  /**
+   * @param parameters the query string, without SigAlg and Signature
+   */
+  static String sign(String parameters, PrivateKey privateKey) throws GeneralSecurityException {
+    String signedContent = parameters + "&SigAlg=" + urlEncode(RSA_SHA256);
+    Signature signature = Signature.getInstance("SHA256withRSA");
+    signature.initSign(privateKey);
+    signature.update(signedContent.getBytes(StandardCharsets.US_ASCII));
+    return signedContent + "&Signature=" + urlEncode(Base64.getEncoder().encodeToString(signature.sign()));
+  }
+
+  static PrivateKey loadPrivateKey(String pem) throws GeneralSecurityException {
+    byte[] encoded = Base64.getMimeDecoder().decode(pem.replaceAll("-----(BEGIN|END) PRIVATE KEY-----", ""));
+    return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(encoded));
+  }
+
+  private static String encode(String xml) {
+    return urlEncode(Base64.getEncoder().encodeToString(PooledInflaterTest.deflate(xml.getBytes(StandardCharsets.UTF_8))));
+  }
+
+  private static String urlEncode(String value) {
+    try {
+      return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
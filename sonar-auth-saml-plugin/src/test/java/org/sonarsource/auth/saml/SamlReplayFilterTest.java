@@ -0,0 +1,140 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamlReplayFilterTest {
+
+  private static final long NOW = 1_591_398_150_000L;
+  private static final long WINDOW = 60_000L;
+
+  private final SamlReplayFilter underTest = new SamlReplayFilter(10_000, 0.01, WINDOW, NOW);
+
+  @Test
+  public void contain_added_keys() {
+    Random random = new Random(42);
+    long[] keys = new long[10_000];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = random.nextLong();
+      underTest.add(keys[i], NOW + WINDOW, NOW);
+    }
+
+    for (long key : keys) {
+      assertThat(underTest.mightContain(key, NOW)).isTrue();
+    }
+  }
+
+  @Test
+  public void false_positive_rate_is_close_to_expected_one() {
+    Random random = new Random(42);
+    for (int i = 0; i < 10_000; i++) {
+      underTest.add(random.nextLong(), NOW + WINDOW, NOW);
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 100_000; i++) {
+      if (underTest.mightContain(random.nextLong(), NOW)) {
+        falsePositives++;
+      }
+    }
+
+    assertThat(falsePositives / 100_000.0).isLessThan(0.02);
+    assertThat(underTest.getHashCount()).isEqualTo(7);
+  }
+
+  @Test
+  public void keep_keys_during_next_window() {
+    underTest.add(1L, NOW + WINDOW, NOW);
+
+    assertThat(underTest.mightContain(1L, NOW + WINDOW)).isTrue();
+    assertThat(underTest.mightContain(1L, NOW + 2 * WINDOW - 1)).isTrue();
+  }
+
+  @Test
+  public void drop_keys_after_two_windows() {
+    underTest.add(1L, NOW + WINDOW, NOW);
+
+    assertThat(underTest.mightContain(1L, NOW + WINDOW)).isTrue();
+    assertThat(underTest.mightContain(1L, NOW + 2 * WINDOW)).isFalse();
+  }
+
+  @Test
+  public void drop_keys_when_not_used_during_two_windows() {
+    underTest.add(1L, NOW + WINDOW, NOW);
+
+    assertThat(underTest.mightContain(1L, NOW + 3 * WINDOW)).isFalse();
+  }
+
+  @Test
+  public void report_every_key_as_possibly_added_until_long_lived_key_expires() {
+    underTest.add(1L, NOW + 5 * WINDOW, NOW);
+
+    assertThat(underTest.mightContain(2L, NOW)).isTrue();
+    assertThat(underTest.mightContain(2L, NOW + 5 * WINDOW - 1)).isTrue();
+    assertThat(underTest.mightContain(2L, NOW + 5 * WINDOW)).isFalse();
+  }
+
+  @Test
+  public void apply_longer_window_when_rotation_is_due() {
+    AtomicLong window = new AtomicLong(WINDOW);
+    SamlReplayFilter filter = new SamlReplayFilter(10_000, 0.01, window::get, NOW);
+    filter.add(1L, NOW + WINDOW, NOW);
+
+    window.set(3 * WINDOW);
+
+    assertThat(filter.mightContain(1L, NOW + WINDOW)).isTrue();
+    assertThat(filter.mightContain(1L, NOW + 2 * WINDOW)).isTrue();
+    assertThat(filter.mightContain(1L, NOW + 3 * WINDOW - 1)).isTrue();
+  }
+
+  @Test
+  public void do_not_trust_filter_until_keys_added_with_previous_window_have_expired_when_window_is_shortened() {
+    AtomicLong window = new AtomicLong(WINDOW);
+    SamlReplayFilter filter = new SamlReplayFilter(10_000, 0.01, window::get, NOW);
+    filter.add(1L, NOW + WINDOW, NOW);
+
+    window.set(WINDOW / 4);
+
+    assertThat(filter.mightContain(2L, NOW + WINDOW)).isTrue();
+    assertThat(filter.mightContain(2L, NOW + 2 * WINDOW - 1)).isTrue();
+    assertThat(filter.mightContain(2L, NOW + 2 * WINDOW)).isFalse();
+    // Keys are then kept during the shorter window
+    filter.add(3L, NOW + 2 * WINDOW + WINDOW / 4, NOW + 2 * WINDOW);
+    assertThat(filter.mightContain(3L, NOW + 2 * WINDOW + WINDOW / 4)).isTrue();
+    assertThat(filter.mightContain(3L, NOW + 2 * WINDOW + WINDOW / 2)).isFalse();
+  }
+
+  @Test
+  public void memory_does_not_depend_on_added_keys() {
+    long size = underTest.getSizeInBytes();
+    for (int i = 0; i < 100_000; i++) {
+      underTest.add(i, NOW + WINDOW, NOW);
+    }
+
+    // 10_000 keys at 1% need 95_851 bits, rounded to 256 blocks of 512 bits, in 2 generations
+    assertThat(size).isEqualTo(2 * 256 * 64);
+    assertThat(underTest.getSizeInBytes()).isEqualTo(size);
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.sonarsource.auth.saml.SamlReplayStore.Usage.FIRST_USE;
+import static org.sonarsource.auth.saml.SamlReplayStore.Usage.REPLAY;
+import static org.sonarsource.auth.saml.SamlReplayStore.Usage.STORE_FULL;
+
+public class SamlReplayStoreTest {
+
+  private static final long NOW = 1_591_398_150_000L;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlSettings samlSettings = new SamlSettings(settings.asConfig());
+  private final System2 system2 = mock(System2.class);
+  private final SamlReplayStore underTest = new SamlReplayStore(samlSettings, system2, 64);
+  private File dataDir;
+
+  @Before
+  public void setUp() throws IOException {
+    dataDir = temp.newFolder();
+    settings.setProperty("sonar.path.data", dataDir.getAbsolutePath());
+    settings.setProperty("sonar.auth.saml.replayProtection", true);
+    when(system2.now()).thenReturn(NOW);
+  }
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+  }
+
+  @Test
+  public void reject_assertion_already_used() {
+    assertThat(underTest.markUsed("ID_1", NOW + 1_000)).isEqualTo(FIRST_USE);
+    assertThat(underTest.markUsed("ID_2", NOW + 1_000)).isEqualTo(FIRST_USE);
+
+    assertThat(underTest.markUsed("ID_1", NOW + 1_000)).isEqualTo(REPLAY);
+    assertThat(underTest.markUsed("ID_2", NOW + 1_000)).isEqualTo(REPLAY);
+  }
+
+  @Test
+  public void accept_assertion_again_once_expired() {
+    assertThat(underTest.markUsed("ID_1", NOW + 1_000)).isEqualTo(FIRST_USE);
+
+    when(system2.now()).thenReturn(NOW + 1_000);
+
+    assertThat(underTest.markUsed("ID_1", NOW + 2_000)).isEqualTo(FIRST_USE);
+    assertThat(underTest.markUsed("ID_1", NOW + 2_000)).isEqualTo(REPLAY);
+  }
+
+  @Test
+  public void recycle_expired_entries() {
+    for (int i = 0; i < 32; i++) {
+      assertThat(underTest.markUsed("ID_" + i, NOW + 1_000)).isEqualTo(FIRST_USE);
+    }
+    long saturations = underTest.getSaturationCount();
+    when(system2.now()).thenReturn(NOW + 1_000);
+
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 32; i++) {
+        assertThat(underTest.markUsed("ROUND_" + round + "_" + i, NOW + 1_000 * (round + 2))).isEqualTo(FIRST_USE);
+      }
+      when(system2.now()).thenReturn(NOW + 1_000 * (round + 2));
+    }
+
+    assertThat(underTest.getSaturationCount()).isEqualTo(saturations);
+  }
+
+  @Test
+  public void refuse_assertion_when_full_instead_of_evicting_entries_not_expired() {
+    List<String> recorded = fill(NOW + 1_000);
+    long saturations = underTest.getSaturationCount();
+
+    assertThat(underTest.markUsed("NEW", NOW + 5_000)).isEqualTo(STORE_FULL);
+    assertThat(underTest.markUsed("NEW", NOW + 5_000)).isEqualTo(STORE_FULL);
+
+    assertThat(underTest.getSaturationCount()).isEqualTo(saturations + 2);
+    for (String assertionId : recorded) {
+      assertThat(underTest.markUsed(assertionId, NOW + 1_000)).isEqualTo(REPLAY);
+    }
+  }
+
+  @Test
+  public void accept_assertion_once_entries_of_full_store_expire() {
+    fill(NOW + 1_000);
+    assertThat(underTest.markUsed("NEW", NOW + 5_000)).isEqualTo(STORE_FULL);
+
+    when(system2.now()).thenReturn(NOW + 1_000);
+
+    assertThat(underTest.markUsed("NEW", NOW + 5_000)).isEqualTo(FIRST_USE);
+    assertThat(underTest.markUsed("NEW", NOW + 5_000)).isEqualTo(REPLAY);
+  }
+
+  @Test
+  public void keep_entries_after_restart() {
+    assertThat(underTest.markUsed("ID_1", NOW + 1_000)).isEqualTo(FIRST_USE);
+    underTest.stop();
+
+    SamlReplayStore restarted = new SamlReplayStore(samlSettings, system2, 64);
+    restarted.start();
+
+    assertThat(restarted.markUsed("ID_1", NOW + 1_000)).isEqualTo(REPLAY);
+    assertThat(restarted.markUsed("ID_2", NOW + 1_000)).isEqualTo(FIRST_USE);
+    restarted.stop();
+  }
+
+  @Test
+  public void look_up_table_only_for_possible_replays() {
+    for (int i = 0; i < 32; i++) {
+      assertThat(underTest.markUsed("ID_" + i, NOW + 1_000)).isEqualTo(FIRST_USE);
+    }
+    assertThat(underTest.getTableLookupCount()).isLessThanOrEqualTo(2);
+
+    assertThat(underTest.markUsed("ID_1", NOW + 1_000)).isEqualTo(REPLAY);
+    assertThat(underTest.getTableLookupCount()).isGreaterThanOrEqualTo(1);
+  }
+
+  @Test
+  public void load_filter_from_file_after_restart() {
+    for (int i = 0; i < 32; i++) {
+      assertThat(underTest.markUsed("ID_" + i, NOW + 1_000)).isEqualTo(FIRST_USE);
+    }
+    underTest.stop();
+
+    SamlReplayStore restarted = new SamlReplayStore(samlSettings, system2, 64);
+    restarted.start();
+
+    for (int i = 0; i < 32; i++) {
+      assertThat(restarted.markUsed("ID_" + i, NOW + 1_000)).isEqualTo(REPLAY);
+    }
+    assertThat(restarted.getTableLookupCount()).isEqualTo(32);
+    restarted.stop();
+  }
+
+  @Test
+  public void reinitialize_file_when_capacity_changes() throws IOException {
+    assertThat(underTest.markUsed("ID_1", NOW + 1_000)).isEqualTo(FIRST_USE);
+    underTest.stop();
+
+    SamlReplayStore resized = new SamlReplayStore(samlSettings, system2, 128);
+
+    assertThat(resized.markUsed("ID_1", NOW + 1_000)).isEqualTo(FIRST_USE);
+    assertThat(Files.size(samlSettings.getReplayStoreFile())).isEqualTo(16 + 128 * 16);
+    resized.stop();
+  }
+
+  @Test
+  public void reinitialize_corrupted_file() throws IOException {
+    Path file = samlSettings.getReplayStoreFile();
+    Files.createDirectories(file.getParent());
+    Files.write(file, new byte[16 + 64 * 16]);
+
+    assertThat(underTest.markUsed("ID_1", NOW + 1_000)).isEqualTo(FIRST_USE);
+    assertThat(underTest.markUsed("ID_1", NOW + 1_000)).isEqualTo(REPLAY);
+  }
+
+  @Test
+  public void do_nothing_when_disabled() {
+    settings.setProperty("sonar.auth.saml.replayProtection", false);
+    underTest.start();
+
+    assertThat(underTest.markUsed("ID_1", NOW + 1_000)).isEqualTo(FIRST_USE);
+    assertThat(underTest.markUsed("ID_1", NOW + 1_000)).isEqualTo(FIRST_USE);
+    assertThat(dataDir.list()).isEmpty();
+  }
+
+  @Test
+  public void fail_when_file_can_not_be_created() throws IOException {
+    settings.setProperty("sonar.path.data", temp.newFile().getAbsolutePath());
+
+    assertThatThrownBy(underTest::start)
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageStartingWith("Fail to open the SAML replay store");
+  }
+
+  /**
+   * @return the IDs of the assertions recorded until all the slots are used
+   */
+  private List<String> fill(long expiresAt) {
+    List<String> recorded = new ArrayList<>();
+    for (int i = 0; i < 1_000; i++) {
+      if (underTest.markUsed("ID_" + i, expiresAt) == FIRST_USE) {
+        recorded.add("ID_" + i);
+      }
+    }
+    assertThat(recorded).hasSize(64);
+    return recorded;
+  }
+}
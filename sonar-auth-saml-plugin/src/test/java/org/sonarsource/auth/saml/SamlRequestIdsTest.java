@@ -0,0 +1,60 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamlRequestIdsTest {
+
+  @Test
+  public void generate_ncname_ids() {
+    for (int i = 0; i < 1000; i++) {
+      assertThat(SamlRequestIds.newId()).matches("_[A-Za-z0-9_-]{22}");
+    }
+  }
+
+  @Test
+  public void generate_unique_ids_from_several_threads() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Callable<Set<String>> task = () -> IntStream.range(0, 1000).mapToObj(i -> SamlRequestIds.newId()).collect(Collectors.toSet());
+      List<Future<Set<String>>> results = executor.invokeAll(IntStream.range(0, 4).mapToObj(i -> task).collect(Collectors.toList()));
+
+      Set<String> ids = new HashSet<>();
+      for (Future<Set<String>> result : results) {
+        ids.addAll(result.get());
+      }
+      assertThat(ids).hasSize(4000);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
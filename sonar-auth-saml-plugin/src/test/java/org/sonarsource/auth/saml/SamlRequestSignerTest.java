@@ -0,0 +1,131 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SamlRequestSignerTest {
+
+  private static final String SSO_URL = "http://localhost:8080/auth/realms/sonarqube/protocol/saml";
+
+  private static KeyPair keyPair;
+  private static KeyPair otherKeyPair;
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlSettings samlSettings = new SamlSettings(settings.asConfig());
+  private final SamlRequestSigner underTest = new SamlRequestSigner(samlSettings, new SamlCredentials(samlSettings));
+
+  @BeforeClass
+  public static void generateKeys() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    keyPair = generator.generateKeyPair();
+    otherKeyPair = generator.generateKeyPair();
+  }
+
+  @Test
+  public void sign_redirect_query_string() throws Exception {
+    setPrivateKey(keyPair);
+
+    String url = underTest.buildSignedRedirectUrl(SSO_URL, "fZJNb+sgEEX3/hUW+g4apJKVuwqr1XVSKmaJu5bvB3GOCaCwWUgH/+", "state+1");
+
+    assertThat(url).startsWith(SSO_URL + "?SAMLRequest=fZJNb%2BsgEEX3%2FhUW%2Bg4apJKVuwqr1XVSKmaJu5bvB3GOCaCwWUgH%2F%2B&RelayState=state%2B1" +
+      "&SigAlg=http%3A%2F%2Fwww.w3.org%2F2001%2F04%2Fxmldsig-more%23rsa-sha256&Signature=");
+    assertValidSignature(url, keyPair.getPublic());
+  }
+
+  @Test
+  public void do_not_add_relay_state_when_missing() throws Exception {
+    setPrivateKey(keyPair);
+
+    String url = underTest.buildSignedRedirectUrl(SSO_URL, "request", null);
+
+    assertThat(url).startsWith(SSO_URL + "?SAMLRequest=request&SigAlg=");
+    assertValidSignature(url, keyPair.getPublic());
+  }
+
+  @Test
+  public void keep_query_string_of_sso_url() throws Exception {
+    setPrivateKey(keyPair);
+
+    String url = underTest.buildSignedRedirectUrl(SSO_URL + "?tenant=sonar", "request", "state");
+
+    assertThat(url).startsWith(SSO_URL + "?tenant=sonar&SAMLRequest=request&RelayState=state&SigAlg=");
+    assertValidSignature(url, keyPair.getPublic());
+  }
+
+  @Test
+  public void reuse_signature_of_the_current_thread_until_private_key_changes() throws Exception {
+    setPrivateKey(keyPair);
+    for (int i = 0; i < 10; i++) {
+      assertValidSignature(underTest.buildSignedRedirectUrl(SSO_URL, "request" + i, "state"), keyPair.getPublic());
+    }
+    assertThat(underTest.getSignatureCreationCount()).isEqualTo(1);
+
+    setPrivateKey(otherKeyPair);
+    assertValidSignature(underTest.buildSignedRedirectUrl(SSO_URL, "request", "state"), otherKeyPair.getPublic());
+    assertThat(underTest.getSignatureCreationCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void fail_when_private_key_is_missing() {
+    assertThatThrownBy(() -> underTest.buildSignedRedirectUrl(SSO_URL, "request", "state"))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("The service provider private key is required to sign authentication requests");
+  }
+
+  @Test
+  public void fail_when_provider_does_not_exist() {
+    setPrivateKey(keyPair);
+    settings.setProperty("sonar.auth.saml.signature.provider", "Unknown");
+
+    assertThatThrownBy(() -> underTest.buildSignedRedirectUrl(SSO_URL, "request", "state"))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Fail to sign authentication request");
+  }
+
+  private void setPrivateKey(KeyPair keyPair) {
+    settings.setProperty("sonar.auth.saml.sp.privateKey.secured", Base64.getEncoder().encodeToString(keyPair.getPrivate().getEncoded()));
+  }
+
+  static void assertValidSignature(String url, PublicKey publicKey) throws Exception {
+    int signatureIndex = url.indexOf("&Signature=");
+    String signedQuery = url.substring(url.indexOf("SAMLRequest="), signatureIndex);
+    byte[] signatureValue = Base64.getDecoder().decode(URLDecoder.decode(url.substring(signatureIndex + "&Signature=".length()), "UTF-8"));
+    Signature signature = Signature.getInstance("SHA256withRSA");
+    signature.initVerify(publicKey);
+    signature.update(signedQuery.getBytes(StandardCharsets.UTF_8));
+    assertThat(signature.verify(signatureValue)).isTrue();
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SamlRequestTrackerTest {
+
+  private static final long TTL = TimeUnit.MINUTES.toMillis(5);
+  private static final String PROVIDER_ID = "http://localhost:8080/auth/realms/sonarqube";
+
+  private long now = 1_600_000_000_000L;
+  private final System2 system2 = mockSystem2();
+  private final SamlRequestTracker underTest = new SamlRequestTracker(system2, TTL, 10);
+
+  @Test
+  public void consume_pending_request() {
+    underTest.add("ID_1", PROVIDER_ID);
+
+    assertThat(underTest.consume("ID_1")).isTrue();
+    assertThat(underTest.size()).isZero();
+    assertThat(underTest.getProviderId("ID_1")).isNull();
+  }
+
+  @Test
+  public void looking_up_request_returns_its_identity_provider_without_consuming_it() {
+    underTest.add("ID_1", PROVIDER_ID);
+
+    assertThat(underTest.getProviderId("ID_1")).isEqualTo(PROVIDER_ID);
+    assertThat(underTest.getProviderId("ID_1")).isEqualTo(PROVIDER_ID);
+    assertThat(underTest.size()).isEqualTo(1);
+    assertThat(underTest.getHitCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void request_can_only_be_consumed_once() {
+    underTest.add("ID_1", PROVIDER_ID);
+
+    assertThat(underTest.getProviderId("ID_1")).isEqualTo(PROVIDER_ID);
+    assertThat(underTest.consume("ID_1")).isTrue();
+    assertThat(underTest.getProviderId("ID_1")).isNull();
+    assertThat(underTest.consume("ID_1")).isFalse();
+    assertThat(underTest.getHitRate()).isEqualTo(0.5D, within(0.001D));
+  }
+
+  @Test
+  public void unknown_request_is_not_pending() {
+    assertThat(underTest.getProviderId("unknown")).isNull();
+    assertThat(underTest.consume("unknown")).isFalse();
+    assertThat(underTest.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void expired_request_is_not_pending() {
+    underTest.add("ID_1", PROVIDER_ID);
+
+    now += TTL + TimeUnit.SECONDS.toMillis(10);
+
+    assertThat(underTest.getProviderId("ID_1")).isNull();
+    assertThat(underTest.consume("ID_1")).isFalse();
+  }
+
+  @Test
+  public void expired_requests_are_evicted_by_the_wheel() {
+    underTest.add("ID_1", PROVIDER_ID);
+    underTest.add("ID_2", PROVIDER_ID);
+    now += TimeUnit.MINUTES.toMillis(2);
+    underTest.add("ID_3", PROVIDER_ID);
+
+    now += TTL - TimeUnit.MINUTES.toMillis(1);
+    underTest.add("ID_4", PROVIDER_ID);
+
+    assertThat(underTest.size()).isEqualTo(2);
+    assertThat(underTest.consume("ID_3")).isTrue();
+    assertThat(underTest.consume("ID_4")).isTrue();
+  }
+
+  @Test
+  public void expired_requests_are_evicted_after_long_idle_period() {
+    underTest.add("ID_1", PROVIDER_ID);
+
+    now += TimeUnit.DAYS.toMillis(1);
+    underTest.add("ID_2", PROVIDER_ID);
+
+    assertThat(underTest.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void do_not_track_requests_when_store_is_full() {
+    for (int i = 0; i < 15; i++) {
+      underTest.add("ID_" + i, PROVIDER_ID);
+    }
+
+    assertThat(underTest.size()).isEqualTo(10);
+    assertThat(underTest.getOverflowCount()).isEqualTo(5);
+    assertThat(underTest.getProviderId("ID_14")).isNull();
+  }
+
+  @Test
+  public void adding_same_request_twice_does_not_change_size() {
+    underTest.add("ID_1", PROVIDER_ID);
+    underTest.add("ID_1", PROVIDER_ID);
+
+    assertThat(underTest.size()).isEqualTo(1);
+  }
+
+  private System2 mockSystem2() {
+    System2 system2 = mock(System2.class);
+    when(system2.now()).thenAnswer(invocation -> now);
+    return system2;
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.encryption.EncryptedData;
+import org.apache.xml.security.encryption.EncryptedKey;
+import org.apache.xml.security.encryption.XMLCipher;
+import org.apache.xml.security.keys.KeyInfo;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transforms;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import static com.onelogin.saml2.util.Util.convertDocumentToString;
+import static com.onelogin.saml2.util.Util.loadXML;
+import static org.apache.xml.security.algorithms.MessageDigestAlgorithm.ALGO_ID_DIGEST_SHA256;
+
+/**
+ * Generates SAML responses of a given shape, signed with the key of IntegrationTest/idp_private_key.pem, and optionally
+ * encrypted the same way as IntegrationTest/encoded_encrypted_response.txt. Responses are accepted once
+ * {@link SamlTestIdp#configure(org.sonar.api.config.internal.MapSettings)} has been applied.
+ * <p>
+ * Besides the login, name, email and groups attributes, responses carry additional attributes, each value of these
+ * attributes being nested in elements of a custom namespace.
+ */
+final class SamlResponseGenerator {
+
+  enum SignedElement {
+    RESPONSE, ASSERTION, BOTH
+  }
+
+  private static final String SAML_NAMESPACE = "urn:oasis:names:tc:SAML:2.0:assertion";
+  private static final String NESTED_NAMESPACE = "urn:sonarsource:saml:load";
+
+  private static final PrivateKey IDP_PRIVATE_KEY;
+  private static final PublicKey SP_PUBLIC_KEY;
+
+  static {
+    org.apache.xml.security.Init.init();
+    try {
+      IDP_PRIVATE_KEY = SamlRedirectMessageTest.loadPrivateKey(SamlTestIdp.loadResource("idp_private_key.pem"));
+      RSAPrivateCrtKey spPrivateKey = (RSAPrivateCrtKey) SamlRedirectMessageTest.loadPrivateKey(SamlTestIdp.loadResource("sp_private_key.pem"));
+      SP_PUBLIC_KEY = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(spPrivateKey.getModulus(), spPrivateKey.getPublicExponent()));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Fail to load test keys", e);
+    }
+  }
+
+  private final AtomicLong nextId = new AtomicLong();
+  private int attributeCount = 0;
+  private int valuesPerAttribute = 1;
+  private int groupCount = 0;
+  private int nestingDepth = 0;
+  private boolean encrypted = false;
+  private SignedElement signedElement = SignedElement.RESPONSE;
+
+  /**
+   * Number of attributes besides the login, name, email and groups ones
+   */
+  SamlResponseGenerator setAttributeCount(int attributeCount) {
+    this.attributeCount = attributeCount;
+    return this;
+  }
+
+  SamlResponseGenerator setValuesPerAttribute(int valuesPerAttribute) {
+    this.valuesPerAttribute = valuesPerAttribute;
+    return this;
+  }
+
+  SamlResponseGenerator setGroupCount(int groupCount) {
+    this.groupCount = groupCount;
+    return this;
+  }
+
+  /**
+   * Depth of the elements in which each value of the additional attributes is nested
+   */
+  SamlResponseGenerator setNestingDepth(int nestingDepth) {
+    this.nestingDepth = nestingDepth;
+    return this;
+  }
+
+  SamlResponseGenerator setEncrypted(boolean encrypted) {
+    this.encrypted = encrypted;
+    return this;
+  }
+
+  SamlResponseGenerator setSignedElement(SignedElement signedElement) {
+    this.signedElement = signedElement;
+    return this;
+  }
+
+  /**
+   * @param login value of the login attribute, also used as NameID
+   * @param inResponseTo ID of the AuthnRequest, or null for an unsolicited response
+   * @return the response, encoded as sent by the HTTP-POST binding
+   */
+  String generate(String login, @Nullable String inResponseTo, String callbackUrl) {
+    return Base64.getEncoder().encodeToString(generateXml(login, inResponseTo, callbackUrl).getBytes(StandardCharsets.UTF_8));
+  }
+
+  String generateXml(String login, @Nullable String inResponseTo, String callbackUrl) {
+    long id = nextId.incrementAndGet();
+    String responseId = "_generated_response_" + id;
+    String assertionId = "_generated_assertion_" + id;
+    try {
+      Document document = loadXML(newResponse(responseId, assertionId, login, inResponseTo, callbackUrl));
+      Element response = document.getDocumentElement();
+      response.setIdAttribute("ID", true);
+      Element assertion = (Element) document.getElementsByTagNameNS(SAML_NAMESPACE, "Assertion").item(0);
+      assertion.setIdAttribute("ID", true);
+      if (signedElement != SignedElement.RESPONSE) {
+        sign(document, assertion, assertionId);
+      }
+      if (encrypted) {
+        encrypt(document, assertion);
+      }
+      if (signedElement != SignedElement.ASSERTION) {
+        sign(document, response, responseId);
+      }
+      return convertDocumentToString(document);
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to generate SAML response", e);
+    }
+  }
+
+  private String newResponse(String responseId, String assertionId, String login, @Nullable String inResponseTo, String callbackUrl) {
+    Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+    Instant notOnOrAfter = now.plus(5, ChronoUnit.MINUTES);
+    String inResponseToAttribute = inResponseTo == null ? "" : (" InResponseTo=\"" + inResponseTo + "\"");
+    StringBuilder response = new StringBuilder(2_048 + 64 * (attributeCount * valuesPerAttribute * (nestingDepth + 1) + groupCount));
+    response.append("<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"").append(SAML_NAMESPACE).append('"')
+      .append(" ID=\"").append(responseId).append("\" Version=\"2.0\" IssueInstant=\"").append(now).append("\" Destination=\"").append(callbackUrl).append('"')
+      .append(inResponseToAttribute).append('>')
+      .append("<saml:Issuer>").append(SamlTestIdp.PROVIDER_ID).append("</saml:Issuer>")
+      .append("<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>")
+      .append("<saml:Assertion ID=\"").append(assertionId).append("\" Version=\"2.0\" IssueInstant=\"").append(now).append("\">")
+      .append("<saml:Issuer>").append(SamlTestIdp.PROVIDER_ID).append("</saml:Issuer>")
+      .append("<saml:Subject><saml:NameID>").append(login).append("</saml:NameID>")
+      .append("<saml:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">")
+      .append("<saml:SubjectConfirmationData NotOnOrAfter=\"").append(notOnOrAfter).append("\" Recipient=\"").append(callbackUrl).append('"')
+      .append(inResponseToAttribute).append("/>")
+      .append("</saml:SubjectConfirmation></saml:Subject>")
+      .append("<saml:Conditions NotBefore=\"").append(now).append("\" NotOnOrAfter=\"").append(notOnOrAfter).append("\">")
+      .append("<saml:AudienceRestriction><saml:Audience>").append(SamlTestIdp.APPLICATION_ID).append("</saml:Audience></saml:AudienceRestriction>")
+      .append("</saml:Conditions>")
+      .append("<saml:AuthnStatement AuthnInstant=\"").append(now).append("\" SessionIndex=\"session").append(responseId).append("\">")
+      .append("<saml:AuthnContext><saml:AuthnContextClassRef>urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified</saml:AuthnContextClassRef></saml:AuthnContext>")
+      .append("</saml:AuthnStatement>")
+      .append("<saml:AttributeStatement>");
+    appendAttribute(response, "login", login);
+    appendAttribute(response, "name", "User " + login);
+    appendAttribute(response, "email", login + "@email.com");
+    for (int i = 0; i < attributeCount; i++) {
+      response.append("<saml:Attribute Name=\"attribute").append(i).append("\">");
+      for (int j = 0; j < valuesPerAttribute; j++) {
+        response.append("<saml:AttributeValue>");
+        for (int depth = 0; depth < nestingDepth; depth++) {
+          response.append("<n:value xmlns:n=\"").append(NESTED_NAMESPACE).append("\" depth=\"").append(depth).append("\">");
+        }
+        response.append("value").append(j);
+        for (int depth = 0; depth < nestingDepth; depth++) {
+          response.append("</n:value>");
+        }
+        response.append("</saml:AttributeValue>");
+      }
+      response.append("</saml:Attribute>");
+    }
+    response.append("<saml:Attribute Name=\"groups\">");
+    for (int i = 0; i < groupCount; i++) {
+      response.append("<saml:AttributeValue>group").append(i).append("</saml:AttributeValue>");
+    }
+    return response.append("</saml:Attribute></saml:AttributeStatement></saml:Assertion></samlp:Response>").toString();
+  }
+
+  private static void appendAttribute(StringBuilder response, String name, String value) {
+    response.append("<saml:Attribute Name=\"").append(name).append("\"><saml:AttributeValue>").append(value).append("</saml:AttributeValue></saml:Attribute>");
+  }
+
+  private static void sign(Document document, Element element, String id) throws Exception {
+    XMLSignature signature = new XMLSignature(document, "", XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256, Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+    // The signature must be placed right after the Issuer of the signed element
+    element.insertBefore(signature.getElement(), element.getFirstChild().getNextSibling());
+    Transforms transforms = new Transforms(document);
+    transforms.addTransform(Transforms.TRANSFORM_ENVELOPED_SIGNATURE);
+    transforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+    signature.addDocument("#" + id, transforms, ALGO_ID_DIGEST_SHA256);
+    signature.sign(IDP_PRIVATE_KEY);
+  }
+
+  /**
+   * Replaces the assertion by an EncryptedAssertion, encrypted with AES-128-GCM, the AES key being encrypted with RSA-OAEP
+   * and the public key of the service provider.
+   */
+  private static void encrypt(Document document, Element assertion) throws Exception {
+    KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+    keyGenerator.init(128);
+    SecretKey secretKey = keyGenerator.generateKey();
+
+    XMLCipher keyCipher = XMLCipher.getInstance(XMLCipher.RSA_OAEP);
+    keyCipher.init(XMLCipher.WRAP_MODE, SP_PUBLIC_KEY);
+    EncryptedKey encryptedKey = keyCipher.encryptKey(document, secretKey);
+
+    XMLCipher cipher = XMLCipher.getInstance(XMLCipher.AES_128_GCM);
+    cipher.init(XMLCipher.ENCRYPT_MODE, secretKey);
+    EncryptedData encryptedData = cipher.getEncryptedData();
+    KeyInfo keyInfo = new KeyInfo(document);
+    keyInfo.add(encryptedKey);
+    encryptedData.setKeyInfo(keyInfo);
+
+    Element encryptedAssertion = document.createElementNS(SAML_NAMESPACE, "saml:EncryptedAssertion");
+    assertion.getParentNode().replaceChild(encryptedAssertion, assertion);
+    encryptedAssertion.appendChild(assertion);
+    cipher.doFinal(document, assertion, false);
+  }
+}
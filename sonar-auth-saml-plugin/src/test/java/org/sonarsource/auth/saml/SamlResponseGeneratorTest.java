@@ -0,0 +1,91 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.server.authentication.UserIdentity;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.sonarsource.auth.saml.SamlResponseGenerator.SignedElement.ASSERTION;
+import static org.sonarsource.auth.saml.SamlResponseGenerator.SignedElement.BOTH;
+
+public class SamlResponseGeneratorTest {
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlIdentityProvider provider = newIdentityProvider();
+
+  @Test
+  public void generate_response_with_signed_response() {
+    SamlResponseGenerator underTest = new SamlResponseGenerator().setGroupCount(3);
+
+    String xml = underTest.generateXml("john", "ID_1", SamlLoadDriver.CALLBACK_URL);
+
+    assertThat(xml).contains("InResponseTo=\"ID_1\"").containsOnlyOnce("<ds:Signature xmlns");
+    assertThat(xml.indexOf("<ds:Signature xmlns")).isLessThan(xml.indexOf("<saml:Assertion"));
+    UserIdentity userIdentity = authenticate(underTest);
+    assertThat(userIdentity.getLogin()).isEqualTo("john");
+    assertThat(userIdentity.getEmail()).isEqualTo("john@email.com");
+    assertThat(userIdentity.getGroups()).containsExactlyInAnyOrder("group0", "group1", "group2");
+  }
+
+  @Test
+  public void generate_response_with_signed_assertion() {
+    SamlResponseGenerator underTest = new SamlResponseGenerator().setGroupCount(2).setSignedElement(ASSERTION);
+
+    String xml = underTest.generateXml("john", null, SamlLoadDriver.CALLBACK_URL);
+
+    assertThat(xml).containsOnlyOnce("<ds:Signature xmlns");
+    assertThat(xml.indexOf("<ds:Signature xmlns")).isGreaterThan(xml.indexOf("<saml:Assertion"));
+    assertThat(authenticate(underTest).getGroups()).hasSize(2);
+  }
+
+  @Test
+  public void generate_encrypted_response_with_both_signatures() {
+    SamlResponseGenerator underTest = new SamlResponseGenerator().setGroupCount(2).setEncrypted(true).setSignedElement(BOTH);
+
+    String xml = underTest.generateXml("john", null, SamlLoadDriver.CALLBACK_URL);
+
+    assertThat(xml).contains("<saml:EncryptedAssertion", "http://www.w3.org/2009/xmlenc11#aes128-gcm").doesNotContain("<saml:Assertion");
+    assertThat(authenticate(underTest).getGroups()).hasSize(2);
+  }
+
+  @Test
+  public void generate_response_with_nested_values_of_additional_attributes() {
+    SamlResponseGenerator underTest = new SamlResponseGenerator().setAttributeCount(3).setValuesPerAttribute(4).setNestingDepth(2);
+
+    String xml = underTest.generateXml("john", null, SamlLoadDriver.CALLBACK_URL);
+
+    assertThat(xml).contains("Name=\"attribute2\"", "<n:value xmlns:n=\"urn:sonarsource:saml:load\" depth=\"1\">value3</n:value>");
+    assertThat(authenticate(underTest).getLogin()).isEqualTo("john");
+  }
+
+  private UserIdentity authenticate(SamlResponseGenerator generator) {
+    SamlLoadDriver.CallbackContext callback = new SamlLoadDriver.CallbackContext(generator.generate("john", null, SamlLoadDriver.CALLBACK_URL));
+    provider.callback(callback);
+    return callback.getUserIdentity();
+  }
+
+  private SamlIdentityProvider newIdentityProvider() {
+    SamlTestIdp.configure(settings);
+    return SamlLoadDriver.newIdentityProvider(new SamlSettings(settings.asConfig()));
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.IntFunction;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+
+import static org.sonarsource.auth.saml.SamlResponseGenerator.SignedElement.ASSERTION;
+import static org.sonarsource.auth.saml.SamlResponseGenerator.SignedElement.BOTH;
+
+/**
+ * Measures the cost of {@link SamlIdentityProvider#callback} against the size of responses of a given shape, growing
+ * along one of its dimensions. The growth exponent of a curve tells how the cost grows between its two largest responses,
+ * once the cost of the smallest one is deducted : close to 1 when linear, close to 2 when quadratic.
+ * <p>
+ * Run with {@code gradle scalingBenchmark}, the system property {@code saml.scaling.iterations} overriding the number of
+ * callbacks per point.
+ */
+final class SamlScalingBenchmark {
+
+  private static final String LOGIN_PREFIX = "user-";
+
+  private final int iterations;
+  private int nextLogin = 0;
+
+  SamlScalingBenchmark(int iterations) {
+    this.iterations = iterations;
+  }
+
+  public static void main(String[] args) {
+    SamlScalingBenchmark benchmark = new SamlScalingBenchmark(Integer.getInteger("saml.scaling.iterations", 20));
+    int[] groups = {10, 100, 1_000, 5_000, 10_000, 20_000};
+    print(benchmark.measure("groups, signed response", groups, size -> new SamlResponseGenerator().setGroupCount(size)));
+    print(benchmark.measure("groups, signed assertion", groups, size -> new SamlResponseGenerator().setGroupCount(size).setSignedElement(ASSERTION)));
+    print(benchmark.measure("groups, encrypted assertion, both signed", groups,
+      size -> new SamlResponseGenerator().setGroupCount(size).setEncrypted(true).setSignedElement(BOTH)));
+    print(benchmark.measure("values of 20 attributes", new int[] {1, 10, 100, 500, 1_000},
+      size -> new SamlResponseGenerator().setGroupCount(50).setAttributeCount(20).setValuesPerAttribute(size)));
+    print(benchmark.measure("nesting of 20 attributes with 5 values", new int[] {1, 4, 16, 64, 128},
+      size -> new SamlResponseGenerator().setGroupCount(50).setAttributeCount(20).setValuesPerAttribute(5).setNestingDepth(size)));
+  }
+
+  private static void print(Curve curve) {
+    System.out.println(curve.format());
+  }
+
+  /**
+   * @param sizes values of the growing dimension, in increasing order
+   * @param shape generator of the responses for a value of the growing dimension
+   */
+  Curve measure(String name, int[] sizes, IntFunction<SamlResponseGenerator> shape) {
+    MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+    SamlTestIdp.configure(settings);
+    SamlIdentityProvider provider = SamlLoadDriver.newIdentityProvider(new SamlSettings(settings.asConfig()));
+    // Warms up the code paths of the shape, so that the first point is not penalized
+    measure(provider, shape.apply(sizes[0]), iterations);
+    List<Point> points = new ArrayList<>();
+    for (int size : sizes) {
+      SamlResponseGenerator generator = shape.apply(size);
+      long[] latencies = measure(provider, generator, iterations);
+      Arrays.sort(latencies);
+      int responseBytes = generator.generate(LOGIN_PREFIX, null, SamlLoadDriver.CALLBACK_URL).length();
+      points.add(new Point(size, responseBytes, latencies[latencies.length / 2]));
+    }
+    return new Curve(name, points);
+  }
+
+  private long[] measure(SamlIdentityProvider provider, SamlResponseGenerator generator, int count) {
+    SamlLoadDriver.CallbackContext[] callbacks = new SamlLoadDriver.CallbackContext[count];
+    for (int i = 0; i < count; i++) {
+      // Distinct logins, so that groups are synchronized on each callback
+      callbacks[i] = new SamlLoadDriver.CallbackContext(generator.generate(LOGIN_PREFIX + nextLogin++, null, SamlLoadDriver.CALLBACK_URL));
+    }
+    long[] latencies = new long[count];
+    for (int i = 0; i < count; i++) {
+      long start = System.nanoTime();
+      provider.callback(callbacks[i]);
+      latencies[i] = System.nanoTime() - start;
+      if (callbacks[i].getUserIdentity() == null) {
+        throw new IllegalStateException("SAML response has been rejected");
+      }
+      callbacks[i] = null;
+    }
+    return latencies;
+  }
+
+  static final class Point {
+    private final int size;
+    private final int responseBytes;
+    private final long medianNanos;
+
+    private Point(int size, int responseBytes, long medianNanos) {
+      this.size = size;
+      this.responseBytes = responseBytes;
+      this.medianNanos = medianNanos;
+    }
+
+    int getResponseBytes() {
+      return responseBytes;
+    }
+
+    long getMedianNanos() {
+      return medianNanos;
+    }
+  }
+
+  static final class Curve {
+    private final String name;
+    private final List<Point> points;
+
+    private Curve(String name, List<Point> points) {
+      this.name = name;
+      this.points = points;
+    }
+
+    List<Point> getPoints() {
+      return points;
+    }
+
+    /**
+     * @return the exponent k such that the cost grows as size^k between the two largest responses, or NaN if the cost
+     * didn't grow with the size
+     */
+    double getGrowthExponent() {
+      Point first = points.get(0);
+      Point beforeLast = points.get(points.size() - 2);
+      Point last = points.get(points.size() - 1);
+      double costRatio = (double) (last.medianNanos - first.medianNanos) / (beforeLast.medianNanos - first.medianNanos);
+      double sizeRatio = (double) (last.responseBytes - first.responseBytes) / (beforeLast.responseBytes - first.responseBytes);
+      return costRatio > 0 ? (Math.log(costRatio) / Math.log(sizeRatio)) : Double.NaN;
+    }
+
+    String format() {
+      StringBuilder result = new StringBuilder(String.format(Locale.ENGLISH, "%s (growth exponent %.2f)%n", name, getGrowthExponent()));
+      result.append(String.format(Locale.ENGLISH, "  %10s %12s %12s %12s%n", "size", "bytes", "median ms", "us per KB"));
+      for (Point point : points) {
+        result.append(String.format(Locale.ENGLISH, "  %10d %12d %12.2f %12.1f%n", point.size, point.responseBytes,
+          point.medianNanos / 1_000_000.0, point.medianNanos / 1_000.0 / (point.responseBytes / 1_024.0)));
+      }
+      return result.toString();
+    }
+  }
+}
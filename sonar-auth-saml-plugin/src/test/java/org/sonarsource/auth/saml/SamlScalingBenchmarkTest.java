@@ -0,0 +1,40 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamlScalingBenchmarkTest {
+
+  private final SamlScalingBenchmark underTest = new SamlScalingBenchmark(5);
+
+  @Test
+  public void callback_cost_does_not_grow_quadratically_with_groups() {
+    SamlScalingBenchmark.Curve curve = underTest.measure("groups", new int[] {10, 2_000, 8_000}, size -> new SamlResponseGenerator().setGroupCount(size));
+
+    assertThat(curve.getPoints()).hasSize(3);
+    assertThat(curve.getPoints().get(2).getResponseBytes()).isGreaterThan(curve.getPoints().get(1).getResponseBytes());
+    // Close to 1 when linear, close to 2 when quadratic
+    assertThat(curve.getGrowthExponent()).isLessThan(1.5);
+    assertThat(curve.format()).startsWith("groups (growth exponent ");
+  }
+}
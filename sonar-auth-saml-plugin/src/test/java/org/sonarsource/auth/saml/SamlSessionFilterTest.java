@@ -0,0 +1,110 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static java.util.Collections.emptyList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SamlSessionFilterTest {
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlSessionRegistry sessionRegistry = new SamlSessionRegistry(new SamlSettings(settings.asConfig()), System2.INSTANCE);
+  private final SamlSessionFilter underTest = new SamlSessionFilter(sessionRegistry);
+
+  private final HttpServletRequest request = mock(HttpServletRequest.class);
+  private final HttpServletResponse response = mock(HttpServletResponse.class);
+  private final FilterChain chain = mock(FilterChain.class);
+
+  @Before
+  public void setUp() {
+    when(request.getContextPath()).thenReturn("/sonarqube");
+    when(request.getMethod()).thenReturn("GET");
+  }
+
+  @Test
+  public void do_nothing_when_session_is_not_revoked() throws Exception {
+    String handle = sessionRegistry.register("john", "index1");
+    sessionRegistry.revoke("jane", emptyList());
+    setSessionCookie(handle);
+
+    underTest.doFilter(request, response, chain);
+
+    verify(chain).doFilter(request, response);
+    assertThat(sessionRegistry.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void do_nothing_when_no_session_cookie() throws Exception {
+    sessionRegistry.register("john", "index1");
+    sessionRegistry.revoke("john", emptyList());
+
+    underTest.doFilter(request, response, chain);
+
+    verify(chain).doFilter(request, response);
+  }
+
+  @Test
+  public void reload_page_when_session_is_revoked() throws Exception {
+    setSessionCookie(sessionRegistry.register("john", "index1"));
+    sessionRegistry.revoke("john", emptyList());
+    when(request.getRequestURI()).thenReturn("/sonarqube/projects");
+    when(request.getQueryString()).thenReturn("sort=name");
+
+    underTest.doFilter(request, response, chain);
+
+    verify(response).sendRedirect("/sonarqube/projects?sort=name");
+    verify(response, times(3)).addCookie(any(Cookie.class));
+    verify(chain, never()).doFilter(any(), any());
+    assertThat(sessionRegistry.size()).isZero();
+    assertThat(sessionRegistry.hasRevokedSessions()).isFalse();
+  }
+
+  @Test
+  public void reject_web_service_call_when_session_is_revoked() throws Exception {
+    setSessionCookie(sessionRegistry.register("john", "index1"));
+    sessionRegistry.revoke("john", emptyList());
+    when(request.getRequestURI()).thenReturn("/sonarqube/api/issues/search");
+
+    underTest.doFilter(request, response, chain);
+
+    verify(response).sendError(HttpServletResponse.SC_UNAUTHORIZED);
+    verify(chain, never()).doFilter(any(), any());
+  }
+
+  private void setSessionCookie(String handle) {
+    when(request.getCookies()).thenReturn(new Cookie[] {new Cookie(SamlSessionCookies.SESSION_COOKIE, handle)});
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SamlSessionRegistryTest {
+
+  private long now = 1_600_000_000_000L;
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final System2 system2 = mockSystem2();
+  private final SamlSessionRegistry underTest = new SamlSessionRegistry(new SamlSettings(settings.asConfig()), system2, 3);
+
+  @Before
+  public void setUp() {
+    settings.setProperty("sonar.web.sessionTimeoutInMinutes", 60);
+  }
+
+  @Test
+  public void register_session() {
+    String handle = underTest.register("john", "index1");
+
+    assertThat(handle).isNotNull();
+    SamlSessionRegistry.SamlSession session = underTest.get(handle);
+    assertThat(session.getNameId()).isEqualTo("john");
+    assertThat(session.getSessionIndex()).isEqualTo("index1");
+    assertThat(underTest.isRevoked(handle)).isFalse();
+    assertThat(underTest.hasRevokedSessions()).isFalse();
+    assertThat(underTest.get("unknown")).isNull();
+  }
+
+  @Test
+  public void revoke_all_sessions_of_name_id_when_no_session_index() {
+    String john1 = underTest.register("john", "index1");
+    String john2 = underTest.register("john", null);
+    String jane = underTest.register("jane", "index2");
+
+    assertThat(underTest.revoke("john", emptyList())).isEqualTo(2);
+
+    assertThat(underTest.hasRevokedSessions()).isTrue();
+    assertThat(underTest.isRevoked(john1)).isTrue();
+    assertThat(underTest.isRevoked(john2)).isTrue();
+    assertThat(underTest.isRevoked(jane)).isFalse();
+    // Already revoked sessions are not counted again
+    assertThat(underTest.revoke("john", emptyList())).isZero();
+  }
+
+  @Test
+  public void revoke_sessions_by_session_index() {
+    String john1 = underTest.register("john", "index1");
+    String john2 = underTest.register("john", "index2");
+    String jane = underTest.register("jane", "index3");
+
+    assertThat(underTest.revoke("john", asList("index1", "unknown"))).isEqualTo(1);
+
+    assertThat(underTest.isRevoked(john1)).isTrue();
+    assertThat(underTest.isRevoked(john2)).isFalse();
+    assertThat(underTest.isRevoked(jane)).isFalse();
+  }
+
+  @Test
+  public void do_not_revoke_sessions_of_other_name_id_having_the_session_index() {
+    String jane = underTest.register("jane", "index1");
+
+    assertThat(underTest.revoke("john", singletonList("index1"))).isZero();
+    assertThat(underTest.isRevoked(jane)).isFalse();
+    assertThat(underTest.revoke("unknown", emptyList())).isZero();
+  }
+
+  @Test
+  public void removing_revoked_sessions_clears_revocation() {
+    String handle = underTest.register("john", "index1");
+    underTest.revoke("john", emptyList());
+
+    underTest.remove(handle);
+    underTest.remove(handle);
+
+    assertThat(underTest.hasRevokedSessions()).isFalse();
+    assertThat(underTest.isRevoked(handle)).isFalse();
+    assertThat(underTest.size()).isZero();
+    assertThat(underTest.revoke("john", emptyList())).isZero();
+  }
+
+  @Test
+  public void sessions_expire_with_sonarqube_sessions() {
+    String handle = underTest.register("john", "index1");
+
+    now += TimeUnit.MINUTES.toMillis(61);
+
+    assertThat(underTest.get(handle)).isNull();
+  }
+
+  @Test
+  public void do_not_register_sessions_when_full() {
+    underTest.register("john", "index1");
+    underTest.register("jane", "index2");
+    underTest.register("jim", "index3");
+
+    assertThat(underTest.register("joe", "index4")).isNull();
+    assertThat(underTest.size()).isEqualTo(3);
+    assertThat(underTest.getOverflowCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void purge_expired_sessions_when_full() {
+    underTest.register("john", "index1");
+    underTest.register("jane", "index2");
+    now += TimeUnit.MINUTES.toMillis(30);
+    String jim = underTest.register("jim", "index3");
+    now += TimeUnit.MINUTES.toMillis(31);
+
+    assertThat(underTest.register("joe", "index4")).isNotNull();
+    assertThat(underTest.size()).isEqualTo(2);
+    assertThat(underTest.get(jim)).isNotNull();
+    assertThat(underTest.revoke("john", emptyList())).isZero();
+    assertThat(underTest.getOverflowCount()).isZero();
+  }
+
+  private System2 mockSystem2() {
+    System2 system2 = mock(System2.class);
+    when(system2.now()).thenAnswer(invocation -> now);
+    return system2;
+  }
+}
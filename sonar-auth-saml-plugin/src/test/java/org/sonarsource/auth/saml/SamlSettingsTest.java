@@ -22,6 +22,7 @@ package org.sonarsource.auth.saml;
 import com.tngtech.java.junit.dataprovider.DataProvider;
 import com.tngtech.java.junit.dataprovider.DataProviderRunner;
 import com.tngtech.java.junit.dataprovider.UseDataProvider;
+import java.nio.file.Paths;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -126,6 +127,187 @@ public class SamlSettingsTest {
     assertThat(underTest.getGroupName()).isNotPresent();
   }
 
+  @Test
+  public void return_callback_rate_limit() {
+    settings.setProperty("sonar.auth.saml.callback.rateLimit", 30);
+    settings.setProperty("sonar.auth.saml.callback.rateLimitBurst", 5);
+    settings.setProperty("sonar.auth.saml.callback.trustedProxyCount", 2);
+
+    assertThat(underTest.getCallbackRateLimit()).isEqualTo(30);
+    assertThat(underTest.getCallbackRateLimitBurst()).isEqualTo(5);
+    assertThat(underTest.getTrustedProxyCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void return_default_value_of_callback_rate_limit() {
+    assertThat(underTest.getCallbackRateLimit()).isZero();
+    assertThat(underTest.getCallbackRateLimitBurst()).isEqualTo(10);
+    assertThat(underTest.getTrustedProxyCount()).isZero();
+  }
+
+  @Test
+  public void return_reject_unsolicited_responses() {
+    assertThat(underTest.rejectUnsolicitedResponses()).isFalse();
+
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+
+    assertThat(underTest.rejectUnsolicitedResponses()).isTrue();
+  }
+
+  @Test
+  public void return_sign_authn_requests() {
+    assertThat(underTest.signAuthnRequests()).isFalse();
+
+    settings.setProperty("sonar.auth.saml.signAuthnRequests", true);
+
+    assertThat(underTest.signAuthnRequests()).isTrue();
+  }
+
+  @Test
+  public void return_group_resync_interval() {
+    assertThat(underTest.getGroupResyncInterval()).isZero();
+
+    settings.setProperty("sonar.auth.saml.group.resyncInterval", 30);
+
+    assertThat(underTest.getGroupResyncInterval()).isEqualTo(30);
+  }
+
+  @Test
+  public void return_artifact_resolution_settings() {
+    assertThat(underTest.getArtifactResolutionUrl()).isEmpty();
+    assertThat(underTest.getArtifactResolutionConnectTimeout()).isEqualTo(2_000);
+    assertThat(underTest.getArtifactResolutionReadTimeout()).isEqualTo(5_000);
+
+    settings.setProperty("sonar.auth.saml.artifactResolutionUrl", "https://idp/artifact");
+    settings.setProperty("sonar.auth.saml.artifactResolution.connectTimeout", 100);
+    settings.setProperty("sonar.auth.saml.artifactResolution.readTimeout", 200);
+
+    assertThat(underTest.getArtifactResolutionUrl()).contains("https://idp/artifact");
+    assertThat(underTest.getArtifactResolutionConnectTimeout()).isEqualTo(100);
+    assertThat(underTest.getArtifactResolutionReadTimeout()).isEqualTo(200);
+  }
+
+  @Test
+  public void return_single_logout_settings() {
+    assertThat(underTest.getLogoutUrl()).isEmpty();
+    assertThat(underTest.getSessionTimeoutInMinutes()).isEqualTo(4320);
+
+    settings.setProperty("sonar.auth.saml.logoutUrl", "https://idp/logout");
+    settings.setProperty("sonar.web.sessionTimeoutInMinutes", 60);
+
+    assertThat(underTest.getLogoutUrl()).contains("https://idp/logout");
+    assertThat(underTest.getSessionTimeoutInMinutes()).isEqualTo(60);
+  }
+
+  @Test
+  public void return_audit_settings() {
+    assertThat(underTest.getAuditFile()).isEmpty();
+    assertThat(underTest.getAuditMaxFileSize()).isEqualTo(10L * 1024 * 1024);
+    assertThat(underTest.getAuditMaxFiles()).isEqualTo(5);
+
+    settings.setProperty("sonar.auth.saml.audit.file", "saml-audit.log");
+    settings.setProperty("sonar.path.logs", "/opt/sonarqube/logs");
+    settings.setProperty("sonar.auth.saml.audit.maxFileSizeInMb", 100);
+    settings.setProperty("sonar.auth.saml.audit.maxFiles", 20);
+
+    assertThat(underTest.getAuditFile()).contains(Paths.get("/opt/sonarqube/logs/saml-audit.log"));
+    assertThat(underTest.getAuditMaxFileSize()).isEqualTo(100L * 1024 * 1024);
+    assertThat(underTest.getAuditMaxFiles()).isEqualTo(20);
+
+    settings.setProperty("sonar.auth.saml.audit.file", "/var/log/saml-audit.log");
+    assertThat(underTest.getAuditFile()).contains(Paths.get("/var/log/saml-audit.log"));
+  }
+
+  @Test
+  public void return_replay_protection_settings() {
+    assertThat(underTest.isReplayProtectionEnabled()).isFalse();
+    assertThat(underTest.getReplayStoreFile()).isEqualTo(Paths.get("data/saml/replay-store.dat"));
+
+    settings.setProperty("sonar.auth.saml.replayProtection", true);
+    settings.setProperty("sonar.path.data", "/opt/sonarqube/data");
+
+    assertThat(underTest.isReplayProtectionEnabled()).isTrue();
+    assertThat(underTest.getReplayStoreFile()).isEqualTo(Paths.get("/opt/sonarqube/data/saml/replay-store.dat"));
+  }
+
+  @Test
+  public void return_replay_filter_settings() {
+    assertThat(underTest.getMaxAssertionLifetimeMs()).isEqualTo(60 * 60 * 1_000L);
+    assertThat(underTest.getReplayFilterFalsePositiveRate()).isEqualTo(0.01);
+
+    settings.setProperty("sonar.auth.saml.replayProtection.maxAssertionLifetime", 5);
+    settings.setProperty("sonar.auth.saml.replayProtection.falsePositiveRate", "0.001");
+
+    assertThat(underTest.getMaxAssertionLifetimeMs()).isEqualTo(5 * 60 * 1_000L);
+    assertThat(underTest.getReplayFilterFalsePositiveRate()).isEqualTo(0.001);
+  }
+
+  @Test
+  public void return_user_attribute_transformations() {
+    assertThat(underTest.getUserLoginTransformations()).isEmpty();
+    assertThat(underTest.useNameIdAsLoginFallback()).isFalse();
+    assertThat(underTest.getUserNameTransformations()).isEmpty();
+    assertThat(underTest.getUserEmailTransformations()).isEmpty();
+
+    settings.setProperty("sonar.auth.saml.user.login.transformations", "stripDomain,lowercase");
+    settings.setProperty("sonar.auth.saml.user.login.nameIdFallback", true);
+    settings.setProperty("sonar.auth.saml.user.name.transformations", "trim");
+    settings.setProperty("sonar.auth.saml.user.email.transformations", "lowercase");
+
+    assertThat(underTest.getUserLoginTransformations()).containsExactly("stripDomain", "lowercase");
+    assertThat(underTest.useNameIdAsLoginFallback()).isTrue();
+    assertThat(underTest.getUserNameTransformations()).containsExactly("trim");
+    assertThat(underTest.getUserEmailTransformations()).containsExactly("lowercase");
+  }
+
+  @Test
+  public void return_default_idp() {
+    settings.setProperty("sonar.auth.saml.providerId", "http://idp");
+    settings.setProperty("sonar.auth.saml.loginUrl", "http://idp/saml");
+    settings.setProperty("sonar.auth.saml.certificate.secured", "certificate");
+
+    SamlIdp idp = underTest.getDefaultIdp();
+
+    assertThat(idp.getProviderId()).isEqualTo("http://idp");
+    assertThat(idp.getLoginUrl()).isEqualTo("http://idp/saml");
+    assertThat(idp.getCertificate()).isEqualTo("certificate");
+    assertThat(idp.getDomains()).isEmpty();
+  }
+
+  @Test
+  public void return_additional_idps() {
+    assertThat(underTest.getAdditionalIdps()).isEmpty();
+
+    settings.setProperty("sonar.auth.saml.additionalIdps", "1,2");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.domains", "example.com");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.providerId", "http://idp1");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.loginUrl", "http://idp1/saml");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.certificate", "certificate1");
+    // Incomplete
+    settings.setProperty("sonar.auth.saml.additionalIdps.2.domains", "example.org");
+    settings.setProperty("sonar.auth.saml.additionalIdps.2.providerId", "http://idp2");
+
+    assertThat(underTest.getAdditionalIdps()).containsExactly(new SamlIdp("http://idp1", "http://idp1/saml", "certificate1", "example.com"));
+  }
+
+  @Test
+  public void return_signature_provider() {
+    assertThat(underTest.getSignatureProvider()).isEmpty();
+
+    settings.setProperty("sonar.auth.saml.signature.provider", "SunRsaSign");
+
+    assertThat(underTest.getSignatureProvider()).contains("SunRsaSign");
+  }
+
+  @Test
+  public void return_service_provider_private_key() {
+    assertThat(underTest.getServiceProviderPrivateKey()).isEmpty();
+
+    settings.setProperty("sonar.auth.saml.sp.privateKey.secured", "key");
+
+    assertThat(underTest.getServiceProviderPrivateKey()).contains("key");
+  }
+
   @Test
   public void is_enabled() {
     settings.setProperty("sonar.auth.saml.applicationId", "MyApp");
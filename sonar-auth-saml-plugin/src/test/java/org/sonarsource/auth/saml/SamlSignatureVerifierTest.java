@@ -0,0 +1,139 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SamlSignatureVerifierTest {
+
+  private static final String RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+  private static final String RSA_SHA512 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha512";
+  private static final byte[] CONTENT = "<ds:SignedInfo/>".getBytes(StandardCharsets.UTF_8);
+
+  private static KeyPair keyPair;
+  private static KeyPair otherKeyPair;
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlSignatureVerifier underTest = new SamlSignatureVerifier(new SamlSettings(settings.asConfig()));
+
+  @BeforeClass
+  public static void generateKeys() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    keyPair = generator.generateKeyPair();
+    otherKeyPair = generator.generateKeyPair();
+  }
+
+  @Test
+  public void verify_signature() throws GeneralSecurityException {
+    byte[] signature = sign("SHA256withRSA", keyPair.getPrivate(), CONTENT);
+
+    assertThat(underTest.verify(RSA_SHA256, keyPair.getPublic(), CONTENT, signature)).isTrue();
+    assertThat(underTest.verify(RSA_SHA256, keyPair.getPublic(), "<other/>".getBytes(StandardCharsets.UTF_8), signature)).isFalse();
+    assertThat(underTest.verify(RSA_SHA256, otherKeyPair.getPublic(), CONTENT, signature)).isFalse();
+    assertThat(underTest.verify(RSA_SHA512, keyPair.getPublic(), CONTENT, signature)).isFalse();
+  }
+
+  @Test
+  public void reuse_signatures_of_the_current_thread() throws GeneralSecurityException {
+    byte[] signature = sign("SHA256withRSA", keyPair.getPrivate(), CONTENT);
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(underTest.verify(RSA_SHA256, keyPair.getPublic(), CONTENT, signature)).isTrue();
+    }
+    assertThat(underTest.getSignatureCreationCount()).isEqualTo(1);
+
+    underTest.verify(RSA_SHA256, otherKeyPair.getPublic(), CONTENT, signature);
+    underTest.verify(RSA_SHA512, keyPair.getPublic(), CONTENT, signature);
+    assertThat(underTest.getSignatureCreationCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void do_not_reuse_signatures_when_provider_changes() throws GeneralSecurityException {
+    byte[] signature = sign("SHA256withRSA", keyPair.getPrivate(), CONTENT);
+    assertThat(underTest.verify(RSA_SHA256, keyPair.getPublic(), CONTENT, signature)).isTrue();
+
+    settings.setProperty("sonar.auth.saml.signature.provider", "Unknown");
+
+    assertThatThrownBy(() -> underTest.verify(RSA_SHA256, keyPair.getPublic(), CONTENT, signature))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Signature algorithm SHA256withRSA is not available in provider Unknown");
+  }
+
+  @Test
+  public void signature_can_be_reused_after_invalid_signature() throws GeneralSecurityException {
+    byte[] signature = sign("SHA256withRSA", keyPair.getPrivate(), CONTENT);
+
+    assertThat(underTest.verify(RSA_SHA256, keyPair.getPublic(), CONTENT, new byte[] {1, 2, 3})).isFalse();
+    assertThat(underTest.verify(RSA_SHA256, keyPair.getPublic(), CONTENT, signature)).isTrue();
+  }
+
+  @Test
+  public void use_configured_provider() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.signature.provider", "SunRsaSign");
+    byte[] signature = sign("SHA256withRSA", keyPair.getPrivate(), CONTENT);
+
+    assertThat(underTest.verify(RSA_SHA256, keyPair.getPublic(), CONTENT, signature)).isTrue();
+  }
+
+  @Test
+  public void fail_when_provider_does_not_exist() {
+    settings.setProperty("sonar.auth.saml.signature.provider", "Unknown");
+
+    assertThatThrownBy(() -> underTest.verify(RSA_SHA256, keyPair.getPublic(), CONTENT, new byte[0]))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Signature algorithm SHA256withRSA is not available in provider Unknown");
+  }
+
+  @Test
+  public void fail_on_unsupported_algorithm() {
+    assertThatThrownBy(() -> underTest.verify("http://www.w3.org/2000/09/xmldsig#hmac-sha1", keyPair.getPublic(), CONTENT, new byte[0]))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Unsupported signature algorithm: http://www.w3.org/2000/09/xmldsig#hmac-sha1");
+  }
+
+  @Test
+  public void fail_on_sha1_algorithms() {
+    for (String algorithm : new String[] {"http://www.w3.org/2000/09/xmldsig#rsa-sha1", "http://www.w3.org/2000/09/xmldsig#dsa-sha1"}) {
+      assertThatThrownBy(() -> underTest.verify(algorithm, keyPair.getPublic(), CONTENT, new byte[0]))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("Unsupported signature algorithm: " + algorithm);
+    }
+  }
+
+  private static byte[] sign(String algorithm, PrivateKey privateKey, byte[] content) throws GeneralSecurityException {
+    Signature signature = Signature.getInstance(algorithm);
+    signature.initSign(privateKey);
+    signature.update(content);
+    return signature.sign();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.annotation.Nullable;
+import org.apache.commons.io.IOUtils;
+import org.sonar.api.config.internal.MapSettings;
+
+/**
+ * Identity provider running in the JVM, which answers AuthnRequests with the responses of a {@link SamlResponseGenerator}.
+ */
+final class SamlTestIdp {
+
+  static final String PROVIDER_ID = "http://localhost:8080/auth/realms/sonarqube";
+  static final String LOGIN_URL = "http://localhost:8080/auth/realms/sonarqube/protocol/saml";
+  static final String APPLICATION_ID = "MyApp";
+
+  private static final Pattern SAML_REQUEST = Pattern.compile("[?&]SAMLRequest=([^&]+)");
+  private static final Pattern REQUEST_ID = Pattern.compile("\\sID=\"([^\"]+)\"");
+
+  private final SamlResponseGenerator generator;
+
+  SamlTestIdp(SamlResponseGenerator generator) {
+    this.generator = generator;
+  }
+
+  SamlTestIdp(int attributeCount, int groupCount) {
+    this(new SamlResponseGenerator().setAttributeCount(attributeCount).setGroupCount(groupCount));
+  }
+
+  /**
+   * Configures SAML so that responses of this identity provider are accepted, including the encrypted ones.
+   */
+  static void configure(MapSettings settings) {
+    settings.setProperty("sonar.auth.saml.enabled", true);
+    settings.setProperty("sonar.auth.saml.applicationId", APPLICATION_ID);
+    settings.setProperty("sonar.auth.saml.providerId", PROVIDER_ID);
+    settings.setProperty("sonar.auth.saml.loginUrl", LOGIN_URL);
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    settings.setProperty("sonar.auth.saml.sp.privateKey.secured", loadResource("sp_private_key.pem"));
+    settings.setProperty("sonar.auth.saml.user.login", "login");
+    settings.setProperty("sonar.auth.saml.user.name", "name");
+    settings.setProperty("sonar.auth.saml.user.email", "email");
+    settings.setProperty("sonar.auth.saml.group.name", "groups");
+  }
+
+  /**
+   * @param login value of the login attribute, also used as NameID
+   * @param inResponseTo ID of the AuthnRequest, or null for an unsolicited response
+   * @return the signed response, encoded as sent by the HTTP-POST binding
+   */
+  String newResponse(String login, @Nullable String inResponseTo, String callbackUrl) {
+    return generator.generate(login, inResponseTo, callbackUrl);
+  }
+
+  /**
+   * @return the ID of the AuthnRequest sent with the HTTP-Redirect binding to the given URL
+   */
+  static String getRequestId(String redirectUrl) {
+    Matcher matcher = SAML_REQUEST.matcher(redirectUrl);
+    if (!matcher.find()) {
+      throw new IllegalArgumentException("No AuthnRequest in " + redirectUrl);
+    }
+    try {
+      String request = inflate(Base64.getDecoder().decode(URLDecoder.decode(matcher.group(1), StandardCharsets.UTF_8.name())));
+      Matcher id = REQUEST_ID.matcher(request);
+      if (!id.find()) {
+        throw new IllegalArgumentException("No ID in AuthnRequest " + request);
+      }
+      return id.group(1);
+    } catch (IOException | DataFormatException e) {
+      throw new IllegalArgumentException("Fail to read AuthnRequest of " + redirectUrl, e);
+    }
+  }
+
+  private static String inflate(byte[] deflated) throws DataFormatException {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(deflated);
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4_096];
+      while (!inflater.finished() && !inflater.needsInput()) {
+        output.write(buffer, 0, inflater.inflate(buffer));
+      }
+      return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  static String loadResource(String file) {
+    try (InputStream input = SamlTestIdp.class.getResourceAsStream("IntegrationTest/" + file)) {
+      return IOUtils.toString(input, StandardCharsets.UTF_8.name());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SamlUserMappingTest {
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlSettings samlSettings = new SamlSettings(settings.asConfig());
+  private final Map<String, List<String>> attributes = new HashMap<>();
+  private final Function<String, Collection<String>> attributeSource = attributes::get;
+
+  @Before
+  public void setUp() {
+    settings.setProperty("sonar.auth.saml.user.login", "uid");
+    settings.setProperty("sonar.auth.saml.user.name", "cn");
+    settings.setProperty("sonar.auth.saml.user.email", "mail");
+  }
+
+  @Test
+  public void map_first_values_of_attributes() {
+    attributes.put("uid", asList("john", "other"));
+    attributes.put("cn", singletonList("John Doe"));
+    attributes.put("mail", singletonList("john@example.com"));
+
+    SamlUserMapping underTest = SamlUserMapping.compile(samlSettings);
+
+    assertThat(underTest.getLogin(attributeSource, "name-id")).isEqualTo("john");
+    assertThat(underTest.getName(attributeSource)).isEqualTo("John Doe");
+    assertThat(underTest.getEmail(attributeSource)).isEqualTo("john@example.com");
+  }
+
+  @Test
+  public void apply_transformations() {
+    settings.setProperty("sonar.auth.saml.user.login.transformations", "stripDomain,lowercase");
+    settings.setProperty("sonar.auth.saml.user.name.transformations", "uppercase");
+    settings.setProperty("sonar.auth.saml.user.email.transformations", "lowercase");
+    attributes.put("uid", singletonList("John@Example.com"));
+    attributes.put("cn", singletonList("John Doe"));
+    attributes.put("mail", singletonList("John@Example.com"));
+
+    SamlUserMapping underTest = SamlUserMapping.compile(samlSettings);
+
+    assertThat(underTest.getLogin(attributeSource, null)).isEqualTo("john");
+    assertThat(underTest.getName(attributeSource)).isEqualTo("JOHN DOE");
+    assertThat(underTest.getEmail(attributeSource)).isEqualTo("john@example.com");
+    assertThat(underTest.getRawLogin(attributeSource, null)).isEqualTo("John@Example.com");
+    assertThat(underTest.getRawEmail(attributeSource)).isEqualTo("John@Example.com");
+  }
+
+  @Test
+  public void use_name_id_when_login_is_missing_and_fallback_is_enabled() {
+    settings.setProperty("sonar.auth.saml.user.login.nameIdFallback", true);
+    settings.setProperty("sonar.auth.saml.user.login.transformations", "lowercase");
+
+    assertThat(SamlUserMapping.compile(samlSettings).getLogin(attributeSource, "John")).isEqualTo("john");
+  }
+
+  @Test
+  public void fail_when_login_is_missing() {
+    SamlUserMapping underTest = SamlUserMapping.compile(samlSettings);
+
+    assertThatThrownBy(() -> underTest.getLogin(attributeSource, "John"))
+      .isInstanceOf(NullPointerException.class)
+      .hasMessage("uid is missing");
+  }
+
+  @Test
+  public void build_name_from_template() {
+    settings.setProperty("sonar.auth.saml.user.name", "{givenName} {sn}");
+    attributes.put("givenName", singletonList("John"));
+    attributes.put("sn", singletonList("Doe"));
+
+    assertThat(SamlUserMapping.compile(samlSettings).getName(attributeSource)).isEqualTo("John Doe");
+  }
+
+  @Test
+  public void build_name_from_template_with_missing_attribute() {
+    settings.setProperty("sonar.auth.saml.user.name", "Dr. {givenName} {sn}");
+    attributes.put("givenName", singletonList("John"));
+
+    assertThat(SamlUserMapping.compile(samlSettings).getName(attributeSource)).isEqualTo("Dr. John");
+  }
+
+  @Test
+  public void fail_when_no_attribute_of_name_template_is_defined() {
+    settings.setProperty("sonar.auth.saml.user.name", "{givenName} {sn}");
+    SamlUserMapping underTest = SamlUserMapping.compile(samlSettings);
+
+    assertThatThrownBy(() -> underTest.getName(attributeSource))
+      .isInstanceOf(NullPointerException.class)
+      .hasMessage("{givenName} {sn} is missing");
+  }
+
+  @Test
+  public void fail_on_invalid_name_template() {
+    settings.setProperty("sonar.auth.saml.user.name", "{givenName");
+
+    assertThatThrownBy(() -> SamlUserMapping.compile(samlSettings))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid user name template: {givenName");
+  }
+
+  @Test
+  public void email_is_null_when_not_defined() {
+    SamlUserMapping underTest = SamlUserMapping.compile(samlSettings);
+    assertThat(underTest.getEmail(attributeSource)).isNull();
+
+    settings.removeProperty("sonar.auth.saml.user.email");
+    attributes.put("mail", singletonList("john@example.com"));
+    assertThat(SamlUserMapping.compile(samlSettings).getEmail(attributeSource)).isNull();
+  }
+
+  @Test
+  public void is_compiled_from_current_settings() {
+    SamlUserMapping underTest = SamlUserMapping.compile(samlSettings);
+    assertThat(underTest.isCompiledFrom(samlSettings)).isTrue();
+
+    settings.setProperty("sonar.auth.saml.user.login.transformations", "lowercase");
+    assertThat(underTest.isCompiledFrom(samlSettings)).isFalse();
+  }
+}
@@ -0,0 +1,576 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.time.OffsetDateTime;
+import java.util.Base64;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.internal.google.common.collect.ImmutableMap;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.utils.System2;
+import org.sonarsource.auth.saml.SamlLoginFailures.Failure;
+import org.sonarsource.auth.saml.SamlValidationPipeline.Stage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SamlValidationPipelineTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private static final String SQ_CALLBACK_URL = "http://localhost:9000/oauth2/callback/saml";
+  private static final String FULL_RESPONSE = loadDecodedResponse("encoded_full_response.txt");
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final System2 system2 = mock(System2.class);
+  private final SamlRequestTracker requestTracker = new SamlRequestTracker(system2);
+  private final SamlSettings samlSettings = new SamlSettings(settings.asConfig());
+  private final SamlLoginFailures loginFailures = new SamlLoginFailures();
+  private final SamlReplayStore replayStore = new SamlReplayStore(samlSettings, system2);
+  private final SamlIdpDiscovery idpDiscovery = new SamlIdpDiscovery(samlSettings, system2, Runnable::run);
+  private final SamlValidationPipeline underTest = new SamlValidationPipeline(samlSettings, requestTracker, idpDiscovery, new SamlCredentials(samlSettings),
+    new SamlSignatureVerifier(samlSettings), loginFailures, replayStore, system2);
+
+  @Before
+  public void setUp() {
+    settings.setProperty("sonar.auth.saml.applicationId", "MyApp");
+    settings.setProperty("sonar.auth.saml.providerId", "http://localhost:8080/auth/realms/sonarqube");
+    settings.setProperty("sonar.auth.saml.loginUrl", "http://localhost:8080/auth/realms/sonarqube/protocol/saml");
+    settings.setProperty("sonar.auth.saml.certificate.secured", "certificate");
+    when(system2.now()).thenReturn(OffsetDateTime.parse("2020-06-05T23:02:30Z").toInstant().toEpochMilli());
+  }
+
+  @Test
+  public void accept_valid_response() {
+    SamlIdp idp = underTest.validate(newRequest(FULL_RESPONSE)).getIdp();
+
+    assertThat(idp.getProviderId()).isEqualTo("http://localhost:8080/auth/realms/sonarqube");
+
+    for (Stage stage : Stage.values()) {
+      assertThat(underTest.getRejectionCount(stage)).isZero();
+    }
+  }
+
+  @Test
+  public void do_nothing_when_request_has_no_saml_response() {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameterMap()).thenReturn(ImmutableMap.of());
+
+    assertThat(underTest.validate(request).getIdp()).isEqualTo(samlSettings.getDefaultIdp());
+  }
+
+  @Test
+  public void accept_response_of_additional_identity_provider() {
+    addOtherIdp();
+
+    SamlIdp idp = underTest.validate(newRequest(FULL_RESPONSE.replace("http://localhost:8080/auth/realms/sonarqube", "http://other-idp"))).getIdp();
+
+    assertThat(idp.getProviderId()).isEqualTo("http://other-idp");
+    assertThat(idp.getCertificate()).isEqualTo("other certificate");
+  }
+
+  @Test
+  public void verify_response_with_identity_provider_of_the_request() {
+    addOtherIdp();
+    requestTracker.add("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75", "http://other-idp");
+
+    SamlValidationPipeline.ValidatedResponse validated = underTest.validate(newRequest(FULL_RESPONSE.replace("http://localhost:8080/auth/realms/sonarqube", "http://other-idp")));
+
+    assertThat(validated.getIdp().getProviderId()).isEqualTo("http://other-idp");
+    assertThat(validated.getRequestId()).isEqualTo("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75");
+  }
+
+  @Test
+  public void reject_response_of_another_identity_provider_than_the_one_of_the_request() {
+    addOtherIdp();
+    requestTracker.add("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75", "http://localhost:8080/auth/realms/sonarqube");
+
+    verifyRejected(FULL_RESPONSE.replace("http://localhost:8080/auth/realms/sonarqube", "http://other-idp"), Stage.ISSUER,
+      "Invalid issuer in the Assertion/Response (expected 'http://localhost:8080/auth/realms/sonarqube', received 'http://other-idp')");
+  }
+
+  @Test
+  public void reject_response_to_request_sent_to_identity_provider_no_longer_configured() {
+    requestTracker.add("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75", "http://removed-idp");
+
+    verifyRejected(FULL_RESPONSE, Stage.ISSUER,
+      "The identity provider http://removed-idp of the AuthnRequest ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75 is no longer configured");
+  }
+
+  @Test
+  public void accept_users_whose_domain_is_routed_to_the_identity_provider() {
+    addOtherIdp();
+    SamlIdp otherIdp = idpDiscovery.findByProviderId("http://other-idp");
+    HttpServletRequest request = newRequest(FULL_RESPONSE);
+
+    underTest.checkUserDomains(otherIdp, request, "john@example.com", "john@EXAMPLE.com");
+    underTest.checkUserDomains(samlSettings.getDefaultIdp(), request, "john", "john@corp.com");
+    underTest.checkUserDomains(samlSettings.getDefaultIdp(), request, "john@corp.com", null);
+
+    assertThat(underTest.getRejectionCount(Stage.ISSUER)).isZero();
+  }
+
+  @Test
+  public void reject_users_whose_domain_is_not_routed_to_the_identity_provider() {
+    addOtherIdp();
+    SamlIdp otherIdp = idpDiscovery.findByProviderId("http://other-idp");
+    SamlIdp defaultIdp = samlSettings.getDefaultIdp();
+
+    verifyUserRejected(otherIdp, "john@corp.com", null, "The identity provider http://other-idp is not allowed to authenticate the login john@corp.com");
+    verifyUserRejected(otherIdp, "admin", "admin@example.com",
+      "The identity provider http://other-idp is not allowed to authenticate the login admin, which has no domain");
+    verifyUserRejected(otherIdp, "john@example.com", "john@corp.com", "The identity provider http://other-idp is not allowed to authenticate the email john@corp.com");
+    verifyUserRejected(defaultIdp, "john@example.com", null,
+      "The identity provider http://localhost:8080/auth/realms/sonarqube is not allowed to authenticate the login john@example.com");
+    verifyUserRejected(defaultIdp, "john", "john@example.com",
+      "The identity provider http://localhost:8080/auth/realms/sonarqube is not allowed to authenticate the email john@example.com");
+    assertThat(underTest.getRejectionCount(Stage.ISSUER)).isEqualTo(5);
+  }
+
+  @Test
+  public void reject_response_which_is_not_xml() {
+    verifyRejected("<samlp:Response", Stage.MALFORMED, "SAML Response is not a valid XML document");
+  }
+
+  @Test
+  public void reject_response_which_is_not_base64() {
+    HttpServletRequest request = newRequest(FULL_RESPONSE);
+    when(request.getParameterMap()).thenReturn(ImmutableMap.of("SAMLResponse", new String[] {"!invalid!"}));
+
+    assertThatThrownBy(() -> underTest.validate(request))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("SAML Response is not a valid XML document");
+    assertThat(underTest.getRejectionCount(Stage.MALFORMED)).isEqualTo(1);
+  }
+
+  @Test
+  public void accept_response_to_pending_request_when_unsolicited_responses_are_rejected() {
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+    requestTracker.add("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75", "http://localhost:8080/auth/realms/sonarqube");
+
+    SamlValidationPipeline.ValidatedResponse validated = underTest.validate(newRequest(FULL_RESPONSE));
+
+    assertThat(validated.getRequestId()).isEqualTo("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75");
+    // The request is only consumed once the signature is verified
+    assertThat(requestTracker.size()).isEqualTo(1);
+    underTest.validate(newRequest(FULL_RESPONSE));
+  }
+
+  @Test
+  public void request_can_only_be_consumed_once_its_signature_is_verified() {
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+    requestTracker.add("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75", "http://localhost:8080/auth/realms/sonarqube");
+    HttpServletRequest request = newRequest(FULL_RESPONSE);
+
+    underTest.consumeRequest(samlSettings.getDefaultIdp(), request, "ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75");
+
+    assertThat(requestTracker.size()).isZero();
+    assertThatThrownBy(() -> underTest.consumeRequest(samlSettings.getDefaultIdp(), request, "ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75"))
+      .isInstanceOfSatisfying(SamlValidationPipeline.Rejection.class, e -> assertThat(e.isAfterSignatureVerification()).isTrue())
+      .hasMessage("The AuthnRequest ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75 has already been answered");
+    assertThatThrownBy(() -> underTest.validate(request))
+      .hasMessage("The InResponseTo of the Response: ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75, does not match any pending AuthnRequest");
+    assertThat(underTest.getRejectionCount(Stage.IN_RESPONSE_TO)).isEqualTo(2);
+  }
+
+  @Test
+  public void reject_unsolicited_response() {
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+
+    verifyRejected(FULL_RESPONSE.replace("InResponseTo=\"ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75\" IssueInstant", "IssueInstant"),
+      Stage.IN_RESPONSE_TO, "The Response is unsolicited");
+  }
+
+  @Test
+  public void in_response_to_is_checked_before_other_checks() {
+    settings.setProperty("sonar.auth.saml.rejectUnsolicitedResponses", true);
+
+    verifyRejected(FULL_RESPONSE.replace("http://localhost:8080/auth/realms/sonarqube", "http://evil"), Stage.IN_RESPONSE_TO,
+      "The InResponseTo of the Response: ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75, does not match any pending AuthnRequest");
+    assertThat(underTest.getRejectionCount(Stage.ISSUER)).isZero();
+  }
+
+  @Test
+  public void reject_response_with_invalid_destination() {
+    verifyRejected(FULL_RESPONSE.replace("Destination=\"http://localhost:9000/oauth2/callback/saml\"", "Destination=\"http://other/callback\""),
+      Stage.DESTINATION, "The response was received at " + SQ_CALLBACK_URL + " instead of http://other/callback");
+  }
+
+  @Test
+  public void reject_response_with_invalid_issuer() {
+    verifyRejected(FULL_RESPONSE.replace("http://localhost:8080/auth/realms/sonarqube", "http://evil"),
+      Stage.ISSUER, "Invalid issuer in the Assertion/Response (expected 'http://localhost:8080/auth/realms/sonarqube', received 'http://evil')");
+  }
+
+  @Test
+  public void reject_response_with_failed_status() {
+    verifyRejected(FULL_RESPONSE.replace("urn:oasis:names:tc:SAML:2.0:status:Success", "urn:oasis:names:tc:SAML:2.0:status:Requester"),
+      Stage.STATUS, "The status code of the Response was not Success, was urn:oasis:names:tc:SAML:2.0:status:Requester");
+  }
+
+  @Test
+  public void reject_response_with_invalid_audience() {
+    settings.setProperty("sonar.auth.saml.applicationId", "OtherApp");
+
+    verifyRejected(FULL_RESPONSE, Stage.AUDIENCE, "OtherApp is not a valid audience for this Response");
+  }
+
+  @Test
+  public void reject_response_not_yet_valid() {
+    when(system2.now()).thenReturn(OffsetDateTime.parse("2020-06-05T22:00:00Z").toInstant().toEpochMilli());
+
+    verifyRejected(FULL_RESPONSE, Stage.VALIDITY_WINDOW, "Could not validate timestamp: not yet valid. Check system clock.");
+  }
+
+  @Test
+  public void reject_expired_response() {
+    when(system2.now()).thenReturn(OffsetDateTime.parse("2040-01-01T00:00:00Z").toInstant().toEpochMilli());
+
+    verifyRejected(FULL_RESPONSE, Stage.VALIDITY_WINDOW, "Could not validate timestamp: expired. Check system clock.");
+  }
+
+  @Test
+  public void cheaper_checks_are_executed_first() {
+    settings.setProperty("sonar.auth.saml.applicationId", "OtherApp");
+
+    verifyRejected(FULL_RESPONSE.replace("http://localhost:8080/auth/realms/sonarqube", "http://evil"),
+      Stage.ISSUER, "Invalid issuer in the Assertion/Response (expected 'http://localhost:8080/auth/realms/sonarqube', received 'http://evil')");
+    assertThat(underTest.getRejectionCount(Stage.AUDIENCE)).isZero();
+  }
+
+  @Test
+  public void count_signature_rejections() {
+    UnauthorizedException exception = underTest.rejectSignature(samlSettings.getDefaultIdp(), newRequest(FULL_RESPONSE), "Signature validation failed");
+
+    assertThat(exception).hasMessage("Signature validation failed");
+    assertThat(underTest.getRejectionCount(Stage.SIGNATURE)).isEqualTo(1);
+    assertThat(loginFailures.getFailures()).extracting(Failure::getStage, Failure::getIssuer)
+      .containsExactly(tuple(Stage.SIGNATURE, "http://localhost:8080/auth/realms/sonarqube"));
+  }
+
+  @Test
+  public void record_rejected_responses() {
+    String response = FULL_RESPONSE.replace("http://localhost:8080/auth/realms/sonarqube", "http://evil");
+    HttpServletRequest request = newRequest(response);
+
+    assertThatThrownBy(() -> underTest.validate(request)).isInstanceOf(UnauthorizedException.class);
+
+    assertThat(loginFailures.getFailures()).hasSize(1);
+    Failure failure = loginFailures.getFailures().get(0);
+    assertThat(failure.getTimestamp()).isEqualTo(system2.now());
+    assertThat(failure.getStage()).isEqualTo(Stage.ISSUER);
+    assertThat(failure.getIssuer()).isEqualTo("http://evil");
+    assertThat(failure.getResponseHash()).isEqualTo(String.format("%016x", SamlLoginFailures.hash(SamlValidationPipeline.getEncodedResponse(request))));
+  }
+
+  @Test
+  public void reject_replayed_redirect_response() throws GeneralSecurityException, IOException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    settings.setProperty("sonar.auth.saml.replayProtection", true);
+    settings.setProperty("sonar.path.data", temp.newFolder().getAbsolutePath());
+    HttpServletRequest request = newRedirectRequest(SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE, "state", idpPrivateKey()));
+    underTest.validateRedirect(request, SamlRedirectMessage.parse(request.getQueryString()));
+
+    assertThatThrownBy(() -> underTest.validateRedirect(request, SamlRedirectMessage.parse(request.getQueryString())))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("The Assertion ID_0183b780-3ac1-4ea0-b269-b15b2ec2d1c5 has already been used");
+    assertThat(underTest.getRejectionCount(Stage.REPLAY)).isEqualTo(1);
+    assertThat(loginFailures.getFailures()).extracting(Failure::getStage).containsExactly(Stage.REPLAY);
+  }
+
+  @Test
+  public void reject_assertion_without_id_when_replay_protection_is_enabled() {
+    settings.setProperty("sonar.auth.saml.replayProtection", true);
+    HttpServletRequest request = newRequest(FULL_RESPONSE);
+
+    assertThatThrownBy(() -> underTest.checkReplay(samlSettings.getDefaultIdp(), request, null, null))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("The Assertion has no ID");
+  }
+
+  @Test
+  public void reject_assertion_when_replay_store_is_full() throws IOException {
+    settings.setProperty("sonar.auth.saml.replayProtection", true);
+    settings.setProperty("sonar.path.data", temp.newFolder().getAbsolutePath());
+    SamlReplayStore fullStore = new SamlReplayStore(samlSettings, system2, 64);
+    for (int i = 0; i < 1_000; i++) {
+      fullStore.markUsed("ID_" + i, system2.now() + 60_000);
+    }
+    SamlValidationPipeline pipeline = new SamlValidationPipeline(samlSettings, requestTracker, idpDiscovery, new SamlCredentials(samlSettings),
+      new SamlSignatureVerifier(samlSettings), loginFailures, fullStore, system2);
+    HttpServletRequest request = newRequest(FULL_RESPONSE);
+
+    assertThatThrownBy(() -> pipeline.checkReplay(samlSettings.getDefaultIdp(), request, "NEW", null))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage("The SAML replay store is full, the Assertion NEW can't be recorded");
+    assertThat(pipeline.getRejectionCount(Stage.REPLAY)).isEqualTo(1);
+    assertThat(loginFailures.getFailures()).extracting(Failure::getStage).containsExactly(Stage.REPLAY);
+    fullStore.stop();
+  }
+
+  @Test
+  public void ignore_replays_when_replay_protection_is_disabled() {
+    HttpServletRequest request = newRequest(FULL_RESPONSE);
+
+    underTest.checkReplay(samlSettings.getDefaultIdp(), request, "ID_1", null);
+    underTest.checkReplay(samlSettings.getDefaultIdp(), request, "ID_1", null);
+
+    assertThat(underTest.getRejectionCount(Stage.REPLAY)).isZero();
+  }
+
+  @Test
+  public void accept_valid_redirect_response() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    HttpServletRequest request = newRedirectRequest(SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE, "state", idpPrivateKey()));
+
+    SamlResponseHeader response = underTest.validateRedirect(request, SamlRedirectMessage.parse(request.getQueryString())).getHeader();
+
+    assertThat(response.getNameId()).isEqualTo("johndoe");
+    assertThat(response.getAttribute("login")).containsExactly("johndoe");
+    assertThat(response.getAttribute("groups")).containsOnly("developer", "product-manager");
+    assertThat(response.getAttribute("unknown")).isEmpty();
+    for (Stage stage : Stage.values()) {
+      assertThat(underTest.getRejectionCount(stage)).isZero();
+    }
+  }
+
+  @Test
+  public void reject_redirect_response_signed_by_another_key() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    PrivateKey otherKey = SamlRedirectMessageTest.loadPrivateKey(loadResource("sp_private_key.pem"));
+
+    verifyRedirectRejected(SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE, "state", otherKey),
+      Stage.SIGNATURE, "Signature validation failed. SAML Response rejected");
+  }
+
+  @Test
+  public void reject_redirect_response_with_tampered_relay_state() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    String queryString = SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE, "state", idpPrivateKey());
+
+    verifyRedirectRejected(queryString.replace("RelayState=state", "RelayState=other"),
+      Stage.SIGNATURE, "Signature validation failed. SAML Response rejected");
+  }
+
+  @Test
+  public void reject_unsigned_redirect_response() throws GeneralSecurityException {
+    String queryString = SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE, null, idpPrivateKey());
+
+    verifyRedirectRejected(queryString.substring(0, queryString.indexOf("&SigAlg=")),
+      Stage.SIGNATURE, "SAML Response received with the HTTP-Redirect binding is not signed");
+  }
+
+  @Test
+  public void reject_redirect_response_signed_with_unsupported_algorithm() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    String queryString = SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE, null, idpPrivateKey());
+
+    verifyRedirectRejected(queryString.replace("rsa-sha256", "hmac-sha256"),
+      Stage.SIGNATURE, "Unsupported signature algorithm: http://www.w3.org/2001/04/xmldsig-more#hmac-sha256");
+  }
+
+  @Test
+  public void reject_redirect_response_when_certificate_is_invalid() throws GeneralSecurityException {
+    verifyRedirectRejected(SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE, null, idpPrivateKey()),
+      Stage.SIGNATURE, "The certificate of the identity provider http://localhost:8080/auth/realms/sonarqube is not valid");
+  }
+
+  @Test
+  public void reject_redirect_response_with_encrypted_assertion() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    verifyRedirectRejected(SamlRedirectMessageTest.signedQueryString(loadDecodedResponse("encoded_encrypted_response.txt"), null, idpPrivateKey()),
+      Stage.MALFORMED, "SAML Response received with the HTTP-Redirect binding must contain a single unencrypted Assertion");
+  }
+
+  @Test
+  public void reject_redirect_response_which_is_not_deflated() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    String encoded = Base64.getEncoder().encodeToString(FULL_RESPONSE.getBytes(StandardCharsets.UTF_8));
+
+    verifyRedirectRejected(SamlRedirectMessageTest.sign("SAMLResponse=" + encoded.replace("+", "%2B").replace("/", "%2F").replace("=", "%3D"), idpPrivateKey()),
+      Stage.MALFORMED, "SAML Response is not a valid XML document");
+  }
+
+  @Test
+  public void reject_redirect_response_with_invalid_recipient() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    String response = FULL_RESPONSE.replace("Recipient=\"http://localhost:9000/oauth2/callback/saml\"", "Recipient=\"http://other/callback\"");
+
+    verifyRedirectRejected(SamlRedirectMessageTest.signedQueryString(response, null, idpPrivateKey()),
+      Stage.SUBJECT_CONFIRMATION, "The Assertion was received at " + SQ_CALLBACK_URL + " instead of http://other/callback");
+  }
+
+  @Test
+  public void reject_redirect_response_with_expired_subject_confirmation() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    String response = FULL_RESPONSE.replace("NotOnOrAfter=\"2039-06-11T09:41:26.438Z\" Recipient", "NotOnOrAfter=\"2020-06-05T22:00:00Z\" Recipient");
+
+    verifyRedirectRejected(SamlRedirectMessageTest.signedQueryString(response, null, idpPrivateKey()),
+      Stage.SUBJECT_CONFIRMATION, "The subject confirmation of the Assertion has expired");
+  }
+
+  @Test
+  public void signature_of_redirect_response_is_verified_before_the_response_is_parsed() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    PrivateKey otherKey = SamlRedirectMessageTest.loadPrivateKey(loadResource("sp_private_key.pem"));
+
+    verifyRedirectRejected(SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE.replace("http://localhost:8080/auth/realms/sonarqube", "http://evil"), null, otherKey),
+      Stage.SIGNATURE, "Signature validation failed. SAML Response rejected");
+    String notDeflated = SamlRedirectMessageTest.sign("SAMLResponse=not_deflated", otherKey);
+    assertThatThrownBy(() -> underTest.validateRedirect(newRedirectRequest(notDeflated), SamlRedirectMessage.parse(notDeflated)))
+      .hasMessage("Signature validation failed. SAML Response rejected");
+    assertThat(underTest.getRejectionCount(Stage.SIGNATURE)).isEqualTo(2);
+    assertThat(underTest.getRejectionCount(Stage.ISSUER)).isZero();
+    assertThat(underTest.getRejectionCount(Stage.MALFORMED)).isZero();
+  }
+
+  @Test
+  public void redirect_response_is_verified_with_the_default_identity_provider_even_when_issued_by_another_one() throws GeneralSecurityException {
+    addOtherIdp();
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.certificate", loadResource("idp_certificate.pem"));
+
+    verifyRedirectRejected(SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE.replace("http://localhost:8080/auth/realms/sonarqube", "http://other-idp"), null, idpPrivateKey()),
+      Stage.SIGNATURE, "The certificate of the identity provider http://localhost:8080/auth/realms/sonarqube is not valid");
+    assertThat(underTest.getRejectionCount(Stage.ISSUER)).isZero();
+  }
+
+  @Test
+  public void reject_redirect_response_to_request_sent_to_additional_identity_provider() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    addOtherIdp();
+    requestTracker.add("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75", "http://other-idp");
+
+    verifyRedirectRejected(SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE, null, idpPrivateKey()), Stage.ISSUER,
+      "SAML Response received with the HTTP-Redirect binding is only accepted from the identity provider http://localhost:8080/auth/realms/sonarqube, "
+        + "the AuthnRequest ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75 has been sent to http://other-idp");
+    assertThat(requestTracker.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void consume_request_only_once_signature_of_redirect_response_is_verified() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    requestTracker.add("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75", "http://localhost:8080/auth/realms/sonarqube");
+    PrivateKey otherKey = SamlRedirectMessageTest.loadPrivateKey(loadResource("sp_private_key.pem"));
+
+    verifyRedirectRejected(SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE, null, otherKey), Stage.SIGNATURE,
+      "Signature validation failed. SAML Response rejected");
+    assertThat(requestTracker.size()).isEqualTo(1);
+
+    HttpServletRequest request = newRedirectRequest(SamlRedirectMessageTest.signedQueryString(FULL_RESPONSE, null, idpPrivateKey()));
+    SamlValidationPipeline.ValidatedResponse validated = underTest.validateRedirect(request, SamlRedirectMessage.parse(request.getQueryString()));
+
+    assertThat(validated.getRequestId()).isEqualTo("ONELOGIN_b23d3caf-7a5c-4370-b849-0db4d3c34e75");
+    assertThat(requestTracker.size()).isZero();
+  }
+
+  @Test
+  public void rejections_of_signed_redirect_response_are_done_after_signature_verification() throws GeneralSecurityException {
+    settings.setProperty("sonar.auth.saml.certificate.secured", loadResource("idp_certificate.pem"));
+    String response = FULL_RESPONSE.replace("Recipient=\"http://localhost:9000/oauth2/callback/saml\"", "Recipient=\"http://other/callback\"");
+    HttpServletRequest request = newRedirectRequest(SamlRedirectMessageTest.signedQueryString(response, null, idpPrivateKey()));
+
+    assertThatThrownBy(() -> underTest.validateRedirect(request, SamlRedirectMessage.parse(request.getQueryString())))
+      .isInstanceOfSatisfying(SamlValidationPipeline.Rejection.class, e -> assertThat(e.isAfterSignatureVerification()).isTrue());
+  }
+
+  private void verifyRedirectRejected(String queryString, Stage expectedStage, String expectedMessage) {
+    HttpServletRequest request = newRedirectRequest(queryString);
+
+    assertThatThrownBy(() -> underTest.validateRedirect(request, SamlRedirectMessage.parse(queryString)))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage(expectedMessage);
+    assertThat(underTest.getRejectionCount(expectedStage)).isEqualTo(1);
+    assertThat(loginFailures.getFailures()).extracting(Failure::getStage, Failure::getReason).contains(tuple(expectedStage, expectedMessage));
+  }
+
+  private static HttpServletRequest newRedirectRequest(String queryString) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURL()).thenReturn(new StringBuffer(SQ_CALLBACK_URL));
+    when(request.getQueryString()).thenReturn(queryString);
+    return request;
+  }
+
+  private static PrivateKey idpPrivateKey() throws GeneralSecurityException {
+    return SamlRedirectMessageTest.loadPrivateKey(loadResource("idp_private_key.pem"));
+  }
+
+  private void addOtherIdp() {
+    settings.setProperty("sonar.auth.saml.additionalIdps", "1");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.domains", "example.com");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.providerId", "http://other-idp");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.loginUrl", "http://other-idp/saml");
+    settings.setProperty("sonar.auth.saml.additionalIdps.1.certificate", "other certificate");
+  }
+
+  private void verifyUserRejected(SamlIdp idp, String login, @Nullable String email, String expectedMessage) {
+    assertThatThrownBy(() -> underTest.checkUserDomains(idp, newRequest(FULL_RESPONSE), login, email))
+      .isInstanceOfSatisfying(SamlValidationPipeline.Rejection.class, e -> assertThat(e.isAfterSignatureVerification()).isTrue())
+      .hasMessage(expectedMessage);
+  }
+
+  private void verifyRejected(String response, Stage expectedStage, String expectedMessage) {
+    assertThatThrownBy(() -> underTest.validate(newRequest(response)))
+      .isInstanceOf(UnauthorizedException.class)
+      .hasMessage(expectedMessage);
+    assertThat(underTest.getRejectionCount(expectedStage)).isEqualTo(1);
+    assertThat(loginFailures.getFailures()).extracting(Failure::getStage, Failure::getReason).contains(tuple(expectedStage, expectedMessage));
+  }
+
+  private static HttpServletRequest newRequest(String xmlResponse) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURL()).thenReturn(new StringBuffer(SQ_CALLBACK_URL));
+    String encoded = Base64.getEncoder().encodeToString(xmlResponse.getBytes(StandardCharsets.UTF_8));
+    when(request.getParameterMap()).thenReturn(ImmutableMap.of("SAMLResponse", new String[] {encoded}));
+    return request;
+  }
+
+  private static String loadResource(String file) {
+    try (InputStream input = SamlValidationPipelineTest.class.getResourceAsStream("IntegrationTest/" + file)) {
+      return IOUtils.toString(input, StandardCharsets.UTF_8.name());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String loadDecodedResponse(String file) {
+    try (InputStream encoded = SamlValidationPipelineTest.class.getResourceAsStream("IntegrationTest/" + file)) {
+      return new String(Base64.getMimeDecoder().decode(IOUtils.toString(encoded, StandardCharsets.UTF_8.name()).trim()), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
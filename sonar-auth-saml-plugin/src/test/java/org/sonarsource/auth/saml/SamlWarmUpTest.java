@@ -0,0 +1,111 @@
+/*
+ * SAML 2.0 Authentication for SonarQube
+ * Copyright (C) 2018-2020 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.auth.saml;
+
+import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class SamlWarmUpTest {
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(SamlSettings.definitions()));
+  private final SamlSettings samlSettings = new SamlSettings(settings.asConfig());
+  private final SamlWarmUp underTest = new SamlWarmUp(samlSettings, new SamlCredentials(samlSettings), System2.INSTANCE);
+
+  @Test
+  public void synthetic_response_reaches_signature_validation() {
+    setSettings();
+
+    assertThat(underTest.warmUp()).isTrue();
+  }
+
+  @Test
+  public void synthetic_response_escapes_settings() {
+    setSettings();
+    settings.setProperty("sonar.auth.saml.providerId", "http://idp?a=1&b=<2>");
+    settings.setProperty("sonar.auth.saml.applicationId", "sonar\"qube&co");
+    settings.setProperty("sonar.auth.saml.user.login", "login<&>\"");
+
+    assertThat(underTest.warmUp()).isTrue();
+  }
+
+  @Test
+  public void failure_is_not_propagated() {
+    setSettings();
+    settings.removeProperty("sonar.auth.saml.providerId");
+
+    assertThat(underTest.warmUp()).isFalse();
+  }
+
+  @Test
+  public void warm_up_at_startup_when_enabled() {
+    setSettings();
+    SamlWarmUp warmUp = spy(underTest);
+
+    warmUp.start();
+
+    verify(warmUp, timeout(60_000)).warmUp();
+    warmUp.stop();
+  }
+
+  @Test
+  public void do_not_warm_up_at_startup_when_disabled() {
+    SamlWarmUp warmUp = spy(new SamlWarmUp(samlSettings, new SamlCredentials(samlSettings), mock(System2.class)));
+
+    warmUp.start();
+    warmUp.stop();
+
+    verify(warmUp).start();
+    verify(warmUp).stop();
+    verify(warmUp, times(0)).warmUp();
+  }
+
+  @Test
+  public void warm_up_only_once() {
+    setSettings();
+    SamlWarmUp warmUp = spy(underTest);
+
+    warmUp.warmUpInBackground();
+    warmUp.warmUpInBackground();
+
+    verify(warmUp, timeout(60_000)).warmUp();
+    warmUp.stop();
+  }
+
+  private void setSettings() {
+    settings.setProperty("sonar.auth.saml.applicationId", "MyApp");
+    settings.setProperty("sonar.auth.saml.providerId", "http://localhost:8080/auth/realms/sonarqube");
+    settings.setProperty("sonar.auth.saml.loginUrl", "http://localhost:8080/auth/realms/sonarqube/protocol/saml");
+    settings.setProperty("sonar.auth.saml.certificate.secured",
+      "MIICoTCCAYkCBgFyheyiszANBgkqhkiG9w0BAQsFADAUMRIwEAYDVQQDDAlzb25hcnF1YmUwHhcNMjAwNjA1MTkxNzU3WhcNMzAwNjA1MTkxOTM3WjAUMRIwEAYDVQQDDAlzb25hcnF1YmUwggEiMA0GCSqGSIb3DQEBAQUAA4IBDwAwggEKAoIBAQCBwKX8xUyrQ44KPRSvGITkYWFLMV8SKCkmB/AYwdVFFMSCMBDa6d5q3YXXkH2NMRTMDvmI+bO6FWQQlZec47ZKKJispS4jX+mf2MumvRehv/Ijk+iJsVoq0Aqk4E9hOnMaMzlqVUmzLTMYfndQd0kt0NkOVdk8IOZTFiQKYPYeAbfZV35WwE6NvhDoQkQ+r2gBvkAmsEVvff/3+aqavY3+N02Tm7cL/lXNeBr8tSj00Fze82XEHN12e6lkHE+u34hYu3xWdT1JpTGAMkLryz1woo3FYT9z8Mmxn9rbn0fihJj22X7BFOrTRXli9mgLoXazSYvoQijHi2aPHOc6RxE3AgMBAAEwDQYJKoZIhvcNAQELBQADggEBABSMICm+2mgeUwGAarHlBxy2TtMMUUwV1c4yXC3qc4Cjzq9FrIPxVg37eHMF0B6wcWpsX+xMT9QKLBkuZfSAsJRiAv4OJgJbt5L3wGa5JcHotJ9IhQNAL9knC7VmK8oP84YZY11XFRAyXnwv9jUk2VBMzMRylqvRDPGbsc6J/KpAQ2IBMKbErsK47YWKtj/5sWN6pU9HcDMgrDP3uh7SGhU3O78XN7ms6v5YliPHGFSyysz9fSyCF+Bt0lIPR+suuIZHZ9WKijxEBNXPTiNVeVCICOigSZAdhxe+gF7b4+Z6Uq4jGIVqmYy+OuvPGnCxim7Gek3oYVT2U7Qb3gtUtY0=");
+    settings.setProperty("sonar.auth.saml.user.login", "login");
+    settings.setProperty("sonar.auth.saml.user.name", "name");
+    settings.setProperty("sonar.auth.saml.enabled", true);
+  }
+}